@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.findwise.hydra.ChangeFeed;
 import com.findwise.hydra.DatabaseConnector;
 import com.findwise.hydra.DatabaseConnector.ConversionException;
 import com.findwise.hydra.DatabaseDocument;
@@ -78,6 +79,7 @@ public class DocumentsService<T extends DatabaseType> {
 			} else {
 			for (DatabaseDocument<T> databaseDocument : res) {
 				getConnector().getDocumentWriter().delete(databaseDocument);
+				publishChange(databaseDocument);
 			}
 		return true;
 	    }
@@ -86,6 +88,17 @@ public class DocumentsService<T extends DatabaseType> {
 		return connector;
 	}
 
+	/**
+	 * Lets the core drop any cached copy of the document, and lets stages
+	 * waiting for documents know about it.
+	 */
+	private void publishChange(DatabaseDocument<T> document) {
+		ChangeFeed<T> feed = connector.getChangeFeed();
+		if (feed != null) {
+			feed.publishDocumentChanged(document.getID());
+		}
+	}
+
 	public Map<String, Object> updateDocuments(String jsonQuery, int limit,
 			String changes) {
 
@@ -117,6 +130,7 @@ public class DocumentsService<T extends DatabaseType> {
 									if (change) {
 										connector.getDocumentWriter().update(
 												document);
+										publishChange(document);
 										changedDocuments.add(document);
 									}
 								}
@@ -129,6 +143,7 @@ public class DocumentsService<T extends DatabaseType> {
 									if (change) {
 										connector.getDocumentWriter().update(
 												document);
+										publishChange(document);
 										changedDocuments.add(document);
 									}
 								}
@@ -179,6 +194,9 @@ public class DocumentsService<T extends DatabaseType> {
 			DatabaseDocument<T> dbDoc = connector.convert(doc);
 			
 			boolean success = connector.getDocumentWriter().insert(dbDoc);
+			if (success) {
+				publishChange(dbDoc);
+			}
 			ret.put("success", success);
 		} catch (IllegalArgumentException e) {
 			Map<String, Object> error = new HashMap<String, Object>();
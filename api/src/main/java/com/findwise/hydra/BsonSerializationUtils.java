@@ -0,0 +1,134 @@
+package com.findwise.hydra;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+
+import com.google.gson.JsonParseException;
+
+/**
+ * Convenience methods for serializing maps to and from BSON, the compact
+ * binary format that MongoDB uses. This is an alternative to the Json
+ * methods in {@link SerializationUtils}, and produces the same types when
+ * deserializing: maps, lists, strings, booleans, dates and numbers.
+ *
+ * Values that have no BSON representation of their own (such as enums and
+ * document IDs) are stored the way they would be if sent as Json.
+ *
+ * Malformed input causes a {@link JsonException}, for consistency with the
+ * Json methods.
+ */
+public final class BsonSerializationUtils {
+
+	private BsonSerializationUtils() {}
+
+	public static byte[] toBson(Map<String, ?> map) {
+		return new BasicBSONEncoder().encode(new BasicBSONObject(toBsonMap(map)));
+	}
+
+	public static Map<String, Object> fromBson(byte[] bson) throws JsonException {
+		try {
+			return toNaturalMap(new BasicBSONDecoder().readObject(bson));
+		} catch (RuntimeException e) {
+			throw new JsonException(new JsonParseException("Malformed BSON document", e));
+		}
+	}
+
+	/**
+	 * Reads a single BSON document from the stream, leaving the stream
+	 * positioned after it.
+	 */
+	public static Map<String, Object> fromBson(InputStream in) throws JsonException {
+		try {
+			return toNaturalMap(new BasicBSONDecoder().readObject(in));
+		} catch (IOException e) {
+			throw new JsonException(new JsonParseException("Unable to read BSON document", e));
+		} catch (RuntimeException e) {
+			throw new JsonException(new JsonParseException("Malformed BSON document", e));
+		}
+	}
+
+	/**
+	 * Checks whether there is another document to read from a stream of BSON
+	 * documents written back to back. The stream must support
+	 * {@link InputStream#mark(int)}.
+	 */
+	public static boolean hasMoreDocuments(InputStream in) throws IOException {
+		in.mark(1);
+		if (in.read() < 0) {
+			return false;
+		}
+		in.reset();
+		return true;
+	}
+
+	private static Map<String, Object> toBsonMap(Map<?, ?> map) {
+		Map<String, Object> x = new HashMap<String, Object>();
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+			x.put(String.valueOf(e.getKey()), toBsonValue(e.getValue()));
+		}
+		return x;
+	}
+
+	private static Object toBsonValue(Object o) {
+		if (o == null || o instanceof String || o instanceof Boolean || o instanceof Date
+				|| o instanceof Integer || o instanceof Long || o instanceof Double) {
+			return o;
+		}
+		if (o instanceof Number) {
+			try {
+				return SerializationUtils.toNumber(new BigDecimal(o.toString()));
+			} catch (NumberFormatException e) {
+				return ((Number) o).doubleValue();
+			}
+		}
+		if (o instanceof Map) {
+			return toBsonMap((Map<?, ?>) o);
+		}
+		if (o instanceof Collection) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object v : (Collection<?>) o) {
+				list.add(toBsonValue(v));
+			}
+			return list;
+		}
+		try {
+			return toBsonValue(SerializationUtils.toObject(SerializationUtils.toJson(o)));
+		} catch (JsonException e) {
+			return o.toString();
+		}
+	}
+
+	private static Map<String, Object> toNaturalMap(BSONObject o) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (String key : o.keySet()) {
+			map.put(key, toNatural(o.get(key)));
+		}
+		return map;
+	}
+
+	private static Object toNatural(Object o) {
+		if (o instanceof List) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object v : (List<?>) o) {
+				list.add(toNatural(v));
+			}
+			return list;
+		}
+		if (o instanceof BSONObject) {
+			return toNaturalMap((BSONObject) o);
+		}
+		return o;
+	}
+}
@@ -0,0 +1,124 @@
+package com.findwise.hydra;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns documents to nodes by consistent hashing of their IDs. Every node
+ * is placed on the ring at a number of pseudo-random points, and a document
+ * belongs to the node at the first point following the hash of its ID. Adding
+ * or removing a node therefore only moves the documents between that node and
+ * its neighbours.
+ *
+ * The core and the stages must agree on who owns a document, even though the
+ * core sees database IDs and the stages see IDs parsed from Json. The hashed
+ * key is therefore made from the Json form of the ID, keeping only its
+ * textual and integral parts, in key order.
+ */
+public class ConsistentHashRing {
+	public static final int DEFAULT_REPLICAS = 160;
+
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+	private final List<String> nodes;
+
+	public ConsistentHashRing(Collection<String> nodes) {
+		this(nodes, DEFAULT_REPLICAS);
+	}
+
+	/**
+	 * @param nodes
+	 *            the names of the nodes, typically <code>host:port</code>
+	 * @param replicas
+	 *            the number of points on the ring for each node
+	 */
+	public ConsistentHashRing(Collection<String> nodes, int replicas) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("A ring needs at least one node");
+		}
+		this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+		for (String node : nodes) {
+			for (int i = 0; i < replicas; i++) {
+				ring.put(hash(node + "#" + i), node);
+			}
+		}
+	}
+
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+	public String getNode(DocumentID<?> id) {
+		return getNode(getKey(id));
+	}
+
+	public String getNode(String key) {
+		Map.Entry<Long, String> e = ring.ceilingEntry(hash(key));
+		return (e != null) ? e.getValue() : ring.firstEntry().getValue();
+	}
+
+	/**
+	 * @return the key that a document with this ID is placed on the ring by
+	 */
+	public static String getKey(DocumentID<?> id) {
+		Object o;
+		try {
+			o = SerializationUtils.toObject(id.toJSON());
+		} catch (JsonException e) {
+			return id.toJSON();
+		}
+		StringBuilder sb = new StringBuilder();
+		appendKey(o, sb);
+		return sb.toString();
+	}
+
+	private static void appendKey(Object o, StringBuilder sb) {
+		if (o instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) o;
+			List<String> keys = new ArrayList<String>();
+			for (Object k : map.keySet()) {
+				keys.add(String.valueOf(k));
+			}
+			Collections.sort(keys);
+			for (String k : keys) {
+				Object v = map.get(k);
+				if (v instanceof String || v instanceof Number || v instanceof Map) {
+					sb.append(k).append('=');
+					appendKey(v, sb);
+					sb.append(';');
+				}
+			}
+		} else if (o instanceof Number) {
+			sb.append(((Number) o).longValue());
+		} else if (o != null) {
+			sb.append(o);
+		}
+	}
+
+	private static long hash(String key) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		long h = 0;
+		for (int i = 0; i < 8; i++) {
+			h = (h << 8) | (digest[i] & 0xff);
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return "ConsistentHashRing " + nodes;
+	}
+}
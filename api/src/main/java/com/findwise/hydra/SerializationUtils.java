@@ -3,6 +3,7 @@ package com.findwise.hydra;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.text.ParseException;
@@ -26,6 +27,8 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
@@ -126,6 +129,112 @@ public final class SerializationUtils {
 		return gson.fromJson(json, Object.class);
 	}
 	
+	/**
+	 * Streaming equivalent of {@link #fromJson(String)}. The Json is parsed
+	 * token by token straight into maps, lists and primitives, without ever
+	 * holding the full Json text or an intermediate tree in memory.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> fromJson(Reader json) throws JsonException {
+		Object o = toObject(json);
+		if(o instanceof Map) {
+			return (Map<String, Object>) o;
+		}
+		HashMap<String, Object> x = new HashMap<String, Object>();
+		x.put("", o);
+		return x;
+	}
+
+	/**
+	 * Streaming equivalent of {@link #toObject(String)}, producing the same
+	 * types as the non-streaming version.
+	 */
+	public static Object toObject(Reader json) throws JsonException {
+		JsonReader reader = new JsonReader(json);
+		reader.setLenient(true);
+		try {
+			return readNatural(reader);
+		} catch (IOException e) {
+			throw new JsonException(new JsonParseException(e));
+		} catch (IllegalStateException e) {
+			throw new JsonException(new JsonParseException(e));
+		} catch (NumberFormatException e) {
+			throw new JsonException(new JsonParseException(e));
+		}
+	}
+
+	private static Object readNatural(JsonReader reader) throws IOException {
+		switch (reader.peek()) {
+		case BEGIN_OBJECT:
+			HashMap<String, Object> map = new HashMap<String, Object>();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				map.put(name, readNatural(reader));
+			}
+			reader.endObject();
+			return map;
+		case BEGIN_ARRAY:
+			List<Object> array = new ArrayList<Object>();
+			reader.beginArray();
+			while (reader.hasNext()) {
+				array.add(readNatural(reader));
+			}
+			reader.endArray();
+			return array;
+		case BOOLEAN:
+			return reader.nextBoolean();
+		case NUMBER:
+			return toNumber(new BigDecimal(reader.nextString()));
+		case STRING:
+			return toStringOrDate(reader.nextString());
+		case NULL:
+			reader.nextNull();
+			return null;
+		default:
+			throw new IllegalStateException("Unexpected token " + reader.peek());
+		}
+	}
+
+	private static Object toStringOrDate(String s) {
+		try {
+			return getDateFormat().parse(s);
+		} catch(ParseException e) {
+			try {
+				return getLegacyDateFormat().parse(s);
+			} catch (ParseException e2) {
+				return s;
+			}
+		}
+	}
+
+	static Object toNumber(BigDecimal bigDec) {
+		try {
+			bigDec.toBigIntegerExact();
+			
+			try {
+				return bigDec.intValueExact();
+			} catch (ArithmeticException e) {
+				return bigDec.longValue();
+			}
+		} 
+		catch (ArithmeticException e) {
+		}
+		return bigDec.doubleValue();
+	}
+
+	/**
+	 * Serializes any object as Json straight to the given writer, without
+	 * building the Json string in memory first.
+	 * 
+	 * Unlike {@link #toJson(Object)}, this does not retry if the object is
+	 * modified during serialization, since part of it may already have been
+	 * written.
+	 */
+	public static void toJson(Object o, Appendable writer) {
+		gson.toJson(o, writer);
+	}
+
 	/**
 	 * Serializes any object to Json. 
 	 * @param o object to serialize
@@ -186,30 +295,9 @@ public final class SerializationUtils {
 			if (json.isBoolean()) {
 				return json.getAsBoolean();
 			} else if (json.isString()) {
-				try {
-					return getDateFormat().parse(json.getAsString());
-				} catch(ParseException e) {
-					try {
-						return getLegacyDateFormat().parse(json.getAsString());
-					} catch (ParseException e2) {
-						return json.getAsString();
-					}
-				}
+				return toStringOrDate(json.getAsString());
 			} else {
-				BigDecimal bigDec = json.getAsBigDecimal();
-				
-				try {
-					bigDec.toBigIntegerExact();
-					
-					try {
-						return bigDec.intValueExact();
-					} catch (ArithmeticException e) {
-						return bigDec.longValue();
-					}
-				} 
-				catch (ArithmeticException e) {
-				}
-				return bigDec.doubleValue();
+				return toNumber(json.getAsBigDecimal());
 			}
 		}
 
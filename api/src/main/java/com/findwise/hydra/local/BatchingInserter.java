@@ -0,0 +1,179 @@
+package com.findwise.hydra.local;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inserts new documents through
+ * {@link RemotePipeline#insertAll(java.util.Collection)}, in batches of up to
+ * <code>batchSize</code> documents.
+ *
+ * Documents are handed to {@link #add(LocalDocument)} and sent by one or more
+ * background threads. At most <code>capacity</code> documents are held waiting
+ * to be sent; once that many are waiting, {@link #add(LocalDocument)} blocks
+ * until the core has caught up. A producer can therefore never run further
+ * ahead of the core than that.
+ *
+ * Since inserting happens asynchronously, failures are only logged and
+ * counted, see {@link #getFailedCount()}.
+ */
+public class BatchingInserter {
+	private static final Logger logger = LoggerFactory.getLogger(BatchingInserter.class);
+
+	private final RemotePipeline pipeline;
+	private final int batchSize;
+	private final BlockingQueue<LocalDocument> queue;
+	private final Sender[] senders;
+
+	private final Object lock = new Object();
+	private int pending = 0;
+
+	private final AtomicLong inserted = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public BatchingInserter(RemotePipeline pipeline, int batchSize) {
+		this(pipeline, batchSize, batchSize * 4, 1);
+	}
+
+	/**
+	 * @param capacity
+	 *            the most documents to hold waiting to be sent
+	 * @param threads
+	 *            the number of batches to have in flight at a time
+	 */
+	public BatchingInserter(RemotePipeline pipeline, int batchSize, int capacity, int threads) {
+		if (batchSize < 1 || capacity < 1 || threads < 1) {
+			throw new IllegalArgumentException("Batch size, capacity and threads must all be positive");
+		}
+		this.pipeline = pipeline;
+		this.batchSize = batchSize;
+		queue = new ArrayBlockingQueue<LocalDocument>(capacity);
+		senders = new Sender[threads];
+		for (int i = 0; i < threads; i++) {
+			senders[i] = new Sender(i);
+			senders[i].start();
+		}
+	}
+
+	/**
+	 * Queues a document for insertion, waiting for room in the queue if
+	 * needed.
+	 */
+	public void add(LocalDocument d) throws InterruptedException {
+		synchronized (lock) {
+			pending++;
+		}
+		try {
+			queue.put(d);
+		} catch (InterruptedException e) {
+			done(1);
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until every document added so far has been sent to the core.
+	 */
+	public void flush() throws InterruptedException {
+		synchronized (lock) {
+			while (pending > 0) {
+				lock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Sends all queued documents and stops the background threads.
+	 */
+	public void close() throws InterruptedException {
+		flush();
+		for (Sender s : senders) {
+			s.interrupt();
+		}
+		for (Sender s : senders) {
+			s.join();
+		}
+	}
+
+	private void done(int count) {
+		synchronized (lock) {
+			pending -= count;
+			if (pending == 0) {
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of documents that have not yet been sent
+	 */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pending;
+		}
+	}
+
+	public long getInsertedCount() {
+		return inserted.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	private void send(List<LocalDocument> batch) {
+		try {
+			pipeline.insertAll(batch);
+		} catch (IOException e) {
+			logger.error("Unable to insert " + batch.size() + " documents", e);
+		}
+		int ok = 0;
+		for (LocalDocument d : batch) {
+			if (d.getID() != null) {
+				ok++;
+			}
+		}
+		inserted.addAndGet(ok);
+		if (ok < batch.size()) {
+			failed.addAndGet(batch.size() - ok);
+			logger.error("Unable to insert " + (batch.size() - ok) + " out of " + batch.size() + " documents");
+		}
+	}
+
+	private class Sender extends Thread {
+		Sender(int i) {
+			setDaemon(true);
+			setName("batching-inserter-" + pipeline.getStageName() + "-" + i);
+		}
+
+		public void run() {
+			List<LocalDocument> batch = new ArrayList<LocalDocument>(batchSize);
+			while (!isInterrupted()) {
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					interrupt();
+					break;
+				}
+				queue.drainTo(batch, batchSize - 1);
+				try {
+					send(batch);
+				} finally {
+					done(batch.size());
+					batch.clear();
+				}
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.findwise.hydra.local;
 
 public class HttpEndpointConstants {
     public static final String GET_DOCUMENT_URL = "getDocument";
+    public static final String GET_DOCUMENTS_URL = "getDocuments";
     public static final String WRITE_DOCUMENT_URL = "writeDocument";
     public static final String RELEASE_DOCUMENT_URL = "releaseDocument";
     public static final String PROCESSED_DOCUMENT_URL = "processedDocument";
@@ -10,11 +11,32 @@ public class HttpEndpointConstants {
     public static final String GET_PROPERTIES_URL = "getProperties";
     public static final String FAILED_DOCUMENT_URL = "failedDocument";
     public static final String FILE_URL = "documentFile";
+    public static final String RAW_FILE_URL = "rawDocumentFile";
+    public static final String MARK_DOCUMENTS_URL = "markDocuments";
+    public static final String INSERT_DOCUMENTS_URL = "insertDocuments";
     public static final String STAGE_PARAM = "stage";
     public static final String NORELEASE_PARAM = "norelease";
     public static final String PARTIAL_PARAM = "partial";
     public static final String DOCID_PARAM = "docid";
     public static final String FILENAME_PARAM = "filename";
+    public static final String COUNT_PARAM = "count";
+    public static final String WAIT_PARAM = "wait";
+    public static final String MARK_KEY = "mark";
+    public static final String DOCUMENT_KEY = "document";
+    public static final String MARKED_KEY = "marked";
+    public static final String FAILED_KEY = "failed";
+    public static final String INSERTED_KEY = "inserted";
+    public static final String IDS_KEY = "ids";
+    public static final String POSITION_KEY = "position";
+    public static final String ERROR_KEY = "error";
+    public static final String JSON_CONTENT_TYPE = "application/json";
+    public static final String BSON_CONTENT_TYPE = "application/bson";
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    public static final String BINARY_CONTENT_TYPE = "application/octet-stream";
+    public static final String UPLOAD_DATE_HEADER = "X-Hydra-Upload-Date";
+    public static final String ENCODING_HEADER = "X-Hydra-Encoding";
+    public static final String MIMETYPE_HEADER = "X-Hydra-Mimetype";
+    public static final String SAVED_BY_STAGE_HEADER = "X-Hydra-Saved-By-Stage";
     public static final int DEFAULT_PORT = 12001;
     public static final String DEFAULT_HOST = "localhost";
 }
@@ -1,22 +1,35 @@
 package com.findwise.hydra.local;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.findwise.hydra.BsonSerializationUtils;
+import com.findwise.hydra.ConsistentHashRing;
+import com.findwise.hydra.Document;
 import com.findwise.hydra.DocumentFile;
 import com.findwise.hydra.DocumentID;
 import com.findwise.hydra.JsonException;
@@ -25,7 +38,12 @@ import com.findwise.hydra.stage.AbstractProcessStage;
 import com.findwise.hydra.stage.AbstractProcessStageMapper;
 import com.findwise.hydra.stage.InitFailedException;
 import com.findwise.hydra.stage.RequiredArgumentMissingException;
+import com.findwise.tools.ConnectionPoolMetrics;
 import com.findwise.tools.HttpConnection;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
 public class HttpRemotePipeline implements RemotePipeline {
 	private static final Logger internalLogger = LoggerFactory.getLogger("internal");
@@ -34,18 +52,33 @@ public class HttpRemotePipeline implements RemotePipeline {
     private final boolean performanceLogging;
 
 	private final HttpConnection core;
+	private final String coreNode;
+
+	private volatile ConsistentHashRing ring;
+	private volatile Map<String, HttpConnection> cores;
+	private final AtomicInteger nextCore = new AtomicInteger();
 
 	private final String getUrl;
+	private final String getBatchUrl;
 	private final String writeUrl;
 	private final String processedUrl;
 	private final String failedUrl;
 	private final String pendingUrl;
 	private final String discardedUrl;
+	private final String releaseUrl;
 	private final String propertyUrl;
 	private final String fileUrl;
+	private final String rawFileUrl;
+	private final String markUrl;
+	private final String insertUrl;
 
 	private final String stageName;
 
+	private boolean binaryWireFormat = false;
+
+	private static final long POOL_LOG_INTERVAL = 10000;
+	private volatile long lastPoolLog = 0;
+
 	/**
 	 * Calls RemotePipeline(String, int, String) with default values for
 	 * hostName (RemotePipeline.DEFAULT_HOST) and port (RemotePipeline.DEFAULT_PORT).
@@ -63,31 +96,217 @@ public class HttpRemotePipeline implements RemotePipeline {
 	public HttpRemotePipeline(String hostName, int port, String stageName, boolean performanceLogging) {
 		this.stageName = stageName;
 		getUrl = "/" + HttpEndpointConstants.GET_DOCUMENT_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
+		getBatchUrl = "/" + HttpEndpointConstants.GET_DOCUMENTS_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
 		writeUrl = "/" + HttpEndpointConstants.WRITE_DOCUMENT_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
 		processedUrl = "/" + HttpEndpointConstants.PROCESSED_DOCUMENT_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
 		failedUrl = "/" + HttpEndpointConstants.FAILED_DOCUMENT_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
 		pendingUrl = "/" + HttpEndpointConstants.PENDING_DOCUMENT_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
 		discardedUrl = "/" + HttpEndpointConstants.DISCARDED_DOCUMENT_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
+		releaseUrl = "/" + HttpEndpointConstants.RELEASE_DOCUMENT_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
 		propertyUrl = "/" + HttpEndpointConstants.GET_PROPERTIES_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
 		fileUrl = "/" + HttpEndpointConstants.FILE_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
+		rawFileUrl = "/" + HttpEndpointConstants.RAW_FILE_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
+		markUrl = "/" + HttpEndpointConstants.MARK_DOCUMENTS_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
+		insertUrl = "/" + HttpEndpointConstants.INSERT_DOCUMENTS_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName;
 
 		core = new HttpConnection(hostName, port);
+		coreNode = hostName + ":" + port;
 		this.performanceLogging = performanceLogging;
 	}
 
+	/**
+	 * If set, documents and queries are sent to the core as BSON rather than
+	 * Json, and documents are requested as BSON. This saves serialization
+	 * time on both ends, but requires a core that understands BSON, and the
+	 * MongoDB Java driver on the classpath of the stage; the API only has an
+	 * optional dependency on it.
+	 */
+	public void setBinaryWireFormat(boolean binaryWireFormat) {
+		this.binaryWireFormat = binaryWireFormat;
+	}
+
+	public boolean isBinaryWireFormat() {
+		return binaryWireFormat;
+	}
+
+	/**
+	 * Sets the number of connections kept open to the core. Each thread
+	 * using this pipeline needs a connection of its own for the duration of
+	 * a request, so this should be at least the number of threads.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		core.setMaxConnections(maxConnections);
+		for (HttpConnection c : getCores()) {
+			c.setMaxConnections(maxConnections);
+		}
+	}
+
+	public int getMaxConnections() {
+		return core.getMaxConnections();
+	}
+
+	/**
+	 * Sets how long, in milliseconds, an idle connection to the core is kept
+	 * open for reuse.
+	 */
+	public void setConnectionKeepAlive(long keepAlive) {
+		core.setKeepAlive(keepAlive);
+		for (HttpConnection c : getCores()) {
+			c.setKeepAlive(keepAlive);
+		}
+	}
+
+	/**
+	 * Sets the cores that share the documents between them. Requests about a
+	 * document are sent to the core owning it, and requests for new
+	 * documents go to each core in turn. Stage properties are still read
+	 * from the core this pipeline was created for, and new documents are
+	 * saved through it.
+	 * 
+	 * @param nodes
+	 *            the cores as <code>host:port</code>, or <code>null</code>
+	 *            to talk to a single core
+	 */
+	public void setCoreNodes(List<String> nodes) {
+		if (nodes == null || nodes.isEmpty()) {
+			ring = null;
+			cores = null;
+			return;
+		}
+		Map<String, HttpConnection> map = new LinkedHashMap<String, HttpConnection>();
+		for (String node : nodes) {
+			if (node.equals(coreNode)) {
+				map.put(node, core);
+				continue;
+			}
+			int colon = node.lastIndexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("Expected host:port, got " + node);
+			}
+			map.put(node, new HttpConnection(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)),
+					core.getMaxConnections(), core.getKeepAlive()));
+		}
+		cores = map;
+		ring = new ConsistentHashRing(nodes);
+		internalLogger.info("Routing requests by document to " + ring);
+	}
+
+	public List<String> getCoreNodes() {
+		ConsistentHashRing ring = this.ring;
+		return (ring != null) ? ring.getNodes() : null;
+	}
+
+	private Collection<HttpConnection> getCores() {
+		Map<String, HttpConnection> cores = this.cores;
+		return (cores != null) ? cores.values() : new ArrayList<HttpConnection>();
+	}
+
+	/**
+	 * @return the connection to the core owning the document
+	 */
+	private HttpConnection coreFor(DocumentID<?> id) {
+		ConsistentHashRing ring = this.ring;
+		Map<String, HttpConnection> cores = this.cores;
+		if (ring == null || cores == null || id == null) {
+			return core;
+		}
+		return cores.get(ring.getNode(id));
+	}
+
+	/**
+	 * @return all cores, starting at a different one on every call
+	 */
+	private List<HttpConnection> coresInTurn() {
+		List<HttpConnection> all = new ArrayList<HttpConnection>(getCores());
+		if (all.isEmpty()) {
+			all.add(core);
+			return all;
+		}
+		int first = (nextCore.getAndIncrement() & Integer.MAX_VALUE) % all.size();
+		List<HttpConnection> list = new ArrayList<HttpConnection>(all.size());
+		list.addAll(all.subList(first, all.size()));
+		list.addAll(all.subList(0, first));
+		return list;
+	}
+
+	/**
+	 * @return counters for how long requests to the core have waited for a
+	 *         free connection
+	 */
+	public ConnectionPoolMetrics getConnectionPoolMetrics() {
+		return core.getMetrics();
+	}
+
+	private void logConnectionPool() {
+		long now = System.currentTimeMillis();
+		if (now - lastPoolLog < POOL_LOG_INTERVAL) {
+			return;
+		}
+		lastPoolLog = now;
+		ConnectionPoolMetrics metrics = core.getMetrics();
+		PoolStats stats = core.getPoolStats();
+		logger.info(String.format("type=performance event=connectionpool stage_name=%s leases=%d failed=%d avgwait=%d maxwait=%d leased=%d available=%d pending=%d max=%d",
+				stageName, metrics.getLeaseCount(), metrics.getFailedLeaseCount(), metrics.getAverageWaitTime(TimeUnit.MILLISECONDS), metrics.getMaxWaitTime(TimeUnit.MILLISECONDS),
+				stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax()));
+	}
+
+	private HttpResponse postQuery(HttpConnection core, String url, LocalQuery query) throws IOException {
+		if (binaryWireFormat) {
+			return core.post(url, query.toBson(), HttpEndpointConstants.BSON_CONTENT_TYPE);
+		}
+		return core.post(url, query.toJson());
+	}
+
+	private static boolean isBson(HttpResponse response) {
+		Header contentType = response.getEntity().getContentType();
+		return contentType != null && contentType.getValue().startsWith(HttpEndpointConstants.BSON_CONTENT_TYPE);
+	}
+
 	@Override
     public LocalDocument getDocument(LocalQuery query) throws IOException {
+		return getDocument(query, 0);
+	}
+
+	/**
+	 * If the documents are split between several cores, each is asked in
+	 * turn, and only the last one asked waits for a document to show up.
+	 */
+	@Override
+	public LocalDocument getDocument(LocalQuery query, long timeout) throws IOException {
+		List<HttpConnection> cores = coresInTurn();
+		for (int i = 0; i < cores.size(); i++) {
+			boolean last = (i == cores.size() - 1);
+			LocalDocument ld = getDocument(cores.get(i), query, last ? timeout : 0);
+			if (ld != null || last) {
+				return ld;
+			}
+		}
+		return null;
+	}
+
+	private LocalDocument getDocument(HttpConnection core, LocalQuery query, long timeout) throws IOException {
 		HttpResponse response;
 		long start = System.currentTimeMillis();
-		response = core.post(getUrl, query.toJson());
+		if (timeout > 0) {
+			response = postQuery(core, getUrl + "&" + HttpEndpointConstants.WAIT_PARAM + "=" + timeout, query);
+		} else {
+			response = postQuery(core, getUrl, query);
+		}
 
 		long startSerialize = System.currentTimeMillis();
 		long startJson = 0L;
 		LocalDocument ld = null;
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-			String s = EntityUtils.toString(response.getEntity());
 			startJson = System.currentTimeMillis();
-			ld = buildDocument(s);
+			try {
+				if (isBson(response)) {
+					ld = buildDocument(response.getEntity().getContent());
+				} else {
+					ld = buildDocument(new InputStreamReader(response.getEntity().getContent(), "UTF-8"));
+				}
+			} finally {
+				EntityUtils.consume(response.getEntity());
+			}
 			internalLogger.debug("Received document with ID " + ld.getID());
 		} else if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
 			internalLogger.debug("No document found matching query");
@@ -99,10 +318,91 @@ public class HttpRemotePipeline implements RemotePipeline {
 			long end = System.currentTimeMillis();
 			Object docId = ld != null ? ld.getID() : null;
 			logger.info(String.format("type=performance event=query stage_name=%s doc_id=\"%s\" start=%d fetch=%d entitystring=%d serialize=%d end=%d total=%d", stageName, docId, start, startSerialize - start, startJson - startSerialize, end - startJson, end, end - start));
+			logConnectionPool();
 		}
 		return ld;
 	}
 
+	@Override
+	public List<LocalDocument> getDocuments(LocalQuery query, int n) throws IOException {
+		if (n == 1) {
+			List<LocalDocument> list = new ArrayList<LocalDocument>();
+			LocalDocument ld = getDocument(query);
+			if (ld != null) {
+				list.add(ld);
+			}
+			return list;
+		}
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		for (HttpConnection c : coresInTurn()) {
+			docs = getDocuments(c, query, n);
+			if (!docs.isEmpty()) {
+				break;
+			}
+		}
+		return docs;
+	}
+
+	private List<LocalDocument> getDocuments(HttpConnection core, LocalQuery query, int n) throws IOException {
+		long start = System.currentTimeMillis();
+		HttpResponse response = postQuery(core, getBatchUrl + "&" + HttpEndpointConstants.COUNT_PARAM + "=" + n, query);
+
+		long startSerialize = System.currentTimeMillis();
+		long startJson = 0L;
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+			if (isBson(response)) {
+				startJson = System.currentTimeMillis();
+				try {
+					docs = buildDocuments(response.getEntity().getContent());
+				} finally {
+					EntityUtils.consume(response.getEntity());
+				}
+			} else {
+				String s = EntityUtils.toString(response.getEntity());
+				startJson = System.currentTimeMillis();
+				docs = buildDocuments(s);
+			}
+			internalLogger.debug("Received " + docs.size() + " documents");
+		} else if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+			internalLogger.debug("No document found matching query");
+			EntityUtils.consume(response.getEntity());
+		} else {
+			logUnexpected("getDocuments()", response);
+		}
+		if (isPerformanceLogging()) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=batchquery stage_name=%s count=%d start=%d fetch=%d entitystring=%d serialize=%d end=%d total=%d", stageName, docs.size(), start, startSerialize - start, startJson - startSerialize, end - startJson, end, end - start));
+			logConnectionPool();
+		}
+		return docs;
+	}
+
+	private List<LocalDocument> buildDocuments(String s) throws IOException {
+		JsonArray array;
+		try {
+			array = new JsonParser().parse(s).getAsJsonArray();
+		} catch (JsonParseException e) {
+			throw new IOException(e);
+		} catch (IllegalStateException e) {
+			throw new IOException("Expected a JSON array of documents", e);
+		}
+		List<LocalDocument> docs = new ArrayList<LocalDocument>(array.size());
+		for (JsonElement e : array) {
+			docs.add(buildDocument(e.toString()));
+		}
+		return docs;
+	}
+
+	private List<LocalDocument> buildDocuments(InputStream bson) throws IOException {
+		InputStream in = new BufferedInputStream(bson);
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		while (BsonSerializationUtils.hasMoreDocuments(in)) {
+			docs.add(buildDocument(in));
+		}
+		return docs;
+	}
+
 	private LocalDocument buildDocument(String s) throws IOException {
 		LocalDocument ld;
 		try {
@@ -115,6 +415,29 @@ public class HttpRemotePipeline implements RemotePipeline {
 		return ld;
 	}
 
+	private LocalDocument buildDocument(Reader reader) throws IOException {
+		LocalDocument ld;
+		try {
+			ld = new LocalDocument(reader);
+		} catch (JsonException e) {
+			throw new IOException(e);
+		}
+		ld.setDocumentFileRepository(this);
+		return ld;
+	}
+
+	private LocalDocument buildDocument(InputStream bson) throws IOException {
+		LocalDocument ld = new LocalDocument();
+		try {
+			ld.fromBson(bson);
+		} catch (JsonException e) {
+			throw new IOException(e);
+		}
+		ld.markSynced();
+		ld.setDocumentFileRepository(this);
+		return ld;
+	}
+
 	private static void logUnexpected(String apiMethod, HttpResponse response) throws IOException {
 		internalLogger.error(apiMethod + " gave an unexpected response: " + response.getStatusLine() + ", Message: " + EntityUtils.toString(response.getEntity()));
 	}
@@ -139,15 +462,19 @@ public class HttpRemotePipeline implements RemotePipeline {
 
 	private boolean save(LocalDocument d, boolean partialUpdate) throws IOException, JsonException {
 		boolean hasId = d.getID() != null;
-		String s;
 		long start = System.currentTimeMillis();
-		if (partialUpdate) {
-			s = d.modifiedFieldsToJson();
+		HttpConnection core = coreFor(d.getID());
+		HttpResponse response;
+		long startPost;
+		if (binaryWireFormat) {
+			byte[] b = partialUpdate ? d.modifiedFieldsToBson() : d.toBson();
+			startPost = System.currentTimeMillis();
+			response = core.post(getWriteUrl(partialUpdate), b, HttpEndpointConstants.BSON_CONTENT_TYPE);
 		} else {
-			s = d.toJson();
+			String s = partialUpdate ? d.modifiedFieldsToJson() : d.toJson();
+			startPost = System.currentTimeMillis();
+			response = core.post(getWriteUrl(partialUpdate), s);
 		}
-		long startPost = System.currentTimeMillis();
-		HttpResponse response = core.post(getWriteUrl(partialUpdate), s);
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 			if (!hasId) {
 				LocalDocument updated = new LocalDocument(EntityUtils.toString(response.getEntity()));
@@ -167,9 +494,35 @@ public class HttpRemotePipeline implements RemotePipeline {
 		return false;
 	}
 
+	private HttpResponse postModifiedFields(String url, LocalDocument d) throws IOException {
+		HttpConnection core = coreFor(d.getID());
+		if (binaryWireFormat) {
+			return core.post(url, d.modifiedFieldsToBson(), HttpEndpointConstants.BSON_CONTENT_TYPE);
+		}
+		return core.post(url, d.modifiedFieldsToJson());
+	}
+
+	@Override
+	public boolean markTouched(LocalDocument d) throws IOException {
+		HttpResponse response = coreFor(d.getID()).post(releaseUrl, d.contentFieldsToJson(null));
+		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+			EntityUtils.consume(response.getEntity());
+			return true;
+		}
+
+		logUnexpected("markTouched()", response);
+		return false;
+	}
+
 	@Override
     public boolean markPending(LocalDocument d) throws IOException {
-		HttpResponse response = core.post(pendingUrl, d.contentFieldsToJson(null));
+		HttpConnection core = coreFor(d.getID());
+		HttpResponse response;
+		if (binaryWireFormat) {
+			response = core.post(pendingUrl, d.contentFieldsToBson(null), HttpEndpointConstants.BSON_CONTENT_TYPE);
+		} else {
+			response = core.post(pendingUrl, d.contentFieldsToJson(null));
+		}
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 
@@ -183,7 +536,7 @@ public class HttpRemotePipeline implements RemotePipeline {
 
 	@Override
     public boolean markFailed(LocalDocument d) throws IOException {
-		HttpResponse response = core.post(failedUrl, d.modifiedFieldsToJson());
+		HttpResponse response = postModifiedFields(failedUrl, d);
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 
@@ -203,7 +556,7 @@ public class HttpRemotePipeline implements RemotePipeline {
 
 	@Override
     public boolean markProcessed(LocalDocument d) throws IOException {
-		HttpResponse response = core.post(processedUrl, d.modifiedFieldsToJson());
+		HttpResponse response = postModifiedFields(processedUrl, d);
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 
@@ -217,7 +570,7 @@ public class HttpRemotePipeline implements RemotePipeline {
 
 	@Override
     public boolean markDiscarded(LocalDocument d) throws IOException {
-		HttpResponse response = core.post(discardedUrl, d.modifiedFieldsToJson());
+		HttpResponse response = postModifiedFields(discardedUrl, d);
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 
@@ -229,6 +582,136 @@ public class HttpRemotePipeline implements RemotePipeline {
 		return false;
 	}
 
+	/**
+	 * If the documents are split between several cores, each core is sent
+	 * the documents it owns in a request of its own.
+	 */
+	@Override
+	public boolean markAll(Collection<LocalDocument> docs, Document.Status status) throws IOException {
+		if (docs.isEmpty()) {
+			return true;
+		}
+		if (ring == null) {
+			return markAll(core, docs, status);
+		}
+		Map<HttpConnection, List<LocalDocument>> byCore = new HashMap<HttpConnection, List<LocalDocument>>();
+		for (LocalDocument d : docs) {
+			HttpConnection c = coreFor(d.getID());
+			if (!byCore.containsKey(c)) {
+				byCore.put(c, new ArrayList<LocalDocument>());
+			}
+			byCore.get(c).add(d);
+		}
+		boolean ok = true;
+		for (Map.Entry<HttpConnection, List<LocalDocument>> e : byCore.entrySet()) {
+			ok &= markAll(e.getKey(), e.getValue(), status);
+		}
+		return ok;
+	}
+
+	private boolean markAll(HttpConnection core, Collection<LocalDocument> docs, Document.Status status) throws IOException {
+		long start = System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder("[");
+		boolean first = true;
+		for (LocalDocument d : docs) {
+			if (!first) {
+				sb.append(',');
+			}
+			sb.append("{\"").append(HttpEndpointConstants.MARK_KEY).append("\":\"").append(status).append("\",\"");
+			sb.append(HttpEndpointConstants.DOCUMENT_KEY).append("\":").append(d.modifiedFieldsToJson()).append('}');
+			first = false;
+		}
+		sb.append(']');
+
+		long startPost = System.currentTimeMillis();
+		HttpResponse response = core.post(markUrl, sb.toString());
+		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			logUnexpected("markAll()", response);
+			return false;
+		}
+
+		Map<String, Object> result;
+		try {
+			result = SerializationUtils.fromJson(EntityUtils.toString(response.getEntity()));
+		} catch (JsonException e) {
+			throw new IOException(e);
+		}
+		Object failed = result.get(HttpEndpointConstants.FAILED_KEY);
+		if (isPerformanceLogging()) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=batchmark stage_name=%s status=%s count=%d start=%d serialize=%d post=%d end=%d total=%d", stageName, status, docs.size(), start, startPost - start, end - startPost, end, end - start));
+		}
+		if (failed instanceof Number && ((Number) failed).intValue() > 0) {
+			internalLogger.error("markAll() was unable to mark " + failed + " of " + docs.size() + " documents as " + status);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The documents are sent as newline-delimited Json to the core this
+	 * pipeline was created for.
+	 */
+	@Override
+	public boolean insertAll(Collection<LocalDocument> docs) throws IOException {
+		if (docs.isEmpty()) {
+			return true;
+		}
+		long start = System.currentTimeMillis();
+		List<LocalDocument> list = new ArrayList<LocalDocument>(docs);
+		StringBuilder sb = new StringBuilder();
+		for (LocalDocument d : list) {
+			sb.append(d.toJson()).append('\n');
+		}
+
+		long startPost = System.currentTimeMillis();
+		HttpResponse response = core.post(insertUrl, sb.toString().getBytes("UTF-8"), HttpEndpointConstants.NDJSON_CONTENT_TYPE);
+		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			logUnexpected("insertAll()", response);
+			return false;
+		}
+
+		Map<String, Object> result;
+		try {
+			result = SerializationUtils.fromJson(EntityUtils.toString(response.getEntity()));
+		} catch (JsonException e) {
+			throw new IOException(e);
+		}
+		Object ids = result.get(HttpEndpointConstants.IDS_KEY);
+		if (ids instanceof List) {
+			int i = 0;
+			for (Object id : (List<?>) ids) {
+				if (i >= list.size()) {
+					break;
+				}
+				LocalDocument d = list.get(i++);
+				if (id != null) {
+					d.setID(new LocalDocumentID(id));
+					d.markSynced();
+				}
+			}
+		}
+		Object failed = result.get(HttpEndpointConstants.FAILED_KEY);
+		if (result.get(HttpEndpointConstants.ERROR_KEY) != null) {
+			// The documents before the position were inserted, and have their IDs
+			internalLogger.error("insertAll() was stopped by document " + result.get(HttpEndpointConstants.POSITION_KEY) + ": " + result.get(HttpEndpointConstants.ERROR_KEY));
+		}
+		if (isPerformanceLogging()) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=bulkinsert stage_name=%s count=%d start=%d serialize=%d post=%d end=%d total=%d", stageName, list.size(), start, startPost - start, end - startPost, end, end - start));
+		}
+		if (failed instanceof Number && ((Number) failed).intValue() > 0) {
+			internalLogger.error("insertAll() was unable to insert " + failed + " of " + list.size() + " documents");
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void flush() {
+		// Nothing is buffered, every call goes straight to the core
+	}
+
 	private String getWriteUrl(boolean partialUpdate) {
 		String s = writeUrl;
 		s += "&" + HttpEndpointConstants.NORELEASE_PARAM + "=0";
@@ -264,43 +747,49 @@ public class HttpRemotePipeline implements RemotePipeline {
 		return jsonString;
 	}
 
-	private String getFileUrl(DocumentFile<Local> df) throws UnsupportedEncodingException {
-		return getFileUrl(df.getFileName(), df.getDocumentId());
+	private String getFileUrl(String fileName, DocumentID<Local> docid) throws UnsupportedEncodingException {
+		return getFileUrl(fileUrl, fileName, docid);
 	}
 
-	private String getFileUrl(String fileName, DocumentID<Local> docid) throws UnsupportedEncodingException {
-		return fileUrl + "&" + HttpEndpointConstants.FILENAME_PARAM + "=" + fileName + "&" + HttpEndpointConstants.DOCID_PARAM + "=" + URLEncoder.encode(docid.toJSON(), "UTF-8");
+	private String getFileUrl(String baseUrl, String fileName, DocumentID<Local> docid) throws UnsupportedEncodingException {
+		return baseUrl + "&" + HttpEndpointConstants.FILENAME_PARAM + "=" + fileName + "&" + HttpEndpointConstants.DOCID_PARAM + "=" + URLEncoder.encode(docid.toJSON(), "UTF-8");
 	}
 
+	/**
+	 * Fetches a file as raw bytes. The returned file streams its contents
+	 * straight from the connection to the core, so the stream should be read
+	 * to the end or closed to free the connection.
+	 */
 	public DocumentFile<Local> getFile(String fileName, DocumentID<Local> docid) {
+		return getFile(fileName, docid, false);
+	}
+
+	/**
+	 * @param buffered
+	 *            whether to read the whole file into memory, freeing the
+	 *            connection before returning
+	 */
+	private DocumentFile<Local> getFile(String fileName, DocumentID<Local> docid, boolean buffered) {
 		try {
-			HttpResponse response = core.get(getFileUrl(fileName, docid));
+			HttpResponse response = coreFor(docid).get(getFileUrl(rawFileUrl, fileName, docid));
 
 			if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-				Object o;
-				try {
-					o = SerializationUtils.toObject(EntityUtils.toString(response.getEntity()));
-				} catch (JsonException e) {
-					throw new IOException(e);
-				}
-				if (!(o instanceof Map)) {
-					return null;
+				Date d = null;
+				String date = getHeader(response, HttpEndpointConstants.UPLOAD_DATE_HEADER);
+				if (date != null) {
+					d = new Date(Long.parseLong(date));
 				}
+				String encoding = getHeader(response, HttpEndpointConstants.ENCODING_HEADER);
+				String mimetype = getHeader(response, HttpEndpointConstants.MIMETYPE_HEADER);
+				String savedByStage = getHeader(response, HttpEndpointConstants.SAVED_BY_STAGE_HEADER);
 
-				@SuppressWarnings("unchecked")
-				Map<String, Object> map = (Map<String, Object>) o;
-				Date d = (Date) map.get("uploadDate");
-				String encoding = (String) map.get("encoding");
-				String mimetype = (String) map.get("mimetype");
-				String savedByStage = (String) map.get("savedByStage");
-				InputStream is;
-				if (encoding == null) {
-					is = new ByteArrayInputStream(Base64.decodeBase64(((String) map.get("stream")).getBytes("UTF-8")));
+				InputStream content;
+				if (buffered) {
+					content = new ByteArrayInputStream(EntityUtils.toByteArray(response.getEntity()));
 				} else {
-					is = new ByteArrayInputStream(Base64.decodeBase64(((String) map.get("stream")).getBytes(encoding)));
+					content = response.getEntity().getContent();
 				}
-
-				DocumentFile<Local> df = new DocumentFile<Local>(docid, fileName, is, savedByStage, d);
+				DocumentFile<Local> df = new DocumentFile<Local>(docid, fileName, content, savedByStage, d);
 				df.setEncoding(encoding);
 				df.setMimetype(mimetype);
 
@@ -314,9 +803,30 @@ public class HttpRemotePipeline implements RemotePipeline {
 		}
 	}
 
+	private static String getHeader(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header != null ? header.getValue() : null;
+	}
+
+	/**
+	 * Streams the file to the core as raw bytes, with its metadata in headers.
+	 */
 	public boolean saveFile(DocumentFile<Local> df) {
 		try {
-			HttpResponse response = core.post(getFileUrl(df), SerializationUtils.toJson(df));
+			List<Header> headers = new ArrayList<Header>();
+			if (df.getUploadDate() != null) {
+				headers.add(new BasicHeader(HttpEndpointConstants.UPLOAD_DATE_HEADER, String.valueOf(df.getUploadDate().getTime())));
+			}
+			if (df.getEncoding() != null) {
+				headers.add(new BasicHeader(HttpEndpointConstants.ENCODING_HEADER, df.getEncoding()));
+			}
+			if (df.getMimetype() != null) {
+				headers.add(new BasicHeader(HttpEndpointConstants.MIMETYPE_HEADER, df.getMimetype()));
+			}
+			if (df.getSavedByStage() != null) {
+				headers.add(new BasicHeader(HttpEndpointConstants.SAVED_BY_STAGE_HEADER, df.getSavedByStage()));
+			}
+			HttpResponse response = coreFor(df.getDocumentId()).post(getFileUrl(rawFileUrl, df.getFileName(), df.getDocumentId()), df.getStream(), HttpEndpointConstants.BINARY_CONTENT_TYPE, headers.toArray(new Header[headers.size()]));
 			int code = response.getStatusLine().getStatusCode();
 			if (code == HttpStatus.SC_OK || code == HttpStatus.SC_NO_CONTENT) {
 				EntityUtils.consume(response.getEntity());
@@ -333,7 +843,7 @@ public class HttpRemotePipeline implements RemotePipeline {
 
 	public boolean deleteFile(String fileName, DocumentID<Local> docid) {
 		try {
-			HttpResponse response = core.delete(getFileUrl(fileName, docid));
+			HttpResponse response = coreFor(docid).delete(getFileUrl(fileName, docid));
 
 			if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 				EntityUtils.consume(response.getEntity());
@@ -350,7 +860,7 @@ public class HttpRemotePipeline implements RemotePipeline {
 	@SuppressWarnings("unchecked")
 	public List<String> getFileNames(DocumentID<?> docid) {
 		try {
-			HttpResponse response = core.get(fileUrl + "&" + HttpEndpointConstants.DOCID_PARAM + "=" + URLEncoder.encode(docid.toJSON(), "UTF-8"));
+			HttpResponse response = coreFor(docid).get(fileUrl + "&" + HttpEndpointConstants.DOCID_PARAM + "=" + URLEncoder.encode(docid.toJSON(), "UTF-8"));
 
 			if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 				try {
@@ -367,11 +877,16 @@ public class HttpRemotePipeline implements RemotePipeline {
 		}
 	}
 
+	/**
+	 * Fetches all files of the document. Unlike {@link #getFile(String, DocumentID)},
+	 * each file is read into memory, so that the files do not hold on to a
+	 * connection each until they are read.
+	 */
 	public List<DocumentFile<Local>> getFiles(DocumentID<Local> docid) {
 		List<String> fileNames = getFileNames(docid);
 		List<DocumentFile<Local>> files = new ArrayList<DocumentFile<Local>>();
 		for (String fileName : fileNames) {
-			files.add(getFile(fileName, docid));
+			files.add(getFile(fileName, docid, true));
 		}
 		return files;
 	}
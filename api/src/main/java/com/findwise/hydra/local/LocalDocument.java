@@ -1,8 +1,11 @@
 package com.findwise.hydra.local;
 
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -18,6 +21,7 @@ import com.findwise.hydra.Document;
 import com.findwise.hydra.DocumentFile;
 import com.findwise.hydra.DocumentFileRepository;
 import com.findwise.hydra.DocumentID;
+import com.findwise.hydra.BsonSerializationUtils;
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.SerializationUtils;
 import com.findwise.tools.Comparator;
@@ -58,6 +62,16 @@ public class LocalDocument implements Document<Local> {
 		markSynced();
 	}
 
+	/**
+	 * Reads the document from a stream of Json, without holding the whole
+	 * Json text in memory.
+	 */
+	public LocalDocument(Reader json) throws JsonException {
+		this();
+		fromJson(json);
+		markSynced();
+	}
+
 	public LocalDocument(LocalDocument doc) {
 		this();
 		try {
@@ -365,35 +379,96 @@ public class LocalDocument implements Document<Local> {
 		touchedMetadata.add(ERROR_METADATA_KEY);
 	}
 
+	public boolean touchedBy(String stage) {
+		return getMetadataSubMap(TOUCHED_METADATA_TAG).containsKey(stage);
+	}
+
+	public boolean fetchedBy(String stage) {
+		return getMetadataSubMap(FETCHED_METADATA_TAG).containsKey(stage);
+	}
+
+	/**
+	 * Records that the stage is done with this document. The core does this
+	 * for the stage that saves the document, so this is only needed for
+	 * stages that process it in memory before that.
+	 */
+	public void setTouchedBy(String stage, Date date) {
+		tag(TOUCHED_METADATA_TAG, stage, date);
+	}
+
+	/**
+	 * Records that the stage has picked up this document, so that the core
+	 * does not hand it out to the stage again.
+	 */
+	public void setFetchedBy(String stage, Date date) {
+		tag(FETCHED_METADATA_TAG, stage, date);
+	}
+
+	private void tag(String tag, String stage, Date date) {
+		Map<String, Object> tags = new HashMap<String, Object>(getMetadataSubMap(tag));
+		tags.put(stage, date);
+		getMetadataMap().put(tag, tags);
+		touchedMetadata.add(tag);
+	}
+
+	/**
+	 * nullsafe
+	 */
 	@SuppressWarnings("unchecked")
+	private Map<String, Object> getMetadataSubMap(String key) {
+		if(getMetadataMap().get(key) instanceof Map) {
+			return (Map<String, Object>) getMetadataMap().get(key);
+		}
+		return new HashMap<String, Object>();
+	}
+
 	@Override
 	public final void fromJson(String json) throws JsonException {
 		try {
-			Map<String, Object> m = SerializationUtils.fromJson(json);
-			if(m.containsKey(ID_KEY)) {
-				documentMap.put(ID_KEY, m.get(ID_KEY));
-			}
-			if(m.containsKey(ACTION_KEY) && m.get(ACTION_KEY)!=null) {
-				documentMap.put(ACTION_KEY, Action.valueOf((String)m.get(ACTION_KEY)));
-			}
-			if(m.containsKey(METADATA_KEY)) {
-				Map<String, Object> metadata = (Map<String, Object>) m.get(METADATA_KEY);
-				for(Map.Entry<String, Object> e : metadata.entrySet()) {
-					putMetadataField(e.getKey(), metadata.get(e.getKey()));
-				}
-			}
-			if(m.containsKey(CONTENTS_KEY)) {
-				Map<String, Object> content = (Map<String, Object>) m.get(CONTENTS_KEY);
-				for(Map.Entry<String, Object> e : content.entrySet()) {
-					putContentField(e.getKey(), content.get(e.getKey()));
-				}
-			}
+			fromMap(SerializationUtils.fromJson(json));
 		} 
 		catch(JsonParseException e) {
 			internalLogger.error("Caught JsonParseException, throwing JsonException");
 			throw new JsonException(e);
 		}
 	}
+
+	/**
+	 * Streaming equivalent of {@link #fromJson(String)}.
+	 */
+	public final void fromJson(Reader json) throws JsonException {
+		fromMap(SerializationUtils.fromJson(json));
+	}
+
+	/**
+	 * Reads a single BSON document from the stream. See
+	 * {@link BsonSerializationUtils}.
+	 */
+	public final void fromBson(InputStream bson) throws JsonException {
+		fromMap(BsonSerializationUtils.fromBson(bson));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void fromMap(Map<String, Object> m) {
+		if(m.containsKey(ID_KEY)) {
+			documentMap.put(ID_KEY, m.get(ID_KEY));
+		}
+		if(m.containsKey(ACTION_KEY) && m.get(ACTION_KEY)!=null) {
+			documentMap.put(ACTION_KEY, Action.valueOf((String)m.get(ACTION_KEY)));
+		}
+		if(m.containsKey(METADATA_KEY)) {
+			Map<String, Object> metadata = (Map<String, Object>) m.get(METADATA_KEY);
+			for(Map.Entry<String, Object> e : metadata.entrySet()) {
+				putMetadataField(e.getKey(), metadata.get(e.getKey()));
+			}
+		}
+		if(m.containsKey(CONTENTS_KEY)) {
+			Map<String, Object> content = (Map<String, Object>) m.get(CONTENTS_KEY);
+			for(Map.Entry<String, Object> e : content.entrySet()) {
+				putContentField(e.getKey(), content.get(e.getKey()));
+			}
+		}
+	}
 	
 	private String removePeriodFromKey(String key) {
 		if(key.contains(".")) {
@@ -424,6 +499,18 @@ public class LocalDocument implements Document<Local> {
 	public String toJson() {
 		return SerializationUtils.toJson(documentMap);
 	}
+
+	/**
+	 * Writes the document as Json straight to the given writer, without
+	 * building the Json string in memory first.
+	 */
+	public void toJson(Appendable writer) {
+		SerializationUtils.toJson(documentMap, writer);
+	}
+
+	public byte[] toBson() {
+		return BsonSerializationUtils.toBson(documentMap);
+	}
 	
 	protected Map<String, Object> getDocumentMap() {
 		return documentMap;
@@ -504,14 +591,26 @@ public class LocalDocument implements Document<Local> {
 	public String modifiedFieldsToJson() {
 		return fieldsToJson(touchedContent, touchedMetadata);
 	}
+
+	public byte[] contentFieldsToBson(Iterable<String> contentFields) {
+		return BsonSerializationUtils.toBson(fieldsToMap(contentFields, null));
+	}
+
+	public byte[] modifiedFieldsToBson() {
+		return BsonSerializationUtils.toBson(fieldsToMap(touchedContent, touchedMetadata));
+	}
+
+	private String fieldsToJson(Iterable<String> contentFields, Iterable<String> metadataFields) {
+		return SerializationUtils.toJson(fieldsToMap(contentFields, metadataFields));
+	}
 	
 	/**
 	 * Must be nullsafe, for all parameters and other operations. 
 	 * @param contentFields
 	 * @param metadataFields
-	 * @return json map with id, contents, metadata and action
+	 * @return map with id, contents, metadata and action
 	 */
-	private String fieldsToJson(Iterable<String> contentFields, Iterable<String> metadataFields) {
+	private Map<String, Object> fieldsToMap(Iterable<String> contentFields, Iterable<String> metadataFields) {
 		HashMap<String, Object> map = new HashMap<String, Object>();
 		if(getID() != null) {
 			map.put(ID_KEY, getID().getID());
@@ -535,7 +634,7 @@ public class LocalDocument implements Document<Local> {
 		if(touchedAction) {
 			map.put(ACTION_KEY, getAction());
 		}
-		return SerializationUtils.toJson(map);
+		return map;
 	}
 	
 	public Map<String, Object> toMap() {
@@ -1,8 +1,10 @@
 package com.findwise.hydra.local;
 
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.findwise.hydra.BsonSerializationUtils;
 import com.findwise.hydra.JsonDeserializer;
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.Query;
@@ -97,7 +99,47 @@ public class LocalQuery implements Query, JsonDeserializer {
 		this.action = action;
 	}
 
+	/**
+	 * Checks a document against this query the way the core does, except
+	 * that whether the querying stage has already fetched the document is
+	 * not checked.
+	 */
+	public boolean matches(LocalDocument doc) {
+		for(Map.Entry<String, Boolean> e : touched.entrySet()) {
+			if(doc.touchedBy(e.getKey()) != e.getValue()) {
+				return false;
+			}
+		}
+		if(action != null && action != doc.getAction()) {
+			return false;
+		}
+		for(Map.Entry<String, Object> e : equals.entrySet()) {
+			if(!doc.hasContentField(e.getKey()) || !doc.getContentField(e.getKey()).equals(e.getValue())) {
+				return false;
+			}
+		}
+		for(Map.Entry<String, Object> e : notEquals.entrySet()) {
+			if(doc.hasContentField(e.getKey()) && doc.getContentField(e.getKey()).equals(e.getValue())) {
+				return false;
+			}
+		}
+		for(Map.Entry<String, Boolean> e : exists.entrySet()) {
+			if(doc.hasContentField(e.getKey()) != e.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public String toJson() {
+		return SerializationUtils.toJson(toMap());
+	}
+
+	public byte[] toBson() {
+		return BsonSerializationUtils.toBson(toMap());
+	}
+
+	private Map<String, Object> toMap() {
 		Map<String, Object> x = new HashMap<String, Object>();
 		x.put("equals", equals);
 		x.put("notEquals", notEquals);
@@ -108,35 +150,45 @@ public class LocalQuery implements Query, JsonDeserializer {
 			x.put("action", action.toString());
 		}
 		
-		return SerializationUtils.toJson(x); 
+		return x;
 	}
 	
-	@SuppressWarnings({ "unchecked" })
 	@Override
 	public void fromJson(String json) throws JsonException{
 		try {
-			Map<String, Object> queryObject = (Map<String, Object>) SerializationUtils.fromJson(json);
-			if(queryObject.containsKey("equals")) {
-				equals = (Map<String, Object>) queryObject.get("equals");
-			}
-			if(queryObject.containsKey("notEquals")) {
-				notEquals = (Map<String, Object>) queryObject.get("notEquals");
-			}
-			if(queryObject.containsKey("exists")) {
-				exists = (Map<String, Boolean>) queryObject.get("exists");
-			}
-			if(queryObject.containsKey("touched")) {
-				touched = (Map<String, Boolean>) queryObject.get("touched");
-			}
-			if(queryObject.containsKey("action")) {
-				action = Action.valueOf((String)queryObject.get("action"));
-			}
-			
+			fromMap(SerializationUtils.fromJson(json));
 		} 
 		catch(JsonParseException jse) {
 			throw new JsonException(jse);
 		}
 	}
+
+	/**
+	 * Reads a single BSON document from the stream. See
+	 * {@link BsonSerializationUtils}.
+	 */
+	public void fromBson(InputStream bson) throws JsonException {
+		fromMap(BsonSerializationUtils.fromBson(bson));
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	private void fromMap(Map<String, Object> queryObject) {
+		if(queryObject.containsKey("equals")) {
+			equals = (Map<String, Object>) queryObject.get("equals");
+		}
+		if(queryObject.containsKey("notEquals")) {
+			notEquals = (Map<String, Object>) queryObject.get("notEquals");
+		}
+		if(queryObject.containsKey("exists")) {
+			exists = (Map<String, Boolean>) queryObject.get("exists");
+		}
+		if(queryObject.containsKey("touched")) {
+			touched = (Map<String, Boolean>) queryObject.get("touched");
+		}
+		if(queryObject.containsKey("action")) {
+			action = Action.valueOf((String)queryObject.get("action"));
+		}
+	}
 	
 	@Override
 	public String toString() {
@@ -1,5 +1,6 @@
 package com.findwise.hydra.local;
 
+import com.findwise.hydra.Document;
 import com.findwise.hydra.DocumentFileRepository;
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.stage.AbstractProcessStage;
@@ -7,6 +8,8 @@ import com.findwise.hydra.stage.InitFailedException;
 import com.findwise.hydra.stage.RequiredArgumentMissingException;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 
 public interface RemotePipeline extends DocumentFileRepository {
 
@@ -20,6 +23,24 @@ public interface RemotePipeline extends DocumentFileRepository {
      */
     LocalDocument getDocument(LocalQuery query) throws IOException;
 
+    /**
+     * Like getDocument(LocalQuery), but if no document matches the query right
+     * away, the core holds on to the request for up to timeout milliseconds
+     * and responds as soon as a matching document shows up.
+     *
+     * @return the fetched document, or null if none showed up in time
+     */
+    LocalDocument getDocument(LocalQuery query, long timeout) throws IOException;
+
+    /**
+     * Fetches up to n documents matching the query in a single request. Every
+     * returned document is tagged as fetched by this stage, exactly as if it
+     * had been fetched through getDocument(..).
+     *
+     * @return the fetched documents, or an empty list if none matched
+     */
+    List<LocalDocument> getDocuments(LocalQuery query, int n) throws IOException;
+
     /**
      * Writes an entire document to the pipeline. Use is discouraged, try using save(..) whenever possible.
      */
@@ -40,6 +61,34 @@ public interface RemotePipeline extends DocumentFileRepository {
 
     boolean markDiscarded(LocalDocument d) throws IOException;
 
+    /**
+     * Marks the document as touched by this stage, without writing any of
+     * its changes, so that the stages waiting for this one can fetch it.
+     */
+    boolean markTouched(LocalDocument d) throws IOException;
+
+    /**
+     * Marks all of the documents with the same status in a single request.
+     *
+     * @param status one of PROCESSED, DISCARDED, FAILED or PENDING
+     * @return true if every document was marked
+     */
+    boolean markAll(Collection<LocalDocument> docs, Document.Status status) throws IOException;
+
+    /**
+     * Inserts new documents in a single request. Every document that was
+     * inserted is given the ID it was stored with.
+     *
+     * @return true if every document was inserted
+     */
+    boolean insertAll(Collection<LocalDocument> docs) throws IOException;
+
+    /**
+     * Sends any changes this pipeline has buffered to the core. Pipelines that
+     * write through immediately do nothing here.
+     */
+    void flush() throws IOException;
+
     AbstractProcessStage getStageInstance() throws IOException, IllegalAccessException, InitFailedException, InstantiationException, JsonException, RequiredArgumentMissingException, ClassNotFoundException;
 
     String getStageName();
@@ -0,0 +1,319 @@
+package com.findwise.hydra.local;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.Document;
+import com.findwise.hydra.DocumentFile;
+import com.findwise.hydra.DocumentID;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.stage.AbstractProcessStage;
+import com.findwise.hydra.stage.InitFailedException;
+import com.findwise.hydra.stage.RequiredArgumentMissingException;
+
+/**
+ * A RemotePipeline that queues up mark-calls (processed, discarded, failed and
+ * pending) and sends them to the core in batches, using
+ * {@link RemotePipeline#markAll(Collection, Document.Status)} on the wrapped
+ * pipeline. The queue is flushed once it holds <code>batchSize</code>
+ * documents, every <code>flushInterval</code> milliseconds, and on
+ * {@link #flush()}.
+ *
+ * Since marking happens asynchronously, the mark-methods of this class return
+ * true once the document is queued. A batch that can't be sent to the core is
+ * put back in the queue, and sent again with the next flush, up to
+ * {@value #MAX_ATTEMPTS} times. A batch that the core refuses, or that has
+ * run out of attempts, is dropped. The failure is then thrown as an
+ * IOException by the next call to a mark-method or to {@link #flush()}.
+ *
+ * All other calls are passed straight through to the wrapped pipeline.
+ */
+public class WriteBehindRemotePipeline implements RemotePipeline {
+	private static final Logger logger = LoggerFactory.getLogger(WriteBehindRemotePipeline.class);
+
+	public static final int MAX_ATTEMPTS = 3;
+
+	private final RemotePipeline pipeline;
+	private final int batchSize;
+	private final long flushInterval;
+
+	private final Map<Document.Status, List<LocalDocument>> queue = new EnumMap<Document.Status, List<LocalDocument>>(Document.Status.class);
+	private int queued = 0;
+	private final Map<LocalDocument, Integer> attempts = new IdentityHashMap<LocalDocument, Integer>();
+	private IOException failure = null;
+
+	private final Flusher flusher;
+
+	public WriteBehindRemotePipeline(RemotePipeline pipeline, int batchSize, long flushInterval) {
+		this.pipeline = pipeline;
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+		flusher = new Flusher();
+		if (flushInterval > 0) {
+			flusher.start();
+		}
+	}
+
+	private void enqueue(LocalDocument d, Document.Status status) throws IOException {
+		throwFailure();
+		boolean full;
+		synchronized (queue) {
+			add(d, status);
+			full = queued >= batchSize;
+		}
+		if (full) {
+			send();
+		}
+	}
+
+	private void add(LocalDocument d, Document.Status status) {
+		if (!queue.containsKey(status)) {
+			queue.put(status, new ArrayList<LocalDocument>());
+		}
+		queue.get(status).add(d);
+		queued++;
+	}
+
+	/**
+	 * Sends the queued documents, and waits for them to be marked. Batches
+	 * that can't be sent are retried right away, until they run out of
+	 * attempts.
+	 *
+	 * @throws IOException
+	 *             if any documents marked since the last call could not be
+	 *             marked
+	 */
+	@Override
+	public void flush() throws IOException {
+		for (int i = 0; i < MAX_ATTEMPTS && send(); i++) {
+			logger.debug("Sending the documents that were put back in the queue again");
+		}
+		throwFailure();
+	}
+
+	/**
+	 * @return true if any documents were put back in the queue
+	 */
+	private boolean send() {
+		Map<Document.Status, List<LocalDocument>> batch;
+		synchronized (queue) {
+			if (queued == 0) {
+				return false;
+			}
+			batch = new EnumMap<Document.Status, List<LocalDocument>>(queue);
+			queue.clear();
+			queued = 0;
+		}
+		boolean requeued = false;
+		for (Map.Entry<Document.Status, List<LocalDocument>> e : batch.entrySet()) {
+			boolean marked;
+			try {
+				marked = pipeline.markAll(e.getValue(), e.getKey());
+			} catch (IOException ex) {
+				logger.warn("Unable to send " + e.getValue().size() + " documents to be marked as " + e.getKey() + ": " + ex.getMessage());
+				requeued |= requeue(e.getValue(), e.getKey(), ex);
+				continue;
+			}
+			synchronized (queue) {
+				for (LocalDocument d : e.getValue()) {
+					attempts.remove(d);
+				}
+			}
+			if (!marked) {
+				fail(e.getValue().size(), e.getKey(), null);
+			}
+		}
+		return requeued;
+	}
+
+	private boolean requeue(List<LocalDocument> docs, Document.Status status, IOException cause) {
+		int dropped = 0;
+		synchronized (queue) {
+			for (LocalDocument d : docs) {
+				Integer previous = attempts.get(d);
+				int attempt = previous == null ? 1 : previous + 1;
+				if (attempt < MAX_ATTEMPTS) {
+					attempts.put(d, attempt);
+					add(d, status);
+				} else {
+					attempts.remove(d);
+					dropped++;
+				}
+			}
+		}
+		if (dropped > 0) {
+			fail(dropped, status, cause);
+		}
+		return dropped < docs.size();
+	}
+
+	private void fail(int count, Document.Status status, IOException cause) {
+		logger.error("Unable to mark all of " + count + " documents as " + status);
+		synchronized (queue) {
+			if (failure == null) {
+				failure = new IOException("Unable to mark all of " + count + " documents as " + status, cause);
+			}
+		}
+	}
+
+	private void throwFailure() throws IOException {
+		IOException f;
+		synchronized (queue) {
+			f = failure;
+			failure = null;
+		}
+		if (f != null) {
+			throw f;
+		}
+	}
+
+	public int getQueueSize() {
+		synchronized (queue) {
+			return queued;
+		}
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	@Override
+	public boolean markPending(LocalDocument d) throws IOException {
+		enqueue(d, Document.Status.PENDING);
+		return true;
+	}
+
+	@Override
+	public boolean markFailed(LocalDocument d) throws IOException {
+		enqueue(d, Document.Status.FAILED);
+		return true;
+	}
+
+	@Override
+	public boolean markFailed(LocalDocument d, Throwable t) throws IOException {
+		d.addError(getStageName(), t);
+		return markFailed(d);
+	}
+
+	@Override
+	public boolean markProcessed(LocalDocument d) throws IOException {
+		enqueue(d, Document.Status.PROCESSED);
+		return true;
+	}
+
+	@Override
+	public boolean markDiscarded(LocalDocument d) throws IOException {
+		enqueue(d, Document.Status.DISCARDED);
+		return true;
+	}
+
+	@Override
+	public boolean markTouched(LocalDocument d) throws IOException {
+		return pipeline.markTouched(d);
+	}
+
+	@Override
+	public boolean markAll(Collection<LocalDocument> docs, Document.Status status) throws IOException {
+		return pipeline.markAll(docs, status);
+	}
+
+	@Override
+	public boolean insertAll(Collection<LocalDocument> docs) throws IOException {
+		return pipeline.insertAll(docs);
+	}
+
+	@Override
+	public LocalDocument getDocument(LocalQuery query) throws IOException {
+		return pipeline.getDocument(query);
+	}
+
+	@Override
+	public LocalDocument getDocument(LocalQuery query, long timeout) throws IOException {
+		return pipeline.getDocument(query, timeout);
+	}
+
+	@Override
+	public List<LocalDocument> getDocuments(LocalQuery query, int n) throws IOException {
+		return pipeline.getDocuments(query, n);
+	}
+
+	@Override
+	public boolean saveFull(LocalDocument d) throws IOException, JsonException {
+		return pipeline.saveFull(d);
+	}
+
+	@Override
+	public boolean save(LocalDocument d) throws IOException, JsonException {
+		return pipeline.save(d);
+	}
+
+	@Override
+	public AbstractProcessStage getStageInstance() throws IOException, IllegalAccessException, InitFailedException, InstantiationException, JsonException, RequiredArgumentMissingException, ClassNotFoundException {
+		return pipeline.getStageInstance();
+	}
+
+	@Override
+	public String getStageName() {
+		return pipeline.getStageName();
+	}
+
+	@Override
+	public boolean isPerformanceLogging() {
+		return pipeline.isPerformanceLogging();
+	}
+
+	@Override
+	public DocumentFile<Local> getFile(String fileName, DocumentID<Local> docid) {
+		return pipeline.getFile(fileName, docid);
+	}
+
+	@Override
+	public List<String> getFileNames(DocumentID<?> docid) {
+		return pipeline.getFileNames(docid);
+	}
+
+	@Override
+	public List<DocumentFile<Local>> getFiles(DocumentID<Local> docid) {
+		return pipeline.getFiles(docid);
+	}
+
+	@Override
+	public boolean deleteFile(String fileName, DocumentID<Local> docid) {
+		return pipeline.deleteFile(fileName, docid);
+	}
+
+	@Override
+	public boolean saveFile(DocumentFile<Local> df) {
+		return pipeline.saveFile(df);
+	}
+
+	/**
+	 * Flushes the queue every flushInterval milliseconds, so that documents
+	 * are not held back when the stage is receiving documents slowly.
+	 */
+	private class Flusher extends Thread {
+		Flusher() {
+			setDaemon(true);
+			setName("write-behind-" + pipeline.getStageName());
+		}
+
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					Thread.sleep(flushInterval);
+					send();
+				} catch (InterruptedException e) {
+					interrupt();
+				}
+			}
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.findwise.hydra.stage;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.LocalQuery;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractProcessStage {
@@ -15,6 +16,33 @@ public abstract class AbstractProcessStage {
 	@Parameter(description = "The maximum time (in milliseconds) the stage may process a single document before cancelling the processing. Default: -1 (unlimited)")
 	private long processingTimeout = -1;
 
+	@Parameter(description = "The number of documents to fetch from the core in a single request. Fetched documents are buffered by each stage thread until processed. Defaults to 1.")
+	private int batchSize = 1;
+
+	@Parameter(description = "The number of finished documents to queue up before marking them all in a single request to the core. Values above 1 enable asynchronous write-behind marking. Defaults to 1 (every document is marked immediately).")
+	private int markBatchSize = 1;
+
+	@Parameter(description = "The maximum time (in milliseconds) a finished document waits in the write-behind queue before being sent to the core. Only used if markBatchSize is larger than 1. Defaults to 1000.")
+	private long markFlushInterval = 1000;
+
+	@Parameter(description = "If larger than 0, the core holds on to a request for a document for up to this many milliseconds when none is available, handing one out as soon as it shows up. This replaces the fixed wait between polls. Defaults to 0 (disabled).")
+	private long longPollTimeout = 0;
+
+	@Parameter(description = "If true, documents are sent between this stage and the core as BSON instead of Json, which is faster to produce and parse. Requires a core that supports BSON, and the MongoDB Java driver (org.mongodb:mongo-java-driver) on the classpath of the stage. Defaults to false.")
+	private boolean binaryWireFormat = false;
+
+	@Parameter(description = "The number of connections kept open to the core. Each stage thread needs one while it talks to the core, so a value below numberOfThreads makes threads wait for each other. Defaults to 0, meaning numberOfThreads + 1 (one extra for the write-behind queue).")
+	private int maxConnections = 0;
+
+	@Parameter(description = "The time (in milliseconds) an idle connection to the core is kept open for reuse. Defaults to 30000.")
+	private long connectionKeepAlive = 30000;
+
+	@Parameter(description = "The cores (host:port) sharing the database, when documents are split between several cores. Each request is sent to the core owning the document. Set by the core, and should not be configured by hand.")
+	private List<String> coreNodes = null;
+
+	@Parameter(description = "If true, and the query of this stage requires documents touched by exactly one other stage in the same group, the documents are handed to this stage in memory by that stage instead of being saved and fetched again. A chain of such stages saves each document once, at the end. Requires that no other stage in the group queries for documents touched by the same stage. Defaults to false.")
+	private boolean fused = false;
+
 	public abstract void process(LocalDocument document) throws Exception;
 	public void init() throws RequiredArgumentMissingException, InitFailedException {}
 
@@ -34,6 +62,78 @@ public abstract class AbstractProcessStage {
 		this.query = query;
 	}
 
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getMarkBatchSize() {
+		return markBatchSize;
+	}
+
+	public void setMarkBatchSize(int markBatchSize) {
+		this.markBatchSize = markBatchSize;
+	}
+
+	public long getMarkFlushInterval() {
+		return markFlushInterval;
+	}
+
+	public void setMarkFlushInterval(long markFlushInterval) {
+		this.markFlushInterval = markFlushInterval;
+	}
+
+	public long getLongPollTimeout() {
+		return longPollTimeout;
+	}
+
+	public void setLongPollTimeout(long longPollTimeout) {
+		this.longPollTimeout = longPollTimeout;
+	}
+
+	public boolean isBinaryWireFormat() {
+		return binaryWireFormat;
+	}
+
+	public void setBinaryWireFormat(boolean binaryWireFormat) {
+		this.binaryWireFormat = binaryWireFormat;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public long getConnectionKeepAlive() {
+		return connectionKeepAlive;
+	}
+
+	public void setConnectionKeepAlive(long connectionKeepAlive) {
+		this.connectionKeepAlive = connectionKeepAlive;
+	}
+
+	public List<String> getCoreNodes() {
+		return coreNodes;
+	}
+
+	public void setCoreNodes(List<String> coreNodes) {
+		this.coreNodes = coreNodes;
+	}
+
+	public boolean isFused() {
+		return fused;
+	}
+
+	public void setFused(boolean fused) {
+		this.fused = fused;
+	}
+
 	public long getProcessingTimeout() {
 		return processingTimeout;
 	}
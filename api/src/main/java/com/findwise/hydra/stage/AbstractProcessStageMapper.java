@@ -23,8 +23,16 @@ public class AbstractProcessStageMapper {
 		return fromMap(properties);
 	}
 
-    @SuppressWarnings("unchecked")
 	private static AbstractProcessStage fromMap(Map<String, Object> properties) throws RequiredArgumentMissingException, ClassNotFoundException, IllegalAccessException, InstantiationException, InitFailedException {
+		return fromMap(properties, AbstractProcessStageMapper.class.getClassLoader());
+	}
+
+	/**
+	 * Creates the stage from its properties as they are, loading its class
+	 * through the given class loader.
+	 */
+	@SuppressWarnings("unchecked")
+	public static AbstractProcessStage fromMap(Map<String, Object> properties, ClassLoader classLoader) throws RequiredArgumentMissingException, ClassNotFoundException, IllegalAccessException, InstantiationException, InitFailedException {
 		String stageClass;
 		if (properties.containsKey(ARG_NAME_STAGE_CLASS)) {
 			stageClass = (String) properties.get(ARG_NAME_STAGE_CLASS);
@@ -33,7 +41,7 @@ public class AbstractProcessStageMapper {
 		}
 
 		Class<? extends AbstractProcessStage> actualClass = (Class<? extends AbstractProcessStage>) Class
-				.forName(stageClass);
+				.forName(stageClass, true, classLoader);
 		AbstractProcessStage stage = actualClass.newInstance();
 		setParameters(stage, properties);
 		stage.init();
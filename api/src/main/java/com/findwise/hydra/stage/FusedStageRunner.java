@@ -0,0 +1,187 @@
+package com.findwise.hydra.stage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.findwise.hydra.Document;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.RemotePipeline;
+
+/**
+ * Runs a chain of stages in the same group on each document, passing the
+ * document from stage to stage in memory, and saving it once when the chain
+ * ends.
+ *
+ * The first stage fetches the document. It is handed on to the next stage if
+ * the document matches that stage's query, and the next stage has not already
+ * fetched it. Each stage that processes the document is recorded on the local
+ * copy as having fetched and touched it.
+ *
+ * The chain ends when a stage discards the document, when an output stage has
+ * processed it, or when the next stage's query no longer matches. The document
+ * is then saved or marked through the pipeline of the last stage, as that
+ * stage would have done. If a stage fails, the document is marked as failed
+ * through the pipeline of that stage, with its error, along with the changes
+ * of the stages before it.
+ *
+ * A saved document stays active, so its tags are not written along with it,
+ * as that would overwrite the tags other stages have written meanwhile.
+ * Saving it marks it as touched by the last stage. The stages before that are
+ * then marked as touched one at a time, from the last to the first. The
+ * stages after the first only run on documents they have not touched (see
+ * {@link StageServiceFactory}), so none of them fetches the document again.
+ */
+public class FusedStageRunner extends ProcessStageRunner {
+	private final List<ProcessStageRunner> chain = new ArrayList<ProcessStageRunner>();
+
+	/**
+	 * @param followers
+	 *            the stages after the first one, in the order they process
+	 *            the document
+	 * @param pipelines
+	 *            the pipeline of each of the followers, by stage name
+	 */
+	public FusedStageRunner(String stageName, AbstractProcessStage stage, RemotePipeline remotePipeline, Map<String, AbstractProcessStage> followers, Map<String, RemotePipeline> pipelines) {
+		super(stageName, stage, remotePipeline);
+		for (Map.Entry<String, AbstractProcessStage> e : followers.entrySet()) {
+			chain.add(new Follower(e.getKey(), e.getValue(), pipelines.get(e.getKey())));
+		}
+	}
+
+	@Override
+	protected void performProcessing(LocalDocument doc) throws Exception {
+		logger.debug("Got new doc '{}' to process in a chain of {} stages.", doc.getID(), chain.size() + 1);
+		if (!process(doc)) {
+			return;
+		}
+		boolean touchedModified = doc.getTouchedMetadata().contains(Document.TOUCHED_METADATA_TAG);
+		boolean fetchedModified = doc.getTouchedMetadata().contains(Document.FETCHED_METADATA_TAG);
+		List<ProcessStageRunner> processed = new ArrayList<ProcessStageRunner>();
+		ProcessStageRunner current = this;
+		for (ProcessStageRunner next : chain) {
+			doc.setTouchedBy(current.getStageName(), new Date());
+			if (!canPassOn(doc, current, next)) {
+				break;
+			}
+			logger.trace("Passing doc '{}' on to {}", doc.getID(), next.getStageName());
+			doc.setFetchedBy(next.getStageName(), new Date());
+			if (!next.process(doc)) {
+				return;
+			}
+			processed.add(current);
+			current = next;
+		}
+		if (doc.isDiscarded() || current.getStage() instanceof AbstractOutputStage) {
+			current.onSuccess(doc);
+			return;
+		}
+
+		if (!touchedModified) {
+			doc.getTouchedMetadata().remove(Document.TOUCHED_METADATA_TAG);
+		}
+		if (!fetchedModified) {
+			doc.getTouchedMetadata().remove(Document.FETCHED_METADATA_TAG);
+		}
+		current.onSuccess(doc);
+		for (int i = processed.size() - 1; i >= 0; i--) {
+			ProcessStageRunner runner = processed.get(i);
+			if (!runner.getRemotePipeline().markTouched(doc)) {
+				logger.debug("Unable to mark doc '{}' as touched by {}, it may already be finished", doc.getID(), runner.getStageName());
+				return;
+			}
+		}
+	}
+
+	private boolean canPassOn(LocalDocument doc, ProcessStageRunner current, ProcessStageRunner next) {
+		if (doc.isDiscarded() || current.getStage() instanceof AbstractOutputStage) {
+			return false;
+		}
+		return !doc.fetchedBy(next.getStageName()) && next.getStage().getQuery().matches(doc);
+	}
+
+	@Override
+	public void shutdownProcessing() {
+		super.shutdownProcessing();
+		for (ProcessStageRunner runner : chain) {
+			runner.shutdownProcessing();
+		}
+	}
+
+	/**
+	 * Finds the chains of stages that can be fused. A stage is fused onto the
+	 * stage before it if it is {@link AbstractProcessStage#isFused() fused},
+	 * its query requires documents touched by exactly one stage in the
+	 * group, and no other stage in the group queries for documents touched
+	 * by that stage. Output stages end a chain.
+	 *
+	 * @return the stages following each stage that starts a chain, in order
+	 */
+	public static Map<String, Map<String, AbstractProcessStage>> findChains(Map<String, AbstractProcessStage> stages) {
+		Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+		Map<String, String> previous = new HashMap<String, String>();
+		for (Map.Entry<String, AbstractProcessStage> e : stages.entrySet()) {
+			Set<String> touched = new HashSet<String>();
+			for (Map.Entry<String, Boolean> t : e.getValue().getQuery().getTouched().entrySet()) {
+				if (t.getValue() && stages.containsKey(t.getKey()) && !t.getKey().equals(e.getKey())) {
+					touched.add(t.getKey());
+				}
+			}
+			for (String s : touched) {
+				if (!dependents.containsKey(s)) {
+					dependents.put(s, new HashSet<String>());
+				}
+				dependents.get(s).add(e.getKey());
+			}
+			if (touched.size() == 1 && e.getValue().isFused()) {
+				previous.put(e.getKey(), touched.iterator().next());
+			}
+		}
+
+		Map<String, String> next = new HashMap<String, String>();
+		for (Map.Entry<String, String> e : previous.entrySet()) {
+			String before = e.getValue();
+			if (dependents.get(before).size() == 1 && !(stages.get(before) instanceof AbstractOutputStage)) {
+				next.put(before, e.getKey());
+			}
+		}
+
+		Map<String, Map<String, AbstractProcessStage>> chains = new HashMap<String, Map<String, AbstractProcessStage>>();
+		for (String head : next.keySet()) {
+			if (next.containsValue(head)) {
+				continue;
+			}
+			Map<String, AbstractProcessStage> followers = new LinkedHashMap<String, AbstractProcessStage>();
+			String s = next.get(head);
+			while (s != null && !followers.containsKey(s)) {
+				followers.put(s, stages.get(s));
+				s = next.get(s);
+			}
+			chains.put(head, followers);
+		}
+		return chains;
+	}
+
+	/**
+	 * A stage later in the chain, reporting its errors under its own name.
+	 */
+	private static class Follower extends ProcessStageRunner {
+		Follower(String stageName, AbstractProcessStage stage, RemotePipeline remotePipeline) {
+			super(stageName, stage, remotePipeline);
+		}
+
+		@Override
+		protected boolean onException(LocalDocument doc, Exception e) throws IOException, JsonException {
+			logger.debug("Failing doc '{}' in {}", doc.getID(), getStageName());
+			doc.addError(getStageName(), e);
+			return getRemotePipeline().markFailed(doc);
+		}
+	}
+}
@@ -68,11 +68,7 @@ public class GroupStarter {
 	}
 
 	private static ServiceManager getServiceManager(String groupName, String host, int port, boolean performanceLogging) throws Exception {
-		List<StageService> stageServices = new ArrayList<StageService>();
-		for (String stageName : getStages(host, port, groupName)) {
-			List<StageService> stageServicesForStage = StageServiceFactory.createStageServices(stageName, host, port, performanceLogging, null);
-			stageServices.addAll(stageServicesForStage);
-		}
+		List<StageService> stageServices = StageServiceFactory.createGroupServices(getStages(host, port, groupName), host, port, performanceLogging);
 		return new ServiceManager(stageServices);
 	}
 
@@ -36,13 +36,26 @@ public class ProcessStageRunner {
 
 	protected void performProcessing(LocalDocument doc) throws Exception {
 		logger.debug("Got new doc '{}' to process.", doc.getID());
+		if (process(doc)) {
+			onSuccess(doc);
+		}
+	}
+
+	/**
+	 * Runs the stage on the document, failing the document if the stage
+	 * throws an exception.
+	 *
+	 * @return true if the stage processed the document, and it should be
+	 *         passed on
+	 */
+	protected boolean process(LocalDocument doc) throws Exception {
 		try {
 			logger.trace("Waiting for processing of doc '{}'", doc.getID());
 			processWithTimeout(doc);
 			logger.trace("Processing finished of doc '{}'", doc.getID());
 		} catch (ExecutionException e) {
 			onException(doc, unwrapExecutionException(e));
-			return;
+			return false;
 		} catch (TimeoutException e) {
 			// Extreme solution here. If the stage thread did not finish in a timely manner,
 			// we restart the whole process. Canceling the future doesn't really help, since
@@ -53,9 +66,9 @@ public class ProcessStageRunner {
 		} catch (InterruptedException e) {
 			logger.info("Processing was interrupted");
 			Thread.currentThread().interrupt();
-			return;
+			return false;
 		}
-		onSuccess(doc);
+		return true;
 	}
 
 	private Exception unwrapExecutionException(ExecutionException e) {
@@ -67,7 +80,7 @@ public class ProcessStageRunner {
 		}
 	}
 
-	private void onSuccess(LocalDocument doc) throws IOException, JsonException {
+	protected void onSuccess(LocalDocument doc) throws IOException, JsonException {
 		if(doc.isDiscarded()) {
 			remotePipeline.markDiscarded(doc);
 		} else {
@@ -99,6 +112,18 @@ public class ProcessStageRunner {
 		}
 	}
 
+	String getStageName() {
+		return stageName;
+	}
+
+	AbstractProcessStage getStage() {
+		return stage;
+	}
+
+	RemotePipeline getRemotePipeline() {
+		return remotePipeline;
+	}
+
 	public void shutdownProcessing() {
 		try {
 			executor.shutdown();
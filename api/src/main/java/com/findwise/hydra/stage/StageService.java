@@ -10,7 +10,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
+import java.util.LinkedList;
+import java.util.Queue;
 
 public class StageService extends AbstractExecutionThreadService {
 	private static Logger logger = LoggerFactory.getLogger(StageService.class);
@@ -19,15 +20,23 @@ public class StageService extends AbstractExecutionThreadService {
 	private final ProcessStageRunner stageRunner;
 	private final LocalQuery query;
 	private final RemotePipeline remotePipeline;
+	private final int batchSize;
+	private final Queue<LocalDocument> buffer = new LinkedList<LocalDocument>();
 
 	public static final int DEFAULT_HOLD_INTERVAL = 2000;
 	private long holdInterval = DEFAULT_HOLD_INTERVAL;
+	private long longPollTimeout = 0;
 
 	public StageService(String stageName, ProcessStageRunner stageRunner, LocalQuery query, RemotePipeline remotePipeline) {
+		this(stageName, stageRunner, query, remotePipeline, 1);
+	}
+
+	public StageService(String stageName, ProcessStageRunner stageRunner, LocalQuery query, RemotePipeline remotePipeline, int batchSize) {
 		this.stageName = stageName;
 		this.stageRunner = stageRunner;
 		this.query = query;
 		this.remotePipeline = remotePipeline;
+		this.batchSize = Math.max(1, batchSize);
 	}
 
 	@Override
@@ -36,7 +45,9 @@ public class StageService extends AbstractExecutionThreadService {
 	}
 
 	/**
-	 * Fetches a document to be processed from the RemotePipeline
+	 * Fetches a document to be processed from the RemotePipeline. If the
+	 * batch size is larger than one, documents are fetched batchSize at a
+	 * time and handed out from a local buffer.
 	 *
 	 * @return A document to be processed
 	 * @throws org.apache.http.ParseException
@@ -45,23 +56,54 @@ public class StageService extends AbstractExecutionThreadService {
 	 */
 	protected LocalDocument fetch() throws ParseException, IOException,
 			JsonException {
-		return remotePipeline.getDocument(query);
+		if (batchSize == 1) {
+			return remotePipeline.getDocument(query, longPollTimeout);
+		}
+		if (buffer.isEmpty()) {
+			buffer.addAll(remotePipeline.getDocuments(query, batchSize));
+		}
+		if (buffer.isEmpty() && longPollTimeout > 0) {
+			return remotePipeline.getDocument(query, longPollTimeout);
+		}
+		return buffer.poll();
 	}
 
 	@Override
 	public void run() throws Exception {
 		while (isRunning()) {
+			long start = System.currentTimeMillis();
 			LocalDocument doc = fetch();
 			if (doc == null) {
-				Thread.sleep(holdInterval);
+				// A core that does not support long polling answers right away,
+				// in which case we fall back to waiting between polls
+				if (longPollTimeout <= 0 || System.currentTimeMillis() - start < longPollTimeout / 2) {
+					Thread.sleep(holdInterval);
+				}
 			} else {
 				stageRunner.performProcessing(doc);
 			}
 		}
 	}
 
+	public long getLongPollTimeout() {
+		return longPollTimeout;
+	}
+
+	/**
+	 * @param longPollTimeout how long (in milliseconds) the core may hold on
+	 * to a fetch request while waiting for a document. 0 disables long
+	 * polling, in which case the service sleeps between empty fetches.
+	 */
+	public void setLongPollTimeout(long longPollTimeout) {
+		this.longPollTimeout = longPollTimeout;
+	}
+
 	@Override
 	protected void shutDown() throws Exception {
+		if (!buffer.isEmpty()) {
+			logger.warn("Shutting down with " + buffer.size() + " fetched but unprocessed documents in the buffer");
+		}
 		stageRunner.shutdownProcessing();
+		remotePipeline.flush();
 	}
 }
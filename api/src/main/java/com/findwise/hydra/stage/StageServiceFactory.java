@@ -3,19 +3,100 @@ package com.findwise.hydra.stage;
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.local.HttpRemotePipeline;
 import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.local.WriteBehindRemotePipeline;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class StageServiceFactory {
 	public static List<StageService> createStageServices(String stageName, String hostName, int port, boolean usePerformanceLogging, AbstractProcessStage overrideStage) throws IOException, InitFailedException, RequiredArgumentMissingException, ClassNotFoundException, InstantiationException, JsonException, IllegalAccessException {
-		RemotePipeline remotePipeline = new HttpRemotePipeline(hostName, port, stageName, usePerformanceLogging);
-		AbstractProcessStage stage = (overrideStage != null) ? overrideStage : remotePipeline.getStageInstance();
-		ProcessStageRunner stageRunner = new ProcessStageRunner(stageName, stage, remotePipeline);
+		HttpRemotePipeline httpPipeline = new HttpRemotePipeline(hostName, port, stageName, usePerformanceLogging);
+		AbstractProcessStage stage = (overrideStage != null) ? overrideStage : httpPipeline.getStageInstance();
+		configure(httpPipeline, stage);
+		return createStageServices(httpPipeline, stage);
+	}
+
+	/**
+	 * Creates the services running all the given stages of a group, fusing
+	 * the chains found by {@link FusedStageRunner#findChains(Map)}.
+	 */
+	public static List<StageService> createGroupServices(List<String> stageNames, String hostName, int port, boolean usePerformanceLogging) throws IOException, InitFailedException, RequiredArgumentMissingException, ClassNotFoundException, InstantiationException, JsonException, IllegalAccessException {
+		Map<String, RemotePipeline> pipelines = new HashMap<String, RemotePipeline>();
+		Map<String, AbstractProcessStage> stages = new LinkedHashMap<String, AbstractProcessStage>();
+		for (String stageName : stageNames) {
+			HttpRemotePipeline httpPipeline = new HttpRemotePipeline(hostName, port, stageName, usePerformanceLogging);
+			AbstractProcessStage stage = httpPipeline.getStageInstance();
+			configure(httpPipeline, stage);
+			pipelines.put(stageName, httpPipeline);
+			stages.put(stageName, stage);
+		}
+		return createGroupServices(pipelines, stages);
+	}
+
+	private static void configure(HttpRemotePipeline httpPipeline, AbstractProcessStage stage) {
+		httpPipeline.setBinaryWireFormat(stage.isBinaryWireFormat());
+		httpPipeline.setMaxConnections((stage.getMaxConnections() > 0) ? stage.getMaxConnections() : stage.getNumberOfThreads() + 1);
+		httpPipeline.setConnectionKeepAlive(stage.getConnectionKeepAlive());
+		httpPipeline.setCoreNodes(stage.getCoreNodes());
+	}
+
+	/**
+	 * Creates the services running all stages of a group against pipelines
+	 * that are already set up. The stages that start a chain of fused stages
+	 * run the whole chain on each document they fetch. The other stages of a
+	 * chain still fetch documents on their own, but only those they have not
+	 * already touched as part of the chain.
+	 *
+	 * @param pipelines
+	 *            the pipeline of each stage, by stage name
+	 */
+	public static List<StageService> createGroupServices(Map<String, RemotePipeline> pipelines, Map<String, AbstractProcessStage> stages) {
+		Map<String, Map<String, AbstractProcessStage>> chains = FusedStageRunner.findChains(stages);
+		for (Map<String, AbstractProcessStage> followers : chains.values()) {
+			for (Map.Entry<String, AbstractProcessStage> e : followers.entrySet()) {
+				e.getValue().getQuery().requireNotTouchedByStage(e.getKey());
+			}
+		}
+		List<StageService> stageServices = new ArrayList<StageService>();
+		for (Map.Entry<String, AbstractProcessStage> e : stages.entrySet()) {
+			Map<String, AbstractProcessStage> followers = chains.get(e.getKey());
+			if (followers == null) {
+				followers = Collections.emptyMap();
+			}
+			stageServices.addAll(createStageServices(pipelines.get(e.getKey()), e.getValue(), followers, pipelines));
+		}
+		return stageServices;
+	}
+
+	/**
+	 * Creates the services running a stage against a pipeline that is
+	 * already set up.
+	 */
+	public static List<StageService> createStageServices(RemotePipeline remotePipeline, AbstractProcessStage stage) {
+		return createStageServices(remotePipeline, stage, Collections.<String, AbstractProcessStage>emptyMap(), Collections.<String, RemotePipeline>emptyMap());
+	}
+
+	private static List<StageService> createStageServices(RemotePipeline remotePipeline, AbstractProcessStage stage, Map<String, AbstractProcessStage> followers, Map<String, RemotePipeline> pipelines) {
+		String stageName = remotePipeline.getStageName();
+		if (stage.getMarkBatchSize() > 1) {
+			remotePipeline = new WriteBehindRemotePipeline(remotePipeline, stage.getMarkBatchSize(), stage.getMarkFlushInterval());
+		}
+		ProcessStageRunner stageRunner;
+		if (followers.isEmpty()) {
+			stageRunner = new ProcessStageRunner(stageName, stage, remotePipeline);
+		} else {
+			stageRunner = new FusedStageRunner(stageName, stage, remotePipeline, followers, pipelines);
+		}
 		List<StageService> stageServices = new ArrayList<StageService>();
 		for(int i = 0; i < stage.getNumberOfThreads(); i++) {
-			stageServices.add(new StageService(stageName, stageRunner, stage.getQuery(), remotePipeline));
+			StageService service = new StageService(stageName, stageRunner, stage.getQuery(), remotePipeline, stage.getBatchSize());
+			service.setLongPollTimeout(stage.getLongPollTimeout());
+			stageServices.add(service);
 		}
 		return stageServices;
 	}
@@ -0,0 +1,71 @@
+package com.findwise.tools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many connections have been leased from a connection pool, and
+ * how long callers had to wait for them. A high average wait means that the
+ * pool is too small for the number of threads using it.
+ */
+public class ConnectionPoolMetrics {
+	private final AtomicLong leases = new AtomicLong();
+	private final AtomicLong failedLeases = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	void leased(long waitNanos) {
+		leases.incrementAndGet();
+		totalWaitNanos.addAndGet(waitNanos);
+		long max = maxWaitNanos.get();
+		while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+
+	void failed() {
+		failedLeases.incrementAndGet();
+	}
+
+	public long getLeaseCount() {
+		return leases.get();
+	}
+
+	/**
+	 * @return the number of times a connection could not be leased, because
+	 * the wait timed out or was interrupted.
+	 */
+	public long getFailedLeaseCount() {
+		return failedLeases.get();
+	}
+
+	public long getTotalWaitTime(TimeUnit unit) {
+		return unit.convert(totalWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxWaitTime(TimeUnit unit) {
+		return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getAverageWaitTime(TimeUnit unit) {
+		long n = leases.get();
+		if (n == 0) {
+			return 0;
+		}
+		return unit.convert(totalWaitNanos.get() / n, TimeUnit.NANOSECONDS);
+	}
+
+	public void reset() {
+		leases.set(0);
+		failedLeases.set(0);
+		totalWaitNanos.set(0);
+		maxWaitNanos.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "leases=" + getLeaseCount() + ", failed=" + getFailedLeaseCount()
+				+ ", avgWait=" + getAverageWaitTime(TimeUnit.MICROSECONDS) + "us"
+				+ ", maxWait=" + getMaxWaitTime(TimeUnit.MICROSECONDS) + "us";
+	}
+}
@@ -2,45 +2,172 @@ package com.findwise.tools;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * A thread-safe connection to a single host, backed by a pool of persistent
+ * connections. Threads sharing an instance each lease their own connection
+ * from the pool, so up to <code>maxConnections</code> requests can be in
+ * flight at once. Time spent waiting for a free connection is recorded in
+ * {@link #getMetrics()}.
+ */
 public class HttpConnection {
     private static Logger internalLogger = LoggerFactory.getLogger("internal");
 
+	public static final int DEFAULT_MAX_CONNECTIONS = 10;
+	public static final long DEFAULT_KEEP_ALIVE = 30000;
+	/**
+	 * How long, in milliseconds, a request waits for a free connection before
+	 * giving up
+	 */
+	public static final long DEFAULT_LEASE_TIMEOUT = 60000;
+	public static final int MAX_RETRIES = 3;
+	private static final long MAX_RETRY_AFTER = 30;
+
     private HttpParams params;
 	private HttpHost host;
 	private DefaultHttpClient client;
+	private final PoolingClientConnectionManager cm;
+	private final ConnectionPoolMetrics metrics = new ConnectionPoolMetrics();
+	private volatile long keepAlive;
 	
 	public HttpConnection(String hostName, int port) {
+		this(hostName, port, DEFAULT_MAX_CONNECTIONS, DEFAULT_KEEP_ALIVE);
+	}
+
+	/**
+	 * @param maxConnections
+	 *            the number of connections to keep open to the host. Since
+	 *            all requests go to the same host, this is also the number
+	 *            of requests that can be executed concurrently.
+	 * @param keepAlive
+	 *            the number of milliseconds an idle connection is kept for
+	 *            reuse, unless the server asks for a shorter time
+	 */
+	public HttpConnection(String hostName, int port, int maxConnections, long keepAlive) {
 		host = new HttpHost(hostName, port);
 		
-        PoolingClientConnectionManager cm = new PoolingClientConnectionManager();
-        cm.setMaxTotal(10);
+        cm = new MeteredConnectionManager(metrics);
+        setMaxConnections(maxConnections);
+		setKeepAlive(keepAlive);
 		params = new SyncBasicHttpParams();
 		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
 		HttpProtocolParams.setContentCharset(params, "UTF-8");
 		HttpProtocolParams.setUserAgent(params, "HttpComponents/1.1");
 		HttpProtocolParams.setUseExpectContinue(params, true);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		setLeaseTimeout(DEFAULT_LEASE_TIMEOUT);
 		
         client = new DefaultHttpClient(cm, params);
+		client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				if (duration < 0 || duration > keepAlive) {
+					return keepAlive;
+				}
+				return duration;
+			}
+		});
+	}
+
+	/**
+	 * Changes the size of the connection pool. Can be called while the
+	 * connection is in use.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		int max = Math.max(1, maxConnections);
+		cm.setMaxTotal(max);
+		cm.setDefaultMaxPerRoute(max);
+	}
+
+	public int getMaxConnections() {
+		return cm.getDefaultMaxPerRoute();
+	}
+
+	/**
+	 * Sets the longest time, in milliseconds, that a request waits for a free
+	 * connection. A request that waits longer fails with a
+	 * {@link ConnectionPoolTimeoutException}.
+	 */
+	public void setLeaseTimeout(long leaseTimeout) {
+		params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, leaseTimeout);
+	}
+
+	public long getLeaseTimeout() {
+		return params.getLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, 0);
+	}
+
+	/**
+	 * Sets the longest time, in milliseconds, that an idle connection is kept
+	 * for reuse. Applies to connections released after the call.
+	 */
+	public void setKeepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public long getKeepAlive() {
+		return keepAlive;
+	}
+
+	public ConnectionPoolMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the number of leased, idle and pending connections in the pool
+	 */
+	public PoolStats getPoolStats() {
+		return cm.getTotalStats();
+	}
+
+	/**
+	 * Closes connections that have been idle for longer than the given time.
+	 */
+	public void closeIdleConnections(long idleTime) {
+		cm.closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes all connections. The instance can not be used after this.
+	 */
+	public void shutdown() {
+		cm.shutdown();
 	}
 	
 	public HttpResponse get(String url) throws IOException {
@@ -57,6 +184,38 @@ public class HttpConnection {
 	public HttpResponse post(String url, InputStream content) throws IOException {
 		return post(url, new InputStreamEntity(content, -1));
 	}
+
+	/**
+	 * Posts binary content of the given type, asking for a response of the
+	 * same type.
+	 */
+	public HttpResponse post(String url, byte[] content, String contentType) throws IOException {
+		internalLogger.debug("Posting " + content.length + " bytes of " + contentType + " to " + url);
+
+		HttpPost request = new HttpPost(url);
+		request.setEntity(new ByteArrayEntity(content, ContentType.create(contentType)));
+		request.setHeader("Accept", contentType);
+
+		return request(request);
+	}
+	
+	/**
+	 * Streams the content to the server in chunks, without reading it into
+	 * memory first.
+	 */
+	public HttpResponse post(String url, InputStream content, String contentType, Header... headers) throws IOException {
+		InputStreamEntity entity = new InputStreamEntity(content, -1);
+		entity.setContentType(contentType);
+		entity.setChunked(true);
+
+		HttpPost request = new HttpPost(url);
+		request.setEntity(entity);
+		for (Header header : headers) {
+			request.addHeader(header);
+		}
+
+		return request(request);
+	}
 	
 	private HttpResponse post(String url, HttpEntity entity) throws IOException {
 		HttpPost request = new HttpPost(url);
@@ -70,7 +229,91 @@ public class HttpConnection {
 		return request(new HttpDelete(url));
 	}
 
+	/**
+	 * Executes the request, retrying up to {@link #MAX_RETRIES} times if the
+	 * server answers 503 Service Unavailable with a Retry-After header. Requests
+	 * whose content can not be sent twice are not retried.
+	 */
 	private HttpResponse request(HttpRequest request) throws IOException {
-		return client.execute(host, request);
+		HttpResponse response = client.execute(host, request);
+		for (int attempt = 0; attempt < MAX_RETRIES && isRetryable(request, response); attempt++) {
+			long wait = getRetryAfter(response);
+			EntityUtils.consume(response.getEntity());
+			internalLogger.debug("Server is busy, retrying " + request.getRequestLine() + " in " + wait + " ms");
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to retry " + request.getRequestLine());
+			}
+			response = client.execute(host, request);
+		}
+		return response;
+	}
+
+	private static boolean isRetryable(HttpRequest request, HttpResponse response) {
+		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_SERVICE_UNAVAILABLE || getRetryAfter(response) < 0) {
+			return false;
+		}
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			return entity == null || entity.isRepeatable();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the Retry-After delay in milliseconds, or -1 if the response
+	 * has no Retry-After header in seconds
+	 */
+	private static long getRetryAfter(HttpResponse response) {
+		Header header = response.getFirstHeader("Retry-After");
+		if (header == null) {
+			return -1;
+		}
+		try {
+			return Math.min(Long.parseLong(header.getValue().trim()), MAX_RETRY_AFTER) * 1000;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * A connection manager that records how long each request waits for a
+	 * connection to become available.
+	 */
+	private static class MeteredConnectionManager extends PoolingClientConnectionManager {
+		private final ConnectionPoolMetrics metrics;
+
+		MeteredConnectionManager(ConnectionPoolMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+			final ClientConnectionRequest request = super.requestConnection(route, state);
+			return new ClientConnectionRequest() {
+				@Override
+				public ManagedClientConnection getConnection(long timeout, TimeUnit tunit) throws InterruptedException, ConnectionPoolTimeoutException {
+					long start = System.nanoTime();
+					try {
+						ManagedClientConnection conn = request.getConnection(timeout, tunit);
+						metrics.leased(System.nanoTime() - start);
+						return conn;
+					} catch (InterruptedException e) {
+						metrics.failed();
+						throw e;
+					} catch (ConnectionPoolTimeoutException e) {
+						metrics.failed();
+						throw e;
+					}
+				}
+
+				@Override
+				public void abortRequest() {
+					request.abortRequest();
+				}
+			};
+		}
 	}
 }
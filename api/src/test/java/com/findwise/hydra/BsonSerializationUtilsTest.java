@@ -0,0 +1,73 @@
+package com.findwise.hydra;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.findwise.hydra.Document.Action;
+import com.findwise.hydra.local.LocalDocument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BsonSerializationUtilsTest {
+
+	@Test
+	public void testRoundTrip_gives_same_types_as_json() throws JsonException {
+		Map<String, Object> map = new HashMap<String, Object>();
+		List<Object> list = new ArrayList<Object>();
+		list.add("a");
+		list.add(1);
+		map.put("string", "x");
+		map.put("int", 3);
+		map.put("long", 5000000000L);
+		map.put("double", 1.5);
+		map.put("bool", true);
+		map.put("date", new Date());
+		map.put("null", null);
+		map.put("list", list);
+		map.put("map", new HashMap<String, Object>(map));
+
+		Map<String, Object> json = SerializationUtils.fromJson(SerializationUtils.toJson(map));
+		Map<String, Object> bson = BsonSerializationUtils.fromBson(BsonSerializationUtils.toBson(map));
+		assertEquals(json, bson);
+	}
+
+	@Test
+	public void testValues_without_bson_type_are_stored_as_json() throws JsonException {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("action", Action.ADD);
+		assertEquals("ADD", BsonSerializationUtils.fromBson(BsonSerializationUtils.toBson(map)).get("action"));
+	}
+
+	@Test
+	public void testDocuments_can_be_read_back_to_back() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < 3; i++) {
+			LocalDocument d = new LocalDocument();
+			d.putContentField("i", i);
+			out.write(d.toBson());
+		}
+		InputStream in = new ByteArrayInputStream(out.toByteArray());
+		for (int i = 0; i < 3; i++) {
+			assertTrue(BsonSerializationUtils.hasMoreDocuments(in));
+			LocalDocument d = new LocalDocument();
+			d.fromBson(in);
+			assertEquals(i, d.getContentField("i"));
+		}
+		assertFalse(BsonSerializationUtils.hasMoreDocuments(in));
+	}
+
+	@Test(expected = JsonException.class)
+	public void testMalformedInput() throws JsonException {
+		BsonSerializationUtils.fromBson(new byte[] { 1, 2, 3 });
+	}
+}
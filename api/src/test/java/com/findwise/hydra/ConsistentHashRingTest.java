@@ -0,0 +1,68 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.findwise.hydra.local.LocalDocumentID;
+
+public class ConsistentHashRingTest {
+	private static final List<String> NODES = Arrays.asList("core1:12001", "core2:12001", "core3:12001");
+
+	@Test
+	public void testKeyIgnoresNumberTypeAndOrder() {
+		Map<String, Object> ints = new LinkedHashMap<String, Object>();
+		ints.put("_time", 1357000000);
+		ints.put("_machine", -1234567);
+		ints.put("_inc", 42);
+		ints.put("_new", true);
+
+		Map<String, Object> doubles = new LinkedHashMap<String, Object>();
+		doubles.put("_inc", 42.0);
+		doubles.put("_new", false);
+		doubles.put("_machine", -1234567.0);
+		doubles.put("_time", 1357000000.0);
+
+		assertEquals(ConsistentHashRing.getKey(new LocalDocumentID(ints)),
+				ConsistentHashRing.getKey(new LocalDocumentID(doubles)));
+
+		ConsistentHashRing ring = new ConsistentHashRing(NODES);
+		assertEquals(ring.getNode(new LocalDocumentID(ints)), ring.getNode(new LocalDocumentID(doubles)));
+	}
+
+	@Test
+	public void testDocumentsAreSpreadOverNodes() {
+		ConsistentHashRing ring = new ConsistentHashRing(NODES);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < 3000; i++) {
+			String node = ring.getNode(new LocalDocumentID("doc" + i));
+			counts.put(node, counts.containsKey(node) ? counts.get(node) + 1 : 1);
+		}
+		assertEquals(3, counts.size());
+		for (int count : counts.values()) {
+			assertTrue("Uneven spread: " + counts, count > 600);
+		}
+	}
+
+	@Test
+	public void testAddingNodeOnlyMovesDocumentsToIt() {
+		ConsistentHashRing before = new ConsistentHashRing(NODES);
+		ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("core1:12001", "core2:12001", "core3:12001", "core4:12001"));
+		int moved = 0;
+		for (int i = 0; i < 3000; i++) {
+			LocalDocumentID id = new LocalDocumentID("doc" + i);
+			if (!before.getNode(id).equals(after.getNode(id))) {
+				assertEquals("core4:12001", after.getNode(id));
+				moved++;
+			}
+		}
+		assertTrue(moved > 0 && moved < 1500);
+	}
+}
@@ -1,7 +1,13 @@
 package com.findwise.hydra;
 
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -29,4 +35,25 @@ public class SerializationUtilsTest {
 		assertTrue(date.getTime() - ((Date)deserializedDate).getTime() < 1000L);
 	}
 
+	@Test
+	public void testStreamingParse_matches_string_parse() throws JsonException {
+		String json = "{\"s\":\"x\",\"i\":3,\"d\":1.5,\"b\":true,\"n\":null,\"l\":[1,\"two\",{\"k\":\"v\"}],\"m\":{\"inner\":[]}}";
+		Map<String, Object> fromString = SerializationUtils.fromJson(json);
+		Map<String, Object> fromReader = SerializationUtils.fromJson(new StringReader(json));
+		assertEquals(fromString, fromReader);
+	}
+
+	@Test
+	public void testStreamingWrite_matches_string_write() throws JsonException {
+		Map<String, Object> map = new HashMap<String, Object>();
+		List<Object> list = new ArrayList<Object>();
+		list.add("a");
+		list.add(2);
+		map.put("list", list);
+		map.put("date", new Date());
+		StringWriter writer = new StringWriter();
+		SerializationUtils.toJson(map, writer);
+		assertEquals(SerializationUtils.toJson(map), writer.toString());
+	}
+
 }
@@ -0,0 +1,91 @@
+package com.findwise.hydra;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.findwise.hydra.local.LocalDocument;
+
+/**
+ * Compares the CPU cost of sending documents between stages and the core as
+ * Json and as BSON. Not a unit test; run it from the IDE or with
+ * <code>mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.findwise.hydra.WireFormatBenchmark</code>.
+ *
+ * Each round trip does what both ends of a getDocument/markProcessed cycle
+ * do: the core serializes the document, the stage parses it, the stage
+ * serializes its changes and the core parses them.
+ */
+public class WireFormatBenchmark {
+	private static final int WARMUP = 2000;
+	private static final int ITERATIONS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		LocalDocument doc = createDocument();
+
+		for (int i = 0; i < WARMUP; i++) {
+			jsonRoundTrip(doc);
+			bsonRoundTrip(doc);
+		}
+
+		long json = time(doc, false);
+		long bson = time(doc, true);
+
+		System.out.println(String.format("Document size: json=%d bytes, bson=%d bytes", doc.toJson().getBytes("UTF-8").length, doc.toBson().length));
+		System.out.println(String.format("json: %d ns per round trip", json / ITERATIONS));
+		System.out.println(String.format("bson: %d ns per round trip", bson / ITERATIONS));
+	}
+
+	private static long time(LocalDocument doc, boolean bson) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			if (bson) {
+				bsonRoundTrip(doc);
+			} else {
+				jsonRoundTrip(doc);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void jsonRoundTrip(LocalDocument doc) throws JsonException {
+		LocalDocument atStage = new LocalDocument(new StringReader(doc.toJson()));
+		atStage.putContentField("processed", true);
+		new LocalDocument(new StringReader(atStage.modifiedFieldsToJson()));
+	}
+
+	private static void bsonRoundTrip(LocalDocument doc) throws JsonException {
+		LocalDocument atStage = new LocalDocument();
+		atStage.fromBson(new ByteArrayInputStream(doc.toBson()));
+		atStage.markSynced();
+		atStage.putContentField("processed", true);
+		new LocalDocument().fromBson(new ByteArrayInputStream(atStage.modifiedFieldsToBson()));
+	}
+
+	private static LocalDocument createDocument() {
+		LocalDocument doc = new LocalDocument();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			text.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+		}
+		doc.putContentField("title", "A benchmark document");
+		doc.putContentField("text", text.toString());
+		doc.putContentField("modified", new Date());
+		List<Object> tags = new ArrayList<Object>();
+		for (int i = 0; i < 50; i++) {
+			tags.add("tag" + i);
+			tags.add(i);
+		}
+		doc.putContentField("tags", tags);
+		Map<String, Object> nested = new HashMap<String, Object>();
+		for (int i = 0; i < 50; i++) {
+			nested.put("key" + i, i * 1.5);
+		}
+		doc.putContentField("nested", nested);
+		doc.putMetadataField("source", "benchmark");
+		return doc;
+	}
+}
@@ -0,0 +1,123 @@
+package com.findwise.hydra.local;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BatchingInserterTest {
+	private RemotePipeline rp;
+	private List<Integer> batches;
+
+	@Before
+	public void setUp() throws Exception {
+		rp = mock(RemotePipeline.class);
+		when(rp.getStageName()).thenReturn("stage");
+		batches = Collections.synchronizedList(new ArrayList<Integer>());
+	}
+
+	private void answerWithIds(final CountDownLatch release) throws Exception {
+		when(rp.insertAll(anyCollectionOf(LocalDocument.class))).thenAnswer(new Answer<Boolean>() {
+			private int next = 0;
+
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws Throwable {
+				if (release != null) {
+					release.await();
+				}
+				@SuppressWarnings("unchecked")
+				Collection<LocalDocument> docs = (Collection<LocalDocument>) invocation.getArguments()[0];
+				for (LocalDocument d : docs) {
+					d.setID(new LocalDocumentID("id" + next++));
+				}
+				batches.add(docs.size());
+				return true;
+			}
+		});
+	}
+
+	@Test
+	public void testDocumentsAreSentInBatches() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		answerWithIds(release);
+		BatchingInserter inserter = new BatchingInserter(rp, 10, 100, 1);
+
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		for (int i = 0; i < 25; i++) {
+			LocalDocument d = new LocalDocument();
+			docs.add(d);
+			inserter.add(d);
+		}
+		release.countDown();
+		inserter.close();
+
+		assertEquals(25, inserter.getInsertedCount());
+		assertEquals(0, inserter.getFailedCount());
+		assertEquals(0, inserter.getPendingCount());
+		for (LocalDocument d : docs) {
+			assertTrue(d.getID() != null);
+		}
+		int sent = 0;
+		for (int size : batches) {
+			assertTrue(size <= 10);
+			sent += size;
+		}
+		assertEquals(25, sent);
+		assertTrue("Queued documents should be sent together", batches.size() < 25);
+	}
+
+	@Test
+	public void testAddBlocksWhenQueueIsFull() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		answerWithIds(release);
+		final BatchingInserter inserter = new BatchingInserter(rp, 2, 2, 1);
+
+		final CountDownLatch added = new CountDownLatch(1);
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 10; i++) {
+						inserter.add(new LocalDocument());
+					}
+					added.countDown();
+				} catch (InterruptedException e) {
+					interrupt();
+				}
+			}
+		};
+		producer.start();
+
+		assertFalse("The producer should wait for the core", added.await(200, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertTrue(added.await(2000, TimeUnit.MILLISECONDS));
+		inserter.flush();
+		assertEquals(10, inserter.getInsertedCount());
+	}
+
+	@Test
+	public void testFailuresAreCounted() throws Exception {
+		when(rp.insertAll(anyCollectionOf(LocalDocument.class))).thenReturn(false);
+		BatchingInserter inserter = new BatchingInserter(rp, 5);
+		for (int i = 0; i < 3; i++) {
+			inserter.add(new LocalDocument());
+		}
+		inserter.flush();
+
+		assertEquals(0, inserter.getInsertedCount());
+		assertEquals(3, inserter.getFailedCount());
+	}
+}
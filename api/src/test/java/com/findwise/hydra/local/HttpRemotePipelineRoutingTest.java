@@ -0,0 +1,119 @@
+package com.findwise.hydra.local;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import com.findwise.hydra.ConsistentHashRing;
+import com.findwise.hydra.Document.Status;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how {@link HttpRemotePipeline} routes requests when the documents are
+ * split between two cores.
+ */
+public class HttpRemotePipelineRoutingTest {
+	private static final String stageName = "teststage";
+	private static final String mockHost = "localhost";
+	private static final int firstPort = 37780;
+	private static final int secondPort = 37781;
+
+	@ClassRule
+	public static WireMockRule firstRule = new WireMockRule(wireMockConfig().port(firstPort));
+	@ClassRule
+	public static WireMockRule secondRule = new WireMockRule(wireMockConfig().port(secondPort));
+
+	private final WireMock first = new WireMock(mockHost, firstPort);
+	private final WireMock second = new WireMock(mockHost, secondPort);
+	private final List<String> nodes = Arrays.asList(mockHost + ":" + firstPort, mockHost + ":" + secondPort);
+	private final ConsistentHashRing ring = new ConsistentHashRing(nodes);
+
+	private HttpRemotePipeline rp;
+
+	@Before
+	public void setUp() {
+		first.resetMappings();
+		second.resetMappings();
+		rp = new HttpRemotePipeline(mockHost, firstPort, stageName, false);
+		rp.setCoreNodes(nodes);
+	}
+
+	private WireMock owner(LocalDocument d) {
+		return ring.getNode(d.getID()).equals(nodes.get(0)) ? first : second;
+	}
+
+	private WireMock other(LocalDocument d) {
+		return owner(d) == first ? second : first;
+	}
+
+	/**
+	 * @return a document owned by each core, first one and then the other
+	 */
+	private List<LocalDocument> oneDocumentPerCore() {
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		for (int i = 0; docs.size() < 2; i++) {
+			LocalDocument d = new LocalDocument();
+			d.setID(new LocalDocumentID("doc" + i));
+			if (docs.isEmpty() || owner(d) != owner(docs.get(0))) {
+				docs.add(d);
+			}
+		}
+		return docs;
+	}
+
+	private static void stubAll(String url, int status, String body) {
+		for (int port : new int[] { firstPort, secondPort }) {
+			new WireMock(mockHost, port).register(post(urlMatching("/" + url + ".*")).willReturn(aResponse().withStatus(status).withBody(body)));
+		}
+	}
+
+	@Test
+	public void testSaveGoesToOwningCore() throws Exception {
+		stubAll(HttpEndpointConstants.WRITE_DOCUMENT_URL, 200, "");
+		List<LocalDocument> docs = oneDocumentPerCore();
+		String write = "/" + HttpEndpointConstants.WRITE_DOCUMENT_URL + ".*";
+
+		docs.get(0).putContentField("field", "value");
+		assertTrue(rp.save(docs.get(0)));
+		owner(docs.get(0)).verifyThat(1, postRequestedFor(urlMatching(write)));
+		other(docs.get(0)).verifyThat(0, postRequestedFor(urlMatching(write)));
+
+		docs.get(1).putContentField("field", "value");
+		assertTrue(rp.save(docs.get(1)));
+		first.verifyThat(1, postRequestedFor(urlMatching(write)));
+		second.verifyThat(1, postRequestedFor(urlMatching(write)));
+	}
+
+	@Test
+	public void testMarkAllIsSplitByOwner() throws Exception {
+		stubAll(HttpEndpointConstants.MARK_DOCUMENTS_URL, 200, "{\"" + HttpEndpointConstants.FAILED_KEY + "\":0}");
+
+		assertTrue(rp.markAll(oneDocumentPerCore(), Status.PROCESSED));
+
+		first.verifyThat(1, postRequestedFor(urlMatching("/" + HttpEndpointConstants.MARK_DOCUMENTS_URL + ".*")));
+		second.verifyThat(1, postRequestedFor(urlMatching("/" + HttpEndpointConstants.MARK_DOCUMENTS_URL + ".*")));
+	}
+
+	@Test
+	public void testGetDocumentAsksEachCore() throws Exception {
+		stubAll(HttpEndpointConstants.GET_DOCUMENT_URL, 404, "");
+
+		assertNull(rp.getDocument(new LocalQuery()));
+
+		first.verifyThat(1, postRequestedFor(urlMatching("/" + HttpEndpointConstants.GET_DOCUMENT_URL + ".*")));
+		second.verifyThat(1, postRequestedFor(urlMatching("/" + HttpEndpointConstants.GET_DOCUMENT_URL + ".*")));
+	}
+}
@@ -12,14 +12,12 @@ import java.util.List;
 import java.util.Map;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 
 import com.findwise.hydra.DocumentFile;
-import com.findwise.hydra.SerializationUtils;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
@@ -114,19 +112,38 @@ public class HttpRemotePipelineTest {
 		}
 	}
 
+	@Test
+	public void testGetFilesFreesConnections() throws IOException {
+		rp.setMaxConnections(1);
+		Date date = new Date();
+		String fileNamesUrl = "/" + HttpEndpointConstants.FILE_URL
+				+ "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName
+				+ "&" + HttpEndpointConstants.DOCID_PARAM + "=" + URLEncoder.encode(doc.getID().toJSON(), "UTF-8");
+		stubFor(get(urlEqualTo(fileNamesUrl)).willReturn(aResponse().withBody("[\"a\", \"b\", \"c\"]")));
+		for (String fileName : Arrays.asList("a", "b", "c")) {
+			stubFile(fileName, doc.getID(), fileName.getBytes("UTF-8"), date, "UTF-8", "text");
+		}
+
+		List<DocumentFile<Local>> files = rp.getFiles(doc.getID());
+
+		assertEquals(3, files.size());
+		assertEquals("c", IOUtils.toString(files.get(2).getStream(), "UTF-8"));
+		assertEquals(0, rp.getConnectionPoolMetrics().getFailedLeaseCount());
+	}
+
 	private void stubFile(String fileName, LocalDocumentID docId, byte[] content, Date date, String encoding, String mimetype) throws UnsupportedEncodingException {
-		String fileUrl = "/" + HttpEndpointConstants.FILE_URL
+		String fileUrl = "/" + HttpEndpointConstants.RAW_FILE_URL
 				+ "?" + HttpEndpointConstants.STAGE_PARAM + "=" + stageName
 				+ "&" + HttpEndpointConstants.FILENAME_PARAM + "=" + fileName
 				+ "&" + HttpEndpointConstants.DOCID_PARAM + "=" + URLEncoder.encode(docId.toJSON(), "UTF-8");
 
-		Map<String, Object> fileMap = new HashMap<String, Object>();
-		fileMap.put("uploadDate", date);
-		fileMap.put("encoding", encoding);
-		fileMap.put("mimetype", mimetype);
-		fileMap.put("savedByStage", stageName);
-		fileMap.put("stream", Base64.encodeBase64String(content));
-		stubFor(get(urlEqualTo(fileUrl)).willReturn(aResponse().withBody(SerializationUtils.toJson(fileMap))));
+		stubFor(get(urlEqualTo(fileUrl)).willReturn(aResponse()
+				.withHeader("Content-Type", HttpEndpointConstants.BINARY_CONTENT_TYPE)
+				.withHeader(HttpEndpointConstants.UPLOAD_DATE_HEADER, String.valueOf(date.getTime()))
+				.withHeader(HttpEndpointConstants.ENCODING_HEADER, encoding)
+				.withHeader(HttpEndpointConstants.MIMETYPE_HEADER, mimetype)
+				.withHeader(HttpEndpointConstants.SAVED_BY_STAGE_HEADER, stageName)
+				.withBody(new String(content, "UTF-8"))));
 	}
 
 	private void documentFileEquals(DocumentFile<Local> expected, DocumentFile<Local> actual) throws IOException {
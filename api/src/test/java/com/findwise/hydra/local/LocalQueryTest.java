@@ -1,8 +1,11 @@
 package com.findwise.hydra.local;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -106,4 +109,33 @@ public class LocalQueryTest {
 		}
 	}
 
+	@Test
+	public void testMatches() throws Exception {
+		LocalQuery lq = new LocalQuery();
+		lq.requireContentFieldEquals("x", "1");
+		lq.requireContentFieldNotEquals("y", "2");
+		lq.requireContentFieldNotExists("z");
+		lq.requireTouchedByStage("s");
+		lq.requireNotTouchedByStage("s2");
+
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("x", "1");
+		assertFalse("Matched a document not touched by s", lq.matches(doc));
+
+		doc.setTouchedBy("s", new Date());
+		assertTrue(lq.matches(doc));
+
+		doc.putContentField("y", "2");
+		assertFalse("Matched a document with a field that should not be equal", lq.matches(doc));
+		doc.putContentField("y", "3");
+		assertTrue(lq.matches(doc));
+
+		doc.putContentField("z", "1");
+		assertFalse("Matched a document with a field that should not exist", lq.matches(doc));
+		doc.removeContentField("z");
+
+		doc.setTouchedBy("s2", new Date());
+		assertFalse("Matched a document touched by s2", lq.matches(doc));
+	}
+
 }
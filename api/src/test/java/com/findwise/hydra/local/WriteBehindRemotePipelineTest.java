@@ -0,0 +1,119 @@
+package com.findwise.hydra.local;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.Document.Status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WriteBehindRemotePipelineTest {
+	private RemotePipeline rp;
+
+	@Before
+	public void setUp() throws Exception {
+		rp = mock(RemotePipeline.class);
+		when(rp.getStageName()).thenReturn("stage");
+		when(rp.markAll(anyCollectionOf(LocalDocument.class), any(Status.class))).thenReturn(true);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFlushesWhenBatchIsFull() throws Exception {
+		WriteBehindRemotePipeline wb = new WriteBehindRemotePipeline(rp, 3, 0);
+
+		assertTrue(wb.markProcessed(new LocalDocument()));
+		assertTrue(wb.markDiscarded(new LocalDocument()));
+		verify(rp, never()).markAll(any(Collection.class), any(Status.class));
+		assertEquals(2, wb.getQueueSize());
+
+		wb.markProcessed(new LocalDocument());
+		verify(rp, times(1)).markAll(any(Collection.class), eq(Status.PROCESSED));
+		verify(rp, times(1)).markAll(any(Collection.class), eq(Status.DISCARDED));
+		assertEquals(0, wb.getQueueSize());
+
+		verify(rp, never()).markProcessed(any(LocalDocument.class));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFlushesOnInterval() throws Exception {
+		WriteBehindRemotePipeline wb = new WriteBehindRemotePipeline(rp, 100, 50);
+
+		wb.markFailed(new LocalDocument(), new Exception());
+
+		verify(rp, timeout(2000)).markAll(any(Collection.class), eq(Status.FAILED));
+		assertEquals(0, wb.getQueueSize());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testExplicitFlush() throws Exception {
+		WriteBehindRemotePipeline wb = new WriteBehindRemotePipeline(rp, 100, 0);
+		wb.markPending(new LocalDocument());
+		wb.flush();
+		wb.flush();
+		verify(rp, times(1)).markAll(any(Collection.class), eq(Status.PENDING));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testUnsentBatchIsRetried() throws Exception {
+		when(rp.markAll(anyCollectionOf(LocalDocument.class), any(Status.class))).thenThrow(new IOException("Connection refused")).thenReturn(true);
+		WriteBehindRemotePipeline wb = new WriteBehindRemotePipeline(rp, 100, 0);
+
+		wb.markProcessed(new LocalDocument());
+		wb.flush();
+
+		verify(rp, times(2)).markAll(any(Collection.class), eq(Status.PROCESSED));
+		assertEquals(0, wb.getQueueSize());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFlushThrowsWhenOutOfAttempts() throws Exception {
+		when(rp.markAll(anyCollectionOf(LocalDocument.class), any(Status.class))).thenThrow(new IOException("Connection refused"));
+		WriteBehindRemotePipeline wb = new WriteBehindRemotePipeline(rp, 100, 0);
+
+		wb.markProcessed(new LocalDocument());
+		try {
+			wb.flush();
+			fail("Expected the failure to be thrown");
+		} catch (IOException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+
+		verify(rp, times(WriteBehindRemotePipeline.MAX_ATTEMPTS)).markAll(any(Collection.class), eq(Status.PROCESSED));
+		assertEquals(0, wb.getQueueSize());
+		wb.flush();
+	}
+
+	@Test
+	public void testRefusedBatchIsThrownOnNextMark() throws Exception {
+		when(rp.markAll(anyCollectionOf(LocalDocument.class), any(Status.class))).thenReturn(false);
+		WriteBehindRemotePipeline wb = new WriteBehindRemotePipeline(rp, 1, 0);
+
+		assertTrue(wb.markProcessed(new LocalDocument()));
+		try {
+			wb.markProcessed(new LocalDocument());
+			fail("Expected the failure of the first batch to be thrown");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals("A mark that throws should not queue its document", 0, wb.getQueueSize());
+	}
+}
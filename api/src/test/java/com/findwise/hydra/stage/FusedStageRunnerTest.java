@@ -0,0 +1,218 @@
+package com.findwise.hydra.stage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import com.findwise.hydra.Document;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FusedStageRunnerTest {
+	private RemotePipeline rp;
+	private Map<String, RemotePipeline> pipelines;
+
+	@Before
+	public void setUp() throws Exception {
+		rp = pipeline("a");
+		pipelines = new HashMap<String, RemotePipeline>();
+		for (String name : new String[] { "b", "c" }) {
+			pipelines.put(name, pipeline(name));
+		}
+	}
+
+	private static RemotePipeline pipeline(String stageName) throws Exception {
+		RemotePipeline pipeline = mock(RemotePipeline.class);
+		when(pipeline.getStageName()).thenReturn(stageName);
+		when(pipeline.save(any(LocalDocument.class))).thenReturn(true);
+		when(pipeline.markFailed(any(LocalDocument.class))).thenReturn(true);
+		when(pipeline.markTouched(any(LocalDocument.class))).thenReturn(true);
+		return pipeline;
+	}
+
+	private static AbstractProcessStage stage(final String field, String after, boolean fused) {
+		AbstractProcessStage stage = new AbstractProcessStage() {
+			@Override
+			public void process(LocalDocument doc) throws Exception {
+				if (field == null) {
+					throw new Exception("Stage failed for some reason");
+				}
+				doc.putContentField(field, "yes");
+			}
+		};
+		LocalQuery query = new LocalQuery();
+		if (after != null) {
+			query.requireTouchedByStage(after);
+		}
+		stage.setQuery(query);
+		stage.setFused(fused);
+		return stage;
+	}
+
+	private static Map<String, AbstractProcessStage> followers(Object... nameAndStage) {
+		Map<String, AbstractProcessStage> followers = new LinkedHashMap<String, AbstractProcessStage>();
+		for (int i = 0; i < nameAndStage.length; i += 2) {
+			followers.put((String) nameAndStage[i], (AbstractProcessStage) nameAndStage[i + 1]);
+		}
+		return followers;
+	}
+
+	@Test
+	public void testChainSavesOnce() throws Exception {
+		FusedStageRunner runner = new FusedStageRunner("a", stage("a", null, false), rp,
+				followers("b", stage("b", "a", true), "c", stage("c", "b", true)), pipelines);
+
+		LocalDocument doc = new LocalDocument();
+		runner.performProcessing(doc);
+
+		RemotePipeline b = pipelines.get("b");
+		RemotePipeline c = pipelines.get("c");
+		verify(c, times(1)).save(doc);
+		verify(rp, never()).save(any(LocalDocument.class));
+		verify(b, never()).save(any(LocalDocument.class));
+		assertEquals("yes", doc.getContentField("a"));
+		assertEquals("yes", doc.getContentField("b"));
+		assertEquals("yes", doc.getContentField("c"));
+		assertTrue(doc.touchedBy("b"));
+		assertTrue(doc.fetchedBy("b"));
+		assertTrue(doc.fetchedBy("c"));
+		assertFalse("The last stage is marked as touched by the core when saving", doc.touchedBy("c"));
+	}
+
+	@Test
+	public void testChainTagsAreNotSaved() throws Exception {
+		FusedStageRunner runner = new FusedStageRunner("a", stage("a", null, false), rp,
+				followers("b", stage("b", "a", true), "c", stage("c", "b", true)), pipelines);
+
+		LocalDocument doc = new LocalDocument();
+		runner.performProcessing(doc);
+
+		assertFalse(doc.getTouchedMetadata().contains(Document.TOUCHED_METADATA_TAG));
+		assertFalse(doc.getTouchedMetadata().contains(Document.FETCHED_METADATA_TAG));
+		RemotePipeline b = pipelines.get("b");
+		RemotePipeline c = pipelines.get("c");
+		InOrder inOrder = inOrder(c, b, rp);
+		inOrder.verify(c).save(doc);
+		inOrder.verify(b).markTouched(doc);
+		inOrder.verify(rp).markTouched(doc);
+		verify(c, never()).markTouched(any(LocalDocument.class));
+	}
+
+	@Test
+	public void testChainStopsWhenQueryDoesNotMatch() throws Exception {
+		AbstractProcessStage b = stage("b", "a", true);
+		b.getQuery().requireContentFieldExists("missing");
+		FusedStageRunner runner = new FusedStageRunner("a", stage("a", null, false), rp, followers("b", b), pipelines);
+
+		LocalDocument doc = new LocalDocument();
+		runner.performProcessing(doc);
+
+		verify(rp, times(1)).save(doc);
+		verify(rp, never()).markTouched(any(LocalDocument.class));
+		assertEquals("yes", doc.getContentField("a"));
+		assertNull(doc.getContentField("b"));
+		assertFalse(doc.fetchedBy("b"));
+		assertFalse(doc.getTouchedMetadata().contains(Document.TOUCHED_METADATA_TAG));
+	}
+
+	@Test
+	public void testChainStopsWhenDiscarded() throws Exception {
+		AbstractProcessStage a = new AbstractProcessStage() {
+			@Override
+			public void process(LocalDocument doc) {
+				doc.discard();
+			}
+		};
+		FusedStageRunner runner = new FusedStageRunner("a", a, rp, followers("b", stage("b", "a", true)), pipelines);
+
+		LocalDocument doc = new LocalDocument();
+		runner.performProcessing(doc);
+
+		verify(rp, times(1)).markDiscarded(doc);
+		verify(rp, never()).save(any(LocalDocument.class));
+		assertNull(doc.getContentField("b"));
+	}
+
+	@Test
+	public void testFailureInFollowerIsReportedByFollower() throws Exception {
+		FusedStageRunner runner = new FusedStageRunner("a", stage("a", null, false), rp, followers("b", stage(null, "a", true)), pipelines);
+
+		LocalDocument doc = new LocalDocument();
+		runner.performProcessing(doc);
+
+		verify(rp, never()).save(any(LocalDocument.class));
+		verify(rp, never()).markFailed(any(LocalDocument.class));
+		verify(pipelines.get("b"), times(1)).markFailed(doc);
+		assertEquals("yes", doc.getContentField("a"));
+		assertTrue(((Map<?, ?>) doc.getMetadataMap().get(LocalDocument.ERROR_METADATA_KEY)).containsKey("b"));
+	}
+
+	@Test
+	public void testFindChains() {
+		Map<String, AbstractProcessStage> stages = new LinkedHashMap<String, AbstractProcessStage>();
+		stages.put("a", stage("a", null, false));
+		stages.put("b", stage("b", "a", true));
+		stages.put("c", stage("c", "b", true));
+		stages.put("d", stage("d", "c", false));
+
+		Map<String, Map<String, AbstractProcessStage>> chains = FusedStageRunner.findChains(stages);
+		assertEquals(1, chains.size());
+		assertEquals(Arrays.asList("b", "c"), new ArrayList<String>(chains.get("a").keySet()));
+	}
+
+	@Test
+	public void testNoChainWhenBranching() {
+		Map<String, AbstractProcessStage> stages = new LinkedHashMap<String, AbstractProcessStage>();
+		stages.put("a", stage("a", null, false));
+		stages.put("b", stage("b", "a", true));
+		stages.put("c", stage("c", "a", true));
+
+		assertTrue(FusedStageRunner.findChains(stages).isEmpty());
+	}
+
+	@Test
+	public void testFollowersSkipDocumentsTheyTouched() {
+		Map<String, AbstractProcessStage> stages = new LinkedHashMap<String, AbstractProcessStage>();
+		stages.put("a", stage("a", null, false));
+		stages.put("b", stage("b", "a", true));
+		Map<String, RemotePipeline> all = new HashMap<String, RemotePipeline>(pipelines);
+		all.put("a", rp);
+
+		StageServiceFactory.createGroupServices(all, stages);
+
+		assertEquals(Boolean.FALSE, stages.get("b").getQuery().getTouched().get("b"));
+		assertFalse(stages.get("a").getQuery().getTouched().containsKey("a"));
+	}
+
+	@Test
+	public void testNoChainAfterOutputStage() {
+		AbstractOutputStage output = new AbstractOutputStage() {
+			@Override
+			public void output(LocalDocument document) {}
+		};
+		Map<String, AbstractProcessStage> stages = new LinkedHashMap<String, AbstractProcessStage>();
+		stages.put("a", output);
+		stages.put("b", stage("b", "a", true));
+
+		assertTrue(FusedStageRunner.findChains(stages).isEmpty());
+	}
+}
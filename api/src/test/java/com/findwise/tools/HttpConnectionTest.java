@@ -0,0 +1,129 @@
+package com.findwise.tools;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.util.EntityUtils;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class HttpConnectionTest {
+	private static final int mockPort = 37779;
+
+	@ClassRule
+	public static WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(mockPort));
+
+	@Before
+	public void setUp() {
+		stubFor(get(urlEqualTo("/ping")).willReturn(aResponse().withBody("pong")));
+	}
+
+	@Test
+	public void testMaxConnections() {
+		HttpConnection connection = new HttpConnection("localhost", mockPort, 4, 1000);
+		assertEquals(4, connection.getMaxConnections());
+		assertEquals(4, connection.getPoolStats().getMax());
+
+		connection.setMaxConnections(8);
+		assertEquals(8, connection.getMaxConnections());
+		assertEquals(8, connection.getPoolStats().getMax());
+
+		connection.setMaxConnections(0);
+		assertEquals(1, connection.getMaxConnections());
+		connection.shutdown();
+	}
+
+	@Test
+	public void testConcurrentRequestsAreMetered() throws Exception {
+		final int threads = 4;
+		final int requests = 10;
+		final HttpConnection connection = new HttpConnection("localhost", mockPort, threads, 1000);
+		final AtomicInteger ok = new AtomicInteger();
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			workers.add(new Thread() {
+				public void run() {
+					for (int j = 0; j < requests; j++) {
+						try {
+							HttpResponse response = connection.get("/ping");
+							if ("pong".equals(EntityUtils.toString(response.getEntity()))) {
+								ok.incrementAndGet();
+							}
+						} catch (Exception e) {
+							return;
+						}
+					}
+				}
+			});
+		}
+		for (Thread t : workers) {
+			t.start();
+		}
+		for (Thread t : workers) {
+			t.join(10000);
+		}
+
+		assertEquals(threads * requests, ok.get());
+		ConnectionPoolMetrics metrics = connection.getMetrics();
+		assertEquals(threads * requests, metrics.getLeaseCount());
+		assertEquals(0, metrics.getFailedLeaseCount());
+		assertTrue(metrics.getMaxWaitTime(TimeUnit.NANOSECONDS) >= metrics.getAverageWaitTime(TimeUnit.NANOSECONDS));
+		assertEquals(0, connection.getPoolStats().getLeased());
+		assertTrue(connection.getPoolStats().getAvailable() <= threads);
+		connection.shutdown();
+	}
+
+	@Test
+	public void testLeaseTimesOut() throws Exception {
+		HttpConnection connection = new HttpConnection("localhost", mockPort, 1, 1000);
+		connection.setLeaseTimeout(200);
+		assertEquals(200, connection.getLeaseTimeout());
+
+		HttpResponse unread = connection.get("/ping");
+		try {
+			connection.get("/ping");
+			fail("Expected the second request to time out waiting for a connection");
+		} catch (ConnectionPoolTimeoutException e) {
+			assertEquals(1, connection.getMetrics().getFailedLeaseCount());
+		} finally {
+			EntityUtils.consume(unread.getEntity());
+			connection.shutdown();
+		}
+	}
+
+	@Test
+	public void testMetricsReset() {
+		ConnectionPoolMetrics metrics = new ConnectionPoolMetrics();
+		assertEquals(0, metrics.getAverageWaitTime(TimeUnit.NANOSECONDS));
+
+		metrics.leased(100);
+		metrics.leased(300);
+		metrics.failed();
+		assertEquals(2, metrics.getLeaseCount());
+		assertEquals(1, metrics.getFailedLeaseCount());
+		assertEquals(200, metrics.getAverageWaitTime(TimeUnit.NANOSECONDS));
+		assertEquals(300, metrics.getMaxWaitTime(TimeUnit.NANOSECONDS));
+		assertEquals(400, metrics.getTotalWaitTime(TimeUnit.NANOSECONDS));
+
+		metrics.reset();
+		assertEquals(0, metrics.getLeaseCount());
+		assertEquals(0, metrics.getMaxWaitTime(TimeUnit.NANOSECONDS));
+	}
+}
@@ -1,13 +1,31 @@
 package com.findwise.hydra;
 
+import java.util.List;
+
 public interface CoreConfiguration extends DatabaseConfiguration {
 	static final String LOGGING_PERFORMANCE = "core.logging.performance";
 	static final String LOGGING_PORT = "core.logging.port";
     static final int DEFAULT_LOGGING_PORT = 12002;
 	static final String USE_CACHE = "core.cache.enabled";
 	static final String CACHE_TIMEOUT = "core.cache.timeout";
+	static final String CACHE_MAX_SIZE = "core.cache.max_size_mb";
+	static final String CACHE_OFF_HEAP_SIZE = "core.cache.off_heap_size_mb";
+	static final String CACHE_PREFETCH_DEPTH = "core.cache.prefetch_depth";
+	static final String SHARD_NODES = "core.shard.nodes";
+	static final String SHARD_NODE = "core.shard.node";
 	static final String PIPELINE_POLLING_INTERVAL = "core.polling_interval";
 	static final String COMMUNICATION_PORT_PARAM = "core.communication_port";
+	static final String REST_BUFFER_SIZE = "core.rest.buffer_size";
+	static final String REST_IO_DISPATCHERS = "core.rest.io_dispatchers";
+	static final String REST_WORKER_THREADS = "core.rest.worker_threads";
+	static final String REST_WORKER_QUEUE_SIZE = "core.rest.worker_queue_size";
+	static final String REST_RETRY_AFTER = "core.rest.retry_after";
+	static final String ASYNC_THREADS = "core.async.threads";
+	static final String ASYNC_QUEUE_SIZE = "core.async.queue_size";
+	static final String INDEX_ADVISOR = "core.index.advisor";
+	static final String INDEX_PARTIAL = "core.index.partial";
+	static final String CHANGE_FEED = "core.change_feed";
+	static final String STAGES_IN_PROCESS = "core.stages.in_process";
 	
 	int getRestPort();
 
@@ -19,5 +37,87 @@ public interface CoreConfiguration extends DatabaseConfiguration {
 	
 	int getCacheTimeout();
 
+	/**
+	 * @return the number of megabytes of documents the cache may hold, or 0
+	 * for no limit other than the cache timeout
+	 */
+	int getCacheMaxSize();
+
+	/**
+	 * @return the number of megabytes of direct memory to keep cached
+	 * documents in, or 0 to keep them on the heap
+	 */
+	int getCacheOffHeapSize();
+
+	/**
+	 * @return the most documents to read into the cache ahead of a single
+	 * stage, or 0 to only read documents when stages ask for them
+	 */
+	int getCachePrefetchDepth();
+
+	/**
+	 * @return the names (<code>host:port</code>) of all cores sharing the
+	 * database, or an empty list if this core owns every document
+	 */
+	List<String> getShardNodes();
+
+	/**
+	 * @return the name of this core among {@link #getShardNodes()}
+	 */
+	String getShardNode();
+
     int getLoggingPort();
+
+	int getRestBufferSize();
+
+	int getRestIoDispatchers();
+
+	/**
+	 * @return the number of threads handling REST requests, or 0 to handle
+	 * them on the I/O dispatcher threads
+	 */
+	int getRestWorkerThreads();
+
+	int getRestWorkerQueueSize();
+
+	/**
+	 * @return the number of seconds a client is asked to wait before retrying
+	 * when all workers are busy
+	 */
+	int getRestRetryAfter();
+
+	/**
+	 * @return the number of threads to run fetches and marks against the
+	 * database on, or 0 to run them on the threads handling REST requests
+	 */
+	int getAsyncThreads();
+
+	/**
+	 * @return the most database operations to hold waiting for an async
+	 * thread
+	 */
+	int getAsyncQueueSize();
+
+	/**
+	 * @return whether to keep indexes in line with the queries of the stages
+	 */
+	boolean isIndexAdvisorEnabled();
+
+	/**
+	 * @return whether the indexes for stage queries should only hold the
+	 * documents that may match the query
+	 */
+	boolean isPartialIndexesEnabled();
+
+	/**
+	 * @return whether to follow changes to the pipeline and the documents as
+	 * they are announced, rather than only polling for them
+	 */
+	boolean isChangeFeedEnabled();
+
+	/**
+	 * @return whether stage groups that don't say otherwise should run inside
+	 * the core, rather than in a JVM of their own
+	 */
+	boolean isStagesInProcess();
 }
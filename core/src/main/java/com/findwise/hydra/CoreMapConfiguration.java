@@ -1,7 +1,12 @@
 package com.findwise.hydra;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.findwise.hydra.local.HttpEndpointConstants;
 import com.findwise.hydra.mongodb.MongoConfiguration;
+import com.findwise.hydra.net.DeferrableRequestHandler;
+import com.findwise.hydra.net.RESTServer;
 
 public class CoreMapConfiguration implements CoreConfiguration, Configuration {
 
@@ -100,6 +105,59 @@ public class CoreMapConfiguration implements CoreConfiguration, Configuration {
 		setParameter(CACHE_TIMEOUT, ""+timeout);
 	}
 
+	public int getCacheMaxSize() {
+		return Integer.parseInt(getParameter(CACHE_MAX_SIZE, "0"));
+	}
+
+	public void setCacheMaxSize(int megabytes) {
+		setParameter(CACHE_MAX_SIZE, "" + megabytes);
+	}
+
+	public int getCacheOffHeapSize() {
+		return Integer.parseInt(getParameter(CACHE_OFF_HEAP_SIZE, "0"));
+	}
+
+	public void setCacheOffHeapSize(int megabytes) {
+		setParameter(CACHE_OFF_HEAP_SIZE, "" + megabytes);
+	}
+
+	public int getCachePrefetchDepth() {
+		return Integer.parseInt(getParameter(CACHE_PREFETCH_DEPTH, "0"));
+	}
+
+	public void setCachePrefetchDepth(int depth) {
+		setParameter(CACHE_PREFETCH_DEPTH, "" + depth);
+	}
+
+	public List<String> getShardNodes() {
+		List<String> nodes = new ArrayList<String>();
+		for (String node : getParameter(SHARD_NODES, "").split(",")) {
+			if (node.trim().length() > 0) {
+				nodes.add(node.trim());
+			}
+		}
+		return nodes;
+	}
+
+	public void setShardNodes(List<String> nodes) {
+		StringBuilder sb = new StringBuilder();
+		for (String node : nodes) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(node);
+		}
+		setParameter(SHARD_NODES, sb.toString());
+	}
+
+	public String getShardNode() {
+		return getParameter(SHARD_NODE, null);
+	}
+
+	public void setShardNode(String node) {
+		setParameter(SHARD_NODE, node);
+	}
+
     public int getLoggingPort() {
         return Integer.parseInt(getParameter(LOGGING_PORT, "" + DEFAULT_LOGGING_PORT));
     }
@@ -108,6 +166,94 @@ public class CoreMapConfiguration implements CoreConfiguration, Configuration {
         setParameter(LOGGING_PORT, "" + loggingPort);
     }
 
+	public int getRestBufferSize() {
+		return Integer.parseInt(getParameter(REST_BUFFER_SIZE, "" + RESTServer.DEFAULT_BUFFER_SIZE));
+	}
+
+	public void setRestBufferSize(int bufferSize) {
+		setParameter(REST_BUFFER_SIZE, "" + bufferSize);
+	}
+
+	public int getRestIoDispatchers() {
+		return Integer.parseInt(getParameter(REST_IO_DISPATCHERS, "" + RESTServer.DEFAULT_IO_DISPATCHERS));
+	}
+
+	public void setRestIoDispatchers(int dispatchers) {
+		setParameter(REST_IO_DISPATCHERS, "" + dispatchers);
+	}
+
+	public int getRestWorkerThreads() {
+		return Integer.parseInt(getParameter(REST_WORKER_THREADS, "" + RESTServer.DEFAULT_WORKER_THREADS));
+	}
+
+	public void setRestWorkerThreads(int threads) {
+		setParameter(REST_WORKER_THREADS, "" + threads);
+	}
+
+	public int getRestWorkerQueueSize() {
+		return Integer.parseInt(getParameter(REST_WORKER_QUEUE_SIZE, "" + RESTServer.DEFAULT_WORKER_QUEUE_SIZE));
+	}
+
+	public void setRestWorkerQueueSize(int size) {
+		setParameter(REST_WORKER_QUEUE_SIZE, "" + size);
+	}
+
+	public int getRestRetryAfter() {
+		return Integer.parseInt(getParameter(REST_RETRY_AFTER, "" + DeferrableRequestHandler.DEFAULT_RETRY_AFTER));
+	}
+
+	public void setRestRetryAfter(int seconds) {
+		setParameter(REST_RETRY_AFTER, "" + seconds);
+	}
+
+	public int getAsyncThreads() {
+		return Integer.parseInt(getParameter(ASYNC_THREADS, "0"));
+	}
+
+	public void setAsyncThreads(int threads) {
+		setParameter(ASYNC_THREADS, "" + threads);
+	}
+
+	public int getAsyncQueueSize() {
+		return Integer.parseInt(getParameter(ASYNC_QUEUE_SIZE, "" + AsyncDocumentIO.DEFAULT_QUEUE_SIZE));
+	}
+
+	public void setAsyncQueueSize(int size) {
+		setParameter(ASYNC_QUEUE_SIZE, "" + size);
+	}
+
+	public boolean isIndexAdvisorEnabled() {
+		return Boolean.parseBoolean(getParameter(INDEX_ADVISOR, "true"));
+	}
+
+	public void setIndexAdvisorEnabled(boolean enabled) {
+		setParameter(INDEX_ADVISOR, "" + enabled);
+	}
+
+	public boolean isPartialIndexesEnabled() {
+		return Boolean.parseBoolean(getParameter(INDEX_PARTIAL, "false"));
+	}
+
+	public void setPartialIndexesEnabled(boolean enabled) {
+		setParameter(INDEX_PARTIAL, "" + enabled);
+	}
+
+	public boolean isChangeFeedEnabled() {
+		return Boolean.parseBoolean(getParameter(CHANGE_FEED, "true"));
+	}
+
+	public void setChangeFeedEnabled(boolean enabled) {
+		setParameter(CHANGE_FEED, "" + enabled);
+	}
+
+	public boolean isStagesInProcess() {
+		return Boolean.parseBoolean(getParameter(STAGES_IN_PROCESS, "false"));
+	}
+
+	public void setStagesInProcess(boolean inProcess) {
+		setParameter(STAGES_IN_PROCESS, "" + inProcess);
+	}
+
 	public String getParameter(String key) {
 		return mapConfiguration.getParameter(key);
 	}
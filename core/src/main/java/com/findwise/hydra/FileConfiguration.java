@@ -1,7 +1,12 @@
 package com.findwise.hydra;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.findwise.hydra.local.HttpEndpointConstants;
 import com.findwise.hydra.mongodb.MongoConfiguration;
+import com.findwise.hydra.net.DeferrableRequestHandler;
+import com.findwise.hydra.net.RESTServer;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.slf4j.Logger;
@@ -87,8 +92,94 @@ public class FileConfiguration implements CoreConfiguration, Configuration {
 		return conf.getInt(CACHE_TIMEOUT, CachingDocumentNIO.DEFAULT_CACHE_TIMEOUT);
 	}
 
+	@Override
+	public int getCacheMaxSize() {
+		return conf.getInt(CACHE_MAX_SIZE, 0);
+	}
+
+	@Override
+	public int getCacheOffHeapSize() {
+		return conf.getInt(CACHE_OFF_HEAP_SIZE, 0);
+	}
+
+	@Override
+	public int getCachePrefetchDepth() {
+		return conf.getInt(CACHE_PREFETCH_DEPTH, 0);
+	}
+
+	@Override
+	public List<String> getShardNodes() {
+		List<String> nodes = new ArrayList<String>();
+		for (String node : conf.getStringArray(SHARD_NODES)) {
+			if (node.trim().length() > 0) {
+				nodes.add(node.trim());
+			}
+		}
+		return nodes;
+	}
+
+	@Override
+	public String getShardNode() {
+		return conf.getString(SHARD_NODE, null);
+	}
+
     @Override
     public int getLoggingPort() {
         return conf.getInt(LOGGING_PORT, DEFAULT_LOGGING_PORT);
     }
+
+	@Override
+	public int getRestBufferSize() {
+		return conf.getInt(REST_BUFFER_SIZE, RESTServer.DEFAULT_BUFFER_SIZE);
+	}
+
+	@Override
+	public int getRestIoDispatchers() {
+		return conf.getInt(REST_IO_DISPATCHERS, RESTServer.DEFAULT_IO_DISPATCHERS);
+	}
+
+	@Override
+	public int getRestWorkerThreads() {
+		return conf.getInt(REST_WORKER_THREADS, RESTServer.DEFAULT_WORKER_THREADS);
+	}
+
+	@Override
+	public int getRestWorkerQueueSize() {
+		return conf.getInt(REST_WORKER_QUEUE_SIZE, RESTServer.DEFAULT_WORKER_QUEUE_SIZE);
+	}
+
+	@Override
+	public int getRestRetryAfter() {
+		return conf.getInt(REST_RETRY_AFTER, DeferrableRequestHandler.DEFAULT_RETRY_AFTER);
+	}
+
+	@Override
+	public int getAsyncThreads() {
+		return conf.getInt(ASYNC_THREADS, 0);
+	}
+
+	@Override
+	public int getAsyncQueueSize() {
+		return conf.getInt(ASYNC_QUEUE_SIZE, AsyncDocumentIO.DEFAULT_QUEUE_SIZE);
+	}
+
+	@Override
+	public boolean isIndexAdvisorEnabled() {
+		return conf.getBoolean(INDEX_ADVISOR, true);
+	}
+
+	@Override
+	public boolean isPartialIndexesEnabled() {
+		return conf.getBoolean(INDEX_PARTIAL, false);
+	}
+
+	@Override
+	public boolean isChangeFeedEnabled() {
+		return conf.getBoolean(CHANGE_FEED, true);
+	}
+
+	@Override
+	public boolean isStagesInProcess() {
+		return conf.getBoolean(STAGES_IN_PROCESS, false);
+	}
 }
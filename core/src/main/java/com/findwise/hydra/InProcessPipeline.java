@@ -0,0 +1,548 @@
+package com.findwise.hydra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.local.Local;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalDocumentID;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.stage.AbstractProcessStage;
+import com.findwise.hydra.stage.AbstractProcessStageMapper;
+import com.findwise.hydra.stage.InitFailedException;
+import com.findwise.hydra.stage.RequiredArgumentMissingException;
+
+/**
+ * A {@link RemotePipeline} for stages running inside the core, that calls
+ * straight into the {@link CachingDocumentNIO} the REST handlers use.
+ *
+ * Each call does what the matching REST handler does, but documents are
+ * handed over by copying their fields rather than by serializing them. Only
+ * the fields a stage has changed are copied back, as over HTTP.
+ */
+public class InProcessPipeline<T extends DatabaseType> implements RemotePipeline, DocumentListener<T> {
+	private static Logger logger = LoggerFactory.getLogger(InProcessPipeline.class);
+
+	/**
+	 * How often a waiting fetch is retried even if no change has been
+	 * signalled, to pick up documents that changed outside of this core.
+	 */
+	public static final long RECHECK_INTERVAL = 1000;
+
+	private final String stageName;
+	private final CachingDocumentNIO<T> io;
+	private final PipelineReader pipelineReader;
+	private final ClassLoader classLoader;
+	private final boolean performanceLogging;
+
+	private final Object signal = new Object();
+	private long changes = 0;
+
+	/**
+	 * @param classLoader
+	 *            the class loader to load the stage class through
+	 */
+	public InProcessPipeline(String stageName, CachingDocumentNIO<T> io, PipelineReader pipelineReader, ClassLoader classLoader, boolean performanceLogging) {
+		this.stageName = stageName;
+		this.io = io;
+		this.pipelineReader = pipelineReader;
+		this.classLoader = classLoader;
+		this.performanceLogging = performanceLogging;
+		io.addDocumentListener(this);
+	}
+
+	/**
+	 * Stops listening for changes to documents. The pipeline can't wait for
+	 * documents after this.
+	 */
+	public void close() {
+		io.removeDocumentListener(this);
+	}
+
+	@Override
+	public void documentChanged(DocumentID<T> id) {
+		synchronized (signal) {
+			changes++;
+			signal.notifyAll();
+		}
+	}
+
+	@Override
+	public LocalDocument getDocument(LocalQuery query) throws IOException {
+		return getDocument(query, 0);
+	}
+
+	/**
+	 * Waits for a document that is inserted, updated or released while the
+	 * query finds none, retrying the query at least every
+	 * {@value #RECHECK_INTERVAL} ms.
+	 */
+	@Override
+	public LocalDocument getDocument(LocalQuery query, long timeout) throws IOException {
+		long start = System.currentTimeMillis();
+		DatabaseQuery<T> dbq = convert(query);
+		long deadline = start + timeout;
+
+		long seen = getChanges();
+		DatabaseDocument<T> d = io.getAndTag(dbq, stageName);
+		while (d == null && System.currentTimeMillis() < deadline) {
+			try {
+				seen = awaitChange(seen, Math.min(deadline - System.currentTimeMillis(), RECHECK_INTERVAL));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			d = io.getAndTag(dbq, stageName);
+		}
+		LocalDocument ld = (d != null) ? toLocalDocument(d) : null;
+
+		if (performanceLogging) {
+			long end = System.currentTimeMillis();
+			Object id = ld != null ? ld.getID() : null;
+			logger.info(String.format("type=performance event=query stage_name=%s doc_id=\"%s\" start=%d end=%d total=%d", stageName, id, start, end, end - start));
+		}
+		return ld;
+	}
+
+	private long getChanges() {
+		synchronized (signal) {
+			return changes;
+		}
+	}
+
+	/**
+	 * @return the number of changes signalled so far
+	 */
+	private long awaitChange(long seen, long timeout) throws InterruptedException {
+		synchronized (signal) {
+			if (changes == seen && timeout > 0) {
+				signal.wait(timeout);
+			}
+			return changes;
+		}
+	}
+
+	@Override
+	public List<LocalDocument> getDocuments(LocalQuery query, int n) throws IOException {
+		long start = System.currentTimeMillis();
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		for (DatabaseDocument<T> d : io.getAndTag(convert(query), n, stageName)) {
+			docs.add(toLocalDocument(d));
+		}
+		if (performanceLogging) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=batchquery stage_name=%s count=%d start=%d end=%d total=%d", stageName, docs.size(), start, end, end - start));
+		}
+		return docs;
+	}
+
+	private DatabaseQuery<T> convert(LocalQuery query) {
+		io.registerQuery(stageName, query);
+		DatabaseQuery<T> dbq = io.convert(query);
+		StageManager sm = StageManager.getStageManager();
+		if (sm.hasRunnerForStage(stageName)) {
+			sm.getRunnerForStage(stageName).setHasQueried();
+		}
+		return dbq;
+	}
+
+	@Override
+	public boolean saveFull(LocalDocument d) throws IOException, JsonException {
+		boolean res = save(d, false);
+		if (res) {
+			d.markSynced();
+		}
+		return res;
+	}
+
+	@Override
+	public boolean save(LocalDocument d) throws IOException, JsonException {
+		boolean res = save(d, true);
+		if (res) {
+			d.markSynced();
+		}
+		return res;
+	}
+
+	/**
+	 * Writes the document as the write handler does, and releases it from
+	 * this stage.
+	 */
+	private boolean save(LocalDocument d, boolean partialUpdate) throws IOException, JsonException {
+		long start = System.currentTimeMillis();
+		DatabaseDocument<T> md;
+		if (partialUpdate) {
+			md = toDatabaseDocument(d, d.getTouchedContent(), d.getTouchedMetadata(), d.isTouchedAction());
+		} else {
+			md = toDatabaseDocument(d, d.getContentMap().keySet(), d.getMetadataMap().keySet(), d.getAction() != null);
+		}
+
+		boolean saved;
+		if (partialUpdate) {
+			if (d.getID() == null) {
+				logger.error("Unable to save a document without an ID, in stage " + stageName);
+				return false;
+			}
+			saved = io.updateFields(md);
+		} else if (d.getID() != null) {
+			saved = io.update(md);
+		} else {
+			saved = io.insert(md);
+			if (saved) {
+				d.setID(toLocalId(md.getID()));
+			}
+		}
+		if (!saved) {
+			logger.error("Unable to save document " + d.getID() + " in stage " + stageName);
+			return false;
+		}
+		if (!io.markTouched(md.getID(), stageName)) {
+			logger.error("Unable to release document " + d.getID() + " from stage " + stageName);
+			return false;
+		}
+
+		if (performanceLogging) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=update stage_name=%s doc_id=\"%s\" start=%d end=%d total=%d", stageName, d.getID(), start, end, end - start));
+		}
+		return true;
+	}
+
+	@Override
+	public boolean markPending(LocalDocument d) throws IOException {
+		return mark(d, Collections.<String>emptySet(), Collections.<String>emptySet(), Document.Status.PENDING);
+	}
+
+	@Override
+	public boolean markFailed(LocalDocument d) throws IOException {
+		return mark(d, d.getTouchedContent(), d.getTouchedMetadata(), Document.Status.FAILED);
+	}
+
+	@Override
+	public boolean markFailed(LocalDocument d, Throwable t) throws IOException {
+		d.addError(stageName, t);
+		return markFailed(d);
+	}
+
+	@Override
+	public boolean markProcessed(LocalDocument d) throws IOException {
+		return mark(d, d.getTouchedContent(), d.getTouchedMetadata(), Document.Status.PROCESSED);
+	}
+
+	@Override
+	public boolean markDiscarded(LocalDocument d) throws IOException {
+		return mark(d, d.getTouchedContent(), d.getTouchedMetadata(), Document.Status.DISCARDED);
+	}
+
+	/**
+	 * Applies the changed fields to the stored document and marks it, as the
+	 * mark handler does.
+	 */
+	@Override
+	public boolean markTouched(LocalDocument d) throws IOException {
+		if (d.getID() == null) {
+			logger.error("Unable to mark a document without an ID as touched, in stage " + stageName);
+			return false;
+		}
+		return io.markTouched(toDatabaseId(d.getID()), stageName);
+	}
+
+	private boolean mark(LocalDocument d, Collection<String> contentFields, Collection<String> metadataFields, Document.Status status) throws IOException {
+		long start = System.currentTimeMillis();
+		if (d.getID() == null) {
+			logger.error("Unable to mark a document without an ID as " + status + ", in stage " + stageName);
+			return false;
+		}
+		DatabaseDocument<T> md = toDatabaseDocument(d, contentFields, metadataFields, d.isTouchedAction());
+		DatabaseDocument<T> dbdoc = io.getDocumentById(md.getID());
+		if (dbdoc == null) {
+			logger.error("Unable to mark document " + d.getID() + " as " + status + ", it was not found");
+			return false;
+		}
+		dbdoc.putAll(md);
+
+		boolean marked;
+		switch (status) {
+		case PENDING:
+			marked = io.markPending(dbdoc, stageName);
+			break;
+		case FAILED:
+			marked = io.markFailed(dbdoc, stageName);
+			break;
+		case DISCARDED:
+			marked = io.markDiscarded(dbdoc, stageName);
+			break;
+		default:
+			marked = io.markProcessed(dbdoc, stageName);
+		}
+
+		if (performanceLogging) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=%s stage_name=%s doc_id=\"%s\" start=%d end=%d total=%d", status.toString().toLowerCase(), stageName, d.getID(), start, end, end - start));
+		}
+		return marked;
+	}
+
+	@Override
+	public boolean markAll(Collection<LocalDocument> docs, Document.Status status) throws IOException {
+		if (docs.isEmpty()) {
+			return true;
+		}
+		if (status == Document.Status.PROCESSING) {
+			throw new IllegalArgumentException("Documents can not be marked as " + status);
+		}
+		long start = System.currentTimeMillis();
+		List<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>(docs.size());
+		for (LocalDocument d : docs) {
+			if (d.getID() == null) {
+				logger.error("Unable to mark a document without an ID as " + status + ", in stage " + stageName);
+				return false;
+			}
+			list.add(toDatabaseDocument(d, d.getTouchedContent(), d.getTouchedMetadata(), d.isTouchedAction()));
+		}
+		int marked = io.markAll(list, status, stageName).size();
+
+		if (performanceLogging) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=batchmark stage_name=%s status=%s count=%d start=%d end=%d total=%d", stageName, status, docs.size(), start, end, end - start));
+		}
+		if (marked < docs.size()) {
+			logger.error("markAll() was unable to mark " + (docs.size() - marked) + " of " + docs.size() + " documents as " + status);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean insertAll(Collection<LocalDocument> docs) throws IOException {
+		if (docs.isEmpty()) {
+			return true;
+		}
+		long start = System.currentTimeMillis();
+		List<LocalDocument> locals = new ArrayList<LocalDocument>(docs);
+		List<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>(locals.size());
+		for (LocalDocument d : locals) {
+			if (d.getID() != null) {
+				throw new IllegalArgumentException("New documents can not have an ID");
+			}
+			list.add(toDatabaseDocument(d, d.getContentMap().keySet(), d.getMetadataMap().keySet(), d.getAction() != null));
+		}
+		Set<DocumentID<T>> ids = io.insert(list);
+		int inserted = ids.size();
+		for (int i = 0; i < locals.size(); i++) {
+			DocumentID<T> id = list.get(i).getID();
+			if (id != null && ids.contains(id)) {
+				locals.get(i).setID(toLocalId(id));
+				locals.get(i).markSynced();
+			}
+		}
+		// Released as the bulk insert handler does, so that later stages see them
+		for (DocumentID<T> id : ids) {
+			if (!io.markTouched(id, stageName)) {
+				logger.error("Unable to release inserted document " + id + " from stage " + stageName);
+			}
+		}
+
+		if (performanceLogging) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=bulkinsert stage_name=%s count=%d start=%d end=%d total=%d", stageName, locals.size(), start, end, end - start));
+		}
+		if (inserted < locals.size()) {
+			logger.error("insertAll() was unable to insert " + (locals.size() - inserted) + " of " + locals.size() + " documents");
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void flush() {
+		// Nothing is buffered, every call goes straight to the database
+	}
+
+	/**
+	 * Creates the stage from its properties in the pipeline, loading its
+	 * class from the libraries of its group.
+	 */
+	@Override
+	public AbstractProcessStage getStageInstance() throws IOException, IllegalAccessException, InitFailedException, InstantiationException, JsonException, RequiredArgumentMissingException, ClassNotFoundException {
+		Map<String, Object> properties;
+		if (pipelineReader.getPipeline().hasStage(stageName)) {
+			properties = pipelineReader.getPipeline().getStage(stageName).getProperties();
+		} else if (pipelineReader.getDebugPipeline().hasStage(stageName)) {
+			properties = pipelineReader.getDebugPipeline().getStage(stageName).getProperties();
+		} else {
+			throw new RuntimeException("No stage properties found for " + stageName);
+		}
+		return AbstractProcessStageMapper.fromMap(copy(properties), classLoader);
+	}
+
+	@Override
+	public DocumentFile<Local> getFile(String fileName, DocumentID<Local> docid) {
+		DatabaseDocument<T> md = io.getDocumentById(toDatabaseId(docid));
+		if (md == null) {
+			return null;
+		}
+		DocumentFile<T> df = io.getDocumentFile(md, fileName);
+		if (df == null) {
+			return null;
+		}
+		DocumentFile<Local> file = new DocumentFile<Local>(docid, fileName, df.getStream(), df.getSavedByStage(), df.getUploadDate());
+		file.setEncoding(df.getEncoding());
+		file.setMimetype(df.getMimetype());
+		return file;
+	}
+
+	@Override
+	public List<DocumentFile<Local>> getFiles(DocumentID<Local> docid) {
+		List<DocumentFile<Local>> files = new ArrayList<DocumentFile<Local>>();
+		List<String> fileNames = getFileNames(docid);
+		if (fileNames != null) {
+			for (String fileName : fileNames) {
+				files.add(getFile(fileName, docid));
+			}
+		}
+		return files;
+	}
+
+	@Override
+	public List<String> getFileNames(DocumentID<?> docid) {
+		DatabaseDocument<T> md = io.getDocumentById(toDatabaseId(docid));
+		if (md == null) {
+			return null;
+		}
+		return io.getDocumentFileNames(md);
+	}
+
+	@Override
+	public boolean deleteFile(String fileName, DocumentID<Local> docid) {
+		DatabaseDocument<T> md = io.getDocumentById(toDatabaseId(docid));
+		return md != null && io.deleteDocumentFile(md, fileName);
+	}
+
+	@Override
+	public boolean saveFile(DocumentFile<Local> df) {
+		DocumentID<T> id = toDatabaseId(df.getDocumentId());
+		if (io.getDocumentById(id) == null) {
+			return false;
+		}
+		DocumentFile<T> file = new DocumentFile<T>(id, df.getFileName(), df.getStream(), df.getSavedByStage(), df.getUploadDate());
+		if (df.getEncoding() != null) {
+			file.setEncoding(df.getEncoding());
+		}
+		file.setMimetype(df.getMimetype());
+		try {
+			io.write(file);
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to save file " + df.getFileName() + " for document " + df.getDocumentId(), e);
+			return false;
+		}
+	}
+
+	@Override
+	public String getStageName() {
+		return stageName;
+	}
+
+	@Override
+	public boolean isPerformanceLogging() {
+		return performanceLogging;
+	}
+
+	/**
+	 * Copies the document as the stage would have read it from the core. The
+	 * ID is the only part that is serialized, so that it is the same as over
+	 * HTTP.
+	 */
+	private LocalDocument toLocalDocument(DatabaseDocument<T> d) throws IOException {
+		LocalDocument ld = new LocalDocument();
+		ld.setID(toLocalId(d.getID()));
+		if (d.getAction() != null) {
+			ld.setAction(d.getAction());
+		}
+		for (Map.Entry<String, Object> e : d.getMetadataMap().entrySet()) {
+			ld.getMetadataMap().put(e.getKey(), copy(e.getValue()));
+		}
+		for (String field : d.getContentFields()) {
+			ld.getContentMap().put(field, copy(d.getContentField(field)));
+		}
+		ld.markSynced();
+		ld.setDocumentFileRepository(this);
+		return ld;
+	}
+
+	/**
+	 * Copies the given fields of the document into one of the database's
+	 * type, as if they had been posted to the core.
+	 */
+	private DatabaseDocument<T> toDatabaseDocument(LocalDocument d, Collection<String> contentFields, Collection<String> metadataFields, boolean withAction) throws IOException {
+		LocalDocument fields = new LocalDocument();
+		if (d.getID() != null) {
+			fields.setID(d.getID());
+		}
+		if (withAction) {
+			fields.setAction(d.getAction());
+		}
+		for (String field : metadataFields) {
+			fields.getMetadataMap().put(field, copy(d.getMetadataMap().get(field)));
+		}
+		for (String field : contentFields) {
+			fields.getContentMap().put(field, copy(d.getContentField(field)));
+		}
+		try {
+			return io.convert(fields);
+		} catch (ConversionException e) {
+			throw new IOException("Unable to convert document " + d.getID(), e);
+		}
+	}
+
+	private DocumentID<T> toDatabaseId(DocumentID<?> id) {
+		return io.toDocumentIdFromJson(id.toJSON());
+	}
+
+	private static LocalDocumentID toLocalId(DocumentID<?> id) throws IOException {
+		try {
+			return LocalDocumentID.getDocumentID(id.toJSON());
+		} catch (JsonException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Copies maps and lists all the way down, so that neither the stage nor
+	 * the cache sees the other change a value in place.
+	 */
+	@SuppressWarnings("unchecked")
+	static <V> V copy(V value) {
+		if (value instanceof Map) {
+			Map<Object, Object> map = new HashMap<Object, Object>();
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+				map.put(e.getKey(), copy(e.getValue()));
+			}
+			return (V) map;
+		}
+		if (value instanceof List) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object o : (List<?>) value) {
+				list.add(copy(o));
+			}
+			return (V) list;
+		}
+		if (value instanceof Date) {
+			return (V) new Date(((Date) value).getTime());
+		}
+		return value;
+	}
+}
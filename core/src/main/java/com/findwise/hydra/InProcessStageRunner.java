@@ -0,0 +1,155 @@
+package com.findwise.hydra;
+
+import java.io.Closeable;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.stage.AbstractProcessStage;
+import com.findwise.hydra.stage.StageService;
+import com.findwise.hydra.stage.StageServiceFactory;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.ServiceManager;
+
+/**
+ * Runs the stages of a group on threads inside the core, instead of in a JVM
+ * of their own. The stages talk to the database through an
+ * {@link InProcessPipeline}, so no documents are sent over HTTP.
+ *
+ * The libraries of the group are loaded in a class loader of their own, but
+ * any class the core also has is loaded from the core. A stage that brings
+ * another version of a library the core uses will get the core's version.
+ *
+ * A stage that crashes the JVM, or calls System.exit(), takes the core down
+ * with it. Only run trusted stages in process.
+ */
+public class InProcessStageRunner<T extends DatabaseType> extends StageRunner {
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	public static final long STOP_TIMEOUT = 5000;
+
+	private final CachingDocumentNIO<T> io;
+	private final PipelineReader pipelineReader;
+	private final boolean performanceLogging;
+
+	private volatile ServiceManager manager;
+
+	public InProcessStageRunner(StageGroup stageGroup, File baseDirectory, CachingDocumentNIO<T> io, PipelineReader pipelineReader, boolean performanceLogging, ShutdownHandler shutdownHandler) {
+		super(stageGroup, baseDirectory, 0, performanceLogging, 0, shutdownHandler);
+		this.io = io;
+		this.pipelineReader = pipelineReader;
+		this.performanceLogging = performanceLogging;
+	}
+
+	/**
+	 * Starts the stages of the group and waits for them to stop.
+	 *
+	 * @return true if the stages were stopped by a call to the
+	 *         destroy()-method. false otherwise.
+	 */
+	@Override
+	protected boolean runGroup() {
+		String groupName = getStageGroup().getName();
+		ClassLoader loader;
+		try {
+			loader = createClassLoader();
+		} catch (MalformedURLException e) {
+			logger.error("Unable to load the libraries of stage group " + groupName, e);
+			return false;
+		}
+
+		ClassLoader previous = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(loader);
+		List<InProcessPipeline<T>> pipelines = new ArrayList<InProcessPipeline<T>>();
+		try {
+			Map<String, RemotePipeline> remotePipelines = new HashMap<String, RemotePipeline>();
+			Map<String, AbstractProcessStage> stages = new LinkedHashMap<String, AbstractProcessStage>();
+			for (String stageName : getStageGroup().getStageNames()) {
+				InProcessPipeline<T> pipeline = new InProcessPipeline<T>(stageName, io, pipelineReader, loader, performanceLogging);
+				pipelines.add(pipeline);
+				remotePipelines.put(stageName, pipeline);
+				stages.put(stageName, pipeline.getStageInstance());
+			}
+			List<StageService> services = StageServiceFactory.createGroupServices(remotePipelines, stages);
+
+			final ServiceManager manager = new ServiceManager(services);
+			manager.addListener(new ServiceManager.Listener() {
+				public void stopped() {}
+				public void healthy() {}
+				public void failure(Service service) {
+					logger.error("Failure in " + service.toString() + ". Shutting down.", service.failureCause());
+					manager.stopAsync();
+				}
+			}, MoreExecutors.sameThreadExecutor());
+			this.manager = manager;
+
+			// Services start their threads with the context class loader of this thread
+			manager.startAsync();
+			if (wasKilled()) {
+				manager.stopAsync();
+			}
+			manager.awaitStopped();
+		} catch (Exception e) {
+			logger.error("Unable to start stage group " + groupName, e);
+			return false;
+		} finally {
+			for (InProcessPipeline<T> pipeline : pipelines) {
+				pipeline.close();
+			}
+			Thread.currentThread().setContextClassLoader(previous);
+			if (loader instanceof Closeable) {
+				IOUtils.closeQuietly((Closeable) loader);
+			}
+		}
+
+		if (!wasKilled()) {
+			logger.error("Stage group " + groupName + " stopped unexpectedly");
+			return false;
+		}
+		return true;
+	}
+
+	private ClassLoader createClassLoader() throws MalformedURLException {
+		List<URL> urls = new ArrayList<URL>();
+		File[] files = getTargetDirectory().listFiles();
+		if (files != null) {
+			for (File f : files) {
+				urls.add(f.toURI().toURL());
+			}
+		}
+		return new URLClassLoader(urls.toArray(new URL[urls.size()]), getClass().getClassLoader());
+	}
+
+	/**
+	 * Stops the stages of this group and removes its working files.
+	 */
+	@Override
+	public void destroy() {
+		logger.debug("Attempting to stop stage group " + getStageGroup().getName());
+		markKilled();
+		ServiceManager manager = this.manager;
+		if (manager != null) {
+			try {
+				manager.stopAsync().awaitStopped(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+				logger.debug("... stop successful");
+			} catch (TimeoutException e) {
+				logger.error("Stage group " + getStageGroup().getName() + " did not stop within " + STOP_TIMEOUT + " ms");
+			}
+		}
+		removeFiles();
+	}
+}
@@ -11,14 +11,17 @@ import org.slf4j.LoggerFactory;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.net.SimpleSocketServer;
 
+import com.findwise.hydra.embeddeddb.EmbeddedConnector;
 import com.findwise.hydra.mongodb.MongoConnector;
-import com.findwise.hydra.mongodb.MongoType;
+import com.findwise.hydra.mongodb.MongoIndexAdvisor;
 import com.findwise.hydra.net.HttpRESTHandler;
 import com.findwise.hydra.net.RESTServer;
 
 public final class Main implements ShutdownHandler {
 
 	private static final long KILL_DELAY = TimeUnit.SECONDS.toMillis(30);
+	private static final long SHARD_CLAIM_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+	private static final int SHARD_CLAIM_BATCH_SIZE = 1000;
 	private final CoreConfiguration coreConfiguration;
 
 	public Main(CoreConfiguration coreConfiguration) {
@@ -28,6 +31,8 @@ public final class Main implements ShutdownHandler {
 	private static Logger logger = LoggerFactory.getLogger(Main.class);
 	private SimpleSocketServer simpleSocketServer = null;
 	private RESTServer server = null;
+	private MongoConnector mongoConnector = null;
+	private EmbeddedConnector embeddedConnector = null;
 
 	private volatile boolean shuttingDown = false;
 	
@@ -56,36 +61,103 @@ public final class Main implements ShutdownHandler {
 				DatabaseConfiguration.DATABASE_URL_PARAM, coreConfiguration.getDatabaseUrl(),
 				DatabaseConfiguration.DATABASE_NAMESPACE, coreConfiguration.getNamespace());
 		
-		DatabaseConnector<MongoType> backing = new MongoConnector(coreConfiguration);
+		if (EmbeddedConnector.isEmbeddedUrl(coreConfiguration.getDatabaseUrl())) {
+			EmbeddedConnector backing = new EmbeddedConnector(coreConfiguration);
+			try {
+				backing.connect();
+			} catch (IOException e) {
+				logger.error("Unable to start", e);
+				return;
+			}
+			embeddedConnector = backing;
+			start(backing, null);
+			return;
+		}
+
+		MongoConnector backing = new MongoConnector(coreConfiguration);
 		try {
 			backing.connect();
 		} catch (IOException e) {
 			logger.error("Unable to start", e);
 			return;
 		}
+		mongoConnector = backing;
+
+		MongoIndexAdvisor advisor = null;
+		if (coreConfiguration.isIndexAdvisorEnabled()) {
+			if (coreConfiguration.isCacheEnabled()) {
+				advisor = new MongoIndexAdvisor(backing.getDocumentWriter(),
+						coreConfiguration.isPartialIndexesEnabled(), CachingDocumentNIO.CACHE_TAG);
+			} else {
+				advisor = new MongoIndexAdvisor(backing.getDocumentWriter(),
+						coreConfiguration.isPartialIndexesEnabled());
+			}
+			if (!coreConfiguration.getShardNodes().isEmpty()) {
+				advisor.setShardNode(coreConfiguration.getShardNode());
+			}
+		}
+		start(backing, advisor);
+	}
 
-		Cache<MongoType> cache;
-		if (coreConfiguration.isCacheEnabled()) {
-			cache = new MemoryCache<MongoType>();
+	private <T extends DatabaseType> void start(DatabaseConnector<T> backing, IndexAdvisor advisor) {
+		Cache<T> cache;
+		if (coreConfiguration.isCacheEnabled() && coreConfiguration.getCacheOffHeapSize() > 0) {
+			cache = new OffHeapCache<T>(backing, coreConfiguration.getCacheOffHeapSize() * 1024L * 1024L);
+		} else if (coreConfiguration.isCacheEnabled() && coreConfiguration.getCacheMaxSize() > 0) {
+			cache = new BoundedMemoryCache<T>(coreConfiguration.getCacheMaxSize() * 1024L * 1024L, backing.getDocumentWriter());
+		} else if (coreConfiguration.isCacheEnabled()) {
+			cache = new MemoryCache<T>();
 		} else {
-			cache = new NoopCache<MongoType>();
+			cache = new NoopCache<T>();
 		}
 
-		CachingDocumentNIO<MongoType> caching = new CachingDocumentNIO<MongoType>(
+		CachingDocumentNIO<T> caching = new CachingDocumentNIO<T>(
 				backing, 
 				cache, 
 				coreConfiguration.isCacheEnabled(),
 				coreConfiguration.getCacheTimeout());
 
-		NodeMaster<MongoType> nm = new NodeMaster<MongoType>(
+		if (coreConfiguration.isCacheEnabled() && coreConfiguration.getCachePrefetchDepth() > 0) {
+			caching.startPrefetching(coreConfiguration.getCachePrefetchDepth());
+		}
+
+		if (!coreConfiguration.getShardNodes().isEmpty()) {
+			ConsistentHashRing ring = new ConsistentHashRing(coreConfiguration.getShardNodes());
+			logger.info("Serving shard {} of {}", coreConfiguration.getShardNode(), ring);
+			caching.setShard(ring, coreConfiguration.getShardNode());
+			ShardClaimer claimer = new ShardClaimer(caching);
+			claimer.setDaemon(true);
+			claimer.start();
+		}
+
+		NodeMaster<T> nm = new NodeMaster<T>(
 				coreConfiguration,
 				caching,
 				new Pipeline(), 
 				this);
 
+		if (coreConfiguration.isChangeFeedEnabled()) {
+			ChangeFeed<T> feed = backing.getChangeFeed();
+			feed.start();
+			caching.followChanges(feed);
+			nm.setChangeFeed(feed);
+		}
+
+		if (advisor != null) {
+			nm.setIndexAdvisor(advisor);
+		}
+
+		AsyncDocumentIO<T> async = null;
+		if (coreConfiguration.getAsyncThreads() > 0) {
+			async = new AsyncDocumentIO<T>(nm.getDocumentIO(),
+					coreConfiguration.getAsyncThreads(),
+					coreConfiguration.getAsyncQueueSize());
+		}
+
 		server = new RESTServer(coreConfiguration,
-				new HttpRESTHandler<MongoType>(
+				new HttpRESTHandler<T>(
 						nm.getDocumentIO(),
+						async,
 						backing.getPipelineReader(), 
 						null,
 						coreConfiguration.isPerformanceLogging()));
@@ -126,7 +198,6 @@ public final class Main implements ShutdownHandler {
 		if (server != null) {
 			try {
 				server.shutdown();
-				return;
 			} catch (Exception e) {
 				logger.debug("Caught exception while shutting down the server. Was it not started?", e);
 				System.exit(1);
@@ -134,6 +205,18 @@ public final class Main implements ShutdownHandler {
 		} else {
 			logger.trace("server was null");
 		}
+
+		if (mongoConnector != null) {
+			mongoConnector.close();
+		}
+
+		if (embeddedConnector != null) {
+			try {
+				embeddedConnector.close();
+			} catch (IOException e) {
+				logger.error("Unable to close the embedded database", e);
+			}
+		}
 	}
 
 	public boolean isShuttingDown() {
@@ -183,6 +266,37 @@ public final class Main implements ShutdownHandler {
 		
 	}
 
+	/**
+	 * Periodically marks documents that have no owner yet with their owner.
+	 * Once after startup, also claims the documents that the ring assigns to
+	 * this core, but that are marked as owned by another.
+	 */
+	private class ShardClaimer extends Thread {
+
+		private final CachingDocumentNIO<?> caching;
+
+		public ShardClaimer(CachingDocumentNIO<?> caching) {
+			super("shard-claimer");
+			this.caching = caching;
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					caching.claimShard(SHARD_CLAIM_BATCH_SIZE);
+				} catch (RuntimeException e) {
+					logger.error("Unable to claim documents for this shard", e);
+				}
+				try {
+					Thread.sleep(SHARD_CLAIM_INTERVAL);
+				} catch (InterruptedException e) {
+					interrupt();
+				}
+			}
+		}
+	}
+
 	private class HydraKiller extends Thread {
 
 		Logger logger = LoggerFactory.getLogger(HydraKiller.class);
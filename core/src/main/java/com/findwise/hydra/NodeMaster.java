@@ -10,6 +10,11 @@ import org.slf4j.LoggerFactory;
 
 public final class NodeMaster<T extends DatabaseType> extends Thread {
 	public static final int DEFAULT_POLLING_INTERVAL = 10; //Seconds
+	/**
+	 * How often to read the pipeline while a change feed is live, in case a
+	 * change was missed
+	 */
+	public static final int CHANGE_FEED_POLLING_INTERVAL = 300; //Seconds
 	private Logger logger = LoggerFactory.getLogger(NodeMaster.class);
 	
 	private DatabaseConnector<T> dbc;
@@ -25,6 +30,11 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 	
 	private CoreConfiguration conf;
 	private ShutdownHandler shutdownHandler;
+	private IndexAdvisor indexAdvisor;
+	private ChangeFeed<T> changeFeed;
+	
+	private final Object changeLock = new Object();
+	private boolean pipelineChanged = false;
 	
 	public NodeMaster(CoreConfiguration conf, CachingDocumentNIO<T> documentNIO, Pipeline pipeline, ShutdownHandler shutdownHandler) {
 		this.conf = conf;
@@ -64,12 +74,13 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 					logger.error("An IOException occurred while updating the pipeline");
 					throw new IllegalStateException(e);
 				}
+				updateIndexes();
 			} else {
 				logger.debug("No updates found");
 			}
 			
 			try {
-				Thread.sleep(pollingInterval * 1000L);
+				waitForChange();
 			} catch (InterruptedException e) {
 				logger.error("Polling thread interrupted", e);
 				interrupt();
@@ -77,6 +88,37 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 		}
 	}
 	
+	/**
+	 * Waits for the change feed to announce a change to the pipeline, or for
+	 * the polling interval to pass. While the feed is live, the pipeline is
+	 * only polled every {@value #CHANGE_FEED_POLLING_INTERVAL} seconds.
+	 */
+	private void waitForChange() throws InterruptedException {
+		int interval = (changeFeed != null && changeFeed.isLive()) ? CHANGE_FEED_POLLING_INTERVAL : pollingInterval;
+		long deadline = System.currentTimeMillis() + interval * 1000L;
+		synchronized (changeLock) {
+			while (!pipelineChanged) {
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0) {
+					break;
+				}
+				changeLock.wait(left);
+			}
+			pipelineChanged = false;
+		}
+	}
+	
+	private void updateIndexes() {
+		if(indexAdvisor == null) {
+			return;
+		}
+		try {
+			indexAdvisor.update(pipeline);
+		} catch (RuntimeException e) {
+			logger.error("Unable to update the indexes for the pipeline", e);
+		}
+	}
+	
 	private void startStopped() throws IOException {
 		for(StageRunner runner : sm.getRunners()) {
 			if(!runner.isAlive() && !runner.isStarted()) {
@@ -130,15 +172,34 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 		for(StageGroup group : newPipeline.getStageGroups()) {
 			if(!pipeline.hasGroup(group.getName())) {
 				pipeline.addGroup(group);
-				if(attachFiles(group)) {
-					sm.addRunner(new StageRunner(group, new File(namespace), port, conf.isPerformanceLogging(), conf.getLoggingPort(), shutdownHandler));
-				} else {
+				if(!attachFiles(group)) {
 					logger.error("Was unable to start the stage group '"+group.getName()+"' due to missing libraries.");
+				} else if(isInProcess(group)) {
+					sm.addRunner(new InProcessStageRunner<T>(group, new File(namespace), documentNIO, dbc.getPipelineReader(), conf.isPerformanceLogging(), shutdownHandler));
+				} else {
+					sm.addRunner(new StageRunner(group, new File(namespace), port, conf.isPerformanceLogging(), conf.getLoggingPort(), shutdownHandler));
 				}
 			}
 		}
 	}
 	
+	/**
+	 * If there is only a single stage in the group, its configuration takes
+	 * precedence over the group's, which takes precedence over the core's.
+	 */
+	private boolean isInProcess(StageGroup group) {
+		if(group.getSize() == 1) {
+			Object inProcess = group.getStages().iterator().next().getProperties().get(StageGroup.IN_PROCESS_KEY);
+			if(inProcess != null) {
+				return Boolean.parseBoolean(inProcess.toString());
+			}
+		}
+		if(group.getInProcess() != null) {
+			return group.getInProcess();
+		}
+		return conf.isStagesInProcess();
+	}
+	
 	private boolean attachFiles(StageGroup group) {
 		Set<DatabaseFile> files = group.getDatabaseFiles();
 		if(files == null) {
@@ -161,4 +222,34 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 	public CoreConfiguration getConfiguration() {
 		return conf;
 	}
+	
+	/**
+	 * @param indexAdvisor
+	 *            told about the pipeline at startup and whenever it changes,
+	 *            or null to leave the indexes alone
+	 */
+	public void setIndexAdvisor(IndexAdvisor indexAdvisor) {
+		this.indexAdvisor = indexAdvisor;
+	}
+	
+	public IndexAdvisor getIndexAdvisor() {
+		return indexAdvisor;
+	}
+	
+	/**
+	 * Reads the pipeline as soon as the feed announces a change to it, rather
+	 * than waiting for the next poll.
+	 */
+	public void setChangeFeed(ChangeFeed<T> changeFeed) {
+		this.changeFeed = changeFeed;
+		changeFeed.addPipelineListener(new PipelineListener() {
+			@Override
+			public void pipelineChanged() {
+				synchronized (changeLock) {
+					pipelineChanged = true;
+					changeLock.notifyAll();
+				}
+			}
+		});
+	}
 }
@@ -49,7 +49,7 @@ public class StageRunner extends Thread {
 	private int loggingPort;
 
 	private boolean started;
-	private boolean wasKilled = false;
+	private volatile boolean wasKilled = false;
 	private ShutdownHandler shutdownHandler;
 
 	public synchronized void setHasQueried() {
@@ -179,7 +179,7 @@ public class StageRunner extends Thread {
 	 *
 	 * @return true if the stage was killed by a call to the destroy()-method. false otherwise.
 	 */
-	private boolean runGroup() {
+	protected boolean runGroup() {
 		CommandLine cmdLine = new CommandLine(java);
 		cmdLine.addArgument(jvmParameters, false);
 		cmdLine.addArgument("-cp");
@@ -263,7 +263,7 @@ public class StageRunner extends Thread {
 		wasKilled = true;
 	}
 
-	private void removeFiles() {
+	protected void removeFiles() {
 		long start = System.currentTimeMillis();
 		IOException ex = null;
 		do {
@@ -286,6 +286,25 @@ public class StageRunner extends Thread {
 				+ ", containing Stage Group " + stageGroup.getName(), ex);
 	}
 
+	/**
+	 * @return whether {@link #destroy()} has been called
+	 */
+	protected boolean wasKilled() {
+		return wasKilled;
+	}
+
+	protected void markKilled() {
+		wasKilled = true;
+	}
+
+	/**
+	 * @return the directory the libraries of the group are written to by
+	 *         {@link #prepare()}
+	 */
+	protected File getTargetDirectory() {
+		return targetDirectory;
+	}
+
 	public StageGroup getStageGroup() {
 		return stageGroup;
 	}
@@ -0,0 +1,147 @@
+package com.findwise.hydra.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.DatabaseType;
+import com.findwise.hydra.Document.Status;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.local.HttpEndpointConstants;
+import com.findwise.hydra.local.LocalDocument;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Marks a batch of documents in one request. The request body is a JSON array
+ * of <code>{ "mark" : &lt;status&gt;, "document" : &lt;document delta&gt; }</code>
+ * objects, where status is one of PROCESSED, DISCARDED, FAILED or PENDING.
+ * Documents sharing a status are handed to the database in a single call.
+ * Responds with the number of documents that were and were not marked.
+ */
+public class BatchMarkHandler<T extends DatabaseType> implements ResponsibleHandler {
+
+    private static Logger logger = LoggerFactory.getLogger(BatchMarkHandler.class);
+
+    private CachingDocumentNIO<T> io;
+    private boolean performanceLogging = false;
+
+    public BatchMarkHandler(CachingDocumentNIO<T> io, boolean performanceLogging) {
+        this.io = io;
+        this.performanceLogging = performanceLogging;
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response,
+                       HttpContext context) throws HttpException, IOException {
+        long start = System.currentTimeMillis();
+        HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request)
+                .getEntity();
+        String requestContent = EntityUtils.toString(requestEntity);
+        long tostring = System.currentTimeMillis();
+        String stage = RESTTools.getParam(request, HttpEndpointConstants.STAGE_PARAM);
+        if (stage == null) {
+            HttpResponseWriter.printMissingParameter(response, HttpEndpointConstants.STAGE_PARAM);
+            return;
+        }
+
+        Map<Status, List<DatabaseDocument<T>>> marks;
+        try {
+            marks = parse(requestContent);
+        } catch (JsonException e) {
+            HttpResponseWriter.printJsonException(response, e);
+            return;
+        } catch (ConversionException e) {
+            logger.error("Caught Exception when trying to convert "+requestContent, e);
+            HttpResponseWriter.printBadRequestContent(response);
+            return;
+        } catch (IllegalArgumentException e) {
+            logger.error("Unable to understand batch mark request: " + e.getMessage());
+            HttpResponseWriter.printBadRequestContent(response);
+            return;
+        }
+        long convert = System.currentTimeMillis();
+
+        int total = 0;
+        int marked = 0;
+        for (Map.Entry<Status, List<DatabaseDocument<T>>> e : marks.entrySet()) {
+            total += e.getValue().size();
+            marked += io.markAll(e.getValue(), e.getKey(), stage).size();
+        }
+
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put(HttpEndpointConstants.MARKED_KEY, marked);
+        result.put(HttpEndpointConstants.FAILED_KEY, total - marked);
+        HttpResponseWriter.printJson(response, result);
+
+        if(performanceLogging) {
+            long end = System.currentTimeMillis();
+            logger.info(String.format("type=performance event=batchmark stage_name=%s count=%d start=%d end=%d total=%d entitystring=%d parse=%d mark=%d", stage, total, start, end, end-start, tostring-start, convert-tostring, end-convert));
+        }
+    }
+
+    private Map<Status, List<DatabaseDocument<T>>> parse(String requestContent) throws JsonException, ConversionException {
+        JsonArray array;
+        try {
+            array = new JsonParser().parse(requestContent).getAsJsonArray();
+        } catch (JsonParseException e) {
+            throw new JsonException(e);
+        } catch (IllegalStateException e) {
+            throw new IllegalArgumentException("Expected a JSON array");
+        }
+
+        Map<Status, List<DatabaseDocument<T>>> marks = new EnumMap<Status, List<DatabaseDocument<T>>>(Status.class);
+        for (JsonElement element : array) {
+            if (!element.isJsonObject()) {
+                throw new IllegalArgumentException("Expected a JSON object, got " + element);
+            }
+            JsonObject o = element.getAsJsonObject();
+            if (!o.has(HttpEndpointConstants.MARK_KEY) || !o.has(HttpEndpointConstants.DOCUMENT_KEY)) {
+                throw new IllegalArgumentException("Every entry needs both a '" + HttpEndpointConstants.MARK_KEY + "' and a '" + HttpEndpointConstants.DOCUMENT_KEY + "' field");
+            }
+            Status status = Status.valueOf(o.get(HttpEndpointConstants.MARK_KEY).getAsString());
+            if (status == Status.PROCESSING) {
+                throw new IllegalArgumentException("Documents can not be marked as " + status);
+            }
+            DatabaseDocument<T> d = io.convert(new LocalDocument(o.get(HttpEndpointConstants.DOCUMENT_KEY).toString()));
+            if (d.getID() == null) {
+                throw new IllegalArgumentException("Submitted document was missing the required ID field");
+            }
+            if (!marks.containsKey(status)) {
+                marks.put(status, new ArrayList<DatabaseDocument<T>>());
+            }
+            marks.get(status).add(d);
+        }
+        return marks;
+    }
+
+    @Override
+    public boolean supports(HttpRequest request) {
+        return RESTTools.isPost(request)
+                && HttpEndpointConstants.MARK_DOCUMENTS_URL.equals(RESTTools.getBaseUrl(request));
+    }
+
+    @Override
+    public String[] getSupportedUrls() {
+        return new String[] { HttpEndpointConstants.MARK_DOCUMENTS_URL };
+    }
+}
@@ -0,0 +1,129 @@
+package com.findwise.hydra.net;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.DatabaseQuery;
+import com.findwise.hydra.DatabaseType;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.StageManager;
+import com.findwise.hydra.local.HttpEndpointConstants;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.net.RESTTools.Method;
+
+/**
+ * Hands out up to <code>count</code> documents matching the posted query in a
+ * single response, tagging each of them as fetched by the requesting stage.
+ * Responds with a JSON array of documents, or 404 if nothing matched.
+ */
+public class BatchQueryHandler<T extends DatabaseType> implements ResponsibleHandler {
+
+    public static final int MAX_COUNT = 1000;
+
+    private CachingDocumentNIO<T> io;
+    private boolean performanceLogging = false;
+
+    private static Logger logger = LoggerFactory.getLogger(BatchQueryHandler.class);
+
+    public BatchQueryHandler(CachingDocumentNIO<T> dbc, boolean performanceLogging) {
+        this.io = dbc;
+        this.performanceLogging = performanceLogging;
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response,
+                       HttpContext arg2) throws HttpException, IOException {
+        long start = System.currentTimeMillis();
+        logger.trace("handleGetDocuments()");
+        long tostring = System.currentTimeMillis();
+        String stage = RESTTools.getParam(request, HttpEndpointConstants.STAGE_PARAM);
+
+        if (stage == null) {
+            HttpResponseWriter.printMissingParameter(response,
+                    HttpEndpointConstants.STAGE_PARAM);
+            return;
+        }
+
+        int count = getCount(request);
+        if (count < 1) {
+            HttpResponseWriter.printMissingParameter(response,
+                    HttpEndpointConstants.COUNT_PARAM);
+            return;
+        }
+
+        DatabaseQuery<T> dbq;
+        try {
+            LocalQuery localQuery = RESTTools.getQuery(request);
+            io.registerQuery(stage, localQuery);
+            dbq = io.convert(localQuery);
+        } catch (JsonException e) {
+            HttpResponseWriter.printJsonException(response, e);
+            return;
+        }
+
+        long parse = System.currentTimeMillis();
+
+        reportQuery(stage);
+
+        Collection<DatabaseDocument<T>> docs = io.getAndTag(dbq, count, stage);
+
+        long query = System.currentTimeMillis();
+
+        if (docs != null && !docs.isEmpty()) {
+            HttpResponseWriter.printDocuments(response, docs, stage, RESTTools.acceptsBson(request));
+        } else {
+            HttpResponseWriter.printNoDocument(response);
+        }
+
+        if(performanceLogging) {
+            long serialize = System.currentTimeMillis();
+            int size = docs != null ? docs.size() : 0;
+            logger.info(String.format("type=performance event=batchquery stage_name=%s count=%d start=%d end=%d total=%d entitystring=%d parse=%d query=%d serialize=%d", stage, size, start, serialize, serialize-start, tostring-start, parse-tostring, query-parse, serialize-query));
+        }
+    }
+
+    /**
+     * @return the requested number of documents, capped at {@link #MAX_COUNT},
+     * or -1 if the parameter is missing or malformed
+     */
+    private int getCount(HttpRequest request) {
+        String count = RESTTools.getParam(request, HttpEndpointConstants.COUNT_PARAM);
+        if (count == null) {
+            return -1;
+        }
+        try {
+            return Math.min(Integer.parseInt(count), MAX_COUNT);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean supports(HttpRequest request) {
+        return RESTTools.getMethod(request) == Method.POST
+                && HttpEndpointConstants.GET_DOCUMENTS_URL.equals(RESTTools
+                .getBaseUrl(request));
+    }
+
+    @Override
+    public String[] getSupportedUrls() {
+        return new String[] { HttpEndpointConstants.GET_DOCUMENTS_URL };
+    }
+
+    private void reportQuery(String stage) {
+        StageManager sm = StageManager.getStageManager();
+
+        if(sm.hasRunnerForStage(stage)) {
+            sm.getRunnerForStage(stage).setHasQueried();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.findwise.hydra.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.DatabaseType;
+import com.findwise.hydra.DocumentID;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.local.HttpEndpointConstants;
+import com.findwise.hydra.local.LocalDocument;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+/**
+ * Inserts new documents in bulk. The request body is either a JSON array of
+ * documents, or newline-delimited JSON with one document per line. The body
+ * is parsed as it is read, and the documents are handed to the database
+ * {@link #BATCH_SIZE} at a time, so that a request may carry any number of
+ * documents.
+ *
+ * Responds with the number of documents that were and were not inserted,
+ * along with the new IDs, in the order the documents were sent. Documents
+ * that could not be inserted have a null ID. Inserted documents are marked as
+ * touched by the posting stage, unless the <code>norelease</code> parameter
+ * is 1.
+ *
+ * If a document in the body can not be read, the documents before it are
+ * still inserted, and nothing after it is read. If any documents were read
+ * before it, the response is the result so far, with the position of the
+ * document that could not be read and the error, so that the client learns
+ * the IDs of the documents that were inserted and does not send them again.
+ */
+public class BulkInsertHandler<T extends DatabaseType> implements ResponsibleHandler {
+
+    public static final int BATCH_SIZE = 500;
+
+    private static Logger logger = LoggerFactory.getLogger(BulkInsertHandler.class);
+
+    private CachingDocumentNIO<T> io;
+    private boolean performanceLogging = false;
+
+    public BulkInsertHandler(CachingDocumentNIO<T> io, boolean performanceLogging) {
+        this.io = io;
+        this.performanceLogging = performanceLogging;
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response,
+                       HttpContext context) throws HttpException, IOException {
+        long start = System.currentTimeMillis();
+        String stage = RESTTools.getParam(request, HttpEndpointConstants.STAGE_PARAM);
+        if (stage == null) {
+            HttpResponseWriter.printMissingParameter(response, HttpEndpointConstants.STAGE_PARAM);
+            return;
+        }
+
+        boolean release = !"1".equals(RESTTools.getParam(request, HttpEndpointConstants.NORELEASE_PARAM));
+
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        JsonReader reader = new JsonReader(new InputStreamReader(entity.getContent(), "UTF-8"));
+        reader.setLenient(true);
+
+        StringBuilder ids = new StringBuilder();
+        int total = 0;
+        int inserted = 0;
+        long insertTime = 0;
+        String error = null;
+        List<DatabaseDocument<T>> batch = new ArrayList<DatabaseDocument<T>>(BATCH_SIZE);
+        try {
+            boolean array = peek(reader) == JsonToken.BEGIN_ARRAY;
+            if (array) {
+                reader.beginArray();
+            }
+            while (hasNext(reader, array)) {
+                batch.add(parse(reader));
+                if (batch.size() == BATCH_SIZE) {
+                    long insertStart = System.currentTimeMillis();
+                    inserted += insert(batch, ids, stage, release);
+                    insertTime += System.currentTimeMillis() - insertStart;
+                    total += batch.size();
+                    batch.clear();
+                }
+            }
+        } catch (JsonException e) {
+            error = "Unable to parse document: " + e.getMessage();
+            if (total + batch.size() == 0) {
+                HttpResponseWriter.printJsonException(response, e);
+                return;
+            }
+        } catch (ConversionException e) {
+            logger.error("Caught Exception when trying to convert a posted document", e);
+            error = "Unable to convert document: " + e.getMessage();
+            if (total + batch.size() == 0) {
+                HttpResponseWriter.printBadRequestContent(response);
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            logger.error("Unable to understand bulk insert request: " + e.getMessage());
+            error = e.getMessage();
+            if (total + batch.size() == 0) {
+                HttpResponseWriter.printBadRequestContent(response);
+                return;
+            }
+        } finally {
+            reader.close();
+        }
+        long insertStart = System.currentTimeMillis();
+        inserted += insert(batch, ids, stage, release);
+        insertTime += System.currentTimeMillis() - insertStart;
+        total += batch.size();
+
+        if (total > inserted) {
+            logger.error("Unable to insert " + (total - inserted) + " out of " + total + " documents");
+        }
+        if (error != null) {
+            logger.error("Stopped reading bulk insert request at document " + total + ": " + error);
+            HttpResponseWriter.printPartialBulkInsertResult(response, inserted, total - inserted + 1, ids, total, error);
+        } else {
+            HttpResponseWriter.printBulkInsertResult(response, inserted, total - inserted, ids);
+        }
+
+        if (performanceLogging) {
+            long end = System.currentTimeMillis();
+            logger.info(String.format("type=performance event=bulkinsert stage_name=%s count=%d start=%d end=%d total=%d insert=%d", stage, total, start, end, end - start, insertTime));
+        }
+    }
+
+    private static boolean hasNext(JsonReader reader, boolean array) throws IOException, JsonException {
+        if (array) {
+            try {
+                return reader.hasNext();
+            } catch (MalformedJsonException e) {
+                throw new JsonException(new JsonSyntaxException(e));
+            }
+        }
+        return peek(reader) != JsonToken.END_DOCUMENT;
+    }
+
+    private static JsonToken peek(JsonReader reader) throws IOException, JsonException {
+        try {
+            return reader.peek();
+        } catch (EOFException e) {
+            // An empty body, or nothing but whitespace after the last document
+            return JsonToken.END_DOCUMENT;
+        } catch (MalformedJsonException e) {
+            throw new JsonException(new JsonSyntaxException(e));
+        }
+    }
+
+    private DatabaseDocument<T> parse(JsonReader reader) throws JsonException, ConversionException {
+        JsonElement element;
+        try {
+            element = new JsonParser().parse(reader);
+        } catch (JsonParseException e) {
+            throw new JsonException(e);
+        }
+        if (!element.isJsonObject()) {
+            throw new IllegalArgumentException("Expected a JSON object, got " + element);
+        }
+        DatabaseDocument<T> d = io.convert(new LocalDocument(element.toString()));
+        if (d.getID() != null) {
+            throw new IllegalArgumentException("New documents can not have an ID");
+        }
+        return d;
+    }
+
+    /**
+     * Appends the ID of every document in the batch to <code>ids</code>, and
+     * marks the inserted documents as touched by the stage if
+     * <code>release</code> is set.
+     *
+     * @return the number of inserted documents
+     */
+    private int insert(List<DatabaseDocument<T>> batch, StringBuilder ids, String stage, boolean release) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        Set<DocumentID<T>> inserted = io.insert(batch);
+        for (DatabaseDocument<T> d : batch) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            DocumentID<T> id = d.getID();
+            ids.append((id != null && inserted.contains(id)) ? id.toJSON() : "null");
+        }
+        if (release) {
+            for (DocumentID<T> id : inserted) {
+                if (!io.markTouched(id, stage)) {
+                    logger.error("Unable to release inserted document " + id + " from stage " + stage);
+                }
+            }
+        }
+        return inserted.size();
+    }
+
+    @Override
+    public boolean supports(HttpRequest request) {
+        return RESTTools.isPost(request)
+                && HttpEndpointConstants.INSERT_DOCUMENTS_URL.equals(RESTTools.getBaseUrl(request));
+    }
+
+    @Override
+    public String[] getSupportedUrls() {
+        return new String[] { HttpEndpointConstants.INSERT_DOCUMENTS_URL };
+    }
+}
@@ -0,0 +1,139 @@
+package com.findwise.hydra.net;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.local.HttpEndpointConstants;
+
+/**
+ * Works like {@link org.apache.http.nio.protocol.BasicAsyncRequestHandler},
+ * except that the wrapped handler may choose not to respond right away by
+ * calling {@link #defer(HttpContext)}. The handler then becomes responsible
+ * for submitting the response through the returned exchange at a later time,
+ * from any thread.
+ *
+ * If given an executor, requests are handled on its threads rather than on
+ * the I/O dispatcher threads, so that a slow database call only holds up
+ * the request making it. When the executor refuses more work, the request is
+ * answered with 503 Service Unavailable and a Retry-After header.
+ *
+ * A request body spooled to disk by {@link SpoolingRequestConsumer} is
+ * deleted as soon as the wrapped handler returns, so a handler that defers
+ * its response must have read the body by then.
+ */
+public class DeferrableRequestHandler implements HttpAsyncRequestHandler<HttpRequest> {
+    private static final String EXCHANGE_ATTRIBUTE = "hydra.exchange";
+    private static final String DEFERRED_ATTRIBUTE = "hydra.deferred";
+
+    private static Logger logger = LoggerFactory.getLogger(DeferrableRequestHandler.class);
+
+    public static final int DEFAULT_RETRY_AFTER = 1;
+
+    private final HttpRequestHandler handler;
+    private final Executor executor;
+    private final int retryAfter;
+
+    public DeferrableRequestHandler(HttpRequestHandler handler) {
+        this(handler, null, DEFAULT_RETRY_AFTER);
+    }
+
+    /**
+     * @param executor
+     *            the executor to handle requests on, or null to handle them
+     *            on the I/O dispatcher thread
+     * @param retryAfter
+     *            the number of seconds a client is asked to wait before
+     *            retrying a request that the executor rejected
+     */
+    public DeferrableRequestHandler(HttpRequestHandler handler, Executor executor, int retryAfter) {
+        this.handler = handler;
+        this.executor = executor;
+        this.retryAfter = retryAfter;
+    }
+
+    @Override
+    public HttpAsyncRequestConsumer<HttpRequest> processRequest(HttpRequest request, HttpContext context) {
+        if (RESTTools.isPost(request) && HttpEndpointConstants.RAW_FILE_URL.equals(RESTTools.getBaseUrl(request))) {
+            // Attachments can be very large, so they go to disk rather than memory
+            return new SpoolingRequestConsumer();
+        }
+        return new BasicAsyncRequestConsumer();
+    }
+
+    @Override
+    public void handle(final HttpRequest request, final HttpAsyncExchange httpExchange, final HttpContext context) throws HttpException, IOException {
+        if (executor == null) {
+            process(request, httpExchange, context);
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process(request, httpExchange, context);
+                    } catch (Exception e) {
+                        logger.error("Unhandled exception while handling " + request.getRequestLine(), e);
+                        HttpResponseWriter.printUnhandledException(httpExchange.getResponse(), e);
+                        submit(httpExchange);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            SpoolingRequestConsumer.discard(request);
+            HttpResponseWriter.printServiceUnavailable(httpExchange.getResponse(), retryAfter);
+            httpExchange.submitResponse();
+        }
+    }
+
+    private void process(HttpRequest request, HttpAsyncExchange httpExchange, HttpContext context) throws HttpException, IOException {
+        // The context lives as long as the connection, so clear out what the previous request left
+        context.removeAttribute(DEFERRED_ATTRIBUTE);
+        context.setAttribute(EXCHANGE_ATTRIBUTE, httpExchange);
+        try {
+            handler.handle(request, httpExchange.getResponse(), context);
+        } finally {
+            context.removeAttribute(EXCHANGE_ATTRIBUTE);
+            SpoolingRequestConsumer.discard(request);
+        }
+        if (context.getAttribute(DEFERRED_ATTRIBUTE) == null) {
+            submit(httpExchange);
+        }
+    }
+
+    static void submit(HttpAsyncExchange httpExchange) {
+        try {
+            httpExchange.submitResponse();
+        } catch (IllegalStateException e) {
+            logger.warn("Client went away before its response was ready");
+        }
+    }
+
+    /**
+     * Takes over the responsibility of responding to the request currently
+     * being handled.
+     *
+     * @return the exchange to submit the response through, or null if the
+     * request is not being served by a DeferrableRequestHandler, in which
+     * case the response must be written immediately.
+     */
+    public static HttpAsyncExchange defer(HttpContext context) {
+        HttpAsyncExchange exchange = (HttpAsyncExchange) context.getAttribute(EXCHANGE_ATTRIBUTE);
+        if (exchange != null) {
+            context.setAttribute(DEFERRED_ATTRIBUTE, Boolean.TRUE);
+        }
+        return exchange;
+    }
+}
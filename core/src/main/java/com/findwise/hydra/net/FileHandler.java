@@ -11,6 +11,7 @@ import java.util.Map;
 import com.findwise.hydra.local.HttpEndpointConstants;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.SerializationException;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
@@ -43,7 +44,13 @@ public class FileHandler<T extends DatabaseType> implements ResponsibleHandler {
     @Override
     public void handle(HttpRequest request, HttpResponse response, HttpContext context)
             throws HttpException, IOException {
-        if(RESTTools.isPost(request)) {
+        if(HttpEndpointConstants.RAW_FILE_URL.equals(RESTTools.getBaseUrl(request))) {
+            if(RESTTools.isPost(request)) {
+                handleSaveRawFile(request, response);
+            } else {
+                handleGetRawFile(request, response);
+            }
+        } else if(RESTTools.isPost(request)) {
             handleSaveFile(request, response);
         } else if (RESTTools.isGet(request)) {
             if(RESTTools.getParam(request, HttpEndpointConstants.FILENAME_PARAM)!=null) {
@@ -58,12 +65,15 @@ public class FileHandler<T extends DatabaseType> implements ResponsibleHandler {
 
     @Override
     public boolean supports(HttpRequest request) {
+        if (RESTTools.getBaseUrl(request).equals(HttpEndpointConstants.RAW_FILE_URL)) {
+            return RESTTools.isGet(request) || RESTTools.isPost(request);
+        }
         return (RESTTools.isGet(request) || RESTTools.isPost(request) || RESTTools.isDelete(request)) && RESTTools.getBaseUrl(request).equals(HttpEndpointConstants.FILE_URL);
     }
 
     @Override
     public String[] getSupportedUrls() {
-        return new String[] { HttpEndpointConstants.FILE_URL };
+        return new String[] { HttpEndpointConstants.FILE_URL, HttpEndpointConstants.RAW_FILE_URL };
     }
 
     private void handleSaveFile(HttpRequest request, HttpResponse response) {
@@ -111,6 +121,74 @@ public class FileHandler<T extends DatabaseType> implements ResponsibleHandler {
         HttpResponseWriter.printJson(response, df);
     }
 
+    private void handleGetRawFile(HttpRequest request, HttpResponse response) {
+        Triple triple = getTriple(request, response);
+        if(triple==null) {
+            return;
+        }
+
+        DatabaseDocument<T> md = io.getDocumentById(triple.docid);
+        if(md==null) {
+            HttpResponseWriter.printNoDocument(response);
+            return;
+        }
+
+        DocumentFile<T> df = io.getDocumentFile(md, triple.fileName);
+        if(df==null) {
+            HttpResponseWriter.printFileNotFound(response, triple.fileName);
+            return;
+        }
+
+        HttpResponseWriter.printFile(response, df);
+    }
+
+    /**
+     * Saves a file posted as raw bytes, with its metadata in headers. The body
+     * has been spooled to disk by {@link SpoolingRequestConsumer}, and is
+     * streamed from there into the database.
+     */
+    private void handleSaveRawFile(HttpRequest request, HttpResponse response) throws IOException {
+        InputStream is = ((HttpEntityEnclosingRequest) request).getEntity().getContent();
+        try {
+            Triple triple = getTriple(request, response);
+            if(triple==null) {
+                return;
+            }
+
+            DatabaseDocument<T> md = io.getDocumentById(triple.docid);
+            if (md == null) {
+                HttpResponseWriter.printNoDocument(response);
+                return;
+            }
+
+            Date uploadDate = null;
+            String date = getHeader(request, HttpEndpointConstants.UPLOAD_DATE_HEADER);
+            if (date != null) {
+                uploadDate = new Date(Long.parseLong(date));
+            }
+            DocumentFile<T> df = new DocumentFile<T>(triple.docid, triple.fileName, is, getHeader(request, HttpEndpointConstants.SAVED_BY_STAGE_HEADER), uploadDate);
+            String encoding = getHeader(request, HttpEndpointConstants.ENCODING_HEADER);
+            if (encoding != null) {
+                df.setEncoding(encoding);
+            }
+            df.setMimetype(getHeader(request, HttpEndpointConstants.MIMETYPE_HEADER));
+
+            io.write(df);
+
+            HttpResponseWriter.printOk(response);
+        } catch (Exception e) {
+            logger.error("An error occurred during file save", e);
+            HttpResponseWriter.printUnhandledException(response, e);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static String getHeader(HttpRequest request, String name) {
+        Header header = request.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
     private void handleGetFilenames(HttpRequest request, HttpResponse response) throws IOException {
         Tuple tuple = getTuple(request, response);
 
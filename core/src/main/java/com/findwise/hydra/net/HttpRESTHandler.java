@@ -15,6 +15,7 @@ import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.findwise.hydra.AsyncDocumentIO;
 import com.findwise.hydra.CachingDocumentNIO;
 import com.findwise.hydra.DatabaseConnector;
 import com.findwise.hydra.DatabaseType;
@@ -26,6 +27,7 @@ public class HttpRESTHandler<T extends DatabaseType> implements
     private Logger logger = LoggerFactory.getLogger(HttpRESTHandler.class);
 
     private CachingDocumentNIO<T> documentIO;
+    private AsyncDocumentIO<T> asyncIO;
     private PipelineReader pipelineReader;
 
     private boolean performanceLogging = false;
@@ -38,6 +40,8 @@ public class HttpRESTHandler<T extends DatabaseType> implements
 
     private ResponsibleHandler[] handlers;
 
+    private LongPollRegistry<T> longPollRegistry;
+
     private PingHandler pingHandler;
 
     private PingHandler getPingHandler() {
@@ -55,19 +59,34 @@ public class HttpRESTHandler<T extends DatabaseType> implements
     public HttpRESTHandler(CachingDocumentNIO<T> documentIO,
                            PipelineReader pipelineReader, List<String> allowedHosts,
                            boolean isPerformanceLogging) {
+        this(documentIO, null, pipelineReader, allowedHosts, isPerformanceLogging);
+    }
+
+    /**
+     * @param asyncIO if not null, documents are fetched and marked on its
+     * threads rather than on the thread handling the request
+     */
+    public HttpRESTHandler(CachingDocumentNIO<T> documentIO, AsyncDocumentIO<T> asyncIO,
+                           PipelineReader pipelineReader, List<String> allowedHosts,
+                           boolean isPerformanceLogging) {
         this.documentIO = documentIO;
+        this.asyncIO = asyncIO;
         this.pipelineReader = pipelineReader;
         this.setAllowedHosts(allowedHosts);
         this.performanceLogging = isPerformanceLogging;
     }
 
     private void createHandlers() {
+        longPollRegistry = new LongPollRegistry<T>(documentIO);
         handlers = new ResponsibleHandler[] { new FileHandler<T>(documentIO),
-                new PropertiesHandler<T>(pipelineReader),
-                new MarkHandler<T>(documentIO, performanceLogging),
-                new QueryHandler<T>(documentIO, performanceLogging),
+                new PropertiesHandler<T>(pipelineReader, documentIO),
+                new MarkHandler<T>(documentIO, asyncIO, performanceLogging),
+                new BatchMarkHandler<T>(documentIO, performanceLogging),
+                new QueryHandler<T>(documentIO, longPollRegistry, asyncIO, performanceLogging),
+                new BatchQueryHandler<T>(documentIO, performanceLogging),
                 new ReleaseHandler<T>(documentIO),
-                new WriteHandler<T>(documentIO, performanceLogging) };
+                new WriteHandler<T>(documentIO, performanceLogging),
+                new BulkInsertHandler<T>(documentIO, performanceLogging) };
     }
 
     private ResponsibleHandler[] getHandlers() {
@@ -77,6 +96,16 @@ public class HttpRESTHandler<T extends DatabaseType> implements
         return handlers;
     }
 
+    /**
+     * Answers the requests still waiting for a document, and stops waiting
+     * for more.
+     */
+    public void shutdown() {
+        if (longPollRegistry != null) {
+            longPollRegistry.shutdown();
+        }
+    }
+
     public void setRestId(String restId) {
         getPingHandler().setServerId(restId);
     }
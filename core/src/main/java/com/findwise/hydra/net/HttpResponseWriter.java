@@ -1,15 +1,28 @@
 package com.findwise.hydra.net;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.nio.entity.NByteArrayEntity;
 import org.apache.http.nio.entity.NStringEntity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.findwise.hydra.Document;
+import com.findwise.hydra.DocumentFile;
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.local.HttpEndpointConstants;
+import com.findwise.hydra.local.LocalDocument;
 
 /**
  * This class provides methods for writing output to a HttpResponse.
@@ -21,16 +34,111 @@ public final class HttpResponseWriter {
 
     private HttpResponseWriter() {} // Should not be possible to instantiate
 
-    public static final ContentType CONTENT_TYPE = ContentType.create("application/json", "UTF-8");
+    public static final ContentType CONTENT_TYPE = ContentType.create(HttpEndpointConstants.JSON_CONTENT_TYPE, "UTF-8");
+    public static final ContentType BSON_CONTENT_TYPE = ContentType.create(HttpEndpointConstants.BSON_CONTENT_TYPE);
 
     private static void setStringEntity(HttpResponse response, String content) {
         response.setEntity(new NStringEntity(content, CONTENT_TYPE));
     }
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Serializes documents straight into the UTF-8 bytes of the response
+     * entity, so that the Json text is never held as a String.
+     */
+    private static void setDocumentsEntity(HttpResponse response, Collection<? extends Document<?>> docs, boolean asArray) {
+        ResponseBuffer buffer = new ResponseBuffer();
+        Writer writer = new OutputStreamWriter(buffer, UTF8);
+        try {
+            if (asArray) {
+                writer.write('[');
+            }
+            boolean first = true;
+            for (Document<?> d : docs) {
+                if (!first) {
+                    writer.write(',');
+                }
+                toLocalDocument(d).toJson(writer);
+                first = false;
+            }
+            if (asArray) {
+                writer.write(']');
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // Writing to memory, this can not happen
+            throw new IllegalStateException(e);
+        }
+        response.setEntity(buffer.toEntity());
+    }
+
+    private static void setBsonEntity(HttpResponse response, Collection<? extends Document<?>> docs) {
+        ResponseBuffer buffer = new ResponseBuffer();
+        for (Document<?> d : docs) {
+            byte[] b = toLocalDocument(d).toBson();
+            buffer.write(b, 0, b.length);
+        }
+        response.setEntity(buffer.toEntity(BSON_CONTENT_TYPE));
+    }
+
+    private static LocalDocument toLocalDocument(Document<?> d) {
+        if (d instanceof LocalDocument) {
+            return (LocalDocument) d;
+        }
+        LocalDocument ld = new LocalDocument();
+        ld.putAll(d);
+        return ld;
+    }
+
+    /**
+     * A ByteArrayOutputStream that hands its buffer to the entity as is,
+     * instead of copying it.
+     */
+    private static class ResponseBuffer extends ByteArrayOutputStream {
+        ResponseBuffer() {
+            super(8 * 1024);
+        }
+
+        NByteArrayEntity toEntity() {
+            return toEntity(CONTENT_TYPE);
+        }
+
+        NByteArrayEntity toEntity(ContentType contentType) {
+            return new NByteArrayEntity(buf, 0, count, contentType);
+        }
+    }
+
     protected static void printDocument(HttpResponse response, Document<?> d, String stage) {
+        printDocument(response, d, stage, false);
+    }
+
+    protected static void printDocument(HttpResponse response, Document<?> d, String stage, boolean bson) {
         logger.debug("Printing document with ID " + d.getID() + " to stage " + stage);
         response.setStatusCode(HttpStatus.SC_OK);
-        setStringEntity(response, d.toJson());
+        if (bson) {
+            setBsonEntity(response, Collections.singletonList(d));
+        } else {
+            setDocumentsEntity(response, Collections.singletonList(d), false);
+        }
+    }
+
+    protected static void printDocuments(HttpResponse response, Collection<? extends Document<?>> docs, String stage) {
+        printDocuments(response, docs, stage, false);
+    }
+
+    /**
+     * Prints the documents as a Json array or, if bson is set, as BSON
+     * documents written back to back.
+     */
+    protected static void printDocuments(HttpResponse response, Collection<? extends Document<?>> docs, String stage, boolean bson) {
+        logger.debug("Printing " + docs.size() + " documents to stage " + stage);
+        response.setStatusCode(HttpStatus.SC_OK);
+        if (bson) {
+            setBsonEntity(response, docs);
+        } else {
+            setDocumentsEntity(response, docs, true);
+        }
     }
 
     protected static void printDocumentReleased(HttpResponse response) {
@@ -114,6 +222,37 @@ public final class HttpResponseWriter {
         setStringEntity(response, d.contentFieldsToJson(null));
     }
 
+    /**
+     * @param ids the Json of the new IDs, comma-separated
+     */
+    protected static void printBulkInsertResult(HttpResponse response, int inserted, int failed, CharSequence ids) {
+        logger.debug("Inserted " + inserted + " documents, " + failed + " failed");
+        response.setStatusCode(HttpStatus.SC_OK);
+        StringBuilder sb = new StringBuilder(ids.length() + 64);
+        sb.append("{\"").append(HttpEndpointConstants.INSERTED_KEY).append("\":").append(inserted);
+        sb.append(",\"").append(HttpEndpointConstants.FAILED_KEY).append("\":").append(failed);
+        sb.append(",\"").append(HttpEndpointConstants.IDS_KEY).append("\":[").append(ids).append("]}");
+        setStringEntity(response, sb.toString());
+    }
+
+    /**
+     * Like {@link #printBulkInsertResult(HttpResponse, int, int, CharSequence)},
+     * for a request that was cut short by a document that could not be read.
+     * The documents before <code>position</code> were handled, and none after
+     * it.
+     */
+    protected static void printPartialBulkInsertResult(HttpResponse response, int inserted, int failed, CharSequence ids, int position, String error) {
+        logger.debug("Inserted " + inserted + " documents, " + failed + " failed, stopped at document " + position);
+        response.setStatusCode(HttpStatus.SC_OK);
+        StringBuilder sb = new StringBuilder(ids.length() + 128);
+        sb.append("{\"").append(HttpEndpointConstants.INSERTED_KEY).append("\":").append(inserted);
+        sb.append(",\"").append(HttpEndpointConstants.FAILED_KEY).append("\":").append(failed);
+        sb.append(",\"").append(HttpEndpointConstants.IDS_KEY).append("\":[").append(ids).append("]");
+        sb.append(",\"").append(HttpEndpointConstants.POSITION_KEY).append("\":").append(position);
+        sb.append(",\"").append(HttpEndpointConstants.ERROR_KEY).append("\":").append(SerializationUtils.toJson(error)).append("}");
+        setStringEntity(response, sb.toString());
+    }
+
     protected static void printInsertFailed(HttpResponse response) {
         logger.error("Failed to insert the document");
         response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
@@ -132,6 +271,13 @@ public final class HttpResponseWriter {
         setStringEntity(response, "An internal server error occurred with the message " + e.getMessage());
     }
 
+    protected static void printServiceUnavailable(HttpResponse response, int retryAfter) {
+        logger.warn("Too many requests queued, asking the client to retry in " + retryAfter + " seconds");
+        response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", String.valueOf(retryAfter));
+        setStringEntity(response, "The core is busy, retry in " + retryAfter + " seconds");
+    }
+
     protected static void printBadRequestContent(HttpResponse response) {
         logger.error("Printing Bad Request Content");
         response.setStatusCode(HttpStatus.SC_UNPROCESSABLE_ENTITY);
@@ -144,6 +290,32 @@ public final class HttpResponseWriter {
         setStringEntity(response, SerializationUtils.toJson(o));
     }
 
+    /**
+     * Streams the contents of a file as raw bytes, with the rest of the file
+     * metadata in headers. The stream is read in chunks as the connection
+     * accepts more data, and is never held in memory as a whole.
+     */
+    protected static void printFile(HttpResponse response, DocumentFile<?> df) {
+        logger.debug("Streaming file " + df.getFileName());
+        response.setStatusCode(HttpStatus.SC_OK);
+        if (df.getUploadDate() != null) {
+            response.setHeader(HttpEndpointConstants.UPLOAD_DATE_HEADER, String.valueOf(df.getUploadDate().getTime()));
+        }
+        if (df.getEncoding() != null) {
+            response.setHeader(HttpEndpointConstants.ENCODING_HEADER, df.getEncoding());
+        }
+        if (df.getMimetype() != null) {
+            response.setHeader(HttpEndpointConstants.MIMETYPE_HEADER, df.getMimetype());
+        }
+        if (df.getSavedByStage() != null) {
+            response.setHeader(HttpEndpointConstants.SAVED_BY_STAGE_HEADER, df.getSavedByStage());
+        }
+        InputStreamEntity entity = new InputStreamEntity(df.getStream(), -1);
+        entity.setContentType(HttpEndpointConstants.BINARY_CONTENT_TYPE);
+        entity.setChunked(true);
+        response.setEntity(entity);
+    }
+
     protected static void printID(HttpResponse response, String uuid) {
         logger.info("Got ID ping!");
         response.setStatusCode(HttpStatus.SC_OK);
@@ -0,0 +1,279 @@
+package com.findwise.hydra.net;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.DatabaseQuery;
+import com.findwise.hydra.DatabaseType;
+import com.findwise.hydra.Document;
+import com.findwise.hydra.DocumentID;
+import com.findwise.hydra.DocumentListener;
+
+/**
+ * Keeps track of getDocument requests that found no document, but asked to
+ * wait for one. Whenever a document is inserted, updated or released, the
+ * changed document and the cache are checked against the waiting queries,
+ * and only the queries that something matches are retried against the
+ * database. Requests that are still waiting when their time is up get the
+ * same "no document" response they would have had without waiting.
+ *
+ * All matching is done on a single background thread, so that the threads
+ * making changes to documents are never held up by waiting stages.
+ */
+public class LongPollRegistry<T extends DatabaseType> implements DocumentListener<T> {
+    private static Logger logger = LoggerFactory.getLogger(LongPollRegistry.class);
+
+    /**
+     * How often waiting queries are retried even if no change has been
+     * signalled, to pick up documents that changed outside of this core.
+     */
+    public static final long RECHECK_INTERVAL = 5000;
+    private static final long TICK = 100;
+    /**
+     * The most changed documents read in a single pass. With more changes
+     * than that, it is cheaper to retry each waiting stage once.
+     */
+    private static final int MAX_CHANGED_DOCUMENTS = 100;
+
+    private final CachingDocumentNIO<T> io;
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+    private final Object signal = new Object();
+    private boolean changed = false;
+    /** Documents changed since the last pass */
+    private Set<DocumentID<T>> changedIds = new HashSet<DocumentID<T>>();
+    /** Whether something changed that the changed documents do not cover */
+    private boolean unknown = false;
+
+    private Matcher matcher;
+
+    public LongPollRegistry(CachingDocumentNIO<T> io) {
+        this.io = io;
+        io.addDocumentListener(this);
+    }
+
+    /**
+     * Parks a request until a document matching the query can be handed to
+     * the stage, or until timeout milliseconds have passed.
+     */
+    public void await(String stage, DatabaseQuery<T> query, HttpAsyncExchange exchange, long timeout) {
+        await(stage, query, exchange, timeout, false);
+    }
+
+    /**
+     * @param bson whether the document should be sent as BSON rather than Json
+     */
+    public void await(String stage, DatabaseQuery<T> query, HttpAsyncExchange exchange, long timeout, boolean bson) {
+        final Waiter waiter = new Waiter(stage, query, exchange, System.currentTimeMillis() + timeout, bson);
+        exchange.setCallback(new Cancellable() {
+            @Override
+            public boolean cancel() {
+                waiter.cancelled = true;
+                return true;
+            }
+        });
+        waiters.add(waiter);
+        startMatcher();
+        // The new waiter is retried once, to catch anything that showed up
+        // between the caller's own query and now
+        synchronized (signal) {
+            changed = true;
+            signal.notifyAll();
+        }
+    }
+
+    public int getWaitingCount() {
+        return waiters.size();
+    }
+
+    @Override
+    public void documentChanged(DocumentID<T> id) {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        synchronized (signal) {
+            if (id == null || changedIds.size() >= MAX_CHANGED_DOCUMENTS) {
+                unknown = true;
+            } else {
+                changedIds.add(id);
+            }
+            changed = true;
+            signal.notifyAll();
+        }
+    }
+
+    private synchronized void startMatcher() {
+        if (matcher == null) {
+            matcher = new Matcher();
+            matcher.start();
+        }
+    }
+
+    /**
+     * Stops matching, and answers all waiting requests with "no document".
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (matcher != null) {
+                matcher.interrupt();
+                try {
+                    matcher.join(RECHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                matcher = null;
+            }
+        }
+        io.removeDocumentListener(this);
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+            Waiter w = it.next();
+            it.remove();
+            if (!w.cancelled && !w.exchange.isCompleted()) {
+                HttpResponseWriter.printNoDocument(w.exchange.getResponse());
+                submit(w);
+            }
+        }
+    }
+
+    /**
+     * Hands out documents to waiting requests in the order they arrived, and
+     * times out those that have waited long enough. A stage that gets no
+     * document is not queried again during the same pass.
+     *
+     * @param recheck
+     *            whether to retry every waiting query, rather than only those
+     *            matched by a changed or cached document
+     * @param changedDocs
+     *            the documents changed since the last pass, or null if
+     *            nothing was signalled
+     */
+    private void match(boolean recheck, List<DatabaseDocument<T>> changedDocs) {
+        long now = System.currentTimeMillis();
+        Set<String> exhausted = new HashSet<String>();
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+            Waiter w = it.next();
+            if (w.cancelled || w.exchange.isCompleted()) {
+                it.remove();
+                continue;
+            }
+            boolean query = recheck || w.fresh
+                    || (changedDocs != null && (matchesAny(w.query, changedDocs) || io.isCached(w.query)));
+            w.fresh = false;
+            if (query && !exhausted.contains(w.stage)) {
+                Document<T> d = io.getAndTag(w.query, w.stage);
+                if (d != null) {
+                    it.remove();
+                    HttpResponseWriter.printDocument(w.exchange.getResponse(), d, w.stage, w.bson);
+                    submit(w);
+                    continue;
+                }
+                exhausted.add(w.stage);
+            }
+            if (now >= w.deadline) {
+                it.remove();
+                HttpResponseWriter.printNoDocument(w.exchange.getResponse());
+                submit(w);
+            }
+        }
+    }
+
+    private static <T extends DatabaseType> boolean matchesAny(DatabaseQuery<T> query, List<DatabaseDocument<T>> docs) {
+        for (DatabaseDocument<T> d : docs) {
+            if (d.matches(query)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return those of the changed documents that are still active
+     */
+    private List<DatabaseDocument<T>> read(Set<DocumentID<T>> ids) {
+        List<DatabaseDocument<T>> docs = new ArrayList<DatabaseDocument<T>>(ids.size());
+        for (DocumentID<T> id : ids) {
+            DatabaseDocument<T> d = io.peekDocumentById(id);
+            if (d != null) {
+                docs.add(d);
+            }
+        }
+        return docs;
+    }
+
+    private void submit(Waiter w) {
+        try {
+            w.exchange.submitResponse();
+        } catch (IllegalStateException e) {
+            logger.warn("Stage " + w.stage + " went away while waiting for a document");
+        }
+    }
+
+    private class Waiter {
+        private final String stage;
+        private final DatabaseQuery<T> query;
+        private final HttpAsyncExchange exchange;
+        private final long deadline;
+        private final boolean bson;
+        private volatile boolean cancelled = false;
+        /** Whether the waiter is yet to be retried for the first time */
+        private boolean fresh = true;
+
+        Waiter(String stage, DatabaseQuery<T> query, HttpAsyncExchange exchange, long deadline, boolean bson) {
+            this.stage = stage;
+            this.query = query;
+            this.exchange = exchange;
+            this.deadline = deadline;
+            this.bson = bson;
+        }
+    }
+
+    private class Matcher extends Thread {
+        Matcher() {
+            setDaemon(true);
+            setName("long-poll-matcher");
+        }
+
+        public void run() {
+            long lastCheck = System.currentTimeMillis();
+            while (!isInterrupted()) {
+                try {
+                    boolean signalled;
+                    boolean recheck;
+                    Set<DocumentID<T>> ids;
+                    synchronized (signal) {
+                        if (!changed) {
+                            signal.wait(TICK);
+                        }
+                        signalled = changed;
+                        recheck = unknown;
+                        ids = changedIds;
+                        changed = false;
+                        unknown = false;
+                        changedIds = new HashSet<DocumentID<T>>();
+                    }
+                    if (System.currentTimeMillis() - lastCheck >= RECHECK_INTERVAL) {
+                        recheck = true;
+                    }
+                    if (recheck) {
+                        lastCheck = System.currentTimeMillis();
+                    }
+                    match(recheck, (signalled && !recheck) ? read(ids) : null);
+                } catch (InterruptedException e) {
+                    interrupt();
+                } catch (RuntimeException e) {
+                    logger.error("Caught an exception while matching waiting queries", e);
+                }
+            }
+        }
+    }
+}
@@ -1,24 +1,24 @@
 package com.findwise.hydra.net;
 
 import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.findwise.hydra.local.HttpEndpointConstants;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.findwise.hydra.AsyncDocumentIO;
 import com.findwise.hydra.CachingDocumentNIO;
 import com.findwise.hydra.DatabaseConnector.ConversionException;
 import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.DatabaseType;
+import com.findwise.hydra.Document;
 import com.findwise.hydra.JsonException;
-import com.findwise.hydra.local.LocalDocument;
 
 public class MarkHandler<T extends DatabaseType> implements ResponsibleHandler {
     private enum Mark {
@@ -28,10 +28,20 @@ public class MarkHandler<T extends DatabaseType> implements ResponsibleHandler {
     private static Logger logger = LoggerFactory.getLogger(MarkHandler.class);
 
     private CachingDocumentNIO<T> io;
+    private AsyncDocumentIO<T> async;
     private boolean performanceLogging = false;
 
     public MarkHandler(CachingDocumentNIO<T> io, boolean performanceLogging) {
+        this(io, null, performanceLogging);
+    }
+
+    /**
+     * @param async if not null, documents are marked on its threads, and the
+     * request is answered once the document is marked.
+     */
+    public MarkHandler(CachingDocumentNIO<T> io, AsyncDocumentIO<T> async, boolean performanceLogging) {
         this.io = io;
+        this.async = async;
         this.performanceLogging = performanceLogging;
     }
 
@@ -39,9 +49,6 @@ public class MarkHandler<T extends DatabaseType> implements ResponsibleHandler {
     public void handle(HttpRequest request, HttpResponse response,
                        HttpContext context) throws HttpException, IOException {
         long start = System.currentTimeMillis();
-        HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request)
-                .getEntity();
-        String requestContent = EntityUtils.toString(requestEntity);
         long tostring = System.currentTimeMillis();
         String stage = RESTTools.getParam(request, HttpEndpointConstants.STAGE_PARAM);
         if (stage == null) {
@@ -51,17 +58,25 @@ public class MarkHandler<T extends DatabaseType> implements ResponsibleHandler {
 
         DatabaseDocument<T> md;
         try {
-            md = io.convert(new LocalDocument(requestContent));
+            md = io.convert(RESTTools.getDocument(request));
         } catch (JsonException e) {
             HttpResponseWriter.printJsonException(response, e);
             return;
         } catch (ConversionException e) {
-            logger.error("Caught Exception when trying to convert "+requestContent, e);
+            logger.error("Caught Exception when trying to convert the posted document", e);
             HttpResponseWriter.printBadRequestContent(response);
             return;
         }
         long convert = System.currentTimeMillis();
 
+        if (async != null) {
+            HttpAsyncExchange exchange = DeferrableRequestHandler.defer(context);
+            if (exchange != null) {
+                markAsync(exchange, md, stage, getMark(request), start, tostring, convert);
+                return;
+            }
+        }
+
         DatabaseDocument<T> dbdoc = io.getDocumentById(md.getID());
         long query = System.currentTimeMillis();
         if(dbdoc==null) {
@@ -82,6 +97,38 @@ public class MarkHandler<T extends DatabaseType> implements ResponsibleHandler {
         }
     }
 
+    private void markAsync(final HttpAsyncExchange exchange, final DatabaseDocument<T> md, final String stage,
+                           final Mark mark, final long start, final long tostring, final long convert) {
+        try {
+            async.mark(md, stage, Document.Status.valueOf(mark.name()), new AsyncDocumentIO.Callback<Boolean>() {
+                @Override
+                public void completed(Boolean marked) {
+                    if (marked) {
+                        HttpResponseWriter.printSaveOk(exchange.getResponse(), md.getID());
+                    } else {
+                        HttpResponseWriter.printNoDocument(exchange.getResponse());
+                    }
+                    DeferrableRequestHandler.submit(exchange);
+
+                    if (performanceLogging) {
+                        long end = System.currentTimeMillis();
+                        logger.info(String.format("type=performance event=processed stage_name=%s doc_id=%s start=%d end=%d total=%d entitystring=%d parse=%d mark=%d", stage, md.getID(), start, end, end-start, tostring-start, convert-tostring, end-convert));
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    logger.error("Unable to mark document " + md.getID() + " as " + mark, e);
+                    HttpResponseWriter.printUnhandledException(exchange.getResponse(), e);
+                    DeferrableRequestHandler.submit(exchange);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            HttpResponseWriter.printServiceUnavailable(exchange.getResponse(), DeferrableRequestHandler.DEFAULT_RETRY_AFTER);
+            DeferrableRequestHandler.submit(exchange);
+        }
+    }
+
     private Mark getMark(HttpRequest request) {
         String uri = RESTTools.getBaseUrl(request);
         if (uri.equals(HttpEndpointConstants.PROCESSED_DOCUMENT_URL)) {
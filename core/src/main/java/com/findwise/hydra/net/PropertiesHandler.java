@@ -14,6 +14,7 @@ import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.findwise.hydra.CachingDocumentNIO;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.Pipeline;
 import com.findwise.hydra.PipelineReader;
@@ -22,10 +23,23 @@ import com.findwise.hydra.stage.GroupStarter;
 public class PropertiesHandler<T extends DatabaseType> implements ResponsibleHandler {
     Logger logger = LoggerFactory.getLogger(PropertiesHandler.class);
 
+    public static final String CORE_NODES_PROPERTY = "coreNodes";
+
     private PipelineReader reader;
+    private CachingDocumentNIO<T> documentIO;
 
     public PropertiesHandler(PipelineReader reader) {
+        this(reader, null);
+    }
+
+    /**
+     * @param documentIO
+     *            if sharded, the cores sharing the database are passed to
+     *            every stage in the {@value #CORE_NODES_PROPERTY} property
+     */
+    public PropertiesHandler(PipelineReader reader, CachingDocumentNIO<T> documentIO) {
         this.reader = reader;
+        this.documentIO = documentIO;
     }
 
     @Override
@@ -79,6 +93,11 @@ public class PropertiesHandler<T extends DatabaseType> implements ResponsibleHan
             map = reader.getDebugPipeline().getStage(stage).getProperties();
         }
 
+        if(documentIO != null && documentIO.getShardRing() != null) {
+            map = new HashMap<String, Object>(map);
+            map.put(CORE_NODES_PROPERTY, documentIO.getShardRing().getNodes());
+        }
+
         HttpResponseWriter.printJson(response, map);
     }
 
@@ -1,46 +1,69 @@
 package com.findwise.hydra.net;
 
 import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.findwise.hydra.local.HttpEndpointConstants;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpEntityEnclosingRequest;
+import com.findwise.hydra.local.LocalQuery;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.findwise.hydra.AsyncDocumentIO;
 import com.findwise.hydra.CachingDocumentNIO;
 import com.findwise.hydra.DatabaseQuery;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.StageManager;
-import com.findwise.hydra.local.LocalQuery;
 import com.findwise.hydra.net.RESTTools.Method;
 
 public class QueryHandler<T extends DatabaseType> implements ResponsibleHandler {
 
+    /**
+     * The longest time (in milliseconds) a request may ask to wait for a document.
+     */
+    public static final long MAX_WAIT = 60000;
+
     private CachingDocumentNIO<T> io;
+    private LongPollRegistry<T> longPollRegistry;
+    private AsyncDocumentIO<T> async;
     private boolean performanceLogging = false;
 
     private static Logger logger = LoggerFactory.getLogger(QueryHandler.class);
 
     public QueryHandler(CachingDocumentNIO<T> dbc, boolean performanceLogging) {
+        this(dbc, null, performanceLogging);
+    }
+
+    /**
+     * @param longPollRegistry where requests that want to wait for a document
+     * are parked. If null, requests never wait.
+     */
+    public QueryHandler(CachingDocumentNIO<T> dbc, LongPollRegistry<T> longPollRegistry, boolean performanceLogging) {
+        this(dbc, longPollRegistry, null, performanceLogging);
+    }
+
+    /**
+     * @param async if not null, the database is queried on its threads, and
+     * the request is answered once the query is done.
+     */
+    public QueryHandler(CachingDocumentNIO<T> dbc, LongPollRegistry<T> longPollRegistry, AsyncDocumentIO<T> async, boolean performanceLogging) {
         this.io = dbc;
+        this.longPollRegistry = longPollRegistry;
+        this.async = async;
         this.performanceLogging = performanceLogging;
     }
 
     @Override
     public void handle(HttpRequest request, HttpResponse response,
-                       HttpContext arg2) throws HttpException, IOException {
+                       HttpContext context) throws HttpException, IOException {
         long start = System.currentTimeMillis();
         logger.trace("handleGetDocument()");
-        HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
-        String requestContent = EntityUtils.toString(requestEntity);
         long tostring = System.currentTimeMillis();
         String stage = RESTTools.getParam(request, HttpEndpointConstants.STAGE_PARAM);
 
@@ -52,7 +75,9 @@ public class QueryHandler<T extends DatabaseType> implements ResponsibleHandler
 
         DatabaseQuery<T> dbq;
         try {
-            dbq = requestToQuery(requestContent);
+            LocalQuery localQuery = RESTTools.getQuery(request);
+            io.registerQuery(stage, localQuery);
+            dbq = io.convert(localQuery);
         } catch (JsonException e) {
             HttpResponseWriter.printJsonException(response, e);
             return;
@@ -62,14 +87,21 @@ public class QueryHandler<T extends DatabaseType> implements ResponsibleHandler
 
         reportQuery(stage);
 
+        if (async != null) {
+            HttpAsyncExchange exchange = DeferrableRequestHandler.defer(context);
+            if (exchange != null) {
+                queryAsync(request, exchange, stage, dbq, start, tostring, parse);
+                return;
+            }
+        }
 
         Document<T> d = io.getAndTag(dbq, stage);
 
         long query = System.currentTimeMillis();
 
         if (d != null) {
-            HttpResponseWriter.printDocument(response, d, stage);
-        } else {
+            HttpResponseWriter.printDocument(response, d, stage, RESTTools.acceptsBson(request));
+        } else if (!awaitDocument(request, context, stage, dbq)) {
             HttpResponseWriter.printNoDocument(response);
         }
 
@@ -80,9 +112,79 @@ public class QueryHandler<T extends DatabaseType> implements ResponsibleHandler
         }
     }
 
-    private DatabaseQuery<T> requestToQuery(String requestContent)
-            throws JsonException {
-        return io.convert(new LocalQuery(requestContent));
+    private void queryAsync(final HttpRequest request, final HttpAsyncExchange exchange, final String stage,
+                            final DatabaseQuery<T> dbq, final long start, final long tostring, final long parse) {
+        final boolean bson = RESTTools.acceptsBson(request);
+        try {
+            async.getAndTag(dbq, stage, new AsyncDocumentIO.Callback<Document<T>>() {
+                @Override
+                public void completed(Document<T> d) {
+                    long query = System.currentTimeMillis();
+                    if (d != null) {
+                        HttpResponseWriter.printDocument(exchange.getResponse(), d, stage, bson);
+                    } else {
+                        long wait = getWait(request);
+                        if (longPollRegistry != null && wait > 0) {
+                            longPollRegistry.await(stage, dbq, exchange, wait, bson);
+                            return;
+                        }
+                        HttpResponseWriter.printNoDocument(exchange.getResponse());
+                    }
+                    DeferrableRequestHandler.submit(exchange);
+
+                    if (performanceLogging) {
+                        long serialize = System.currentTimeMillis();
+                        Object id = d != null ? d.getID() : null;
+                        logger.info(String.format("type=performance event=query stage_name=%s doc_id=\"%s\" start=%d end=%d total=%d entitystring=%d parse=%d query=%d serialize=%d", stage, id, start, serialize, serialize-start, tostring-start, parse-tostring, query-parse, serialize-query));
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    logger.error("Unable to query for stage " + stage, e);
+                    HttpResponseWriter.printUnhandledException(exchange.getResponse(), e);
+                    DeferrableRequestHandler.submit(exchange);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            HttpResponseWriter.printServiceUnavailable(exchange.getResponse(), DeferrableRequestHandler.DEFAULT_RETRY_AFTER);
+            DeferrableRequestHandler.submit(exchange);
+        }
+    }
+
+    /**
+     * Parks the request in the long-poll registry, if the caller asked to wait
+     * and the request can be answered asynchronously.
+     *
+     * @return true if the request was parked, and will be answered later
+     */
+    private boolean awaitDocument(HttpRequest request, HttpContext context, String stage, DatabaseQuery<T> dbq) {
+        if (longPollRegistry == null) {
+            return false;
+        }
+        long wait = getWait(request);
+        if (wait <= 0) {
+            return false;
+        }
+        HttpAsyncExchange exchange = DeferrableRequestHandler.defer(context);
+        if (exchange == null) {
+            return false;
+        }
+        longPollRegistry.await(stage, dbq, exchange, wait, RESTTools.acceptsBson(request));
+        return true;
+    }
+
+    private long getWait(HttpRequest request) {
+        String wait = RESTTools.getParam(request, HttpEndpointConstants.WAIT_PARAM);
+        if (wait == null) {
+            return 0;
+        }
+        try {
+            return Math.min(Long.parseLong(wait), MAX_WAIT);
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring malformed " + HttpEndpointConstants.WAIT_PARAM + " parameter: " + wait);
+            return 0;
+        }
     }
 
     @Override
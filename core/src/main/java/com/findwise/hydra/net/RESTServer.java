@@ -3,6 +3,11 @@ package com.findwise.hydra.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
@@ -12,9 +17,9 @@ import org.apache.http.impl.nio.DefaultHttpServerIODispatch;
 import org.apache.http.impl.nio.DefaultNHttpServerConnection;
 import org.apache.http.impl.nio.DefaultNHttpServerConnectionFactory;
 import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.nio.NHttpConnectionFactory;
 import org.apache.http.nio.NHttpServerConnection;
-import org.apache.http.nio.protocol.BasicAsyncRequestHandler;
 import org.apache.http.nio.protocol.HttpAsyncRequestHandlerRegistry;
 import org.apache.http.nio.protocol.HttpAsyncService;
 import org.apache.http.nio.reactor.IOEventDispatch;
@@ -48,8 +53,18 @@ public class RESTServer extends Thread {
 
     private DefaultListeningIOReactor ioReactor;
 
-    private static final int BUFFER_SIZE = 8 * 1024; // Consider increasing this
-    // for performance?
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    public static final int DEFAULT_IO_DISPATCHERS = 2;
+    public static final int DEFAULT_WORKER_THREADS = 16;
+    public static final int DEFAULT_WORKER_QUEUE_SIZE = 1000;
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int ioDispatchers = DEFAULT_IO_DISPATCHERS;
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+    private int workerQueueSize = DEFAULT_WORKER_QUEUE_SIZE;
+    private int retryAfter = DeferrableRequestHandler.DEFAULT_RETRY_AFTER;
+
+    private volatile ThreadPoolExecutor workers;
 
     private boolean shutdownCalled = false;
     private boolean executing = false;
@@ -71,6 +86,74 @@ public class RESTServer extends Thread {
     @SuppressWarnings("rawtypes")
     public RESTServer(CoreConfiguration conf, HttpRESTHandler requestHandler) {
         this(conf.getRestPort(), requestHandler);
+        setBufferSize(conf.getRestBufferSize());
+        setIoDispatchers(conf.getRestIoDispatchers());
+        setWorkerThreads(conf.getRestWorkerThreads());
+        setWorkerQueueSize(conf.getRestWorkerQueueSize());
+        setRetryAfter(conf.getRestRetryAfter());
+    }
+
+    /**
+     * Sets the size of the socket buffers. Must be called before the server
+     * is started.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the number of threads doing network I/O. Must be called before
+     * the server is started.
+     */
+    public void setIoDispatchers(int ioDispatchers) {
+        this.ioDispatchers = ioDispatchers;
+    }
+
+    public int getIoDispatchers() {
+        return ioDispatchers;
+    }
+
+    /**
+     * Sets the number of threads handling requests. If 0, requests are
+     * handled on the I/O dispatcher threads, and any slow request holds up
+     * all other connections on the same dispatcher. Must be called before
+     * the server is started.
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Sets the number of requests that may wait for a worker thread. Further
+     * requests are answered with 503 Service Unavailable. Must be called
+     * before the server is started.
+     */
+    public void setWorkerQueueSize(int workerQueueSize) {
+        this.workerQueueSize = workerQueueSize;
+    }
+
+    public int getWorkerQueueSize() {
+        return workerQueueSize;
+    }
+
+    /**
+     * Sets the number of seconds a client is asked to wait before retrying a
+     * request that was turned away because the worker queue was full.
+     */
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
     }
 
     public boolean isExecuting() {
@@ -125,6 +208,9 @@ public class RESTServer extends Thread {
             catch (IOException e) {
                 logger.error("An IOException occurred during ping operation", e);
             }
+            finally {
+                conn.shutdown();
+            }
         }
         Thread.sleep(50);
         return isWorking(startTime, timeout);
@@ -134,7 +220,7 @@ public class RESTServer extends Thread {
     public void run() {
         try {
             HttpParams params = new SyncBasicHttpParams();
-            params.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, BUFFER_SIZE)
+            params.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, bufferSize)
                     .setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false)
                     .setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true)
                     .setParameter(CoreProtocolPNames.ORIGIN_SERVER, "Hydra Core (Apache HttpComponents 4.2.1/1.1)");
@@ -147,7 +233,11 @@ public class RESTServer extends Thread {
             });
 
             HttpAsyncRequestHandlerRegistry registry = new HttpAsyncRequestHandlerRegistry();
-            registry.register("*", new BasicAsyncRequestHandler(requestHandler));
+            if (workerThreads > 0) {
+                workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(Math.max(1, workerQueueSize)), new WorkerThreadFactory());
+            }
+            registry.register("*", new DeferrableRequestHandler(requestHandler, workers, retryAfter));
 
             HttpAsyncService handler = new HttpAsyncService(httpproc, new DefaultConnectionReuseStrategy(), registry, params) {
                 @Override
@@ -168,7 +258,9 @@ public class RESTServer extends Thread {
 
             IOEventDispatch ioEventDispatch = new DefaultHttpServerIODispatch(handler, connFactory);
 
-            ioReactor = new DefaultListeningIOReactor();
+            IOReactorConfig config = new IOReactorConfig();
+            config.setIoThreadCount(Math.max(1, ioDispatchers));
+            ioReactor = new DefaultListeningIOReactor(config);
 
             ioReactor.listen(new InetSocketAddress(port));
             executing = true;
@@ -190,7 +282,31 @@ public class RESTServer extends Thread {
     public void shutdown() throws IOException {
         logger.info("Caught shutdown command to RESTServer");
         shutdownCalled = true;
+        if (requestHandler != null) {
+            requestHandler.shutdown();
+        }
         ioReactor.shutdown();
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of requests waiting for a worker thread
+     */
+    public int getQueuedRequests() {
+        return (workers != null) ? workers.getQueue().size() : 0;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "rest-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
     }
 
     public static RESTServer getNewStartedRESTServer(int port, HttpRESTHandler<?> restHandler) {
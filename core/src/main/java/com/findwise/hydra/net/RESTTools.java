@@ -1,11 +1,22 @@
 package com.findwise.hydra.net;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.findwise.hydra.JsonException;
 import com.findwise.hydra.local.HttpEndpointConstants;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
 
 public final class RESTTools {
 	public enum Method { GET, PUT, POST, DELETE, HEAD, TRACE, CONNECT, PATCH, OPTIONS };
@@ -57,4 +68,72 @@ public final class RESTTools {
 	public static boolean isDelete(HttpRequest request) {
 		return getMethod(request) == Method.DELETE;
 	}
+
+	/**
+	 * Opens a character stream over the body of a request, so that it can be
+	 * parsed without first being copied into a String. Defaults to UTF-8 if
+	 * the request does not specify a charset.
+	 */
+	public static Reader getReader(HttpRequest request) throws IOException {
+		HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		String charset = ContentType.getOrDefault(entity).getCharset();
+		return new InputStreamReader(entity.getContent(), charset != null ? charset : "UTF-8");
+	}
+
+	/**
+	 * Checks whether the body of a request is BSON rather than Json.
+	 */
+	public static boolean isBson(HttpRequest request) {
+		if (!(request instanceof HttpEntityEnclosingRequest)) {
+			return false;
+		}
+		HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		if (entity == null) {
+			return false;
+		}
+		Header contentType = entity.getContentType();
+		return contentType != null && contentType.getValue().startsWith(HttpEndpointConstants.BSON_CONTENT_TYPE);
+	}
+
+	/**
+	 * Checks whether the client has asked for documents to be sent as BSON.
+	 * Clients that do not ask get Json.
+	 */
+	public static boolean acceptsBson(HttpRequest request) {
+		for (Header accept : request.getHeaders("Accept")) {
+			if (accept.getValue().contains(HttpEndpointConstants.BSON_CONTENT_TYPE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the document posted in a request, as either Json or BSON
+	 * depending on its content type.
+	 */
+	public static LocalDocument getDocument(HttpRequest request) throws IOException, JsonException {
+		if (!isBson(request)) {
+			return new LocalDocument(getReader(request));
+		}
+		LocalDocument ld = new LocalDocument();
+		ld.fromBson(((HttpEntityEnclosingRequest) request).getEntity().getContent());
+		ld.markSynced();
+		return ld;
+	}
+
+	/**
+	 * Reads the query posted in a request, as either Json or BSON depending
+	 * on its content type.
+	 */
+	public static LocalQuery getQuery(HttpRequest request) throws IOException, JsonException {
+		HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		LocalQuery query = new LocalQuery();
+		if (isBson(request)) {
+			query.fromBson(entity.getContent());
+		} else {
+			query.fromJson(EntityUtils.toString(entity));
+		}
+		return query;
+	}
 }
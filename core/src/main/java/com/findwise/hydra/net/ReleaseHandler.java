@@ -51,6 +51,7 @@ public class ReleaseHandler<T extends DatabaseType> implements ResponsibleHandle
             boolean x = release(io.convert(new LocalDocument(requestContent)), stage);
             if (!x) {
                 HttpResponseWriter.printNoDocument(response);
+                return;
             }
         } catch (JsonException e) {
             HttpResponseWriter.printJsonException(response, e);
@@ -0,0 +1,161 @@
+package com.findwise.hydra.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.FileContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncRequestConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumes a request by writing its body to a temporary file as it arrives,
+ * instead of collecting it in memory the way
+ * {@link org.apache.http.nio.protocol.BasicAsyncRequestConsumer} does. When
+ * the connection allows it, the body is transferred to the file without
+ * passing through the heap at all.
+ *
+ * The request handed to the handler has an entity backed by the file. The
+ * file is deleted once the stream returned by the entity is closed, or by
+ * {@link #discard(HttpRequest)} once the request has been answered, which
+ * ever comes first.
+ */
+public class SpoolingRequestConsumer extends AbstractAsyncRequestConsumer<HttpRequest> {
+    private static Logger logger = LoggerFactory.getLogger(SpoolingRequestConsumer.class);
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private HttpRequest request;
+    private ContentType contentType;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long position = 0;
+    private ByteBuffer buffer;
+    private boolean handedOver = false;
+
+    @Override
+    protected void onRequestReceived(HttpRequest request) {
+        this.request = request;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+        this.contentType = contentType;
+        file = File.createTempFile("hydra-upload", ".tmp");
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+        if (decoder instanceof FileContentDecoder) {
+            position += ((FileContentDecoder) decoder).transfer(channel, position, Integer.MAX_VALUE);
+            return;
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        while (decoder.read(buffer) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+
+    @Override
+    protected HttpRequest buildResult(HttpContext context) throws IOException {
+        if (file != null && request instanceof HttpEntityEnclosingRequest) {
+            raf.close();
+            ((HttpEntityEnclosingRequest) request).setEntity(new SpooledFileEntity(file, contentType));
+            handedOver = true;
+        }
+        return request;
+    }
+
+    @Override
+    protected void releaseResources() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close spooled request body " + file, e);
+            }
+        }
+        if (file != null && !handedOver) {
+            delete(file);
+        }
+    }
+
+    /**
+     * Deletes the spooled body of the request, if it has one. Should be
+     * called once the request has been answered, whether or not the handler
+     * ever read the body.
+     */
+    public static void discard(HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity instanceof SpooledFileEntity) {
+                delete(((SpooledFileEntity) entity).getFile());
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Unable to delete spooled request body " + file);
+        }
+    }
+
+    /**
+     * A FileEntity whose file is deleted when its content stream is closed.
+     */
+    static class SpooledFileEntity extends FileEntity {
+        private final File spooled;
+
+        SpooledFileEntity(File file, ContentType contentType) {
+            super(file, contentType);
+            this.spooled = file;
+        }
+
+        File getFile() {
+            return spooled;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new DeleteOnCloseInputStream(spooled);
+        }
+    }
+
+    private static class DeleteOnCloseInputStream extends FileInputStream {
+        private final File file;
+
+        DeleteOnCloseInputStream(File file) throws FileNotFoundException {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            delete(file);
+        }
+    }
+}
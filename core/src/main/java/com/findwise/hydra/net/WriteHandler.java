@@ -4,13 +4,10 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
 import com.findwise.hydra.local.HttpEndpointConstants;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,7 +17,6 @@ import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.JsonException;
-import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.net.RESTTools.Method;
 
 public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler {
@@ -40,8 +36,6 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
             throws HttpException, IOException {
         logger.trace("handleWriteDocument()");
         long start = System.currentTimeMillis();
-        HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
-        String requestContent = EntityUtils.toString(requestEntity);
         long tostring = System.currentTimeMillis();
 
         String stage = RESTTools.getParam(request, HttpEndpointConstants.STAGE_PARAM);
@@ -64,13 +58,13 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
 
         DatabaseDocument<T> md;
         try {
-            md = io.convert(new LocalDocument(requestContent));
+            md = io.convert(RESTTools.getDocument(request));
         }
         catch(JsonException e) {
             HttpResponseWriter.printJsonException(response, e);
             return;
         } catch (ConversionException e) {
-            logger.error("Caught Exception when trying to convert "+requestContent, e);
+            logger.error("Caught Exception when trying to convert the posted document", e);
             HttpResponseWriter.printBadRequestContent(response);
             return;
         }
@@ -118,15 +112,7 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
             return false;
         }
         logger.debug("Handling a partial write for document "+md.getID());
-        DatabaseDocument<T> inDB = io.getDocumentById(md.getID());
-        if(inDB==null) {
-            HttpResponseWriter.printNoDocument(response);
-            return false;
-        }
-        inDB.putAll(md);
-
-
-        if(io.update(inDB)){
+        if(io.updateFields(md)){
             HttpResponseWriter.printSaveOk(response, md.getID());
             return true;
         }
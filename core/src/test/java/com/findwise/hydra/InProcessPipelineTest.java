@@ -0,0 +1,179 @@
+package com.findwise.hydra;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.Document.Status;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InProcessPipelineTest {
+	private MemoryConnector mc;
+	private CachingDocumentNIO<MemoryType> io;
+	private InProcessPipeline<MemoryType> pipeline;
+
+	@Before
+	public void setUp() {
+		mc = new MemoryConnector();
+		io = new CachingDocumentNIO<MemoryType>(mc, new NoopCache<MemoryType>());
+		pipeline = new InProcessPipeline<MemoryType>("x", io, mc.getPipelineReader(), getClass().getClassLoader(), false);
+	}
+
+	@After
+	public void tearDown() {
+		pipeline.close();
+	}
+
+	private MemoryDocument insert(String value) throws Exception {
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("field", value);
+		MemoryDocument d = (MemoryDocument) mc.convert(doc);
+		io.insert(d);
+		return d;
+	}
+
+	@Test
+	public void testFetchAndMarkProcessed() throws Exception {
+		MemoryDocument inserted = insert("value");
+
+		LocalDocument doc = pipeline.getDocument(new LocalQuery());
+		assertNotNull(doc);
+		assertEquals("value", doc.getContentField("field"));
+		assertTrue("A fetched document should have no changes", doc.isSynced());
+
+		doc.putContentField("added", "yes");
+		assertTrue(pipeline.markProcessed(doc));
+
+		MemoryDocument marked = (MemoryDocument) mc.getDocumentReader().getDocumentById(inserted.getID(), true);
+		assertEquals(Status.PROCESSED, marked.getStatus());
+		assertEquals("value", marked.getContentField("field"));
+		assertEquals("yes", marked.getContentField("added"));
+	}
+
+	@Test
+	public void testFetchedDocumentIsACopy() throws Exception {
+		MemoryDocument inserted = insert("value");
+
+		LocalDocument doc = pipeline.getDocument(new LocalQuery());
+		doc.putContentField("field", "changed");
+
+		assertEquals("value", io.getDocumentById(inserted.getID()).getContentField("field"));
+	}
+
+	@Test
+	public void testSave() throws Exception {
+		MemoryDocument inserted = insert("value");
+
+		LocalDocument doc = pipeline.getDocument(new LocalQuery());
+		doc.putContentField("added", "yes");
+		assertTrue(pipeline.save(doc));
+		assertTrue(doc.isSynced());
+
+		DatabaseDocument<MemoryType> saved = io.getDocumentById(inserted.getID());
+		assertEquals("value", saved.getContentField("field"));
+		assertEquals("yes", saved.getContentField("added"));
+		assertTrue(saved.touchedBy("x"));
+	}
+
+	@Test
+	public void testMarkTouched() throws Exception {
+		MemoryDocument inserted = insert("value");
+
+		LocalDocument doc = pipeline.getDocument(new LocalQuery());
+		doc.putContentField("added", "yes");
+		assertTrue(pipeline.markTouched(doc));
+
+		DatabaseDocument<MemoryType> touched = io.getDocumentById(inserted.getID());
+		assertTrue(touched.touchedBy("x"));
+		assertNull("Only the tag should be written", touched.getContentField("added"));
+	}
+
+	@Test
+	public void testSaveNewDocument() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("field", "value");
+		assertTrue(pipeline.saveFull(doc));
+		assertNotNull(doc.getID());
+
+		DatabaseDocument<MemoryType> saved = io.getDocumentById(io.toDocumentIdFromJson(doc.getID().toJSON()));
+		assertEquals("value", saved.getContentField("field"));
+	}
+
+	@Test
+	public void testMarkMissingDocument() throws Exception {
+		MemoryDocument inserted = insert("value");
+		LocalDocument doc = pipeline.getDocument(new LocalQuery());
+		io.delete(inserted);
+
+		assertFalse(pipeline.markProcessed(doc));
+	}
+
+	@Test
+	public void testMarkFailedWithError() throws Exception {
+		MemoryDocument inserted = insert("value");
+
+		LocalDocument doc = pipeline.getDocument(new LocalQuery());
+		assertTrue(pipeline.markFailed(doc, new RuntimeException("failed")));
+
+		MemoryDocument marked = (MemoryDocument) mc.getDocumentReader().getDocumentById(inserted.getID(), true);
+		assertEquals(Status.FAILED, marked.getStatus());
+		assertTrue(marked.hasErrors());
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		for (int i = 0; i < 3; i++) {
+			LocalDocument doc = new LocalDocument();
+			doc.putContentField("field", "value" + i);
+			docs.add(doc);
+		}
+		assertTrue(pipeline.insertAll(docs));
+		for (LocalDocument doc : docs) {
+			assertNotNull(doc.getID());
+			assertTrue("Inserted documents should be released by the inserting stage", io.getDocumentById(io.toDocumentIdFromJson(doc.getID().toJSON())).touchedBy("x"));
+		}
+
+		List<LocalDocument> fetched = pipeline.getDocuments(new LocalQuery(), 10);
+		assertEquals(3, fetched.size());
+		assertTrue(pipeline.markAll(fetched, Status.DISCARDED));
+		assertNull(pipeline.getDocument(new LocalQuery()));
+		assertFalse("Marking already finished documents should fail", pipeline.markAll(fetched, Status.DISCARDED));
+	}
+
+	@Test
+	public void testWaitsForInsert() throws Exception {
+		Thread inserter = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+					insert("value");
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		inserter.start();
+
+		long start = System.currentTimeMillis();
+		LocalDocument doc = pipeline.getDocument(new LocalQuery(), 10000);
+		long waited = System.currentTimeMillis() - start;
+		inserter.join();
+
+		assertNotNull(doc);
+		assertTrue("Waited " + waited + " ms, should have been woken by the insert", waited < InProcessPipeline.RECHECK_INTERVAL);
+	}
+}
@@ -0,0 +1,76 @@
+package com.findwise.hydra.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.AsyncDocumentIO;
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.Document.Status;
+import com.findwise.hydra.NoopCache;
+import com.findwise.hydra.local.HttpRemotePipeline;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncHandlerTest {
+	private MemoryConnector mc;
+	private AsyncDocumentIO<MemoryType> async;
+	private RESTServer server;
+
+	@Before
+	public void setUp() {
+		mc = new MemoryConnector();
+		CachingDocumentNIO<MemoryType> io = new CachingDocumentNIO<MemoryType>(mc, new NoopCache<MemoryType>());
+		async = new AsyncDocumentIO<MemoryType>(io, 2);
+		HttpRESTHandler<MemoryType> handler = new HttpRESTHandler<MemoryType>(io, async, mc.getPipelineReader(), null, false);
+		server = RESTServer.getNewStartedRESTServer(20000, handler);
+	}
+
+	@After
+	public void tearDown() {
+		async.shutdown();
+	}
+
+	@Test
+	public void testFetchAndMark() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("field", "value");
+		MemoryDocument inserted = (MemoryDocument) mc.convert(doc);
+		mc.getDocumentWriter().insert(inserted);
+
+		LocalDocument fetched = rp.getDocument(new LocalQuery());
+		assertNotNull(fetched);
+		assertEquals("value", fetched.getContentField("field"));
+		assertNull(rp.getDocument(new LocalQuery()));
+
+		fetched.putContentField("added", "yes");
+		assertTrue(rp.markProcessed(fetched));
+
+		MemoryDocument marked = (MemoryDocument) mc.getDocumentReader().getDocumentById(inserted.getID(), true);
+		assertEquals(Status.PROCESSED, marked.getStatus());
+		assertEquals("yes", marked.getContentField("added"));
+
+		assertFalse("Marking an already finished document should fail", rp.markProcessed(fetched));
+	}
+
+	@Test
+	public void testLongPollAfterAsyncQuery() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		long start = System.currentTimeMillis();
+		assertNull(rp.getDocument(new LocalQuery(), 300));
+		assertTrue(System.currentTimeMillis() - start >= 250);
+	}
+}
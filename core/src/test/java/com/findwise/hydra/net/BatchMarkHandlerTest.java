@@ -0,0 +1,66 @@
+package com.findwise.hydra.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.Document.Status;
+import com.findwise.hydra.local.HttpRemotePipeline;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchMarkHandlerTest {
+	private MemoryConnector mc;
+	private RESTServer server;
+	private HttpRESTHandler<MemoryType> handler;
+
+	@Before
+	public void setUp() {
+		mc = new MemoryConnector();
+		handler = new HttpRESTHandler<MemoryType>(mc);
+		server = RESTServer.getNewStartedRESTServer(20000, handler);
+	}
+
+	@Test
+	public void testMarkAll() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		List<MemoryDocument> inserted = new ArrayList<MemoryDocument>();
+		for (int i = 0; i < 3; i++) {
+			LocalDocument doc = new LocalDocument();
+			doc.putContentField("field", "value" + i);
+			MemoryDocument d = (MemoryDocument) mc.convert(doc);
+			mc.getDocumentWriter().insert(d);
+			inserted.add(d);
+		}
+
+		List<LocalDocument> fetched = new ArrayList<LocalDocument>();
+		LocalDocument doc;
+		while ((doc = rp.getDocument(new LocalQuery())) != null) {
+			doc.putContentField("added", "yes");
+			fetched.add(doc);
+		}
+		assertEquals(3, fetched.size());
+
+		assertTrue(rp.markAll(fetched, Status.PROCESSED));
+
+		for (MemoryDocument d : inserted) {
+			MemoryDocument marked = (MemoryDocument) mc.getDocumentReader().getDocumentById(d.getID(), true);
+			assertEquals(Status.PROCESSED, marked.getStatus());
+			assertEquals(d.getContentField("field"), marked.getContentField("field"));
+			assertEquals("yes", marked.getContentField("added"));
+		}
+
+		assertFalse("Marking already finished documents should fail", rp.markAll(fetched, Status.PROCESSED));
+	}
+}
@@ -0,0 +1,69 @@
+package com.findwise.hydra.net;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.local.HttpRemotePipeline;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchQueryHandlerTest {
+	private MemoryConnector mc;
+	private RESTServer server;
+	private HttpRESTHandler<MemoryType> handler;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		handler = new HttpRESTHandler<MemoryType>(mc);
+		server = RESTServer.getNewStartedRESTServer(20000, handler);
+
+		for (int i = 0; i < 5; i++) {
+			LocalDocument doc = new LocalDocument();
+			doc.putContentField("field", "value" + i);
+			mc.getDocumentWriter().insert(mc.convert(doc));
+		}
+	}
+
+	@Test
+	public void testGetDocuments() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		List<LocalDocument> first = rp.getDocuments(new LocalQuery(), 3);
+		assertEquals(3, first.size());
+
+		List<LocalDocument> second = rp.getDocuments(new LocalQuery(), 3);
+		assertEquals(2, second.size());
+
+		Set<Object> values = new HashSet<Object>();
+		for (LocalDocument d : first) {
+			values.add(d.getContentField("field"));
+		}
+		for (LocalDocument d : second) {
+			values.add(d.getContentField("field"));
+		}
+		assertEquals("The same document was handed out twice", 5, values.size());
+
+		assertTrue(rp.getDocuments(new LocalQuery(), 3).isEmpty());
+	}
+
+	@Test
+	public void testFetchedDocumentsCanBeMarked() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		for (LocalDocument d : rp.getDocuments(new LocalQuery(), 5)) {
+			d.putContentField("added", true);
+			assertTrue(rp.markProcessed(d));
+		}
+	}
+}
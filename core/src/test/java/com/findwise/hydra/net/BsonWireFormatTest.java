@@ -0,0 +1,86 @@
+package com.findwise.hydra.net;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.local.HttpRemotePipeline;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BsonWireFormatTest {
+	private MemoryConnector mc;
+	private RESTServer server;
+	private HttpRESTHandler<MemoryType> handler;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		handler = new HttpRESTHandler<MemoryType>(mc);
+		server = RESTServer.getNewStartedRESTServer(20000, handler);
+
+		for (int i = 0; i < 3; i++) {
+			LocalDocument doc = new LocalDocument();
+			doc.putContentField("field", "value" + i);
+			doc.putContentField("number", i);
+			mc.getDocumentWriter().insert(mc.convert(doc));
+		}
+	}
+
+	private HttpRemotePipeline getPipeline() {
+		HttpRemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+		rp.setBinaryWireFormat(true);
+		return rp;
+	}
+
+	@Test
+	public void testGetAndMarkDocument() throws Exception {
+		HttpRemotePipeline rp = getPipeline();
+
+		LocalDocument d = rp.getDocument(new LocalQuery());
+		assertNotNull(d);
+		assertTrue(d.getContentField("field").toString().startsWith("value"));
+		assertTrue(d.isSynced());
+
+		d.putContentField("added", "yes");
+		assertTrue(rp.save(d));
+		assertTrue(rp.markProcessed(d));
+
+		DatabaseDocument<MemoryType> stored = mc.getDocumentReader().getDocumentById(mc.getDocumentReader().toDocumentId(d.getID().getID()), true);
+		assertNotNull(stored);
+		assertEquals("yes", stored.getContentField("added"));
+	}
+
+	@Test
+	public void testGetDocuments() throws Exception {
+		HttpRemotePipeline rp = getPipeline();
+
+		List<LocalDocument> docs = rp.getDocuments(new LocalQuery(), 5);
+		assertEquals(3, docs.size());
+		for (LocalDocument d : docs) {
+			assertNotNull(d.getID());
+			assertTrue(d.getContentField("number") instanceof Integer);
+		}
+		assertNull(rp.getDocument(new LocalQuery()));
+	}
+
+	@Test
+	public void testJsonClientsAreUnaffected() throws Exception {
+		HttpRemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		LocalDocument d = rp.getDocument(new LocalQuery());
+		assertNotNull(d);
+		assertTrue(d.getContentField("number") instanceof Integer);
+		d.putContentField("added", "yes");
+		assertTrue(rp.markProcessed(d));
+	}
+}
@@ -0,0 +1,166 @@
+package com.findwise.hydra.net;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.local.HttpEndpointConstants;
+import com.findwise.hydra.local.HttpRemotePipeline;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+import com.findwise.tools.HttpConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BulkInsertHandlerTest {
+	private MemoryConnector mc;
+	private RESTServer server;
+	private HttpRESTHandler<MemoryType> handler;
+
+	@Before
+	public void setUp() {
+		mc = new MemoryConnector();
+		handler = new HttpRESTHandler<MemoryType>(mc);
+		server = RESTServer.getNewStartedRESTServer(20000, handler);
+	}
+
+	@Test
+	public void testInsertAll() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		for (int i = 0; i < 3; i++) {
+			LocalDocument doc = new LocalDocument();
+			doc.putContentField("field", "value" + i);
+			docs.add(doc);
+		}
+
+		assertTrue(rp.insertAll(docs));
+		for (LocalDocument d : docs) {
+			assertNotNull(d.getID());
+		}
+
+		Set<Object> fetched = new HashSet<Object>();
+		LocalDocument doc;
+		while ((doc = rp.getDocument(new LocalQuery())) != null) {
+			fetched.add(doc.getContentField("field"));
+		}
+		assertEquals(3, fetched.size());
+		assertTrue(fetched.contains("value0"));
+		assertTrue(fetched.contains("value2"));
+	}
+
+	@Test
+	public void testInsertMoreThanOneBatch() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		for (int i = 0; i < BulkInsertHandler.BATCH_SIZE + 10; i++) {
+			LocalDocument doc = new LocalDocument();
+			doc.putContentField("n", i);
+			docs.add(doc);
+		}
+
+		assertTrue(rp.insertAll(docs));
+		assertEquals(docs.size(), rp.getDocuments(new LocalQuery(), docs.size() + 1).size());
+	}
+
+	@Test
+	public void testDocumentsWithIdsAreRejected() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("field", "value");
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		docs.add(doc);
+		assertTrue(rp.insertAll(docs));
+
+		doc.putContentField("field", "other");
+		assertFalse("Documents that already have an ID should be refused", rp.insertAll(docs));
+		assertEquals(1, rp.getDocuments(new LocalQuery(), 10).size());
+	}
+
+	@Test
+	public void testInsertedDocumentsAreReleased() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+		RemotePipeline next = new HttpRemotePipeline("localhost", server.getPort(), "y");
+
+		List<LocalDocument> docs = new ArrayList<LocalDocument>();
+		for (int i = 0; i < 3; i++) {
+			LocalDocument doc = new LocalDocument();
+			doc.putContentField("field", "value" + i);
+			docs.add(doc);
+		}
+		assertTrue(rp.insertAll(docs));
+
+		LocalQuery touchedByX = new LocalQuery();
+		touchedByX.requireTouchedByStage("x");
+		assertEquals(3, next.getDocuments(touchedByX, 10).size());
+	}
+
+	@Test
+	public void testNoRelease() throws Exception {
+		HttpConnection connection = new HttpConnection("localhost", server.getPort());
+		String url = "/" + HttpEndpointConstants.INSERT_DOCUMENTS_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=x&" + HttpEndpointConstants.NORELEASE_PARAM + "=1";
+		HttpResponse response = connection.post(url, new LocalDocument().toJson().getBytes("UTF-8"), HttpEndpointConstants.NDJSON_CONTENT_TYPE);
+		assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+		EntityUtils.consume(response.getEntity());
+
+		RemotePipeline next = new HttpRemotePipeline("localhost", server.getPort(), "y");
+		LocalQuery touchedByX = new LocalQuery();
+		touchedByX.requireTouchedByStage("x");
+		assertNull(next.getDocument(touchedByX));
+		assertNotNull(next.getDocument(new LocalQuery()));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testMalformedDocumentReturnsEarlierIds() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("field", "value");
+		String body = doc.toJson() + "\n" + doc.toJson() + "\n{\"contents\": [\n";
+
+		HttpConnection connection = new HttpConnection("localhost", server.getPort());
+		String url = "/" + HttpEndpointConstants.INSERT_DOCUMENTS_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=x";
+		HttpResponse response = connection.post(url, body.getBytes("UTF-8"), HttpEndpointConstants.NDJSON_CONTENT_TYPE);
+		assertEquals("Documents were inserted, so the result must reach the client", HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+
+		Map<String, Object> result = SerializationUtils.fromJson(EntityUtils.toString(response.getEntity()));
+		List<Object> ids = (List<Object>) result.get(HttpEndpointConstants.IDS_KEY);
+		assertEquals(2, ids.size());
+		assertNotNull(ids.get(0));
+		assertNotNull(ids.get(1));
+		assertEquals(2, ((Number) result.get(HttpEndpointConstants.INSERTED_KEY)).intValue());
+		assertEquals(2, ((Number) result.get(HttpEndpointConstants.POSITION_KEY)).intValue());
+		assertNotNull(result.get(HttpEndpointConstants.ERROR_KEY));
+
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "y");
+		assertEquals(2, rp.getDocuments(new LocalQuery(), 10).size());
+	}
+
+	@Test
+	public void testMalformedFirstDocumentIsRejected() throws Exception {
+		HttpConnection connection = new HttpConnection("localhost", server.getPort());
+		String url = "/" + HttpEndpointConstants.INSERT_DOCUMENTS_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=x";
+		HttpResponse response = connection.post(url, "{\"contents\": [\n".getBytes("UTF-8"), HttpEndpointConstants.NDJSON_CONTENT_TYPE);
+		assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusLine().getStatusCode());
+		EntityUtils.consume(response.getEntity());
+	}
+}
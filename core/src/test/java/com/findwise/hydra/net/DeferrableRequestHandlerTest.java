@@ -0,0 +1,128 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.local.HttpEndpointConstants;
+
+public class DeferrableRequestHandlerTest {
+	private HttpRequestHandler handler;
+	private HttpAsyncExchange exchange;
+	private HttpResponse response;
+	private HttpRequest request;
+	private HttpContext context;
+
+	@Before
+	public void setUp() {
+		handler = mock(HttpRequestHandler.class);
+		exchange = mock(HttpAsyncExchange.class);
+		response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+		when(exchange.getResponse()).thenReturn(response);
+		request = new BasicHttpRequest("GET", "/getDocument");
+		context = new BasicHttpContext();
+	}
+
+	@Test
+	public void testHandledOnExecutor() throws Exception {
+		final int[] executed = new int[1];
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				executed[0]++;
+				command.run();
+			}
+		};
+
+		new DeferrableRequestHandler(handler, executor, 1).handle(request, exchange, context);
+
+		assertEquals(1, executed[0]);
+		verify(handler).handle(request, response, context);
+		verify(exchange).submitResponse();
+	}
+
+	@Test
+	public void testRejectedRequestGetsServiceUnavailable() throws Exception {
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException();
+			}
+		};
+
+		new DeferrableRequestHandler(handler, executor, 5).handle(request, exchange, context);
+
+		verify(handler, never()).handle(any(HttpRequest.class), any(HttpResponse.class), any(HttpContext.class));
+		verify(exchange).submitResponse();
+		assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, response.getStatusLine().getStatusCode());
+		assertEquals("5", response.getFirstHeader("Retry-After").getValue());
+	}
+
+	@Test
+	public void testDeferredRequestIsNotSubmitted() throws Exception {
+		HttpRequestHandler deferring = new HttpRequestHandler() {
+			@Override
+			public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+				DeferrableRequestHandler.defer(context);
+			}
+		};
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+
+		new DeferrableRequestHandler(deferring, executor, 1).handle(request, exchange, context);
+
+		verify(exchange, never()).submitResponse();
+	}
+
+	@Test
+	public void testRejectedRequestDeletesSpooledBody() throws Exception {
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException();
+			}
+		};
+		HttpRequest spooled = SpoolingRequestConsumerTest.spool("/" + HttpEndpointConstants.RAW_FILE_URL, "content");
+		File file = SpoolingRequestConsumerTest.spooledFile(spooled);
+
+		new DeferrableRequestHandler(handler, executor, 1).handle(spooled, exchange, context);
+
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testUnreadSpooledBodyIsDeletedAfterHandling() throws Exception {
+		HttpRequest spooled = SpoolingRequestConsumerTest.spool("/" + HttpEndpointConstants.RAW_FILE_URL, "content");
+		File file = SpoolingRequestConsumerTest.spooledFile(spooled);
+
+		new DeferrableRequestHandler(handler).handle(spooled, exchange, context);
+
+		verify(handler).handle(spooled, response, context);
+		assertFalse(file.exists());
+	}
+}
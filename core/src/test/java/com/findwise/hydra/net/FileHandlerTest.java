@@ -1,18 +1,31 @@
 package com.findwise.hydra.net;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.InputStream;
+import java.net.URLEncoder;
 import java.util.List;
 
 import com.findwise.hydra.local.HttpRemotePipeline;
 import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.findwise.hydra.CachingDocumentNIO;
 import com.findwise.hydra.DocumentFile;
 import com.findwise.hydra.NoopCache;
+import com.findwise.hydra.local.HttpEndpointConstants;
 import com.findwise.hydra.local.Local;
 import com.findwise.hydra.local.LocalDocumentID;
 import com.findwise.hydra.local.RemotePipeline;
@@ -179,4 +192,81 @@ public class FileHandlerTest {
 			fail("Still some files after both should have been deleted");
 		}
 	}
+
+	private static String rawFileUri(MemoryDocument doc, String fileName) throws Exception {
+		return "/" + HttpEndpointConstants.RAW_FILE_URL + "?" + HttpEndpointConstants.STAGE_PARAM + "=stage&"
+				+ HttpEndpointConstants.DOCID_PARAM + "=" + URLEncoder.encode(doc.getID().toJSON(), "UTF-8")
+				+ (fileName != null ? "&" + HttpEndpointConstants.FILENAME_PARAM + "=" + fileName : "");
+	}
+	
+	private static HttpResponse newResponse() {
+		return new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+	}
+	
+	private FileHandler<MemoryType> newFileHandler() {
+		return new FileHandler<MemoryType>(new CachingDocumentNIO<MemoryType>(mc, new NoopCache<MemoryType>()));
+	}
+	
+	@Test
+	public void testSaveRawFile() throws Exception {
+		MemoryDocument testDoc = new MemoryDocument();
+		mc.getDocumentWriter().insert(testDoc);
+		String content = "adsafgoaiuhgahgo\ndasdas";
+		
+		HttpRequest request = SpoolingRequestConsumerTest.spool(rawFileUri(testDoc, "test.txt"), content);
+		request.addHeader(HttpEndpointConstants.SAVED_BY_STAGE_HEADER, "stage");
+		File spooled = SpoolingRequestConsumerTest.spooledFile(request);
+		HttpResponse response = newResponse();
+		
+		newFileHandler().handle(request, response, new BasicHttpContext());
+		
+		assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+		DocumentFile<MemoryType> df = mc.getDocumentReader().getDocumentFile(testDoc, "test.txt");
+		assertEquals(content, IOUtils.toString(df.getStream(), "UTF-8"));
+		assertEquals("stage", df.getSavedByStage());
+		assertFalse(spooled.exists());
+	}
+	
+	@Test
+	public void testSaveRawFileWithoutFileName() throws Exception {
+		MemoryDocument testDoc = new MemoryDocument();
+		mc.getDocumentWriter().insert(testDoc);
+		
+		HttpRequest request = SpoolingRequestConsumerTest.spool(rawFileUri(testDoc, null), "content");
+		File spooled = SpoolingRequestConsumerTest.spooledFile(request);
+		HttpResponse response = newResponse();
+		
+		newFileHandler().handle(request, response, new BasicHttpContext());
+		
+		assertEquals(HttpStatus.SC_BAD_REQUEST, response.getStatusLine().getStatusCode());
+		assertNull(mc.getDocumentReader().getDocumentFile(testDoc, "test.txt"));
+		assertFalse(spooled.exists());
+	}
+	
+	@Test
+	public void testGetRawFile() throws Exception {
+		MemoryDocument testDoc = new MemoryDocument();
+		mc.getDocumentWriter().insert(testDoc);
+		String content = "adsagagasdgarqRE13123AFg da\nndasdas";
+		DocumentFile<MemoryType> df = new DocumentFile<MemoryType>(testDoc.getID(), "test.txt", IOUtils.toInputStream(content, "UTF-8"), "stage");
+		mc.getDocumentWriter().write(df);
+		
+		HttpResponse response = newResponse();
+		newFileHandler().handle(new BasicHttpRequest("GET", rawFileUri(testDoc, "test.txt")), response, new BasicHttpContext());
+		
+		assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+		assertEquals("stage", response.getFirstHeader(HttpEndpointConstants.SAVED_BY_STAGE_HEADER).getValue());
+		assertEquals(content, IOUtils.toString(response.getEntity().getContent(), "UTF-8"));
+	}
+	
+	@Test
+	public void testGetMissingRawFile() throws Exception {
+		MemoryDocument testDoc = new MemoryDocument();
+		mc.getDocumentWriter().insert(testDoc);
+		
+		HttpResponse response = newResponse();
+		newFileHandler().handle(new BasicHttpRequest("GET", rawFileUri(testDoc, "test.txt")), response, new BasicHttpContext());
+		
+		assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusLine().getStatusCode());
+	}
 }
@@ -0,0 +1,145 @@
+package com.findwise.hydra.net;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.DatabaseQuery;
+import com.findwise.hydra.DocumentID;
+import com.findwise.hydra.local.HttpRemotePipeline;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LongPollTest {
+	private MemoryConnector mc;
+	private RESTServer server;
+	private HttpRESTHandler<MemoryType> handler;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		mc = new MemoryConnector();
+		handler = new HttpRESTHandler<MemoryType>(mc);
+		server = RESTServer.getNewStartedRESTServer(20000, handler);
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testWaitingRequestIsWokenByInsert() throws Exception {
+		final RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+		RemotePipeline input = new HttpRemotePipeline("localhost", server.getPort(), "input");
+
+		Future<LocalDocument> fetched = executor.submit(new Callable<LocalDocument>() {
+			@Override
+			public LocalDocument call() throws Exception {
+				return rp.getDocument(new LocalQuery(), 10000);
+			}
+		});
+
+		Thread.sleep(200);
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("field", "value");
+		assertTrue(input.saveFull(doc));
+
+		LocalDocument result = fetched.get(5, TimeUnit.SECONDS);
+		assertNotNull(result);
+		assertEquals("value", result.getContentField("field"));
+	}
+
+	@Test
+	public void testWaitingRequestTimesOut() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		long start = System.currentTimeMillis();
+		assertNull(rp.getDocument(new LocalQuery(), 300));
+		assertTrue(System.currentTimeMillis() - start >= 250);
+	}
+
+	@Test
+	public void testNoWaitByDefault() throws Exception {
+		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		long start = System.currentTimeMillis();
+		assertNull(rp.getDocument(new LocalQuery()));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	@Test
+	public void testShutdownAnswersWaitingRequest() throws Exception {
+		final RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "x");
+
+		Future<LocalDocument> fetched = executor.submit(new Callable<LocalDocument>() {
+			@Override
+			public LocalDocument call() throws Exception {
+				return rp.getDocument(new LocalQuery(), 10000);
+			}
+		});
+
+		Thread.sleep(200);
+		handler.shutdown();
+
+		assertNull(fetched.get(2, TimeUnit.SECONDS));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testOnlyMatchingChangesAreQueried() throws Exception {
+		CachingDocumentNIO<MemoryType> io = mock(CachingDocumentNIO.class);
+		DatabaseQuery<MemoryType> query = mock(DatabaseQuery.class);
+		DocumentID<MemoryType> unrelated = mock(DocumentID.class);
+		DocumentID<MemoryType> matching = mock(DocumentID.class);
+		DatabaseDocument<MemoryType> unrelatedDoc = mock(DatabaseDocument.class);
+		DatabaseDocument<MemoryType> matchingDoc = mock(DatabaseDocument.class);
+		when(io.peekDocumentById(unrelated)).thenReturn(unrelatedDoc);
+		when(io.peekDocumentById(matching)).thenReturn(matchingDoc);
+		when(matchingDoc.matches(query)).thenReturn(true);
+		HttpAsyncExchange exchange = mock(HttpAsyncExchange.class);
+		when(exchange.getResponse()).thenReturn(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"));
+
+		LongPollRegistry<MemoryType> registry = new LongPollRegistry<MemoryType>(io);
+		try {
+			registry.await("x", query, exchange, 10000);
+			// A new waiter is retried once
+			verify(io, timeout(1000).times(1)).getAndTag(query, "x");
+
+			registry.documentChanged(unrelated);
+			Thread.sleep(300);
+			verify(io, times(1)).getAndTag(query, "x");
+
+			registry.documentChanged(matching);
+			verify(io, timeout(1000).times(2)).getAndTag(query, "x");
+		} finally {
+			registry.shutdown();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Test;
+
+import com.findwise.hydra.local.HttpEndpointConstants;
+
+public class SpoolingRequestConsumerTest {
+
+	/**
+	 * Passes a request with the given body through a SpoolingRequestConsumer,
+	 * the way the server does.
+	 */
+	static HttpRequest spool(String uri, String body) throws Exception {
+		BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", uri);
+		request.setEntity(new StringEntity(body, ContentType.APPLICATION_OCTET_STREAM));
+		SpoolingRequestConsumer consumer = new SpoolingRequestConsumer();
+		consumer.requestReceived(request);
+		consumer.consumeContent(new StringDecoder(body), mock(IOControl.class));
+		consumer.requestCompleted(new BasicHttpContext());
+		return consumer.getResult();
+	}
+
+	static File spooledFile(HttpRequest request) {
+		return ((SpoolingRequestConsumer.SpooledFileEntity) ((HttpEntityEnclosingRequest) request).getEntity()).getFile();
+	}
+
+	@Test
+	public void testBodyIsSpooledToFile() throws Exception {
+		HttpRequest request = spool("/" + HttpEndpointConstants.RAW_FILE_URL, "some content");
+
+		File file = spooledFile(request);
+		assertTrue(file.exists());
+		InputStream is = ((HttpEntityEnclosingRequest) request).getEntity().getContent();
+		assertEquals("some content", IOUtils.toString(is, "UTF-8"));
+		is.close();
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testDiscardDeletesUnreadBody() throws Exception {
+		HttpRequest request = spool("/" + HttpEndpointConstants.RAW_FILE_URL, "some content");
+		File file = spooledFile(request);
+
+		SpoolingRequestConsumer.discard(request);
+
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testDiscardAfterCloseIsHarmless() throws Exception {
+		HttpRequest request = spool("/" + HttpEndpointConstants.RAW_FILE_URL, "some content");
+		((HttpEntityEnclosingRequest) request).getEntity().getContent().close();
+
+		SpoolingRequestConsumer.discard(request);
+
+		assertFalse(spooledFile(request).exists());
+	}
+
+	/**
+	 * Hands out the body in one go, the way a decoder reading from the
+	 * socket would.
+	 */
+	private static class StringDecoder implements ContentDecoder {
+		private final ByteBuffer content;
+
+		StringDecoder(String body) throws IOException {
+			content = ByteBuffer.wrap(body.getBytes("UTF-8"));
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!content.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(dst.remaining(), content.remaining());
+			for (int i = 0; i < n; i++) {
+				dst.put(content.get());
+			}
+			return n;
+		}
+
+		@Override
+		public boolean isCompleted() {
+			return !content.hasRemaining();
+		}
+	}
+}
@@ -74,7 +74,6 @@ public class WriteHandlerTest {
 		LocalDocumentID id = new LocalDocumentID(1);
 		
 		when(dbdoc.getID()).thenReturn(id);
-		when(reader.getDocumentById(id)).thenReturn(dbdoc);
 		
 		RemotePipeline rp = new HttpRemotePipeline("localhost", server.getPort(), "stage");
 		LocalDocument ld = new LocalDocument();
@@ -92,6 +91,7 @@ public class WriteHandlerTest {
 		}
 		
 		verify(writer).update(any(DatabaseDocument.class));
+		verify(writer).updateFields(any(DatabaseDocument.class));
 	}
 
 }
@@ -0,0 +1,337 @@
+package com.findwise.hydra.embeddeddb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.ChangeFeed;
+import com.findwise.hydra.Configuration;
+import com.findwise.hydra.DatabaseConfiguration;
+import com.findwise.hydra.DatabaseConnector;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.DatabaseQuery;
+import com.findwise.hydra.Document;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.Query;
+import com.findwise.hydra.StatusUpdater;
+import com.findwise.hydra.embeddeddb.EmbeddedStatusIO.EmbeddedPipelineStatus;
+import com.findwise.hydra.embeddeddb.SegmentLog.Pointer;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryQuery;
+import com.findwise.hydra.memorydb.MemoryType;
+
+/**
+ * A database kept in a local directory, for running Hydra without MongoDB.
+ *
+ * Everything is stored in a single {@link SegmentLog}: documents, their
+ * attachments, the pipeline, its files and the status. What is live is held
+ * in memory, or indexed there by where it is in the log, and is restored by
+ * reading the log from the start when connecting. A change is in the log
+ * before the call making it returns, so it survives the process going down.
+ * To also survive the machine going down, set
+ * {@value #SYNC} to force every change to disk; otherwise changes are forced
+ * to disk at least every {@value #SYNC_INTERVAL} ms.
+ *
+ * The log is compacted in the background whenever it has grown to
+ * {@value #COMPACTION_FACTOR} times its size after the last compaction, or
+ * to that many segments if it was smaller than a segment.
+ *
+ * The directory is given as the database URL, e.g.
+ * <code>file:///var/lib/hydra</code>, and can only be open in one process at
+ * a time.
+ */
+public class EmbeddedConnector implements DatabaseConnector<MemoryType> {
+	public static final String URL_PREFIX = "file:";
+	public static final String SEGMENT_SIZE_MB = "database.embedded.segment_size_mb";
+	public static final String SYNC = "database.embedded.sync";
+	public static final int SEGMENT_SIZE_MB_DEFAULT = SegmentLog.DEFAULT_SEGMENT_SIZE / (1024 * 1024);
+	public static final long SYNC_INTERVAL = 1000;
+	public static final int COMPACTION_FACTOR = 2;
+
+	protected static final String LOCK_FILE = "lock";
+
+	private final Logger logger = LoggerFactory.getLogger(EmbeddedConnector.class);
+
+	private final DatabaseConfiguration conf;
+
+	private SegmentLog log;
+	private EmbeddedDocumentIO documentIO;
+	private EmbeddedPipelineIO pipelineIO;
+	private EmbeddedStatusIO statusIO;
+	private ChangeFeed<MemoryType> changeFeed;
+	private StatusUpdater statusUpdater;
+
+	private RandomAccessFile lockFile;
+	private FileLock lock;
+	private Maintainer maintainer;
+	private int segmentSize;
+	private volatile long compactedSize;
+	private final Object compacting = new Object();
+
+	private volatile boolean connected = false;
+
+	public EmbeddedConnector(DatabaseConfiguration conf) {
+		this.conf = conf;
+	}
+
+	/**
+	 * @return whether the URL points out a directory for an embedded database
+	 */
+	public static boolean isEmbeddedUrl(String url) {
+		return url != null && url.startsWith(URL_PREFIX);
+	}
+
+	public static File getDirectory(String url) {
+		String path = url.substring(URL_PREFIX.length());
+		if (path.startsWith("//")) {
+			path = path.substring(2);
+		}
+		return new File(path);
+	}
+
+	@Override
+	public void connect() throws IOException {
+		connect(true);
+	}
+
+	protected synchronized void connect(boolean startStatusUpdater) throws IOException {
+		File directory = getDirectory(conf.getDatabaseUrl());
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory);
+		}
+		lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+		try {
+			lock = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Held by another connector in this process
+			lock = null;
+		}
+		if (lock == null) {
+			lockFile.close();
+			throw new IOException("The database in " + directory + " is in use by another process");
+		}
+
+		segmentSize = getSegmentSize();
+		log = new SegmentLog(directory, segmentSize, isSync());
+		documentIO = new EmbeddedDocumentIO(log);
+		pipelineIO = new EmbeddedPipelineIO(log);
+		statusIO = new EmbeddedStatusIO(log);
+		changeFeed = new ChangeFeed<MemoryType>();
+		pipelineIO.setChangeFeed(changeFeed);
+
+		log.open(new SegmentLog.Visitor() {
+			@Override
+			public void visit(byte type, byte[] payload, Pointer pointer) throws IOException {
+				statusIO.replay(type, payload, pointer);
+				pipelineIO.replay(type, payload, pointer);
+				documentIO.replay(type, payload, pointer);
+			}
+		});
+		documentIO.finishReplay();
+
+		EmbeddedPipelineStatus pipelineStatus;
+		if (!statusIO.hasStatus()) {
+			pipelineStatus = new EmbeddedPipelineStatus();
+			statusIO.save(pipelineStatus);
+		} else {
+			pipelineStatus = statusIO.getStatus();
+		}
+
+		statusUpdater = new StatusUpdater(this);
+
+		if (!pipelineStatus.isPrepared()) {
+			logger.info("Database is new, preparing it");
+			pipelineStatus.setPrepared(true);
+			pipelineStatus.setDiscardedMaxSize(conf.getOldMaxSize());
+			pipelineStatus.setDiscardedToKeep(conf.getOldMaxCount());
+			documentIO.prepare();
+			pipelineIO.prepare();
+			statusIO.save(pipelineStatus);
+		}
+		documentIO.setInactiveToKeep(pipelineStatus.getNumberToKeep());
+
+		compactedSize = log.getSize();
+		maintainer = new Maintainer();
+		maintainer.start();
+
+		connected = true;
+
+		if (startStatusUpdater) {
+			statusUpdater.start();
+		}
+	}
+
+	/**
+	 * Closes the log and releases the directory, after which the connector
+	 * can't be used.
+	 */
+	public synchronized void close() throws IOException {
+		if (!connected) {
+			return;
+		}
+		connected = false;
+		if (statusUpdater.isAlive()) {
+			statusUpdater.interrupt();
+		}
+		maintainer.interrupt();
+		synchronized (compacting) {
+			// Not while a compaction is still rewriting
+			log.close();
+		}
+		lock.release();
+		lockFile.close();
+	}
+
+	/**
+	 * Rewrites what is live to the end of the log, and deletes the segments
+	 * that held it before. The log is only locked while each entry is
+	 * rewritten, so changes can be made while this runs.
+	 */
+	public void compact() throws IOException {
+		synchronized (compacting) {
+			long first = log.startCompaction();
+			statusIO.rewrite();
+			pipelineIO.rewrite();
+			documentIO.rewrite();
+			log.finishCompaction(first);
+			compactedSize = log.getSize();
+		}
+	}
+
+	private int getSegmentSize() {
+		return Integer.parseInt(getParameter(SEGMENT_SIZE_MB, "" + SEGMENT_SIZE_MB_DEFAULT)) * 1024 * 1024;
+	}
+
+	private boolean isSync() {
+		return Boolean.parseBoolean(getParameter(SYNC, "false"));
+	}
+
+	private String getParameter(String key, String defaultValue) {
+		if (conf instanceof Configuration) {
+			Object value = ((Configuration) conf).getParameter(key, defaultValue);
+			if (value != null) {
+				return value.toString().trim();
+			}
+		}
+		return defaultValue;
+	}
+
+	public StatusUpdater getStatusUpdater() {
+		return statusUpdater;
+	}
+
+	@Override
+	public void waitForWrites(boolean alwaysBlocking) {
+
+	}
+
+	/**
+	 * Every write is in the log by the time it returns.
+	 */
+	@Override
+	public boolean isWaitingForWrites() {
+		return true;
+	}
+
+	@Override
+	public EmbeddedPipelineIO getPipelineReader() {
+		return pipelineIO;
+	}
+
+	@Override
+	public EmbeddedPipelineIO getPipelineWriter() {
+		return pipelineIO;
+	}
+
+	@Override
+	public EmbeddedDocumentIO getDocumentReader() {
+		return documentIO;
+	}
+
+	@Override
+	public EmbeddedDocumentIO getDocumentWriter() {
+		return documentIO;
+	}
+
+	@Override
+	public DatabaseQuery<MemoryType> convert(Query query) {
+		MemoryQuery mq = new MemoryQuery();
+		try {
+			mq.fromJson(query.toJson());
+		} catch (JsonException e) {
+			logger.error("Unable to convert query", e);
+		}
+		return mq;
+	}
+
+	@Override
+	public DatabaseDocument<MemoryType> convert(Document<?> document) throws ConversionException {
+		MemoryDocument md = new MemoryDocument();
+		try {
+			md.fromJson(document.toJson());
+		} catch (JsonException e) {
+			throw new ConversionException("JSON Exception caught while converting", e);
+		}
+		return md;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public EmbeddedStatusIO getStatusWriter() {
+		return statusIO;
+	}
+
+	@Override
+	public EmbeddedStatusIO getStatusReader() {
+		return statusIO;
+	}
+
+	/**
+	 * Only one process can have the database open, so changes are delivered
+	 * to the listeners as they are published.
+	 */
+	@Override
+	public ChangeFeed<MemoryType> getChangeFeed() {
+		return changeFeed;
+	}
+
+	/**
+	 * Forces the log to disk and compacts it when it has grown enough.
+	 *
+	 * Stop with {@link #interrupt()}.
+	 */
+	private class Maintainer extends Thread {
+		Maintainer() {
+			super("embedded-db-maintainer");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					Thread.sleep(SYNC_INTERVAL);
+				} catch (InterruptedException e) {
+					break;
+				}
+				try {
+					log.sync();
+					if (log.getSize() > COMPACTION_FACTOR * Math.max(compactedSize, segmentSize)) {
+						compact();
+					}
+				} catch (IOException e) {
+					logger.error("Unable to compact the log", e);
+				}
+			}
+		}
+	}
+}
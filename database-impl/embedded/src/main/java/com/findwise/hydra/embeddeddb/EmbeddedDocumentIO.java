@@ -0,0 +1,823 @@
+package com.findwise.hydra.embeddeddb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.DatabaseQuery;
+import com.findwise.hydra.Document;
+import com.findwise.hydra.DocumentFile;
+import com.findwise.hydra.DocumentID;
+import com.findwise.hydra.DocumentReader;
+import com.findwise.hydra.DocumentWriter;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.TailableIterator;
+import com.findwise.hydra.embeddeddb.SegmentLog.Pointer;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryDocumentIO;
+import com.findwise.hydra.memorydb.MemoryQuery;
+import com.findwise.hydra.memorydb.MemoryType;
+
+/**
+ * Keeps the active documents in a {@link MemoryDocumentIO}, which answers all
+ * queries, and records every change to them in the log before returning.
+ * Deletions are written to the log before they are made in memory; other
+ * changes are made in memory first, and taken back if they cannot be
+ * written to the log, so that memory never holds what the log would lose.
+ *
+ * A change is recorded as the whole of the document after it, so the last
+ * record for a document is all that is needed to restore it. Documents that
+ * are no longer active, and the files attached to active documents, are only
+ * kept in the log; in memory there is just an index of where to find them.
+ * The most recent inactive documents are kept, up to the number set with
+ * {@link #setInactiveToKeep(long)}.
+ */
+public class EmbeddedDocumentIO implements DocumentWriter<MemoryType>,
+		DocumentReader<MemoryType> {
+
+	public static final long INACTIVE_POLL_INTERVAL = 500;
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddedDocumentIO.class);
+
+	private final SegmentLog log;
+	private final MemoryDocumentIO memory;
+
+	private final ConcurrentHashMap<Object, ConcurrentHashMap<String, FileEntry>> files;
+
+	private final ConcurrentSkipListMap<Long, InactiveEntry> inactive;
+	private final ConcurrentHashMap<Object, Long> inactiveIds;
+	private long inactiveSequence = 0;
+	private volatile long inactiveToKeep = Long.MAX_VALUE;
+
+	/**
+	 * The last record of each active document, while the log is replayed
+	 */
+	private Map<Object, Pointer> replayed = new LinkedHashMap<Object, Pointer>();
+
+	EmbeddedDocumentIO(SegmentLog log) {
+		this.log = log;
+		memory = new MemoryDocumentIO();
+		files = new ConcurrentHashMap<Object, ConcurrentHashMap<String, FileEntry>>();
+		inactive = new ConcurrentSkipListMap<Long, InactiveEntry>();
+		inactiveIds = new ConcurrentHashMap<Object, Long>();
+	}
+
+	/**
+	 * @param inactiveToKeep
+	 *            the number of inactive documents to keep, the oldest are
+	 *            forgotten first
+	 */
+	public void setInactiveToKeep(long inactiveToKeep) {
+		synchronized (log) {
+			this.inactiveToKeep = inactiveToKeep;
+			trimInactive();
+		}
+	}
+
+	void replay(byte type, byte[] payload, Pointer pointer) throws IOException {
+		Records.Input in = new Records.Input(payload);
+		switch (type) {
+		case Records.DOCUMENT:
+			replayed.put(toKey(in.string()), pointer);
+			break;
+		case Records.DOCUMENT_DONE:
+			Object done = toKey(in.string());
+			replayed.remove(done);
+			files.remove(done);
+			addInactive(done, pointer);
+			break;
+		case Records.DOCUMENT_DELETE:
+			Object deleted = toKey(in.string());
+			replayed.remove(deleted);
+			files.remove(deleted);
+			break;
+		case Records.DOCUMENT_CLEAR:
+			replayed.clear();
+			files.clear();
+			break;
+		case Records.FILE:
+			FileEntry file = new FileEntry(toKey(in.string()), in.string(), pointer);
+			getFiles(file.document, true).put(file.name, file);
+			break;
+		case Records.FILE_DELETE:
+			Object document = toKey(in.string());
+			Map<String, FileEntry> byName = getFiles(document, false);
+			if (byName != null) {
+				byName.remove(in.string());
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Loads the active documents found in the log into memory.
+	 */
+	void finishReplay() throws IOException {
+		for (Pointer pointer : replayed.values()) {
+			MemoryDocument d = readDocument(pointer);
+			if (d != null) {
+				memory.update(d);
+			}
+		}
+		logger.info("Restored " + replayed.size() + " active and " + inactive.size() + " inactive documents");
+		replayed = null;
+	}
+
+	/**
+	 * Appends everything that is live to the log again, see
+	 * {@link SegmentLog#startCompaction()}.
+	 *
+	 * The log is only locked while each entry is appended, so other changes
+	 * go on meanwhile. Those are appended after the compaction started, and
+	 * so are kept; an entry that has changed since is appended as it is now,
+	 * and one that is gone is skipped.
+	 */
+	void rewrite() throws IOException {
+		// Inactive documents go first, since an active document may have
+		// been inserted again with the ID of one of them
+		for (InactiveEntry entry : inactive.values()) {
+			synchronized (log) {
+				Long sequence = inactiveIds.get(entry.id);
+				if (sequence != null && inactive.get(sequence) == entry) {
+					entry.pointer = log.append(Records.DOCUMENT_DONE, log.read(entry.pointer));
+				}
+			}
+		}
+		for (DocumentID<MemoryType> id : memory.getDocumentIds(new MemoryQuery(), Integer.MAX_VALUE, 0)) {
+			synchronized (log) {
+				MemoryDocument d = memory.getDocumentById(id);
+				if (d != null) {
+					append(Records.DOCUMENT, d);
+				}
+			}
+		}
+		for (Map.Entry<Object, ConcurrentHashMap<String, FileEntry>> byName : files.entrySet()) {
+			for (FileEntry file : byName.getValue().values()) {
+				synchronized (log) {
+					if (files.get(byName.getKey()) == byName.getValue() && byName.getValue().get(file.name) == file) {
+						file.pointer = log.append(Records.FILE, log.read(file.pointer));
+					}
+				}
+			}
+		}
+	}
+
+	private Object toKey(String idJson) {
+		DocumentID<MemoryType> id = memory.toDocumentIdFromJson(idJson);
+		return id == null ? null : id.getID();
+	}
+
+	private static Object key(DocumentID<MemoryType> id) {
+		return id == null ? null : id.getID();
+	}
+
+	private Map<String, FileEntry> getFiles(Object document, boolean create) {
+		if (document == null) {
+			return null;
+		}
+		ConcurrentHashMap<String, FileEntry> byName = files.get(document);
+		if (byName == null && create) {
+			ConcurrentHashMap<String, FileEntry> created = new ConcurrentHashMap<String, FileEntry>();
+			byName = files.putIfAbsent(document, created);
+			if (byName == null) {
+				byName = created;
+			}
+		}
+		return byName;
+	}
+
+	private void append(byte type, MemoryDocument d) throws IOException {
+		log.append(type, new Records.Output().string(d.getID().toJSON()).string(d.toJson()).toByteArray());
+	}
+
+	/**
+	 * Records the current state of an active document.
+	 */
+	private boolean record(MemoryDocument d) {
+		if (d == null) {
+			return false;
+		}
+		try {
+			append(Records.DOCUMENT, d);
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to write document " + d.getID() + " to the log", e);
+			return false;
+		}
+	}
+
+	private MemoryDocument readDocument(Pointer pointer) throws IOException {
+		Records.Input in = new Records.Input(log.read(pointer));
+		in.string();
+		MemoryDocument d = new MemoryDocument();
+		try {
+			d.fromJson(in.string());
+		} catch (JsonException e) {
+			logger.error("Unable to read the document at " + pointer, e);
+			return null;
+		}
+		return d;
+	}
+
+	private void addInactive(Object id, Pointer pointer) {
+		Long previous = inactiveIds.remove(id);
+		if (previous != null) {
+			inactive.remove(previous);
+		}
+		long sequence = ++inactiveSequence;
+		inactive.put(sequence, new InactiveEntry(id, pointer));
+		inactiveIds.put(id, sequence);
+		trimInactive();
+		synchronized (inactive) {
+			inactive.notifyAll();
+		}
+	}
+
+	private void trimInactive() {
+		while (inactive.size() > inactiveToKeep) {
+			Map.Entry<Long, InactiveEntry> oldest = inactive.pollFirstEntry();
+			inactiveIds.remove(oldest.getValue().id);
+		}
+	}
+
+	/**
+	 * @return the first inactive document matching the query, that became
+	 *         inactive after the one with the given sequence number, or null if
+	 *         there is none
+	 */
+	Map.Entry<Long, MemoryDocument> getInactiveAfter(long sequence, MemoryQuery query) {
+		Map.Entry<Long, InactiveEntry> entry = inactive.higherEntry(sequence);
+		while (entry != null) {
+			MemoryDocument d = readInactive(entry.getValue());
+			if (d != null && d.matches(query)) {
+				return new AbstractMap.SimpleImmutableEntry<Long, MemoryDocument>(entry.getKey(), d);
+			}
+			entry = inactive.higherEntry(entry.getKey());
+		}
+		return null;
+	}
+
+	/**
+	 * Waits until a document becomes inactive, or the timeout passes.
+	 */
+	void awaitInactive(long timeout) throws InterruptedException {
+		synchronized (inactive) {
+			inactive.wait(timeout);
+		}
+	}
+
+	private MemoryDocument readInactive(InactiveEntry entry) {
+		try {
+			synchronized (log) {
+				// Compaction moves the entry under the same lock
+				return readDocument(entry.pointer);
+			}
+		} catch (IOException e) {
+			logger.debug("The inactive document " + entry.id + " is no longer in the log", e);
+			return null;
+		}
+	}
+
+	@Override
+	public MemoryDocument getDocument(DatabaseQuery<MemoryType> q) {
+		return memory.getDocument(q);
+	}
+
+	@Override
+	public MemoryDocument getDocumentById(DocumentID<MemoryType> id) {
+		return memory.getDocumentById(id);
+	}
+
+	@Override
+	public DatabaseDocument<MemoryType> getDocumentById(DocumentID<MemoryType> id, boolean includeInactive) {
+		MemoryDocument d = memory.getDocumentById(id);
+		if (d == null && includeInactive && key(id) != null) {
+			Long sequence = inactiveIds.get(key(id));
+			InactiveEntry entry = (sequence != null) ? inactive.get(sequence) : null;
+			if (entry != null) {
+				d = readInactive(entry);
+			}
+		}
+		return d;
+	}
+
+	@Override
+	public TailableIterator<MemoryType> getInactiveIterator() {
+		return getInactiveIterator(new MemoryQuery());
+	}
+
+	@Override
+	public TailableIterator<MemoryType> getInactiveIterator(DatabaseQuery<MemoryType> query) {
+		return new EmbeddedTailableIterator(this, (MemoryQuery) query);
+	}
+
+	@Override
+	public List<DatabaseDocument<MemoryType>> getDocuments(DatabaseQuery<MemoryType> q, int limit) {
+		return memory.getDocuments(q, limit);
+	}
+
+	@Override
+	public List<DatabaseDocument<MemoryType>> getDocuments(DatabaseQuery<MemoryType> q, int limit, int skip) {
+		return memory.getDocuments(q, limit, skip);
+	}
+
+	@Override
+	public List<DocumentID<MemoryType>> getDocumentIds(DatabaseQuery<MemoryType> q, int limit, int skip) {
+		return memory.getDocumentIds(q, limit, skip);
+	}
+
+	@Override
+	public long getNumberOfDocuments(DatabaseQuery<MemoryType> q) {
+		return memory.getNumberOfDocuments(q);
+	}
+
+	@Override
+	public DocumentFile<MemoryType> getDocumentFile(DatabaseDocument<MemoryType> d, String fileName) {
+		Map<String, FileEntry> byName = getFiles(key(d.getID()), false);
+		FileEntry file = (byName != null) ? byName.get(fileName) : null;
+		if (file == null) {
+			return null;
+		}
+		try {
+			Records.Input in;
+			synchronized (log) {
+				in = new Records.Input(log.read(file.pointer));
+			}
+			in.string();
+			in.string();
+			String stage = in.string();
+			Date uploadDate = new Date(in.number());
+			String encoding = in.string();
+			String mimetype = in.string();
+			DocumentFile<MemoryType> df = new DocumentFile<MemoryType>(d.getID(), fileName,
+					new ByteArrayInputStream(in.bytes()), stage, uploadDate);
+			df.setEncoding(encoding);
+			df.setMimetype(mimetype);
+			return df;
+		} catch (IOException e) {
+			logger.error("Unable to read file " + fileName + " of document " + d.getID(), e);
+			return null;
+		}
+	}
+
+	@Override
+	public List<String> getDocumentFileNames(DatabaseDocument<MemoryType> d) {
+		Map<String, FileEntry> byName = getFiles(key(d.getID()), false);
+		if (byName == null) {
+			return new ArrayList<String>();
+		}
+		return new ArrayList<String>(byName.keySet());
+	}
+
+	@Override
+	public long getActiveDatabaseSize() {
+		return memory.getActiveDatabaseSize();
+	}
+
+	@Override
+	public long getInactiveDatabaseSize() {
+		return inactive.size();
+	}
+
+	@Override
+	public MemoryDocument getAndTag(DatabaseQuery<MemoryType> query, String... tag) {
+		synchronized (log) {
+			MemoryDocument d = memory.getAndTag(query, tag);
+			if (d != null && !record(d)) {
+				untag(d, tag);
+				return null;
+			}
+			return d;
+		}
+	}
+
+	@Override
+	public Collection<DatabaseDocument<MemoryType>> getAndTag(DatabaseQuery<MemoryType> query, int n, String... tag) {
+		synchronized (log) {
+			List<DatabaseDocument<MemoryType>> recorded = new ArrayList<DatabaseDocument<MemoryType>>();
+			for (DatabaseDocument<MemoryType> d : memory.getAndTag(query, n, tag)) {
+				if (record((MemoryDocument) d)) {
+					recorded.add(d);
+				} else {
+					untag((MemoryDocument) d, tag);
+				}
+			}
+			return recorded;
+		}
+	}
+
+	/**
+	 * Takes back the tags of a document that was fetched, but could not be
+	 * recorded. The query only matches documents that none of the stages had
+	 * fetched before.
+	 */
+	private void untag(MemoryDocument d, String... tag) {
+		for (String t : tag) {
+			d.removeFetchedBy(t);
+		}
+		memory.update(d);
+	}
+
+	@Override
+	public boolean markTouched(DocumentID<MemoryType> id, String tag) {
+		synchronized (log) {
+			Undo undo = Undo.of(memory.getDocumentById(id), Document.TOUCHED_METADATA_TAG);
+			return memory.markTouched(id, tag) && recordOrUndo(undo);
+		}
+	}
+
+	@Override
+	public boolean markProcessed(DatabaseDocument<MemoryType> d, String stage) {
+		synchronized (log) {
+			Undo undo = Undo.of(memory.getDocumentById(d.getID()), Document.PROCESSED_METADATA_FLAG);
+			return memory.markProcessed(d, stage) && recordDone(d, undo);
+		}
+	}
+
+	@Override
+	public boolean markDiscarded(DatabaseDocument<MemoryType> d, String stage) {
+		synchronized (log) {
+			Undo undo = Undo.of(memory.getDocumentById(d.getID()), Document.DISCARDED_METADATA_FLAG);
+			return memory.markDiscarded(d, stage) && recordDone(d, undo);
+		}
+	}
+
+	@Override
+	public boolean markFailed(DatabaseDocument<MemoryType> d, String stage) {
+		synchronized (log) {
+			Undo undo = Undo.of(memory.getDocumentById(d.getID()), Document.FAILED_METADATA_FLAG);
+			return memory.markFailed(d, stage) && recordDone(d, undo);
+		}
+	}
+
+	/**
+	 * Records a document that is no longer active, and forgets about its
+	 * files. If it cannot be recorded, it is made active again.
+	 */
+	private boolean recordDone(DatabaseDocument<MemoryType> d, Undo undo) {
+		Object id = key(d.getID());
+		try {
+			Pointer pointer = log.append(Records.DOCUMENT_DONE,
+					new Records.Output().string(d.getID().toJSON()).string(d.toJson()).toByteArray());
+			files.remove(id);
+			addInactive(id, pointer);
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to write document " + d.getID() + " to the log", e);
+			undo(undo);
+			return false;
+		}
+	}
+
+	/**
+	 * Records an active document after a change to it was made in memory, or
+	 * puts back what the change overwrote if it could not be recorded.
+	 */
+	private boolean recordOrUndo(Undo undo) {
+		if (record(undo.document)) {
+			return true;
+		}
+		undo(undo);
+		return false;
+	}
+
+	private void undo(Undo undo) {
+		undo.apply();
+		// Stores the document again if it was removed, and reindexes it
+		memory.update(undo.document);
+	}
+
+	@Override
+	public boolean markPending(DatabaseDocument<MemoryType> d, String stage) {
+		synchronized (log) {
+			Undo undo = Undo.of(memory.getDocumentById(d.getID()), Document.PENDING_METADATA_FLAG);
+			return memory.markPending(d, stage) && recordOrUndo(undo);
+		}
+	}
+
+	@Override
+	public Set<DocumentID<MemoryType>> markAll(Collection<DatabaseDocument<MemoryType>> docs, Document.Status status, String stage) {
+		Set<DocumentID<MemoryType>> marked = new HashSet<DocumentID<MemoryType>>();
+		synchronized (log) {
+			for (DatabaseDocument<MemoryType> d : docs) {
+				MemoryDocument stored = memory.getDocumentById(d.getID());
+				if (stored == null) {
+					continue;
+				}
+				MemoryDocument merged = stored.copy();
+				merged.putAll(d);
+				if (mark(merged, status, stage)) {
+					marked.add(merged.getID());
+				}
+			}
+		}
+		return marked;
+	}
+
+	private boolean mark(MemoryDocument d, Document.Status status, String stage) {
+		switch (status) {
+		case PROCESSED:
+			return markProcessed(d, stage);
+		case DISCARDED:
+			return markDiscarded(d, stage);
+		case FAILED:
+			return markFailed(d, stage);
+		case PENDING:
+			return markPending(d, stage);
+		default:
+			throw new IllegalArgumentException("Unable to mark documents with status " + status);
+		}
+	}
+
+	@Override
+	public boolean insert(DatabaseDocument<MemoryType> d) {
+		synchronized (log) {
+			if (!memory.insert(d)) {
+				return false;
+			}
+			if (record((MemoryDocument) d)) {
+				return true;
+			}
+			memory.delete(d);
+			return false;
+		}
+	}
+
+	@Override
+	public Set<DocumentID<MemoryType>> insert(Collection<DatabaseDocument<MemoryType>> docs) {
+		Set<DocumentID<MemoryType>> inserted = new HashSet<DocumentID<MemoryType>>();
+		synchronized (log) {
+			for (DatabaseDocument<MemoryType> d : docs) {
+				if (insert(d)) {
+					inserted.add(d.getID());
+				}
+			}
+		}
+		return inserted;
+	}
+
+	@Override
+	public boolean insert(DatabaseDocument<MemoryType> d, List<DocumentFile<MemoryType>> attachments) {
+		if (attachments == null || attachments.isEmpty()) {
+			return insert(d);
+		}
+
+		d.putMetadataField(Document.COMMITTING_METADATA_FLAG, true);
+
+		if (!insert(d)) {
+			return false;
+		}
+
+		for (DocumentFile<MemoryType> attachment : attachments) {
+			attachment.setDocumentId(d.getID());
+			try {
+				write(attachment);
+			} catch (IOException e) {
+				logger.error(String.format("Exception while writing filename:%s for id:%s",
+						attachment.getFileName(), d.getID()), e);
+				delete(d);
+				return false;
+			}
+		}
+
+		d.putMetadataField(Document.COMMITTING_METADATA_FLAG, false);
+		return update(d);
+	}
+
+	@Override
+	public boolean update(DatabaseDocument<MemoryType> d) {
+		return update(d, true);
+	}
+
+	@Override
+	public Set<DocumentID<MemoryType>> update(Collection<DatabaseDocument<MemoryType>> docs) {
+		Set<DocumentID<MemoryType>> updated = new HashSet<DocumentID<MemoryType>>();
+		synchronized (log) {
+			for (DatabaseDocument<MemoryType> d : docs) {
+				if (update(d)) {
+					updated.add(d.getID());
+				}
+			}
+		}
+		return updated;
+	}
+
+	@Override
+	public boolean updateFields(DatabaseDocument<MemoryType> d) {
+		return update(d, false);
+	}
+
+	private boolean update(DatabaseDocument<MemoryType> d, boolean upsert) {
+		MemoryDocument md = (MemoryDocument) d;
+		synchronized (log) {
+			MemoryDocument stored = memory.getDocumentById(d.getID());
+			Undo undo = null;
+			if (stored != null) {
+				undo = new Undo(stored).content(md.getTouchedContent()).metadata(md.getTouchedMetadata());
+			}
+			if (!(upsert ? memory.update(d) : memory.updateFields(d))) {
+				return false;
+			}
+			if (undo != null) {
+				return recordOrUndo(undo);
+			}
+			if (record(memory.getDocumentById(d.getID()))) {
+				return true;
+			}
+			memory.delete(d);
+			return false;
+		}
+	}
+
+	@Override
+	public void delete(DatabaseDocument<MemoryType> d) {
+		synchronized (log) {
+			try {
+				log.append(Records.DOCUMENT_DELETE, new Records.Output().string(d.getID().toJSON()).toByteArray());
+			} catch (IOException e) {
+				logger.error("Unable to write the deletion of document " + d.getID() + " to the log", e);
+				return;
+			}
+			memory.delete(d);
+			files.remove(key(d.getID()));
+		}
+	}
+
+	@Override
+	public boolean deleteDocumentFile(DatabaseDocument<MemoryType> d, String fileName) {
+		synchronized (log) {
+			Map<String, FileEntry> byName = getFiles(key(d.getID()), false);
+			if (byName == null || !byName.containsKey(fileName)) {
+				return false;
+			}
+			try {
+				log.append(Records.FILE_DELETE,
+						new Records.Output().string(d.getID().toJSON()).string(fileName).toByteArray());
+				byName.remove(fileName);
+				return true;
+			} catch (IOException e) {
+				logger.error("Unable to write the deletion of file " + fileName + " to the log", e);
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public void deleteAll() {
+		synchronized (log) {
+			try {
+				log.append(Records.DOCUMENT_CLEAR, new Records.Output().number(System.currentTimeMillis()).toByteArray());
+			} catch (IOException e) {
+				logger.error("Unable to write the deletion of all documents to the log", e);
+				return;
+			}
+			memory.deleteAll();
+			files.clear();
+		}
+	}
+
+	@Override
+	public void write(DocumentFile<MemoryType> df) throws IOException {
+		if (key(df.getDocumentId()) == null) {
+			throw new IOException("Unable to write file " + df.getFileName() + " without a document id");
+		}
+		df.setUploadDate(new Date());
+		byte[] content = IOUtils.toByteArray(df.getStream());
+		df.getStream().close();
+		byte[] payload = new Records.Output()
+				.string(df.getDocumentId().toJSON())
+				.string(df.getFileName())
+				.string(df.getSavedByStage())
+				.number(df.getUploadDate().getTime())
+				.string(df.getEncoding())
+				.string(df.getMimetype())
+				.bytes(content)
+				.toByteArray();
+		synchronized (log) {
+			Pointer pointer = log.append(Records.FILE, payload);
+			Object id = key(df.getDocumentId());
+			getFiles(id, true).put(df.getFileName(), new FileEntry(id, df.getFileName(), pointer));
+		}
+	}
+
+	@Override
+	public void prepare() {
+
+	}
+
+	@Override
+	public DocumentID<MemoryType> toDocumentId(Object jsonPrimitive) {
+		return memory.toDocumentId(jsonPrimitive);
+	}
+
+	@Override
+	public DocumentID<MemoryType> toDocumentIdFromJson(String json) {
+		return memory.toDocumentIdFromJson(json);
+	}
+
+	private static class FileEntry {
+		final Object document;
+		final String name;
+		volatile Pointer pointer;
+
+		FileEntry(Object document, String name, Pointer pointer) {
+			this.document = document;
+			this.name = name;
+			this.pointer = pointer;
+		}
+	}
+
+	/**
+	 * The parts of an active document that a change is about to overwrite, so
+	 * that they can be put back if the change cannot be written to the log.
+	 */
+	private static class Undo {
+		final MemoryDocument document;
+		private final Document.Action action;
+		private final Map<String, Object> content = new HashMap<String, Object>();
+		private final Map<String, Object> metadata = new HashMap<String, Object>();
+
+		Undo(MemoryDocument document) {
+			this.document = document;
+			action = document.getAction();
+		}
+
+		/**
+		 * @return an undo of a change to one metadata field of the document,
+		 *         or null if there is no document
+		 */
+		static Undo of(MemoryDocument document, String metadataField) {
+			if (document == null) {
+				return null;
+			}
+			return new Undo(document).metadata(Collections.singleton(metadataField));
+		}
+
+		Undo content(Collection<String> fields) {
+			for (String field : fields) {
+				content.put(field, document.getContentMap().get(field));
+			}
+			return this;
+		}
+
+		@SuppressWarnings("unchecked")
+		Undo metadata(Collection<? extends String> fields) {
+			for (String field : fields) {
+				Object value = document.getMetadataMap().get(field);
+				if (value instanceof Map) {
+					// Tags are added to the map in place
+					value = new HashMap<String, Object>((Map<String, Object>) value);
+				}
+				metadata.put(field, value);
+			}
+			return this;
+		}
+
+		void apply() {
+			put(document.getContentMap(), content);
+			put(document.getMetadataMap(), metadata);
+			if (document.getAction() != action) {
+				document.setAction(action);
+			}
+		}
+
+		private static void put(Map<String, Object> target, Map<String, Object> values) {
+			for (Map.Entry<String, Object> e : values.entrySet()) {
+				if (e.getValue() == null) {
+					target.remove(e.getKey());
+				} else {
+					target.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+
+	private static class InactiveEntry {
+		final Object id;
+		volatile Pointer pointer;
+
+		InactiveEntry(Object id, Pointer pointer) {
+			this.id = id;
+			this.pointer = pointer;
+		}
+	}
+}
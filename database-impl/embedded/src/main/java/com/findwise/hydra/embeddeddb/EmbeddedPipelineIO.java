@@ -0,0 +1,407 @@
+package com.findwise.hydra.embeddeddb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.ChangeFeed;
+import com.findwise.hydra.DatabaseFile;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.Pipeline;
+import com.findwise.hydra.PipelineReader;
+import com.findwise.hydra.PipelineWriter;
+import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.Stage;
+import com.findwise.hydra.Stage.Mode;
+import com.findwise.hydra.StageGroup;
+import com.findwise.hydra.embeddeddb.SegmentLog.Pointer;
+import com.findwise.hydra.memorydb.MemoryType;
+
+/**
+ * Keeps the stages and groups of the pipeline in memory, in the same shape
+ * as they are stored in MongoDB, and records all of them in the log whenever
+ * any of them change. Pipeline files are only kept in the log.
+ */
+public class EmbeddedPipelineIO implements PipelineReader, PipelineWriter {
+	public static final String STAGE_KEY = "stage";
+	public static final String ACTIVE_KEY = "active";
+	public static final String GROUP_KEY = "group";
+	public static final String NAME_KEY = "name";
+	public static final String FILE_KEY = "file";
+	public static final String PROPERTIES_KEY = "properties";
+	public static final String PROPERTIES_DATE_KEY = "changed";
+
+	private static final String STAGES = "stages";
+	private static final String GROUPS = "groups";
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddedPipelineIO.class);
+
+	private final SegmentLog log;
+	private ChangeFeed<MemoryType> changeFeed;
+
+	private Map<String, Map<String, Object>> stages = new LinkedHashMap<String, Map<String, Object>>();
+	private Map<String, Map<String, Object>> groups = new LinkedHashMap<String, Map<String, Object>>();
+	private final Map<Object, PipelineFile> files = new LinkedHashMap<Object, PipelineFile>();
+
+	EmbeddedPipelineIO(SegmentLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * @param changeFeed
+	 *            told about every change to the pipeline, once it has been
+	 *            written in full
+	 */
+	public void setChangeFeed(ChangeFeed<MemoryType> changeFeed) {
+		this.changeFeed = changeFeed;
+	}
+
+	private void publishChange() {
+		if (changeFeed != null) {
+			changeFeed.publishPipelineChanged();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	void replay(byte type, byte[] payload, Pointer pointer) throws IOException {
+		Records.Input in = new Records.Input(payload);
+		switch (type) {
+		case Records.PIPELINE:
+			try {
+				Map<String, Object> state = SerializationUtils.fromJson(in.string());
+				stages = new LinkedHashMap<String, Map<String, Object>>((Map<String, Map<String, Object>>) state.get(STAGES));
+				groups = new LinkedHashMap<String, Map<String, Object>>((Map<String, Map<String, Object>>) state.get(GROUPS));
+			} catch (JsonException e) {
+				throw new IOException("Unable to read the pipeline at " + pointer, e);
+			}
+			break;
+		case Records.PIPELINE_FILE:
+			Object id = toId(in.string());
+			files.put(id, new PipelineFile(id, in.string(), new Date(in.number()), pointer));
+			break;
+		case Records.PIPELINE_FILE_DELETE:
+			files.remove(toId(in.string()));
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Appends the pipeline and its files to the log again, see
+	 * {@link SegmentLog#startCompaction()}.
+	 */
+	void rewrite() throws IOException {
+		synchronized (log) {
+			append();
+			for (PipelineFile file : files.values()) {
+				file.pointer = log.append(Records.PIPELINE_FILE, log.read(file.pointer));
+			}
+		}
+	}
+
+	private void append() throws IOException {
+		Map<String, Object> state = new HashMap<String, Object>();
+		state.put(STAGES, stages);
+		state.put(GROUPS, groups);
+		log.append(Records.PIPELINE, new Records.Output().string(SerializationUtils.toJson(state)).toByteArray());
+	}
+
+	private static Object toId(String json) throws IOException {
+		try {
+			return SerializationUtils.toObject(json);
+		} catch (JsonException e) {
+			throw new IOException("Unable to read file id " + json, e);
+		}
+	}
+
+	@Override
+	public Pipeline getPipeline() {
+		return getPipeline(Stage.Mode.ACTIVE);
+	}
+
+	@Override
+	public Pipeline getDebugPipeline() {
+		return getPipeline(Stage.Mode.DEBUG);
+	}
+
+	private Pipeline getPipeline(Stage.Mode mode) {
+		Pipeline p = new Pipeline();
+		synchronized (log) {
+			for (Map<String, Object> map : stages.values()) {
+				if (mode.toString().equals(map.get(ACTIVE_KEY))) {
+					String group = getGroupName(map);
+					if (!p.hasGroup(group)) {
+						p.addGroup(new StageGroup(group));
+					}
+					p.getGroup(group).addStage(getStage(map));
+				}
+			}
+			for (Map<String, Object> map : groups.values()) {
+				if (mode.toString().equals(map.get(ACTIVE_KEY))) {
+					addGroup(p, getGroup(map));
+				}
+			}
+		}
+		return p;
+	}
+
+	private void addGroup(Pipeline p, StageGroup g) {
+		if (p.hasGroup(g.getName())) {
+			p.getGroup(g.getName()).setProperties(g.toPropertiesMap());
+			p.getGroup(g.getName()).setPropertiesModifiedDate(g.getPropertiesModifiedDate());
+		} else {
+			p.addGroup(g);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private StageGroup getGroup(Map<String, Object> map) {
+		StageGroup g = new StageGroup((String) map.get(NAME_KEY), (Map<String, Object>) map.get(PROPERTIES_KEY));
+		g.setPropertiesModifiedDate((Date) map.get(PROPERTIES_DATE_KEY));
+		return g;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Stage getStage(Map<String, Object> map) {
+		Stage stage = new Stage((String) map.get(STAGE_KEY), getFile(map.get(FILE_KEY)));
+		stage.setMode(Mode.valueOf((String) map.get(ACTIVE_KEY)));
+		stage.setPropertiesModifiedDate((Date) map.get(PROPERTIES_DATE_KEY));
+		HashMap<String, Object> properties = new HashMap<String, Object>();
+		if (map.get(PROPERTIES_KEY) != null) {
+			properties.putAll((Map<String, Object>) map.get(PROPERTIES_KEY));
+		}
+		stage.setProperties(properties);
+		return stage;
+	}
+
+	private String getGroupName(Map<String, Object> map) {
+		if (map.containsKey(GROUP_KEY)) {
+			return (String) map.get(GROUP_KEY);
+		} else {
+			return (String) map.get(STAGE_KEY);
+		}
+	}
+
+	@Override
+	public void write(Pipeline p) throws IOException {
+		synchronized (log) {
+			for (Map<String, Object> map : stages.values()) {
+				if (Stage.Mode.ACTIVE.toString().equals(map.get(ACTIVE_KEY))) {
+					map.put(ACTIVE_KEY, Stage.Mode.INACTIVE.toString());
+				}
+			}
+			for (StageGroup g : p.getStageGroups()) {
+				groups.put(g.getName(), toMap(g));
+				for (Stage s : g.getStages()) {
+					stages.put(s.getName(), toMap(s, g.getName()));
+				}
+			}
+			append();
+		}
+		publishChange();
+	}
+
+	private Map<String, Object> toMap(StageGroup group) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put(NAME_KEY, group.getName());
+		map.put(PROPERTIES_DATE_KEY, group.isPropertiesChanged() ? new Date() : group.getPropertiesModifiedDate());
+		map.put(PROPERTIES_KEY, group.toPropertiesMap());
+
+		Mode mode = Mode.INACTIVE;
+		for (Stage s : group.getStages()) {
+			if (s.getMode() == Mode.ACTIVE) {
+				mode = Mode.ACTIVE;
+			} else if (s.getMode() == Mode.DEBUG && mode != Mode.ACTIVE) {
+				mode = Mode.DEBUG;
+			}
+		}
+		map.put(ACTIVE_KEY, mode.toString());
+		return map;
+	}
+
+	private Map<String, Object> toMap(Stage s, String group) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put(STAGE_KEY, s.getName());
+		map.put(GROUP_KEY, group);
+		map.put(ACTIVE_KEY, s.getMode().toString());
+		map.put(PROPERTIES_DATE_KEY, s.isPropertiesChanged() ? new Date() : s.getPropertiesModifiedDate());
+		if (s.getProperties() != null) {
+			map.put(PROPERTIES_KEY, new HashMap<String, Object>(s.getProperties()));
+		}
+		if (s.getDatabaseFile() != null) {
+			map.put(FILE_KEY, s.getDatabaseFile().getId());
+		}
+		return map;
+	}
+
+	@Override
+	@Deprecated
+	public void removeInactiveFiles() {
+		synchronized (log) {
+			Set<Object> used = new HashSet<Object>();
+			for (Map<String, Object> map : stages.values()) {
+				if (!Stage.Mode.INACTIVE.toString().equals(map.get(ACTIVE_KEY))) {
+					used.add(map.get(FILE_KEY));
+				}
+			}
+			for (Object id : new ArrayList<Object>(files.keySet())) {
+				if (!used.contains(id)) {
+					delete(id);
+				}
+			}
+		}
+	}
+
+	@Override
+	public Object save(String fileName, InputStream file) {
+		Object id = UUID.randomUUID().toString();
+		return write(id, fileName, file) ? id : null;
+	}
+
+	@Override
+	public boolean save(Object id, String fileName, InputStream file) {
+		if (!write(id, fileName, file)) {
+			return false;
+		}
+		publishChange();
+		return true;
+	}
+
+	private boolean write(Object id, String fileName, InputStream file) {
+		try {
+			Date uploadDate = new Date();
+			byte[] payload = new Records.Output()
+					.string(SerializationUtils.toJson(id))
+					.string(fileName)
+					.number(uploadDate.getTime())
+					.bytes(IOUtils.toByteArray(file))
+					.toByteArray();
+			synchronized (log) {
+				files.put(id, new PipelineFile(id, fileName, uploadDate, log.append(Records.PIPELINE_FILE, payload)));
+			}
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to save file " + fileName, e);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean deleteFile(Object id) {
+		synchronized (log) {
+			if (!files.containsKey(id) || !delete(id)) {
+				return false;
+			}
+		}
+		publishChange();
+		return true;
+	}
+
+	private boolean delete(Object id) {
+		try {
+			log.append(Records.PIPELINE_FILE_DELETE, new Records.Output().string(SerializationUtils.toJson(id)).toByteArray());
+			files.remove(id);
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to delete file " + id, e);
+			return false;
+		}
+	}
+
+	@Override
+	public void prepare() {}
+
+	@Override
+	public InputStream getStream(DatabaseFile df) {
+		if (df == null) {
+			return null;
+		}
+		synchronized (log) {
+			PipelineFile file = files.get(df.getId());
+			if (file == null) {
+				return null;
+			}
+			try {
+				Records.Input in = new Records.Input(log.read(file.pointer));
+				in.string();
+				in.string();
+				in.number();
+				return new ByteArrayInputStream(in.bytes());
+			} catch (IOException e) {
+				logger.error("Unable to read file " + file.name, e);
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public InputStream getStream(String fileName) {
+		return getStream(getFile(fileName));
+	}
+
+	@Override
+	public List<DatabaseFile> getFiles() {
+		List<DatabaseFile> list = new ArrayList<DatabaseFile>();
+		synchronized (log) {
+			for (PipelineFile file : files.values()) {
+				list.add(file.toDatabaseFile());
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public DatabaseFile getFile(String fileName) {
+		synchronized (log) {
+			for (PipelineFile file : files.values()) {
+				if (file.name.equals(fileName)) {
+					return file.toDatabaseFile();
+				}
+			}
+		}
+		return null;
+	}
+
+	private DatabaseFile getFile(Object id) {
+		synchronized (log) {
+			PipelineFile file = (id != null) ? files.get(id) : null;
+			return (file != null) ? file.toDatabaseFile() : null;
+		}
+	}
+
+	private static class PipelineFile {
+		final Object id;
+		final String name;
+		final Date uploadDate;
+		Pointer pointer;
+
+		PipelineFile(Object id, String name, Date uploadDate, Pointer pointer) {
+			this.id = id;
+			this.name = name;
+			this.uploadDate = uploadDate;
+			this.pointer = pointer;
+		}
+
+		DatabaseFile toDatabaseFile() {
+			DatabaseFile df = new DatabaseFile();
+			df.setId(id);
+			df.setFilename(name);
+			df.setUploadDate(uploadDate);
+			return df;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.findwise.hydra.embeddeddb;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.AbstractPipelineStatus;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.PipelineStatus;
+import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.StatusReader;
+import com.findwise.hydra.StatusWriter;
+import com.findwise.hydra.embeddeddb.SegmentLog.Pointer;
+import com.findwise.hydra.memorydb.MemoryType;
+
+public class EmbeddedStatusIO implements StatusReader<MemoryType>, StatusWriter<MemoryType> {
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddedStatusIO.class);
+
+	private final SegmentLog log;
+	private EmbeddedPipelineStatus status;
+
+	EmbeddedStatusIO(SegmentLog log) {
+		this.log = log;
+	}
+
+	void replay(byte type, byte[] payload, Pointer pointer) throws IOException {
+		if (type == Records.STATUS) {
+			try {
+				status = EmbeddedPipelineStatus.fromJson(new Records.Input(payload).string());
+			} catch (JsonException e) {
+				throw new IOException("Unable to read the status at " + pointer, e);
+			}
+		}
+	}
+
+	/**
+	 * Appends the status to the log again, see
+	 * {@link SegmentLog#startCompaction()}.
+	 */
+	void rewrite() throws IOException {
+		synchronized (log) {
+			if (status != null) {
+				append(status);
+			}
+		}
+	}
+
+	private void append(EmbeddedPipelineStatus s) throws IOException {
+		log.append(Records.STATUS, new Records.Output().string(s.toJson()).toByteArray());
+	}
+
+	@Override
+	public void increment(int processed, int failed, int discarded) {
+		synchronized (log) {
+			if (status == null) {
+				return;
+			}
+			status.setProcessedCount(status.getProcessedCount() + processed);
+			status.setFailedCount(status.getFailedCount() + failed);
+			status.setDiscardedCount(status.getDiscardedCount() + discarded);
+			save(status);
+		}
+	}
+
+	@Override
+	public EmbeddedPipelineStatus getStatus() {
+		return status;
+	}
+
+	@Override
+	public void save(PipelineStatus<MemoryType> s) {
+		synchronized (log) {
+			try {
+				append((EmbeddedPipelineStatus) s);
+				status = (EmbeddedPipelineStatus) s;
+			} catch (IOException e) {
+				logger.error("Unable to write the pipeline status to the log", e);
+			}
+		}
+	}
+
+	@Override
+	public boolean hasStatus() {
+		return status != null;
+	}
+
+	public static class EmbeddedPipelineStatus extends AbstractPipelineStatus<MemoryType> {
+		/**
+		 * The only number kept as a long, see {@link AbstractPipelineStatus}
+		 */
+		private static final String DISCARDS_OLD_KEY = "discardOld";
+
+		/**
+		 * created defaults to NOW
+		 * prepared defaults to false
+		 */
+		public EmbeddedPipelineStatus() {
+			setCreated(new Date());
+			setPrepared(false);
+			setDiscardedCount(0);
+			setProcessedCount(0);
+			setFailedCount(0);
+		}
+
+		public void setCreated(Date date) {
+			getMap().put("created", date);
+		}
+
+		public Date getCreated() {
+			return (Date) getMap().get("created");
+		}
+
+		public void setPrepared(boolean prepared) {
+			getMap().put("prepared", prepared);
+		}
+
+		public boolean isPrepared() {
+			return (Boolean) getMap().get("prepared");
+		}
+
+		String toJson() {
+			return SerializationUtils.toJson(getMap());
+		}
+
+		static EmbeddedPipelineStatus fromJson(String json) throws JsonException {
+			EmbeddedPipelineStatus status = new EmbeddedPipelineStatus();
+			for (Map.Entry<String, Object> e : SerializationUtils.fromJson(json).entrySet()) {
+				Object value = e.getValue();
+				if (value instanceof Number) {
+					// Numbers are read back as the smallest type that holds them
+					if (DISCARDS_OLD_KEY.equals(e.getKey())) {
+						value = ((Number) value).longValue();
+					} else {
+						value = ((Number) value).intValue();
+					}
+				}
+				status.getMap().put(e.getKey(), value);
+			}
+			return status;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.findwise.hydra.embeddeddb;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.TailableIterator;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryQuery;
+import com.findwise.hydra.memorydb.MemoryType;
+
+/**
+ * Iterates over the inactive documents of an {@link EmbeddedDocumentIO} in the
+ * order they became inactive, and then waits for more, until interrupted.
+ */
+public class EmbeddedTailableIterator implements TailableIterator<MemoryType> {
+
+	private static Logger logger = LoggerFactory.getLogger(EmbeddedTailableIterator.class);
+
+	private final EmbeddedDocumentIO io;
+	private final MemoryQuery query;
+
+	private long sequence = 0;
+	private MemoryDocument peeked;
+
+	private volatile boolean closed = false;
+
+	public EmbeddedTailableIterator(EmbeddedDocumentIO io, MemoryQuery query) {
+		this.io = io;
+		this.query = query;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!closed) {
+			if (peeked != null) {
+				return true;
+			}
+			Map.Entry<Long, MemoryDocument> next = io.getInactiveAfter(sequence, query);
+			if (next != null) {
+				sequence = next.getKey();
+				peeked = next.getValue();
+			} else {
+				try {
+					io.awaitInactive(EmbeddedDocumentIO.INACTIVE_POLL_INTERVAL);
+				} catch (InterruptedException e) {
+					logger.info("Interrupt caught while waiting for inactive documents", e);
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public MemoryDocument next() {
+		if (closed || !hasNext()) {
+			return null;
+		}
+		MemoryDocument d = peeked;
+		peeked = null;
+		return d;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("remove() is not supported");
+	}
+
+	@Override
+	public void interrupt() {
+		closed = true;
+	}
+}
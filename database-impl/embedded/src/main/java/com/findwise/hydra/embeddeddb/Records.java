@@ -0,0 +1,115 @@
+package com.findwise.hydra.embeddeddb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * The types of the records in the log, and the encoding of their payloads.
+ */
+final class Records {
+	/**
+	 * The whole of an active document: its ID and its Json
+	 */
+	static final byte DOCUMENT = 1;
+	/**
+	 * A document that is no longer active: its ID and its Json
+	 */
+	static final byte DOCUMENT_DONE = 2;
+	/**
+	 * A deleted document: its ID
+	 */
+	static final byte DOCUMENT_DELETE = 3;
+	/**
+	 * All active documents were deleted: the time
+	 */
+	static final byte DOCUMENT_CLEAR = 4;
+	/**
+	 * A file attached to a document: the document ID, file name, stage,
+	 * upload time, encoding, mime type and content
+	 */
+	static final byte FILE = 5;
+	/**
+	 * A deleted attachment: the document ID and file name
+	 */
+	static final byte FILE_DELETE = 6;
+	/**
+	 * The stages and groups of the pipeline, as Json
+	 */
+	static final byte PIPELINE = 7;
+	/**
+	 * A pipeline file: its ID, name, upload time and content
+	 */
+	static final byte PIPELINE_FILE = 8;
+	/**
+	 * A deleted pipeline file: its ID
+	 */
+	static final byte PIPELINE_FILE_DELETE = 9;
+	/**
+	 * The pipeline status, as Json
+	 */
+	static final byte STATUS = 10;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Records() {}
+
+	static class Output {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		Output string(String s) throws IOException {
+			return bytes(s == null ? null : s.getBytes(UTF8));
+		}
+
+		Output bytes(byte[] b) throws IOException {
+			if (b == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(b.length);
+				out.write(b);
+			}
+			return this;
+		}
+
+		Output number(long l) throws IOException {
+			out.writeLong(l);
+			return this;
+		}
+
+		byte[] toByteArray() throws IOException {
+			out.flush();
+			return bytes.toByteArray();
+		}
+	}
+
+	static class Input {
+		private final DataInputStream in;
+
+		Input(byte[] payload) {
+			in = new DataInputStream(new ByteArrayInputStream(payload));
+		}
+
+		String string() throws IOException {
+			byte[] b = bytes();
+			return b == null ? null : new String(b, UTF8);
+		}
+
+		byte[] bytes() throws IOException {
+			int length = in.readInt();
+			if (length < 0) {
+				return null;
+			}
+			byte[] b = new byte[length];
+			in.readFully(b);
+			return b;
+		}
+
+		long number() throws IOException {
+			return in.readLong();
+		}
+	}
+}
@@ -0,0 +1,420 @@
+package com.findwise.hydra.embeddeddb;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of records, kept in a directory as a sequence of segment
+ * files that are mapped into memory.
+ *
+ * Records are appended to the last segment until it is full, at which point a
+ * new segment is started. Every record is stored as the length of its
+ * payload, a checksum, its type and the payload itself. A record that was only
+ * partly written when the process or the machine went down fails its
+ * checksum, and is dropped along with anything after it when the log is next
+ * opened.
+ *
+ * To compact the log, the owner starts a new segment with
+ * {@link #startCompaction()}, appends everything that is still live, and then
+ * has the segments before it deleted with {@link #finishCompaction(long)}.
+ * The new segment starts with a marker, and another marker is appended once
+ * everything has been rewritten. Other records may be appended in between.
+ * Should the process stop before the second marker, every segment is kept,
+ * and the rewritten records are replayed after the ones they copy; if the
+ * second marker is there, the log is opened as it is after compaction.
+ *
+ * All methods are synchronized on the log, and so is anything that has to
+ * change its own state and append to the log as one step.
+ */
+class SegmentLog {
+	public static final String SEGMENT_PREFIX = "segment-";
+	public static final String SEGMENT_SUFFIX = ".log";
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Length (4), checksum (4) and type (1)
+	 */
+	static final int HEADER_SIZE = 9;
+
+	/**
+	 * Marks where compaction starts and ends, never passed to visitors
+	 */
+	static final byte COMPACTION_START = -1;
+	static final byte COMPACTION_END = -2;
+
+	private static final Logger logger = LoggerFactory.getLogger(SegmentLog.class);
+
+	private final File directory;
+	private final int segmentSize;
+	private final boolean sync;
+
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private Segment current;
+
+	/**
+	 * @param segmentSize
+	 *            the size of a segment file, unless a single record needs a
+	 *            larger one
+	 * @param sync
+	 *            whether to force every record to disk as it is appended,
+	 *            rather than only on {@link #sync()}
+	 */
+	SegmentLog(File directory, int segmentSize, boolean sync) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+	}
+
+	interface Visitor {
+		void visit(byte type, byte[] payload, Pointer pointer) throws IOException;
+	}
+
+	/**
+	 * Where a record is in the log
+	 */
+	static final class Pointer {
+		final long segment;
+		final int offset;
+		final int length;
+
+		Pointer(long segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public String toString() {
+			return segment + ":" + offset;
+		}
+	}
+
+	/**
+	 * Opens the segments in the directory and passes every record in them to
+	 * the visitor, oldest first.
+	 */
+	synchronized void open(final Visitor visitor) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory);
+		}
+		List<Long> numbers = listSegments();
+		if (recoverCompaction(numbers)) {
+			numbers = listSegments();
+		}
+		Visitor records = new Visitor() {
+			@Override
+			public void visit(byte type, byte[] payload, Pointer pointer) throws IOException {
+				if (type != COMPACTION_START && type != COMPACTION_END) {
+					visitor.visit(type, payload, pointer);
+				}
+			}
+		};
+		for (int i = 0; i < numbers.size(); i++) {
+			Segment segment = map(numbers.get(i), -1);
+			segments.put(segment.number, segment);
+			replay(segment, records, i == numbers.size() - 1);
+		}
+		if (segments.isEmpty()) {
+			roll(0);
+		} else {
+			current = segments.lastEntry().getValue();
+		}
+		logger.info("Opened " + segments.size() + " segments in " + directory + ", holding " + getSize() + " bytes");
+	}
+
+	/**
+	 * Finishes a compaction that was interrupted after everything had been
+	 * rewritten, leaving only the segments after it. One that was interrupted
+	 * before is left as it is, since the records after it may be changes
+	 * made while it ran.
+	 *
+	 * @return true if any segments were deleted
+	 */
+	private boolean recoverCompaction(List<Long> numbers) throws IOException {
+		for (int i = numbers.size() - 1; i > 0; i--) {
+			final long first = numbers.get(i);
+			if (getFirstType(first) != COMPACTION_START) {
+				continue;
+			}
+			final boolean[] finished = new boolean[1];
+			for (int j = i; j < numbers.size(); j++) {
+				Segment segment = map(numbers.get(j), -1);
+				try {
+					replay(segment, new Visitor() {
+						@Override
+						public void visit(byte type, byte[] payload, Pointer pointer) {
+							if (type == COMPACTION_END && ByteBuffer.wrap(payload).getLong() == first) {
+								finished[0] = true;
+							}
+						}
+					}, j == numbers.size() - 1);
+				} finally {
+					segment.file.close();
+				}
+			}
+			if (!finished[0]) {
+				logger.warn("Keeping all segments of the log in " + directory + ", a compaction of it was interrupted");
+				return false;
+			}
+			logger.warn("Finishing a compaction of the log in " + directory + " that was interrupted");
+			for (Long number : numbers.subList(0, i)) {
+				delete(number);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private byte getFirstType(long number) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(getFile(number), "r");
+		try {
+			if (file.length() < HEADER_SIZE) {
+				return 0;
+			}
+			file.seek(HEADER_SIZE - 1);
+			return file.readByte();
+		} finally {
+			file.close();
+		}
+	}
+
+	private void replay(Segment segment, Visitor visitor, boolean last) throws IOException {
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int position = 0;
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			buffer.position(position);
+			int length = buffer.getInt();
+			if (length == 0) {
+				break;
+			}
+			long checksum = buffer.getInt() & 0xffffffffL;
+			if (length < 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+				drop(segment, position, last);
+				break;
+			}
+			byte type = buffer.get();
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			if (checksum(type, payload) != checksum) {
+				drop(segment, position, last);
+				break;
+			}
+			visitor.visit(type, payload, new Pointer(segment.number, position, length));
+			position += HEADER_SIZE + length;
+		}
+		segment.position = position;
+	}
+
+	/**
+	 * Clears what follows the last whole record of a segment, so that what is
+	 * appended there later can't be mistaken for what was there before.
+	 */
+	private void drop(Segment segment, int position, boolean last) {
+		if (last) {
+			logger.warn("Dropping a partly written record at the end of segment " + segment.number);
+		} else {
+			logger.error("Segment " + segment.number + " is corrupt from offset " + position
+					+ ", the records after it are lost");
+		}
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(position);
+		byte[] zeroes = new byte[Math.min(8192, buffer.remaining())];
+		while (buffer.hasRemaining()) {
+			buffer.put(zeroes, 0, Math.min(zeroes.length, buffer.remaining()));
+		}
+		segment.buffer.force();
+	}
+
+	/**
+	 * @return where the record was written
+	 */
+	synchronized Pointer append(byte type, byte[] payload) throws IOException {
+		if (payload.length == 0) {
+			// A zero length marks the end of a segment
+			throw new IllegalArgumentException("Records must not be empty");
+		}
+		int needed = HEADER_SIZE + payload.length;
+		if (current == null) {
+			throw new IOException("The log in " + directory + " is not open");
+		}
+		if (current.buffer.capacity() - current.position < needed) {
+			roll(needed);
+		}
+		int offset = current.position;
+		ByteBuffer buffer = current.buffer;
+		buffer.position(offset + 4);
+		buffer.putInt((int) checksum(type, payload));
+		buffer.put(type);
+		buffer.put(payload);
+		// The length goes last, so that a record is never seen before it is whole
+		buffer.putInt(offset, payload.length);
+		current.position += needed;
+		if (sync) {
+			buffer.force();
+		}
+		return new Pointer(current.number, offset, payload.length);
+	}
+
+	/**
+	 * @return the payload of the record
+	 */
+	synchronized byte[] read(Pointer pointer) throws IOException {
+		Segment segment = segments.get(pointer.segment);
+		if (segment == null) {
+			throw new IOException("Segment " + pointer.segment + " is no longer part of the log");
+		}
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(pointer.offset + HEADER_SIZE);
+		byte[] payload = new byte[pointer.length];
+		buffer.get(payload);
+		return payload;
+	}
+
+	/**
+	 * Forces everything appended so far to disk.
+	 */
+	synchronized void sync() {
+		if (current != null) {
+			current.buffer.force();
+		}
+	}
+
+	/**
+	 * @return the number of bytes taken up by records
+	 */
+	synchronized long getSize() {
+		long size = 0;
+		for (Segment s : segments.values()) {
+			size += s.position;
+		}
+		return size;
+	}
+
+	/**
+	 * Starts a new segment, from which the live records are to be appended
+	 * again.
+	 *
+	 * @return the number of the new segment
+	 */
+	synchronized long startCompaction() throws IOException {
+		roll(0);
+		long first = current.number;
+		append(COMPACTION_START, ByteBuffer.allocate(8).putLong(first).array());
+		return first;
+	}
+
+	/**
+	 * Deletes the segments before the one compaction started in, once what
+	 * was appended since has been forced to disk.
+	 */
+	synchronized void finishCompaction(long first) throws IOException {
+		append(COMPACTION_END, ByteBuffer.allocate(8).putLong(first).array());
+		current.buffer.force();
+		List<Long> obsolete = new ArrayList<Long>(segments.headMap(first).keySet());
+		for (Long number : obsolete) {
+			segments.remove(number).file.close();
+			delete(number);
+		}
+		logger.info("Compacted the log in " + directory + " to " + getSize() + " bytes");
+	}
+
+	synchronized void close() {
+		for (Segment s : segments.values()) {
+			s.buffer.force();
+			try {
+				s.file.close();
+			} catch (IOException e) {
+				logger.error("Unable to close segment " + s.number, e);
+			}
+		}
+		segments.clear();
+		current = null;
+	}
+
+	private void roll(int needed) throws IOException {
+		if (current != null) {
+			current.buffer.force();
+		}
+		long number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		current = map(number, Math.max(segmentSize, needed));
+		segments.put(number, current);
+	}
+
+	/**
+	 * @param size
+	 *            the size to create the file with, or -1 to map an existing
+	 *            file as it is
+	 */
+	private Segment map(long number, int size) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(getFile(number), "rw");
+		if (size >= 0) {
+			file.setLength(size);
+		}
+		MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+		return new Segment(number, file, buffer);
+	}
+
+	private void delete(long number) throws IOException {
+		if (!getFile(number).delete()) {
+			throw new IOException("Unable to delete " + getFile(number));
+		}
+	}
+
+	private File getFile(long number) {
+		return new File(directory, String.format("%s%012d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+
+	private List<Long> listSegments() {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		List<Long> numbers = new ArrayList<Long>();
+		if (names != null) {
+			for (String name : names) {
+				try {
+					numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring unknown file " + name + " in " + directory);
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	private static long checksum(byte type, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		return crc.getValue();
+	}
+
+	private static class Segment {
+		final long number;
+		final RandomAccessFile file;
+		final MappedByteBuffer buffer;
+		int position;
+
+		Segment(long number, RandomAccessFile file, MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.findwise.hydra.embeddeddb;
+
+import java.io.IOException;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.findwise.hydra.DatabaseConfiguration;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.Document.Action;
+import com.findwise.hydra.Document.Status;
+import com.findwise.hydra.DocumentFile;
+import com.findwise.hydra.DocumentID;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EmbeddedConnectorTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DatabaseConfiguration conf;
+	private EmbeddedConnector connector;
+
+	@Before
+	public void setUp() throws IOException {
+		conf = mock(DatabaseConfiguration.class);
+		when(conf.getDatabaseUrl()).thenReturn(EmbeddedConnector.URL_PREFIX + folder.getRoot().getAbsolutePath());
+		when(conf.getOldMaxCount()).thenReturn(1000);
+		when(conf.getOldMaxSize()).thenReturn(10);
+		connector = connect();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		connector.close();
+	}
+
+	private EmbeddedConnector connect() throws IOException {
+		EmbeddedConnector c = new EmbeddedConnector(conf);
+		c.connect(false);
+		return c;
+	}
+
+	private void reconnect() throws IOException {
+		connector.close();
+		connector = connect();
+	}
+
+	private MemoryDocument insert(String name) {
+		MemoryDocument d = new MemoryDocument();
+		d.setAction(Action.ADD);
+		d.putContentField("name", name);
+		assertTrue(connector.getDocumentWriter().insert(d));
+		return d;
+	}
+
+	@Test
+	public void testDirectoryFromUrl() {
+		assertTrue(EmbeddedConnector.isEmbeddedUrl("file:///var/lib/hydra"));
+		assertEquals("/var/lib/hydra", EmbeddedConnector.getDirectory("file:///var/lib/hydra").getPath());
+		assertEquals("/var/lib/hydra", EmbeddedConnector.getDirectory("file:/var/lib/hydra").getPath());
+	}
+
+	@Test
+	public void testDirectoryIsLocked() {
+		try {
+			connect();
+			fail("Expected the database to be in use");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testDocumentsSurviveReconnect() throws IOException {
+		MemoryDocument kept = insert("kept");
+		MemoryDocument updated = insert("updated");
+		MemoryDocument deleted = insert("deleted");
+
+		updated.putContentField("name", "changed");
+		connector.getDocumentWriter().update(updated);
+		connector.getDocumentWriter().delete(deleted);
+
+		reconnect();
+
+		assertEquals(2, connector.getDocumentReader().getActiveDatabaseSize());
+		assertEquals("kept", connector.getDocumentReader().getDocumentById(kept.getID()).getContentField("name"));
+		assertEquals("changed", connector.getDocumentReader().getDocumentById(updated.getID()).getContentField("name"));
+		assertNull(connector.getDocumentReader().getDocumentById(deleted.getID()));
+	}
+
+	@Test
+	public void testInactiveDocumentsSurviveReconnect() throws IOException {
+		MemoryDocument d = insert("done");
+		connector.getDocumentWriter().markProcessed(d, "stage");
+
+		reconnect();
+
+		assertEquals(0, connector.getDocumentReader().getActiveDatabaseSize());
+		assertEquals(1, connector.getDocumentReader().getInactiveDatabaseSize());
+		DatabaseDocument<MemoryType> inactive = connector.getDocumentReader().getDocumentById(d.getID(), true);
+		assertNotNull(inactive);
+		assertEquals(Status.PROCESSED, inactive.getStatus());
+	}
+
+	@Test
+	public void testFilesSurviveReconnect() throws IOException {
+		MemoryDocument d = insert("with file");
+		DocumentID<MemoryType> id = d.getID();
+		connector.getDocumentWriter().write(new DocumentFile<MemoryType>(id, "file", IOUtils.toInputStream("content"), "stage"));
+
+		reconnect();
+
+		MemoryDocument reread = connector.getDocumentReader().getDocumentById(id);
+		DocumentFile<MemoryType> file = connector.getDocumentReader().getDocumentFile(reread, "file");
+		assertNotNull(file);
+		assertEquals("content", IOUtils.toString(file.getStream()));
+	}
+
+	@Test
+	public void testPipelineFilesSurviveReconnect() throws IOException {
+		Object id = connector.getPipelineWriter().save("file.jar", IOUtils.toInputStream("jar"));
+		assertNotNull(id);
+
+		reconnect();
+
+		assertEquals(1, connector.getPipelineReader().getFiles().size());
+		assertEquals("jar", IOUtils.toString(connector.getPipelineReader().getStream("file.jar")));
+	}
+
+	@Test
+	public void testStatusSurvivesReconnect() throws IOException {
+		connector.getStatusWriter().increment(3, 2, 1);
+
+		reconnect();
+
+		assertTrue(connector.getStatusReader().getStatus().isPrepared());
+		assertEquals(3, connector.getStatusReader().getStatus().getProcessedCount());
+		assertEquals(2, connector.getStatusReader().getStatus().getFailedCount());
+		assertEquals(1, connector.getStatusReader().getStatus().getDiscardedCount());
+	}
+
+	@Test
+	public void testCompactionKeepsWhatIsLive() throws IOException {
+		MemoryDocument d = insert("first");
+		for (int i = 0; i < 100; i++) {
+			d.putContentField("name", "version" + i);
+			connector.getDocumentWriter().update(d);
+		}
+		MemoryDocument done = insert("done");
+		connector.getDocumentWriter().markProcessed(done, "stage");
+		connector.getStatusWriter().increment(1, 0, 0);
+
+		connector.compact();
+		reconnect();
+
+		assertEquals("version99", connector.getDocumentReader().getDocumentById(d.getID()).getContentField("name"));
+		assertNotNull(connector.getDocumentReader().getDocumentById(done.getID(), true));
+		assertEquals(1, connector.getStatusReader().getStatus().getProcessedCount());
+	}
+}
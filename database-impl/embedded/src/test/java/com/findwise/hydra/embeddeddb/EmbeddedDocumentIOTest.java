@@ -0,0 +1,97 @@
+package com.findwise.hydra.embeddeddb;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.Document.Action;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryQuery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyByte;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that a change which cannot be written to the log is not kept in
+ * memory either.
+ */
+public class EmbeddedDocumentIOTest {
+	private SegmentLog log;
+	private EmbeddedDocumentIO io;
+
+	@Before
+	public void setUp() {
+		log = mock(SegmentLog.class);
+		io = new EmbeddedDocumentIO(log);
+	}
+
+	private MemoryDocument insert(String name) {
+		MemoryDocument d = new MemoryDocument();
+		d.setAction(Action.ADD);
+		d.putContentField("name", name);
+		assertTrue(io.insert(d));
+		return d;
+	}
+
+	private void failAppends() throws IOException {
+		when(log.append(anyByte(), any(byte[].class))).thenThrow(new IOException("disk full"));
+	}
+
+	@Test
+	public void testFailedInsertIsNotKept() throws IOException {
+		failAppends();
+
+		MemoryDocument d = new MemoryDocument();
+		d.putContentField("name", "lost");
+
+		assertFalse(io.insert(d));
+		assertEquals(0, io.getActiveDatabaseSize());
+	}
+
+	@Test
+	public void testFailedFetchIsTakenBack() throws IOException {
+		MemoryDocument d = insert("fetched");
+		failAppends();
+
+		assertNull(io.getAndTag(new MemoryQuery(), "stage"));
+		assertFalse(io.getDocumentById(d.getID()).fetchedBy("stage"));
+
+		MemoryQuery query = new MemoryQuery();
+		query.requireNotFetchedByStage("stage");
+		assertNotNull(io.getDocument(query));
+	}
+
+	@Test
+	public void testFailedUpdateIsTakenBack() throws IOException {
+		MemoryDocument d = insert("before");
+		failAppends();
+
+		MemoryDocument change = new MemoryDocument();
+		change.setID(d.getID());
+		change.putContentField("name", "after");
+		change.putContentField("added", "value");
+
+		assertFalse(io.update(change));
+		assertEquals("before", io.getDocumentById(d.getID()).getContentField("name"));
+		assertFalse(io.getDocumentById(d.getID()).hasContentField("added"));
+	}
+
+	@Test
+	public void testFailedMarkLeavesDocumentActive() throws IOException {
+		MemoryDocument d = insert("done");
+		failAppends();
+
+		assertFalse(io.markProcessed(d, "stage"));
+		assertEquals(1, io.getActiveDatabaseSize());
+		assertEquals(0, io.getInactiveDatabaseSize());
+		assertNotNull(io.getDocumentById(d.getID()));
+	}
+}
@@ -0,0 +1,151 @@
+package com.findwise.hydra.embeddeddb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.findwise.hydra.embeddeddb.SegmentLog.Pointer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentLogTest {
+	private static final int SEGMENT_SIZE = 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SegmentLog log;
+	private List<String> visited;
+
+	@Before
+	public void setUp() throws IOException {
+		visited = new ArrayList<String>();
+		log = open();
+	}
+
+	@After
+	public void tearDown() {
+		log.close();
+	}
+
+	private SegmentLog open() throws IOException {
+		SegmentLog l = new SegmentLog(folder.getRoot(), SEGMENT_SIZE, false);
+		l.open(new SegmentLog.Visitor() {
+			@Override
+			public void visit(byte type, byte[] payload, Pointer pointer) {
+				visited.add(type + ":" + new String(payload));
+			}
+		});
+		return l;
+	}
+
+	private SegmentLog reopen() throws IOException {
+		log.close();
+		visited.clear();
+		log = open();
+		return log;
+	}
+
+	@Test
+	public void testAppendAndRead() throws IOException {
+		Pointer a = log.append((byte) 1, "a".getBytes());
+		Pointer b = log.append((byte) 2, "bb".getBytes());
+
+		assertArrayEquals("a".getBytes(), log.read(a));
+		assertArrayEquals("bb".getBytes(), log.read(b));
+		assertEquals(2 * SegmentLog.HEADER_SIZE + 3, log.getSize());
+	}
+
+	@Test
+	public void testReplayAfterReopen() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			log.append((byte) 1, ("record" + i).getBytes());
+		}
+		reopen();
+
+		assertEquals(100, visited.size());
+		assertEquals("1:record0", visited.get(0));
+		assertEquals("1:record99", visited.get(99));
+		assertTrue(folder.getRoot().list().length > 1);
+	}
+
+	@Test
+	public void testRecordLargerThanSegment() throws IOException {
+		byte[] large = new byte[SEGMENT_SIZE * 3];
+		Pointer p = log.append((byte) 1, large);
+
+		assertArrayEquals(large, log.read(p));
+		reopen();
+		assertEquals(1, visited.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyRecord() throws IOException {
+		log.append((byte) 1, new byte[0]);
+	}
+
+	@Test
+	public void testTornRecordIsDropped() throws IOException {
+		log.append((byte) 1, "whole".getBytes());
+		Pointer torn = log.append((byte) 1, "torn".getBytes());
+		log.close();
+
+		RandomAccessFile file = new RandomAccessFile(getSegment(torn.segment), "rw");
+		try {
+			file.seek(torn.offset + SegmentLog.HEADER_SIZE);
+			file.write('x');
+		} finally {
+			file.close();
+		}
+
+		log = open();
+		assertEquals(1, visited.size());
+		assertEquals("1:whole", visited.get(0));
+
+		log.append((byte) 1, "after".getBytes());
+		reopen();
+		assertEquals(2, visited.size());
+		assertEquals("1:after", visited.get(1));
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			log.append((byte) 1, ("record" + i).getBytes());
+		}
+		long first = log.startCompaction();
+		log.append((byte) 1, "live".getBytes());
+		log.finishCompaction(first);
+
+		reopen();
+		assertEquals(1, visited.size());
+		assertEquals("1:live", visited.get(0));
+	}
+
+	@Test
+	public void testInterruptedCompactionKeepsEverything() throws IOException {
+		log.append((byte) 1, "old".getBytes());
+		log.startCompaction();
+		log.append((byte) 1, "new".getBytes());
+
+		reopen();
+		assertEquals(2, visited.size());
+		assertEquals("1:old", visited.get(0));
+		assertEquals("1:new", visited.get(1));
+	}
+
+	private File getSegment(long number) {
+		return new File(folder.getRoot(), String.format("%s%012d%s",
+				SegmentLog.SEGMENT_PREFIX, number, SegmentLog.SEGMENT_SUFFIX));
+	}
+}
@@ -2,6 +2,7 @@ package com.findwise.hydra.memorydb;
 
 import java.io.IOException;
 
+import com.findwise.hydra.ChangeFeed;
 import com.findwise.hydra.DatabaseConnector;
 import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.DatabaseQuery;
@@ -19,9 +20,11 @@ public class MemoryConnector implements DatabaseConnector<MemoryType> {
 
 	private MemoryDocumentIO docio;
 	private MemoryStatusIO statusio;
+	private ChangeFeed<MemoryType> changeFeed;
 	
 	public MemoryConnector() {
 		docio = new MemoryDocumentIO();
+		changeFeed = new ChangeFeed<MemoryType>();
 	}
 	
 	@Override
@@ -98,5 +101,14 @@ public class MemoryConnector implements DatabaseConnector<MemoryType> {
 		return statusio;
 	}
 
+	/**
+	 * Everything sharing an in-memory database runs in the same process, so
+	 * changes are delivered to the listeners as they are published.
+	 */
+	@Override
+	public ChangeFeed<MemoryType> getChangeFeed() {
+		return changeFeed;
+	}
+
 
 }
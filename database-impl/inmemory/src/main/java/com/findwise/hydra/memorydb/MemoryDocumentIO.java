@@ -7,6 +7,8 @@ import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -25,27 +27,114 @@ import com.findwise.hydra.JsonException;
 import com.findwise.hydra.TailableIterator;
 import com.findwise.hydra.local.LocalDocumentID;
 
+/**
+ * Keeps the active documents in a map keyed by their IDs, and indexes them by
+ * the stages that have touched and fetched them and by their action, see
+ * {@link MemoryIndex}. Looking up a document by ID is a single map lookup,
+ * and queries only look at the documents the index says may match.
+ * 
+ * Files are kept per document, by file name.
+ * 
+ * The indexes follow the changes made through this class. Documents handed
+ * out are the stored instances, and tagging them by other means leaves the
+ * indexes behind until they are next written through this class.
+ */
 public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		DocumentReader<MemoryType> {
 
-	private ConcurrentHashMap<MemoryDocument, Boolean> set;
+	private ConcurrentHashMap<Object, MemoryDocument> documents;
+	private MemoryIndex index;
 	private LinkedBlockingQueue<MemoryDocument> inactive;
 	private boolean[] b = new boolean[1];
 
 	private static Logger logger = LoggerFactory
 			.getLogger(MemoryDocumentIO.class);
 
-	private HashSet<DocumentFile<MemoryType>> files;
+	private ConcurrentHashMap<Object, ConcurrentHashMap<String, DocumentFile<MemoryType>>> files;
 
 	public static final int inactiveSize = 100;
 
 	public MemoryDocumentIO() {
-		set = new ConcurrentHashMap<MemoryDocument, Boolean>();
-		files = new HashSet<DocumentFile<MemoryType>>();
+		documents = new ConcurrentHashMap<Object, MemoryDocument>();
+		index = new MemoryIndex();
+		files = new ConcurrentHashMap<Object, ConcurrentHashMap<String, DocumentFile<MemoryType>>>();
 		inactive = new LinkedBlockingQueue<MemoryDocument>(inactiveSize);
 		b[0] = false;
 	}
 
+	/**
+	 * @return what documents and files are keyed by, or null if there is no
+	 *         id
+	 */
+	private static Object key(DocumentID<MemoryType> id) {
+		if (id == null) {
+			return null;
+		}
+		if (id instanceof MemoryDocumentID && ((MemoryDocumentID) id).getLocalDocumentID() == null) {
+			return null;
+		}
+		return id.getID();
+	}
+
+	/**
+	 * @return the files of the document by name, or null if it has none
+	 */
+	private Map<String, DocumentFile<MemoryType>> getFiles(DatabaseDocument<MemoryType> d) {
+		Object key = key(d.getID());
+		return (key != null) ? files.get(key) : null;
+	}
+
+	private void store(MemoryDocument d) {
+		documents.put(key(d.getID()), d);
+		reindex(d);
+	}
+
+	private MemoryDocument unstore(DocumentID<MemoryType> id) {
+		Object key = key(id);
+		if (key == null) {
+			return null;
+		}
+		MemoryDocument d = documents.remove(key);
+		index.remove(key);
+		return d;
+	}
+
+	/**
+	 * Brings the indexes up to date with the tags and action of a stored
+	 * document.
+	 */
+	private void reindex(MemoryDocument d) {
+		index.update(key(d.getID()), snapshot(d.getTouchedBy()), snapshot(d.getFetchedBy()), d.getAction());
+	}
+
+	private Set<String> snapshot(Set<String> tags) {
+		while (true) {
+			try {
+				return new HashSet<String>(tags);
+			} catch (ConcurrentModificationException e) {
+				logger.warn("Got concurrent modification while indexing tags");
+			}
+		}
+	}
+
+	/**
+	 * @return the documents that may match the query
+	 */
+	private Iterable<MemoryDocument> getCandidates(MemoryQuery q) {
+		Set<Object> ids = index.getCandidates(q);
+		if (ids == null) {
+			return documents.values();
+		}
+		List<MemoryDocument> candidates = new ArrayList<MemoryDocument>(ids.size());
+		for (Object id : ids) {
+			MemoryDocument d = documents.get(id);
+			if (d != null) {
+				candidates.add(d);
+			}
+		}
+		return candidates;
+	}
+
 	private void addInactive(MemoryDocument d) {
 		if (!inactive.offer(d)) {
 			inactive.poll();
@@ -71,13 +160,12 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 	@Override
 	public DatabaseDocument<MemoryType> getDocumentById(DocumentID<MemoryType> id,
 			boolean includeInactive) {
-		if (id == null) {
+		if (key(id) == null) {
 			return null;
 		}
-		for (MemoryDocument d : set.keySet()) {
-			if (id.equals(d.getID())) {
-				return d;
-			}
+		MemoryDocument active = documents.get(key(id));
+		if (active != null) {
+			return active;
 		}
 		if (includeInactive) {
 			for (MemoryDocument d : inactive) {
@@ -101,7 +189,7 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		ArrayList<MemoryDocument> list = new ArrayList<MemoryDocument>();
 
 		int matching = 0;
-		for (MemoryDocument doc : set.keySet()) {
+		for (MemoryDocument doc : getCandidates((MemoryQuery) q)) {
 			if (list.size() >= limit)
 				break;
 
@@ -122,11 +210,21 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		return getDocuments(q, limit, 0);
 	}
 
+	@Override
+	public List<DocumentID<MemoryType>> getDocumentIds(
+			DatabaseQuery<MemoryType> q, int limit, int skip) {
+		List<DocumentID<MemoryType>> ids = new ArrayList<DocumentID<MemoryType>>();
+		for (DatabaseDocument<MemoryType> doc : getDocuments(q, limit, skip)) {
+			ids.add(doc.getID());
+		}
+		return ids;
+	}
+
 	@Override
 	public long getNumberOfDocuments(DatabaseQuery<MemoryType> q) {
 		long matching = 0;
 
-		for (MemoryDocument doc : set.keySet()) {
+		for (MemoryDocument doc : getCandidates((MemoryQuery) q)) {
 			if (doc.matches((MemoryQuery) q)) {
 				matching++;
 			}
@@ -138,14 +236,13 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 	@Override
 	public DocumentFile<MemoryType> getDocumentFile(
 			DatabaseDocument<MemoryType> d, String fileName) {
-		for (DocumentFile<MemoryType> f : files) {
-			if (f.getDocumentId().getID().equals(d.getID().getID())
-					&& f.getFileName().equals(fileName)) {
-				try {
-					return copy(f);
-				} catch (IOException e) {
-					logger.error("Error copying the streams", e);
-				}
+		Map<String, DocumentFile<MemoryType>> byName = getFiles(d);
+		DocumentFile<MemoryType> f = (byName != null) ? byName.get(fileName) : null;
+		if (f != null) {
+			try {
+				return copy(f);
+			} catch (IOException e) {
+				logger.error("Error copying the streams", e);
 			}
 		}
 		return null;
@@ -154,32 +251,22 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 	@Override
 	public boolean deleteDocumentFile(DatabaseDocument<MemoryType> d,
 			String fileName) {
-		for (DocumentFile<MemoryType> f : files) {
-			if (f.getDocumentId().equals(d.getID())
-					&& f.getFileName().equals(fileName)) {
-				files.remove(f);
-				return true;
-			}
-		}
-		return false;
+		Map<String, DocumentFile<MemoryType>> byName = getFiles(d);
+		return byName != null && byName.remove(fileName) != null;
 	}
 
 	@Override
 	public List<String> getDocumentFileNames(DatabaseDocument<MemoryType> d) {
-		ArrayList<String> list = new ArrayList<String>();
-
-		for (DocumentFile<MemoryType> f : files) {
-			if (f.getDocumentId().equals(d.getID())) {
-				list.add(f.getFileName());
-			}
+		Map<String, DocumentFile<MemoryType>> byName = getFiles(d);
+		if (byName == null) {
+			return new ArrayList<String>();
 		}
-
-		return list;
+		return new ArrayList<String>(byName.keySet());
 	}
 
 	@Override
 	public long getActiveDatabaseSize() {
-		return set.size();
+		return documents.size();
 	}
 
 	@Override
@@ -197,6 +284,7 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 			for(String t : tag) {
 				d.tag(Document.FETCHED_METADATA_TAG, t);
 			}
+			reindex(d);
 		}
 		return d;
 	}
@@ -214,6 +302,7 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 			for(String t : tag) {
 				((MemoryDocument) d).tag(Document.FETCHED_METADATA_TAG, t);
 			}
+			reindex((MemoryDocument) d);
 		}
 		return docs;
 	}
@@ -225,6 +314,7 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 			return false;
 		}
 		d.tag(Document.TOUCHED_METADATA_TAG, tag);
+		reindex(d);
 		return true;
 	}
 
@@ -245,11 +335,9 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 
 	private boolean markDone(DatabaseDocument<MemoryType> d, String stage,
 			String flag) {
-		MemoryDocument temp = getDocumentById(d.getID());
-		if (temp == null) {
+		if (unstore(d.getID()) == null) {
 			return false;
 		}
-		set.remove(temp);
 		((MemoryDocument) d).tag(flag, stage);
 		deleteAllFiles(d);
 		addInactive((MemoryDocument) d);
@@ -267,17 +355,60 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		return true;
 	}
 
+	@Override
+	public Set<DocumentID<MemoryType>> markAll(Collection<DatabaseDocument<MemoryType>> docs, Document.Status status, String stage) {
+		Set<DocumentID<MemoryType>> marked = new HashSet<DocumentID<MemoryType>>();
+		for (DatabaseDocument<MemoryType> d : docs) {
+			MemoryDocument stored = getDocumentById(d.getID());
+			if (stored == null) {
+				continue;
+			}
+			MemoryDocument merged = stored.copy();
+			merged.putAll(d);
+			if (mark(merged, status, stage)) {
+				marked.add(merged.getID());
+			}
+		}
+		return marked;
+	}
+
+	private boolean mark(MemoryDocument d, Document.Status status, String stage) {
+		switch (status) {
+		case PROCESSED:
+			return markProcessed(d, stage);
+		case DISCARDED:
+			return markDiscarded(d, stage);
+		case FAILED:
+			return markFailed(d, stage);
+		case PENDING:
+			return markPending(d, stage);
+		default:
+			throw new IllegalArgumentException("Unable to mark documents with status " + status);
+		}
+	}
+
 	@Override
 	public boolean insert(DatabaseDocument<MemoryType> d) {
 		MemoryDocument md = (MemoryDocument) d;
 		md.setID(new MemoryDocumentID(new LocalDocumentID(md.hashCode() + ""
 				+ System.currentTimeMillis())));
 		removeNullFields(md);
-		set.put(md, false);
+		store(md);
 		md.markSynced();
 		return true;
 	}
 
+	@Override
+	public Set<DocumentID<MemoryType>> insert(Collection<DatabaseDocument<MemoryType>> docs) {
+		Set<DocumentID<MemoryType>> inserted = new HashSet<DocumentID<MemoryType>>();
+		for (DatabaseDocument<MemoryType> d : docs) {
+			if (insert(d)) {
+				inserted.add(d.getID());
+			}
+		}
+		return inserted;
+	}
+
 	@Override
 	public boolean insert(DatabaseDocument<MemoryType> d, List<DocumentFile<MemoryType>> attachments) {
 		if(attachments == null || attachments.isEmpty()) {
@@ -355,14 +486,38 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 
 	@Override
 	public boolean update(DatabaseDocument<MemoryType> d) {
+		return update(d, true);
+	}
+
+	@Override
+	public Set<DocumentID<MemoryType>> update(Collection<DatabaseDocument<MemoryType>> docs) {
+		Set<DocumentID<MemoryType>> updated = new HashSet<DocumentID<MemoryType>>();
+		for (DatabaseDocument<MemoryType> d : docs) {
+			if (update(d, true)) {
+				updated.add(d.getID());
+			}
+		}
+		return updated;
+	}
+
+	@Override
+	public boolean updateFields(DatabaseDocument<MemoryType> d) {
+		return update(d, false);
+	}
+
+	private boolean update(DatabaseDocument<MemoryType> d, boolean upsert) {
 		MemoryDocument md = (MemoryDocument) d;
 
-		MemoryDocument inDb = getDocumentById(d.getID());
+		if (key(d.getID()) == null) {
+			logger.error("Can't update a document without an id");
+			return false;
+		}
 
-		if (inDb == null) {
-			set.put(md, false);
-			inDb = getDocumentById(d.getID());
+		MemoryDocument inDb = getDocumentById(d.getID());
 
+		if (inDb == null && upsert) {
+			store(md);
+			inDb = md;
 		}
 
 		if (inDb == null) {
@@ -386,6 +541,7 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		for (String s : getTouchedMetadataSnapshot(md)) {
 			inDb.putMetadataField(s, md.getMetadataMap().get(s));
 		}
+		reindex(inDb);
 
 		md.markSynced();
 
@@ -395,24 +551,39 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 	@Override
 	public void delete(DatabaseDocument<MemoryType> d) {
 		deleteAllFiles(d);
-		set.remove(getDocumentById(d.getID()));
+		unstore(d.getID());
 	}
 
 	private void deleteAllFiles(DatabaseDocument<MemoryType> d) {
-		for (String fileName : getDocumentFileNames(d)) {
-			deleteDocumentFile(d, fileName);
+		Object key = key(d.getID());
+		if (key != null) {
+			files.remove(key);
 		}
 	}
 
 	@Override
 	public void deleteAll() {
-		set.clear();
+		documents.clear();
+		index.clear();
 	}
 
 	@Override
 	public void write(DocumentFile<MemoryType> df) throws IOException {
+		Object id = key(df.getDocumentId());
+		if (id == null) {
+			throw new IOException("Unable to write file " + df.getFileName() + " without a document id");
+		}
 		df.setUploadDate(new Date());
-		files.add(copy(df));
+		DocumentFile<MemoryType> stored = copy(df);
+		ConcurrentHashMap<String, DocumentFile<MemoryType>> byName = files.get(id);
+		if (byName == null) {
+			ConcurrentHashMap<String, DocumentFile<MemoryType>> created = new ConcurrentHashMap<String, DocumentFile<MemoryType>>();
+			byName = files.putIfAbsent(id, created);
+			if (byName == null) {
+				byName = created;
+			}
+		}
+		byName.put(stored.getFileName(), stored);
 		df.getStream().close();
 	}
 
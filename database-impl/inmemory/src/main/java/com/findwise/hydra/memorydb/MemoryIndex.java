@@ -0,0 +1,147 @@
+package com.findwise.hydra.memorydb;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.findwise.hydra.Document.Action;
+
+/**
+ * Secondary indexes over the active documents of a {@link MemoryDocumentIO}:
+ * the IDs of the documents touched and fetched by each stage, and of those
+ * with each action.
+ *
+ * A query is answered from the smallest set of IDs that any of its positive
+ * requirements (touched by, fetched by, action) point to. The documents
+ * found that way still have to be matched against the whole query; the
+ * index only tells which documents may match, never which do.
+ *
+ * Updates are serialized, while lookups may run alongside them and see the
+ * sets as they are being changed.
+ */
+class MemoryIndex {
+	private final Map<String, Set<Object>> touched = new ConcurrentHashMap<String, Set<Object>>();
+	private final Map<String, Set<Object>> fetched = new ConcurrentHashMap<String, Set<Object>>();
+	private final Map<Action, Set<Object>> actions = new ConcurrentHashMap<Action, Set<Object>>();
+
+	/**
+	 * What each document is currently indexed under, by ID
+	 */
+	private final Map<Object, Entry> entries = new ConcurrentHashMap<Object, Entry>();
+
+	/**
+	 * Indexes a document under its current tags and action, replacing what
+	 * it was indexed under before.
+	 */
+	synchronized void update(Object id, Set<String> touchedBy, Set<String> fetchedBy, Action action) {
+		Entry old = entries.get(id);
+		if (old != null) {
+			removeAll(touched, old.touched, touchedBy, id);
+			removeAll(fetched, old.fetched, fetchedBy, id);
+			if (old.action != null && old.action != action) {
+				remove(actions, old.action, id);
+			}
+		}
+		for (String stage : touchedBy) {
+			add(touched, stage, id);
+		}
+		for (String stage : fetchedBy) {
+			add(fetched, stage, id);
+		}
+		if (action != null) {
+			add(actions, action, id);
+		}
+		entries.put(id, new Entry(touchedBy, fetchedBy, action));
+	}
+
+	synchronized void remove(Object id) {
+		Entry old = entries.remove(id);
+		if (old == null) {
+			return;
+		}
+		removeAll(touched, old.touched, Collections.<String> emptySet(), id);
+		removeAll(fetched, old.fetched, Collections.<String> emptySet(), id);
+		if (old.action != null) {
+			remove(actions, old.action, id);
+		}
+	}
+
+	synchronized void clear() {
+		touched.clear();
+		fetched.clear();
+		actions.clear();
+		entries.clear();
+	}
+
+	/**
+	 * @return the IDs of the documents that may match the query, or null if
+	 *         the query has no requirement the index can narrow down by
+	 */
+	Set<Object> getCandidates(MemoryQuery q) {
+		Set<Object> best = null;
+		for (Map.Entry<String, Boolean> e : q.getTouched().entrySet()) {
+			if (e.getValue()) {
+				best = smallest(best, touched.get(e.getKey()));
+			}
+		}
+		for (Map.Entry<String, Boolean> e : q.getFetchedBy().entrySet()) {
+			if (e.getValue()) {
+				best = smallest(best, fetched.get(e.getKey()));
+			}
+		}
+		if (q.getAction() != null) {
+			best = smallest(best, actions.get(q.getAction()));
+		}
+		return best;
+	}
+
+	private static Set<Object> smallest(Set<Object> best, Set<Object> ids) {
+		if (ids == null) {
+			return Collections.emptySet();
+		}
+		if (best == null || ids.size() < best.size()) {
+			return ids;
+		}
+		return best;
+	}
+
+	private static <K> void add(Map<K, Set<Object>> index, K key, Object id) {
+		Set<Object> ids = index.get(key);
+		if (ids == null) {
+			ids = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+			index.put(key, ids);
+		}
+		ids.add(id);
+	}
+
+	private static <K> void remove(Map<K, Set<Object>> index, K key, Object id) {
+		Set<Object> ids = index.get(key);
+		if (ids != null) {
+			ids.remove(id);
+			if (ids.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+
+	private static void removeAll(Map<String, Set<Object>> index, Set<String> old, Set<String> current, Object id) {
+		for (String key : old) {
+			if (!current.contains(key)) {
+				remove(index, key, id);
+			}
+		}
+	}
+
+	private static class Entry {
+		final Set<String> touched;
+		final Set<String> fetched;
+		final Action action;
+
+		Entry(Set<String> touched, Set<String> fetched, Action action) {
+			this.touched = touched;
+			this.fetched = fetched;
+			this.action = action;
+		}
+	}
+}
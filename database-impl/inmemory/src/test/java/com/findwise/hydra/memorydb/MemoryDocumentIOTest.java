@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
@@ -18,7 +19,9 @@ import com.findwise.hydra.DatabaseQuery;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.Document.Status;
 import com.findwise.hydra.DocumentFile;
+import com.findwise.hydra.DocumentID;
 import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.local.LocalDocumentID;
 import org.mockito.Matchers;
 
 import static org.junit.Assert.assertArrayEquals;
@@ -138,6 +141,53 @@ public class MemoryDocumentIOTest {
 		}
 	}
 
+	@Test
+	public void testUpdateFields() {
+		MemoryDocument delta = new MemoryDocument();
+		delta.setID(test.getID());
+		delta.putContentField("added", "value");
+		delta.removeContentField("number");
+
+		assertTrue(io.updateFields(delta));
+
+		DatabaseDocument<MemoryType> d = io.getDocumentById(test.getID());
+		assertEquals("test", d.getContentField("name"));
+		assertEquals("value", d.getContentField("added"));
+		assertFalse(d.hasContentField("number"));
+	}
+
+	@Test
+	public void testUpdateCollection() {
+		MemoryDocument delta = new MemoryDocument();
+		delta.setID(test.getID());
+		delta.putContentField("added", "value");
+		MemoryDocument delta2 = new MemoryDocument();
+		delta2.setID(test2.getID());
+		delta2.putContentField("added", "value2");
+
+		List<DatabaseDocument<MemoryType>> docs = new ArrayList<DatabaseDocument<MemoryType>>();
+		docs.add(delta);
+		docs.add(delta2);
+		Set<DocumentID<MemoryType>> updated = io.update(docs);
+
+		assertEquals(2, updated.size());
+		assertTrue(updated.contains(test.getID()));
+		assertEquals("value", io.getDocumentById(test.getID()).getContentField("added"));
+		assertEquals("value2", io.getDocumentById(test2.getID()).getContentField("added"));
+		assertEquals("test", io.getDocumentById(test2.getID()).getContentField("name"));
+	}
+
+	@Test
+	public void testUpdateFieldsDoesNotInsert() {
+		long size = io.getActiveDatabaseSize();
+		MemoryDocument delta = TestTools.getRandomDocument();
+		delta.setID(new MemoryDocumentID(new LocalDocumentID("missing")));
+		delta.putContentField("added", "value");
+
+		assertFalse(io.updateFields(delta));
+		assertEquals(size, io.getActiveDatabaseSize());
+	}
+
 	@Test
 	public void getDocuments() {
 		MemoryQuery mdq = new MemoryQuery();
@@ -406,4 +456,90 @@ public class MemoryDocumentIOTest {
 		}
 	}
 	
+	@Test
+	public void testMarkAllMergesDeltas() {
+		List<DatabaseDocument<MemoryType>> deltas = new ArrayList<DatabaseDocument<MemoryType>>();
+		for (MemoryDocument d : new MemoryDocument[] { test, test2 }) {
+			MemoryDocument delta = new MemoryDocument();
+			delta.setID(d.getID());
+			delta.putContentField("added", true);
+			deltas.add(delta);
+		}
+
+		assertEquals(2, io.markAll(deltas, Status.PROCESSED, "x").size());
+		assertEquals(0, io.getActiveDatabaseSize());
+
+		DatabaseDocument<MemoryType> processed = io.getDocumentById(test.getID(), true);
+		assertEquals(Status.PROCESSED, processed.getStatus());
+		assertEquals("test", processed.getContentField("name"));
+		assertEquals(true, processed.getContentField("added"));
+	}
+
+	@Test
+	public void testTouchedQueryFollowsMarkTouched() {
+		MemoryQuery q = new MemoryQuery();
+		q.requireTouchedByStage("stage");
+		assertEquals(0, io.getNumberOfDocuments(q));
+
+		io.markTouched(test.getID(), "stage");
+
+		assertEquals(1, io.getNumberOfDocuments(q));
+		assertEquals(test.getID(), io.getDocument(q).getID());
+	}
+
+	@Test
+	public void testActionQueryFollowsUpdate() {
+		MemoryQuery q = new MemoryQuery();
+		q.requireAction(Document.Action.DELETE);
+		assertEquals(0, io.getNumberOfDocuments(q));
+
+		MemoryDocument delta = new MemoryDocument();
+		delta.setID(test2.getID());
+		delta.setAction(Document.Action.DELETE);
+		io.update(delta);
+
+		assertEquals(1, io.getNumberOfDocuments(q));
+		q = new MemoryQuery();
+		q.requireAction(Document.Action.ADD);
+		assertEquals(1, io.getNumberOfDocuments(q));
+	}
+
+	@Test
+	public void testFetchedDocumentsAreNotFetchedAgain() {
+		assertNotNull(io.getAndTag(new MemoryQuery(), "stage"));
+		assertNotNull(io.getAndTag(new MemoryQuery(), "stage"));
+		assertEquals(null, io.getAndTag(new MemoryQuery(), "stage"));
+
+		MemoryQuery q = new MemoryQuery();
+		q.requireFetchedByStage("stage");
+		assertEquals(2, io.getNumberOfDocuments(q));
+	}
+
+	@Test
+	public void testDeletedDocumentLeavesIndexes() throws IOException {
+		io.markTouched(test.getID(), "stage");
+		io.write(new DocumentFile<MemoryType>(test.getID(), "file", IOUtils.toInputStream("content"), "stage"));
+
+		io.delete(test);
+
+		MemoryQuery q = new MemoryQuery();
+		q.requireTouchedByStage("stage");
+		assertEquals(0, io.getNumberOfDocuments(q));
+		assertEquals(null, io.getDocumentById(test.getID()));
+		assertTrue(io.getDocumentFileNames(test).isEmpty());
+	}
+
+	@Test
+	public void testFilesAreKeptPerDocument() throws IOException {
+		io.write(new DocumentFile<MemoryType>(test.getID(), "file", IOUtils.toInputStream("first"), "stage"));
+		io.write(new DocumentFile<MemoryType>(test2.getID(), "file", IOUtils.toInputStream("second"), "stage"));
+
+		assertEquals("first", IOUtils.toString(io.getDocumentFile(test, "file").getStream()));
+		assertEquals("second", IOUtils.toString(io.getDocumentFile(test2, "file").getStream()));
+
+		assertTrue(io.deleteDocumentFile(test, "file"));
+		assertEquals(null, io.getDocumentFile(test, "file"));
+		assertEquals(1, io.getDocumentFileNames(test2).size());
+	}
+	
 }
@@ -0,0 +1,136 @@
+package com.findwise.hydra.memorydb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.OffHeapCache;
+
+public class OffHeapCacheTest {
+	private MemoryConnector connector;
+	private OffHeapCache<MemoryType> cache;
+
+	private MemoryDocument doc1;
+	private MemoryDocument doc2;
+
+	@Before
+	public void setUp() {
+		connector = new MemoryConnector();
+		cache = new OffHeapCache<MemoryType>(connector, 64 * 1024, 128);
+
+		doc1 = TestTools.getRandomDocument();
+		doc1.putContentField("name", "doc1");
+		doc1.putContentField("text", TestTools.getRandomString(1000));
+		doc2 = TestTools.getRandomDocument();
+		doc2.putContentField("name", "doc2");
+		connector.getDocumentWriter().insert(doc1);
+		connector.getDocumentWriter().insert(doc2);
+	}
+
+	@Test
+	public void testDocumentSurvivesRoundTrip() {
+		cache.add(doc1);
+
+		DatabaseDocument<MemoryType> cached = cache.getDocumentById(doc1.getID());
+		assertNotNull(cached);
+		assertEquals(doc1.getID(), cached.getID());
+		assertEquals(doc1.getContentField("text"), cached.getContentField("text"));
+		assertEquals(1, cache.getSize());
+		assertTrue(cache.getUsedBytes() >= 1000);
+	}
+
+	@Test
+	public void testGetAndTagPersistsTag() {
+		cache.add(doc1);
+		cache.add(doc2);
+
+		MemoryQuery query = new MemoryQuery();
+		query.requireContentFieldEquals("name", "doc2");
+		DatabaseDocument<MemoryType> d = cache.getAndTag(query, "stage");
+		assertNotNull(d);
+		assertEquals(doc2.getID(), d.getID());
+		assertTrue(d.fetchedBy("stage"));
+
+		assertTrue(cache.getDocumentById(doc2.getID()).fetchedBy("stage"));
+		Collection<DatabaseDocument<MemoryType>> rest = cache.getAndTag(new MemoryQuery(), 2, "stage");
+		assertEquals(1, rest.size());
+		assertEquals(doc1.getID(), rest.iterator().next().getID());
+	}
+
+	@Test
+	public void testGetAndTagSkipsFetched() {
+		cache.add(doc1);
+		cache.add(doc2);
+
+		Collection<DatabaseDocument<MemoryType>> first = cache.getAndTag(new MemoryQuery(), 5, "stage");
+		assertEquals(2, first.size());
+		assertTrue(cache.getAndTag(new MemoryQuery(), 5, "stage").isEmpty());
+		assertEquals(1, cache.getAndTag(new MemoryQuery(), 1, "other").size());
+	}
+
+	@Test
+	public void testUpdateAndMarkTouched() {
+		cache.add(doc2);
+
+		MemoryDocument delta = new MemoryDocument();
+		delta.setID(doc2.getID());
+		delta.putContentField("added", "value");
+		assertTrue(cache.update(delta));
+		assertTrue(cache.markTouched(doc2.getID(), "stage"));
+
+		DatabaseDocument<MemoryType> cached = cache.getDocumentById(doc2.getID());
+		assertEquals("value", cached.getContentField("added"));
+		assertEquals("doc2", cached.getContentField("name"));
+		assertTrue(cached.touchedBy("stage"));
+	}
+
+	@Test
+	public void testRemoveReleasesSpace() {
+		cache.add(doc1);
+		cache.add(doc2);
+
+		assertNotNull(cache.remove(doc1.getID()));
+		assertNull(cache.getDocumentById(doc1.getID()));
+		long used = cache.getUsedBytes();
+		assertTrue(used > 0);
+
+		assertEquals(1, cache.removeAll().size());
+		assertEquals(0, cache.getUsedBytes());
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testRemoveStale() throws Exception {
+		cache.add(doc1);
+		Thread.sleep(5);
+		cache.add(doc2);
+
+		Collection<DatabaseDocument<MemoryType>> stale = cache.removeStale(3);
+		assertEquals(1, stale.size());
+		assertEquals(doc1.getID(), stale.iterator().next().getID());
+		assertEquals(1, cache.getSize());
+	}
+
+	@Test
+	public void testDocumentThatDoesNotFitIsWrittenBack() {
+		cache = new OffHeapCache<MemoryType>(connector, 1024, 128);
+		doc1.setFetchedBy(CachingDocumentNIO.CACHE_TAG, new Date());
+
+		cache.add(doc1);
+
+		assertEquals(0, cache.getSize());
+		assertEquals(1, cache.getRejectionCount());
+		assertEquals(1, cache.getWriteBackCount());
+		assertFalse(connector.getDocumentReader().getDocumentById(doc1.getID()).fetchedBy(CachingDocumentNIO.CACHE_TAG));
+	}
+}
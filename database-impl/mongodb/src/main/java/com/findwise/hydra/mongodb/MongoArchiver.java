@@ -0,0 +1,380 @@
+package com.findwise.hydra.mongodb;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.Document;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.QueryBuilder;
+import com.mongodb.WriteConcern;
+import com.mongodb.gridfs.GridFS;
+
+/**
+ * Writes finished documents to the collection of old documents, and removes
+ * their files on a thread of its own.
+ *
+ * Documents are written by the caller, before they are removed from the active
+ * collection, so that a finished document is never only held in memory. They
+ * are inserted in chunks that are sized to stay within the largest message the
+ * database accepts. A document that would be too large to store is truncated
+ * before it is inserted, by replacing its largest content fields with
+ * {@value #REMOVED_PLACEHOLDER} until it fits.
+ *
+ * The files of archived documents are removed in the background, with a
+ * single query for many documents. When the queue is full,
+ * {@link #removeFiles(Collection)} waits for room. Files still queued when the
+ * core stops are removed by {@link #close()}.
+ */
+class MongoArchiver extends Thread {
+	public static final String REMOVED_PLACEHOLDER = "<Removed>";
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	/**
+	 * What the BSON encoding of a string may take, per character, at most
+	 */
+	private static final int MAX_BYTES_PER_CHAR = 3;
+	/**
+	 * Type, terminator and length prefix of a BSON element, roughly
+	 */
+	private static final int ELEMENT_OVERHEAD = 8;
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoArchiver.class);
+
+	private final DBCollection oldDocuments;
+	private final GridFS documentfs;
+	private final BlockingQueue<Object> queue;
+	private final int batchSize;
+
+	private volatile WriteConcern concern;
+	private volatile int maxDocumentSize = MongoDocumentIO.DEFAULT_MAX_DOCUMENT_SIZE;
+
+	private final Object lock = new Object();
+	private int pending = 0;
+
+	MongoArchiver(DBCollection oldDocuments, GridFS documentfs, WriteConcern concern) {
+		this(oldDocuments, documentfs, concern, DEFAULT_QUEUE_SIZE, DEFAULT_BATCH_SIZE);
+	}
+
+	MongoArchiver(DBCollection oldDocuments, GridFS documentfs, WriteConcern concern, int queueSize, int batchSize) {
+		super("mongo-archiver");
+		setDaemon(true);
+		this.oldDocuments = oldDocuments;
+		this.documentfs = documentfs;
+		this.concern = concern;
+		this.batchSize = batchSize;
+		queue = new ArrayBlockingQueue<Object>(queueSize);
+	}
+
+	/**
+	 * Writes finished documents to the old documents.
+	 *
+	 * @param stage
+	 *            the stage that finished the documents, blamed should one
+	 *            have to be truncated
+	 * @return the ids of the documents that were written, or that were
+	 *         already there
+	 */
+	public Set<Object> archive(List<? extends DBObject> docs, String stage) {
+		Set<Object> archived = new HashSet<Object>();
+		List<DBObject> chunk = new ArrayList<DBObject>();
+		long chunkSize = 0;
+		long maxChunkSize = 2L * maxDocumentSize;
+		for (DBObject doc : docs) {
+			long size = fit(doc, stage);
+			if (!chunk.isEmpty() && chunkSize + size > maxChunkSize) {
+				insert(chunk, archived);
+				chunk.clear();
+				chunkSize = 0;
+			}
+			chunk.add(doc);
+			chunkSize += size;
+		}
+		if (!chunk.isEmpty()) {
+			insert(chunk, archived);
+		}
+		return archived;
+	}
+
+	/**
+	 * Queues the files of archived documents to be removed.
+	 */
+	public void removeFiles(Collection<Object> ids) {
+		if (documentfs == null) {
+			return;
+		}
+		for (Object id : ids) {
+			synchronized (lock) {
+				pending++;
+			}
+			boolean queued = false;
+			try {
+				queue.put(id);
+				queued = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (!queued) {
+					done(1);
+					logger.error("Interrupted before the files of document " + id + " could be queued for removal");
+				}
+			}
+			if (!queued) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Waits until the files of every document queued so far have been
+	 * removed.
+	 */
+	public void flush() {
+		synchronized (lock) {
+			while (pending > 0) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the files that are still queued, and stops the thread.
+	 */
+	public void close() {
+		flush();
+		interrupt();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pending;
+		}
+	}
+
+	private void done(int count) {
+		synchronized (lock) {
+			pending -= count;
+			if (pending == 0) {
+				lock.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		List<Object> batch = new ArrayList<Object>(batchSize);
+		while (!isInterrupted()) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				interrupt();
+				break;
+			}
+			queue.drainTo(batch, batchSize - 1);
+			try {
+				deleteFiles(batch);
+			} finally {
+				done(batch.size());
+				batch.clear();
+			}
+		}
+	}
+
+	private void insert(List<DBObject> chunk, Set<Object> archived) {
+		try {
+			if (concern != null) {
+				oldDocuments.insert(chunk, concern);
+			} else {
+				oldDocuments.insert(chunk);
+			}
+			for (DBObject doc : chunk) {
+				archived.add(doc.get(MongoDocument.MONGO_ID_KEY));
+			}
+			return;
+		} catch (MongoException e) {
+			logger.warn("Bulk write of " + chunk.size() + " documents to " + oldDocuments.getName() + " failed, writing them one by one: " + e.getMessage());
+		}
+		for (DBObject doc : chunk) {
+			Object id = doc.get(MongoDocument.MONGO_ID_KEY);
+			try {
+				if (oldDocuments.findOne(new BasicDBObject(MongoDocument.MONGO_ID_KEY, id)) == null) {
+					if (concern != null) {
+						oldDocuments.insert(doc, concern);
+					} else {
+						oldDocuments.insert(doc);
+					}
+				}
+				archived.add(id);
+			} catch (MongoException e) {
+				logger.error("An error occurred while writing document "
+						+ id + " to " + oldDocuments.getName() + ": "
+						+ e.getMessage(), e);
+			}
+		}
+	}
+
+	private void deleteFiles(Collection<Object> ids) {
+		try {
+			documentfs.remove(QueryBuilder.start(MongoDocumentIO.DOCUMENT_KEY).in(ids).get());
+		} catch (MongoException e) {
+			logger.error("Unable to remove the files of " + ids.size() + " finished documents", e);
+		}
+	}
+
+	/**
+	 * Truncates the document if it is too large to be stored.
+	 *
+	 * A cheap upper bound on the size is tried first; only documents that may
+	 * be too large are encoded to find their actual size, and those that are
+	 * have their largest content fields replaced, all in one pass.
+	 *
+	 * @return the size of the document, or an upper bound of it
+	 */
+	long fit(DBObject doc, String stage) {
+		long estimate = estimateSize(doc);
+		if (estimate <= maxDocumentSize) {
+			return estimate;
+		}
+		int size = BSON.encode(doc).length;
+		if (size <= maxDocumentSize) {
+			return size;
+		}
+
+		if (doc.get(Document.CONTENTS_KEY) == null) {
+			return size;
+		}
+		// Copied, as the caller may still hold the original document
+		final BSONObject contents = new BasicDBObject(((BSONObject) doc.get(Document.CONTENTS_KEY)).toMap());
+		doc.put(Document.CONTENTS_KEY, contents);
+		List<Map.Entry<String, Integer>> fields = new ArrayList<Map.Entry<String, Integer>>();
+		for (String key : contents.keySet()) {
+			fields.add(new AbstractMap.SimpleEntry<String, Integer>(key,
+					BSON.encode(new BasicDBObject(key, contents.get(key))).length));
+		}
+		Collections.sort(fields, new Comparator<Map.Entry<String, Integer>>() {
+			@Override
+			public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+
+		int placeholder = BSON.encode(new BasicDBObject("", REMOVED_PLACEHOLDER)).length;
+		List<String> removed = new ArrayList<String>();
+		for (Map.Entry<String, Integer> field : fields) {
+			if (size <= maxDocumentSize) {
+				break;
+			}
+			contents.put(field.getKey(), REMOVED_PLACEHOLDER);
+			size -= field.getValue() - placeholder - field.getKey().length();
+			removed.add(field.getKey());
+		}
+		addError(doc, stage, "Document was " + (size > maxDocumentSize ? "still " : "") + "too large to archive, removed the fields " + removed);
+		logger.warn("Document " + doc.get(MongoDocument.MONGO_ID_KEY) + " was too large to archive, removed the fields " + removed);
+		return size;
+	}
+
+	private static void addError(DBObject doc, String stage, String message) {
+		BasicDBObject metadata = new BasicDBObject();
+		if (doc.get(Document.METADATA_KEY) != null) {
+			metadata.putAll((DBObject) doc.get(Document.METADATA_KEY));
+		}
+		BasicDBObject errors = new BasicDBObject();
+		if (metadata.get(Document.ERROR_METADATA_KEY) != null) {
+			errors.putAll((DBObject) metadata.get(Document.ERROR_METADATA_KEY));
+		}
+		errors.put(stage, message);
+		metadata.put(Document.ERROR_METADATA_KEY, errors);
+		doc.put(Document.METADATA_KEY, metadata);
+	}
+
+	/**
+	 * @return an upper bound of the size of the BSON encoding of the value
+	 */
+	static long estimateSize(Object o) {
+		if (o == null || o instanceof Boolean) {
+			return 1;
+		}
+		if (o instanceof String) {
+			return 5 + (long) ((String) o).length() * MAX_BYTES_PER_CHAR;
+		}
+		if (o instanceof Number || o instanceof Date) {
+			return 8;
+		}
+		if (o instanceof byte[]) {
+			return 5 + ((byte[]) o).length;
+		}
+		if (o instanceof BSONObject) {
+			BSONObject b = (BSONObject) o;
+			long size = 5;
+			for (String key : b.keySet()) {
+				size += ELEMENT_OVERHEAD + (long) key.length() * MAX_BYTES_PER_CHAR + estimateSize(b.get(key));
+			}
+			return size;
+		}
+		if (o instanceof Map) {
+			long size = 5;
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+				size += ELEMENT_OVERHEAD + (long) String.valueOf(e.getKey()).length() * MAX_BYTES_PER_CHAR + estimateSize(e.getValue());
+			}
+			return size;
+		}
+		if (o instanceof Iterable) {
+			long size = 5;
+			int i = 0;
+			for (Object v : (Iterable<?>) o) {
+				size += ELEMENT_OVERHEAD + String.valueOf(i++).length() + estimateSize(v);
+			}
+			return size;
+		}
+		if (o instanceof Object[]) {
+			long size = 5;
+			Object[] a = (Object[]) o;
+			for (int i = 0; i < a.length; i++) {
+				size += ELEMENT_OVERHEAD + String.valueOf(i).length() + estimateSize(a[i]);
+			}
+			return size;
+		}
+		// ObjectIds, patterns and anything else the driver knows how to encode
+		return 5 + (long) String.valueOf(o).length() * MAX_BYTES_PER_CHAR;
+	}
+
+	public int getMaxDocumentSize() {
+		return maxDocumentSize;
+	}
+
+	public void setMaxDocumentSize(int maxDocumentSize) {
+		this.maxDocumentSize = maxDocumentSize;
+	}
+
+	public void setWriteConcern(WriteConcern concern) {
+		this.concern = concern;
+	}
+}
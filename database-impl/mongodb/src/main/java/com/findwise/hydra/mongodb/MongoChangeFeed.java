@@ -0,0 +1,218 @@
+package com.findwise.hydra.mongodb;
+
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.ChangeFeed;
+import com.findwise.hydra.DocumentID;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Delivers changes between all processes that share a database, through a
+ * capped collection of change events.
+ *
+ * Publishing a change inserts an event into the collection. Once started, the
+ * feed follows the collection with a tailable cursor, and notifies the
+ * listeners of every event inserted after it started, including its own. A
+ * feed that has not been started only publishes.
+ *
+ * Should the cursor be lost, it is recreated from the last event seen, and
+ * the listeners are told that the pipeline and an unknown number of
+ * documents may have changed, since events may have been missed meanwhile.
+ */
+public class MongoChangeFeed extends ChangeFeed<MongoType> {
+	public static final String CHANGES_COLLECTION = "changes";
+	public static final long DEFAULT_COLLECTION_SIZE = 1024 * 1024;
+
+	static final String TYPE_KEY = "type";
+	static final String DOCUMENT_KEY = "document";
+	static final String TIME_KEY = "time";
+	static final String PIPELINE_TYPE = "pipeline";
+	static final String DOCUMENT_TYPE = "document";
+	static final String START_TYPE = "start";
+
+	private static final long RETRY_INTERVAL = 1000;
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoChangeFeed.class);
+
+	private final DB db;
+	private DBCollection changes;
+
+	private volatile Tailer tailer;
+
+	public MongoChangeFeed(DB db) {
+		this.db = db;
+		changes = db.getCollection(CHANGES_COLLECTION);
+	}
+
+	/**
+	 * Creates the capped collection of change events, unless it exists.
+	 */
+	public void prepare() {
+		if (!db.collectionExists(CHANGES_COLLECTION)) {
+			try {
+				db.createCollection(CHANGES_COLLECTION,
+						new BasicDBObject("capped", true).append("size", DEFAULT_COLLECTION_SIZE));
+			} catch (MongoException e) {
+				logger.debug("Collection " + CHANGES_COLLECTION + " was created by someone else", e);
+			}
+			changes = db.getCollection(CHANGES_COLLECTION);
+		}
+		if (!changes.isCapped()) {
+			logger.error("Collection " + CHANGES_COLLECTION + " is not capped, changes will not be delivered");
+			return;
+		}
+		if (changes.findOne() == null) {
+			// A tailable cursor on an empty collection is dead from the start
+			insert(new BasicDBObject(TYPE_KEY, START_TYPE));
+		}
+	}
+
+	@Override
+	public void publishPipelineChanged() {
+		insert(new BasicDBObject(TYPE_KEY, PIPELINE_TYPE));
+	}
+
+	@Override
+	public void publishDocumentChanged(DocumentID<MongoType> id) {
+		BasicDBObject event = new BasicDBObject(TYPE_KEY, DOCUMENT_TYPE);
+		if (id != null) {
+			event.append(DOCUMENT_KEY, id.getID());
+		}
+		insert(event);
+	}
+
+	private void insert(BasicDBObject event) {
+		event.append(TIME_KEY, new Date());
+		try {
+			changes.insert(event);
+		} catch (MongoException e) {
+			logger.error("Unable to publish change " + event, e);
+		}
+	}
+
+	@Override
+	public synchronized void start() {
+		if (tailer != null) {
+			return;
+		}
+		prepare();
+		tailer = new Tailer(getLatestId());
+		tailer.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (tailer != null) {
+			tailer.shutdown();
+			tailer = null;
+		}
+	}
+
+	@Override
+	public boolean isLive() {
+		Tailer t = tailer;
+		return t != null && t.connected;
+	}
+
+	private Object getLatestId() {
+		DBCursor cursor = changes.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+		try {
+			return cursor.hasNext() ? cursor.next().get(MongoDocument.MONGO_ID_KEY) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	void dispatch(DBObject event) {
+		Object type = event.get(TYPE_KEY);
+		if (PIPELINE_TYPE.equals(type)) {
+			firePipelineChanged();
+		} else if (DOCUMENT_TYPE.equals(type)) {
+			Object id = event.get(DOCUMENT_KEY);
+			fireDocumentChanged((id instanceof ObjectId) ? new MongoDocumentID((ObjectId) id) : null);
+		}
+	}
+
+	/**
+	 * Follows the collection of change events.
+	 *
+	 * Stop with {@link #shutdown()}.
+	 */
+	private class Tailer extends Thread {
+		private volatile boolean running = true;
+		private volatile boolean connected = false;
+		private volatile DBCursor cursor;
+		private Object lastId;
+
+		Tailer(Object lastId) {
+			super("change-feed");
+			setDaemon(true);
+			this.lastId = lastId;
+		}
+
+		@Override
+		public void run() {
+			logger.info("Following changes in collection " + CHANGES_COLLECTION);
+			boolean reconnecting = false;
+			while (running) {
+				DBObject query = (lastId != null)
+						? new BasicDBObject(MongoDocument.MONGO_ID_KEY, new BasicDBObject("$gt", lastId))
+						: new BasicDBObject();
+				try {
+					cursor = changes.find(query).sort(new BasicDBObject("$natural", 1))
+							.addOption(Bytes.QUERYOPTION_TAILABLE)
+							.addOption(Bytes.QUERYOPTION_AWAITDATA);
+					connected = true;
+					if (reconnecting) {
+						firePipelineChanged();
+						fireDocumentChanged(null);
+					}
+					while (running && cursor.hasNext()) {
+						DBObject event = cursor.next();
+						lastId = event.get(MongoDocument.MONGO_ID_KEY);
+						dispatch(event);
+					}
+				} catch (MongoException e) {
+					if (running) {
+						logger.warn("Lost the cursor following " + CHANGES_COLLECTION + ": " + e.getMessage());
+					}
+				} catch (IllegalStateException e) {
+					// The cursor was closed by shutdown()
+				} finally {
+					connected = false;
+					close();
+				}
+				reconnecting = true;
+				try {
+					Thread.sleep(RETRY_INTERVAL);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			logger.info("Stopped following changes");
+		}
+
+		void shutdown() {
+			running = false;
+			close();
+			interrupt();
+		}
+
+		private void close() {
+			DBCursor c = cursor;
+			if (c != null) {
+				c.close();
+			}
+		}
+	}
+}
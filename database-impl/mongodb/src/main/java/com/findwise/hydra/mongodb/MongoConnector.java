@@ -10,6 +10,7 @@ import com.mongodb.MongoClientURI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.findwise.hydra.Configuration;
 import com.findwise.hydra.DatabaseConfiguration;
 import com.findwise.hydra.DatabaseConnector;
 import com.findwise.hydra.DatabaseDocument;
@@ -73,6 +74,7 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 	private MongoPipelineReader pipelineReader;
 	private MongoPipelineWriter pipelineWriter;
 	private MongoDocumentIO documentIO;
+	private MongoChangeFeed changeFeed;
 
 	private boolean connected = false;
 
@@ -111,6 +113,8 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 
 		pipelineReader = new MongoPipelineReader(db);
 		pipelineWriter = new MongoPipelineWriter(pipelineReader, concern);
+		changeFeed = new MongoChangeFeed(db);
+		pipelineWriter.setChangeFeed(changeFeed);
 
 		statusIO = new MongoStatusIO(db);
 
@@ -137,6 +141,7 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 							MongoDocumentIO.DOCUMENT_FS));
 			documentIO.prepare();
 			pipelineWriter.prepare();
+			changeFeed.prepare();
 
 			statusIO.save(pipelineStatus);
 		} else {
@@ -145,6 +150,8 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 					pipelineStatus.getDiscardedMaxSize(), statusUpdater, new GridFS(db,
 							MongoDocumentIO.DOCUMENT_FS));
 		}
+		documentIO.setBulkWriteConcern(getBulkWriteConcern());
+		documentIO.setMaxDocumentSize(mongo.getMaxBsonObjectSize());
 
 		connected = true;
 
@@ -153,6 +160,25 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 		}
 	}
 
+	/**
+	 * The write concern for bulk inserts can be set by name, e.g.
+	 * <code>NORMAL</code> or <code>SAFE</code>, through the
+	 * {@value DatabaseConfiguration#BULK_WRITE_CONCERN} parameter.
+	 */
+	private WriteConcern getBulkWriteConcern() {
+		if (conf instanceof Configuration) {
+			Object name = ((Configuration) conf).getParameter(DatabaseConfiguration.BULK_WRITE_CONCERN, null);
+			if (name != null) {
+				WriteConcern bulkConcern = WriteConcern.valueOf(name.toString().trim().toUpperCase());
+				if (bulkConcern != null) {
+					return bulkConcern;
+				}
+				logger.error("Unknown write concern '" + name + "', using the default for bulk inserts");
+			}
+		}
+		return concern;
+	}
+
 	public StatusUpdater getStatusUpdater() {
 		return statusUpdater;
 	}
@@ -171,6 +197,16 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 		return connected;
 	}
 
+	/**
+	 * Finishes the removal of the files of finished documents. The connection
+	 * itself is left open.
+	 */
+	public void close() {
+		if (documentIO != null) {
+			documentIO.close();
+		}
+	}
+
 	@Override
 	public MongoQuery convert(Query query) {
 		try {
@@ -240,6 +276,16 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 		return statusIO;
 	}
 
+	/**
+	 * Pipeline changes made through this connector are published on the feed.
+	 * Document changes made outside the core have to be published by
+	 * whoever makes them.
+	 */
+	@Override
+	public MongoChangeFeed getChangeFeed() {
+		return changeFeed;
+	}
+
 	@Override
 	public DatabaseDocument<MongoType> convert(Document<?> document)
 			throws ConversionException {
@@ -248,6 +294,13 @@ public class MongoConnector implements DatabaseConnector<MongoType> {
 				throw new ConversionException(
 						"A document cannot contain the NUL character. See https://jira.mongodb.org/browse/SERVER-7691");
 			}
+			if (document instanceof LocalDocument) {
+				// Same result as going through Json, since MongoDocument.fromJson
+				// parses into a LocalDocument anyway, minus a full serialization
+				MongoDocument md = new MongoDocument();
+				md.putAll(document);
+				return md;
+			}
 			return new MongoDocument(document.toJson());
 		} catch (JsonException e) {
 			throw new ConversionException(
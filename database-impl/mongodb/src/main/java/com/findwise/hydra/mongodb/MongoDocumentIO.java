@@ -2,9 +2,10 @@ package com.findwise.hydra.mongodb;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -33,7 +34,6 @@ import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
-import com.mongodb.MongoInternalException;
 import com.mongodb.QueryBuilder;
 import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
@@ -46,13 +46,14 @@ import com.mongodb.gridfs.GridFSInputFile;
  *
  */
 public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWriter<MongoType> {
-	private static final int MAX_NUMBER_OF_DONE_RETRIES = 10;
 	private DBCollection documents;
 	private DBCollection oldDocuments;
 	private GridFS documentfs;
 	private final WriteConcern concern;
+	private WriteConcern bulkConcern;
 	
 	private final StatusUpdater updater;
+	private final MongoArchiver archiver;
 	
 	private final Set<String> seenTags = new HashSet<String>();
 	
@@ -67,12 +68,18 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 
 	public static final int DEFAULT_RECURRING_INTERVAL = 2000;
 	private static final int BYTES_IN_MB = 1048576;
+	public static final int DEFAULT_MAX_DOCUMENT_SIZE = 16 * BYTES_IN_MB;
 	
 	public static final String DOCUMENT_KEY = "document";
 	public static final String FILENAME_KEY = "filename";
 	public static final String STAGE_KEY = "stage";
 	private static final String MIMETYPE_KEY = "contentType";
 	private static final String ENCODING_KEY = "encoding";
+	/**
+	 * Set in the metadata of documents that are being finished by
+	 * {@link #markAll(Collection, Document.Status, String)}.
+	 */
+	private static final String CLAIM_METADATA_FLAG = "claimed";
 	
 	public MongoDocumentIO(DB db,
 			WriteConcern concern,
@@ -81,6 +88,7 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 			StatusUpdater updater,
 			GridFS documentFs) {
 		this.concern = concern;
+		this.bulkConcern = concern;
 		this.maxDocumentsToKeep = documentsToKeep;
 		this.oldDocsSize = oldDocsMaxSizeMB*BYTES_IN_MB;
 		this.updater = updater;
@@ -90,6 +98,9 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 		documents.setObjectClass(MongoDocument.class);
 		oldDocuments = db.getCollection(OLD_DOCUMENT_COLLECTION);
 		oldDocuments.setObjectClass(MongoDocument.class);
+
+		archiver = new MongoArchiver(oldDocuments, documentFs, concern);
+		archiver.start();
 	}
 	
 	@Override
@@ -265,6 +276,66 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 		return false;
 	}
 
+	/**
+	 * Sends all of the documents in a single insert message, using the bulk
+	 * write concern. If the message fails, each document is inserted again
+	 * on its own, so that the documents that did make it in can be told from
+	 * those that did not.
+	 */
+	@Override
+	public Set<DocumentID<MongoType>> insert(Collection<DatabaseDocument<MongoType>> docs) {
+		Set<DocumentID<MongoType>> inserted = new HashSet<DocumentID<MongoType>>();
+		List<DBObject> batch = new ArrayList<DBObject>(docs.size());
+		for (DatabaseDocument<MongoType> d : docs) {
+			if (d.getID() != null) {
+				continue;
+			}
+			for (String key : getNullFields((MongoDocument) d)) {
+				d.removeContentField(key);
+			}
+			batch.add((MongoDocument) d);
+		}
+		if (batch.isEmpty()) {
+			return inserted;
+		}
+
+		try {
+			documents.insert(batch, bulkConcern.continueOnErrorForInsert(true));
+			for (DBObject o : batch) {
+				inserted.add(((MongoDocument) o).getID());
+			}
+			return inserted;
+		} catch (MongoException e) {
+			logger.error("Bulk insert of " + batch.size() + " documents failed, inserting them one at a time", e);
+		}
+
+		// The driver has already given every document its ID
+		for (DBObject o : batch) {
+			MongoDocument d = (MongoDocument) o;
+			try {
+				documents.insert(d, concern);
+				inserted.add(d.getID());
+			} catch (MongoException.DuplicateKey e) {
+				inserted.add(d.getID());
+			} catch (MongoException e) {
+				logger.error("INSERT FAILED FOR id:" + d.getID(), e);
+			}
+		}
+		return inserted;
+	}
+
+	/**
+	 * Sets the write concern used by {@link #insert(Collection)}. Defaults to
+	 * the write concern used for all other writes.
+	 */
+	public void setBulkWriteConcern(WriteConcern bulkConcern) {
+		this.bulkConcern = bulkConcern;
+	}
+
+	public WriteConcern getBulkWriteConcern() {
+		return bulkConcern;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.findwise.hydra.DocumentWriter#insert(com.findwise.hydra.DatabaseDocument)
 	 */
@@ -339,6 +410,23 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 			ensureIndex(t);
 		}
 		MongoQuery mq = (MongoQuery)query;
+		requireFetchable(mq, tag);
+		DBObject update = new BasicDBObject();
+		for(String t : tag) {
+			update.put(MongoDocument.METADATA_KEY+"."+DatabaseDocument.FETCHED_METADATA_TAG+"."+t, new Date());
+		}
+		
+		DBObject dbo = getUpdateObject(update);
+
+		return findAndModify(mq.toDBObject(), dbo);
+	}
+	
+	/**
+	 * Restricts the query to documents that the stages may fetch: those that
+	 * are not pending, are fully committed, and have not been fetched by any
+	 * of the stages already.
+	 */
+	void requireFetchable(MongoQuery mq, String ... tag) {
 		mq.requireMetadataFieldNotExists(Document.PENDING_METADATA_FLAG);
 
 		/* The document must be fully committed (i.e. all attachments are committed) before we can fetch it
@@ -349,23 +437,37 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 		for(String t : tag) {
 			mq.requireMetadataFieldNotExists(DatabaseDocument.FETCHED_METADATA_TAG+"."+t);
 		}
-		DBObject update = new BasicDBObject();
-		for(String t : tag) {
-			update.put(MongoDocument.METADATA_KEY+"."+DatabaseDocument.FETCHED_METADATA_TAG+"."+t, new Date());
+	}
+
+	/**
+	 * Stops the single field index on the fetched-flag of the stage from being
+	 * created, as an index covering the whole query of the stage is managed
+	 * by a {@link MongoIndexAdvisor}.
+	 */
+	void markIndexed(String tag) {
+		synchronized (seenTags) {
+			seenTags.add(tag);
 		}
-		
-		DBObject dbo = getUpdateObject(update);
+	}
 
-		return findAndModify(mq.toDBObject(), dbo);
+	/**
+	 * @return whether a stage has fetched documents through this instance
+	 */
+	boolean hasSeenTag(String tag) {
+		synchronized (seenTags) {
+			return seenTags.contains(tag);
+		}
 	}
-	
+
 	private void ensureIndex(String tag) {
-		if(!seenTags.contains(tag)) {
-			long start = System.currentTimeMillis();
-			documents.ensureIndex(MongoDocument.METADATA_KEY+"."+DatabaseDocument.FETCHED_METADATA_TAG+"."+tag);
-			logger.info("Ensured index for stage "+tag+" in "+(System.currentTimeMillis()-start)+" ms");
-			seenTags.add(tag);
+		synchronized (seenTags) {
+			if(!seenTags.add(tag)) {
+				return;
+			}
 		}
+		long start = System.currentTimeMillis();
+		documents.ensureIndex(MongoDocument.METADATA_KEY+"."+DatabaseDocument.FETCHED_METADATA_TAG+"."+tag);
+		logger.info("Ensured index for stage "+tag+" in "+(System.currentTimeMillis()-start)+" ms");
 	}
 	
 	@Override
@@ -418,6 +520,36 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 
 	@Override
 	public boolean update(DatabaseDocument<MongoType> d) {
+		return update(d, true);
+	}
+
+	/**
+	 * Each document carries its own set of touched fields, so there is no
+	 * single update operation that covers them all, and this driver has no
+	 * bulk write API. The documents are therefore written one at a time, but
+	 * without giving up on the batch when one of them fails.
+	 */
+	@Override
+	public Set<DocumentID<MongoType>> update(Collection<DatabaseDocument<MongoType>> docs) {
+		Set<DocumentID<MongoType>> updated = new HashSet<DocumentID<MongoType>>();
+		for (DatabaseDocument<MongoType> d : docs) {
+			if (update(d, true)) {
+				updated.add(d.getID());
+			}
+		}
+		return updated;
+	}
+
+	/**
+	 * Sends only the touched fields, as <code>$set</code> and
+	 * <code>$unset</code> operations, and does not upsert.
+	 */
+	@Override
+	public boolean updateFields(DatabaseDocument<MongoType> d) {
+		return update(d, false);
+	}
+
+	private boolean update(DatabaseDocument<MongoType> d, boolean upsert) {
 		MongoDocument md = (MongoDocument) d;
 		
 		MongoQuery mdq = new MongoQuery();
@@ -442,11 +574,22 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 			bob.add(MongoDocument.METADATA_KEY+"."+s, md.getMetadataField(s));
 		}
 		
-		DBObject updateObject = getUpdateObject(bob.get());
-		updateObject.putAll(getUnsetObject(getNullFields(md)));
+		DBObject updateObject = new BasicDBObject();
+		DBObject setter = bob.get();
+		if(!setter.keySet().isEmpty()) {
+			updateObject.putAll(getUpdateObject(setter));
+		}
+		Set<String> nullFields = getNullFields(md);
+		if(!nullFields.isEmpty()) {
+			updateObject.putAll(getUnsetObject(nullFields));
+		}
+		if(updateObject.keySet().isEmpty()) {
+			// Nothing to write, but the caller still expects the document to exist
+			return upsert || documents.count(mdq.toDBObject()) == 1;
+		}
 		
 		try {
-			WriteResult wr = documents.update(mdq.toDBObject(), updateObject, true, false, concern);
+			WriteResult wr = documents.update(mdq.toDBObject(), updateObject, upsert, false, concern);
 			return wr.getN()==1;
 		}
 		catch (MongoException e) {
@@ -492,91 +635,93 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 	}
 	
 	private void stampMetadataField(DBObject doc, String flag, String stage) {
-		if(!doc.containsField(MongoDocument.METADATA_KEY)) {
-			doc.put(MongoDocument.METADATA_KEY, new BasicDBObject());
+		BasicDBObject metadata = new BasicDBObject();
+		if(doc.containsField(MongoDocument.METADATA_KEY)) {
+			metadata.putAll((DBObject)doc.get(MongoDocument.METADATA_KEY));
 		}
-		DBObject metadata = (DBObject)doc.get(MongoDocument.METADATA_KEY);
+		metadata.removeField(CLAIM_METADATA_FLAG);
 		
 		metadata.put(flag, getStampObject(stage));
 		
 		doc.put(MongoDocument.METADATA_KEY, metadata);
 	}
 	
+	/**
+	 * Removes the document from the active documents, and then writes it to
+	 * the old documents. Removing it first makes sure that only one caller
+	 * gets to finish it. If it cannot be written to the old documents, it is
+	 * put back as it was. Its files are removed by the {@link MongoArchiver}
+	 * in the background.
+	 * 
+	 * @return false if the document was not active, or could not be written
+	 *         to the old documents. It is then left active.
+	 */
 	private boolean markDone(final DatabaseDocument<MongoType> d,
 			String stage,
 			String stamp) {
 		MongoQuery mq = new MongoQuery();
 		mq.requireID(d.getID());
+		DBObject query = mq.toDBObject();
+		query.put(MongoDocument.METADATA_KEY+"."+CLAIM_METADATA_FLAG, new BasicDBObject("$exists", false));
 		
-		DBObject doc = documents.findAndRemove(mq.toDBObject());
+		DBObject claimed = documents.findAndRemove(query);
 		
-		if(doc==null) {
+		if(claimed==null) {
 			return false;
 		}
 		
+		MongoDocument doc = new MongoDocument();
+		doc.putAll(claimed);
 		doc.putAll(((MongoDocument)d).toMap());
 		
 		stampMetadataField(doc, stamp, stage);
-		deleteAllFiles(d);
+		if(archiver.archive(Collections.singletonList(doc), stage).isEmpty()) {
+			restore(claimed);
+			return false;
+		}
+		archiver.removeFiles(Collections.singletonList(claimed.get(MongoDocument.MONGO_ID_KEY)));
 
-		return writeToOldDocuments(d, stage, doc);
+		return true;
 	}
 
 	/**
-	 * Attempt to write a {@link DatabaseDocument} to the {@link #oldDocuments}
-	 * collection. If it fails, it will remove the largest content field by replacing the
-	 * content with the string "&lt;Removed&gt;" and retry doing this
-	 * {@value #MAX_NUMBER_OF_DONE_RETRIES} number of times.
-	 * 
-	 * <p>
-	 * We can do this since the document has been successfully processed, but the cleanup
-	 * is failing. We want a document in old documents, but if we can not - then we should
-	 * be satisfied with a partial document.
-	 * </p>
-	 * 
-	 * @param document the original {@link DatabaseDocument} which was processed.
-	 * @param stage the name of the stage which will be used for logging
-	 * @param mongoDocument the MongoDb-document to insert
-	 * @return true if it was successful, false if the write failed.
+	 * Puts a document that was removed by
+	 * {@link #markDone(DatabaseDocument, String, String)} back into the active
+	 * documents.
 	 */
-	private boolean writeToOldDocuments(final DatabaseDocument<MongoType> document,
-			String stage,
-			DBObject mongoDocument) {
-		for (int retryNr = 0; retryNr < MAX_NUMBER_OF_DONE_RETRIES; retryNr++) {
-			try {
-				oldDocuments.insert(mongoDocument);
-				return true;
-			} catch (MongoInternalException e) {
-				String largestContentField = getLargestContentField(document);
-				document.putContentField(largestContentField, "<Removed>");
-				document.addError(stage, e);
-				mongoDocument.putAll(((MongoDocument) document).toMap());
-				logger.error("An error occurred while writing document "
-						+ document.getID() + " to " + oldDocuments.getName() + ": "
-						+ e.getMessage(),
-						e);
-			} catch (MongoException e) {
-				// Thrown on duplicate key insert
-				logger.error("An error occurred while writing document "
-						+ document.getID() + " to " + oldDocuments.getName() + ": "
-						+ e.getMessage(),
-						e);
-				break; // No retries for duplicate inserts
-			}
+	private void restore(DBObject claimed) {
+		try {
+			documents.insert(claimed, concern);
+		} catch (MongoException e) {
+			logger.error("Unable to put document "+claimed.get(MongoDocument.MONGO_ID_KEY)+" back after failing to archive it, it is lost", e);
 		}
+	}
 
-		return false;
+	/**
+	 * Waits until the files of every finished document have been removed.
+	 */
+	public void flushArchive() {
+		archiver.flush();
 	}
 
-	private String getLargestContentField(final DatabaseDocument<MongoType> d) {
-		return Collections.max(d.getContentFields(), new Comparator<String>() {
-			@Override
-			public int compare(String a, String b) {
-				Integer sizeOfA = d.getContentField(a).toString().length();
-				Integer sizeOfB = d.getContentField(b).toString().length();
-				return sizeOfA.compareTo(sizeOfB);
-			}
-		});
+	/**
+	 * Removes the files still queued for removal, and stops the thread that
+	 * removes them.
+	 */
+	public void close() {
+		archiver.close();
+	}
+
+	/**
+	 * @return the largest document, in bytes, that may be written to the old
+	 *         documents. Larger documents are truncated.
+	 */
+	public int getMaxDocumentSize() {
+		return archiver.getMaxDocumentSize();
+	}
+
+	public void setMaxDocumentSize(int maxDocumentSize) {
+		archiver.setMaxDocumentSize(maxDocumentSize);
 	}
 	
 	@Override
@@ -622,6 +767,113 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 		return res;
 	}
 	
+	@Override
+	public Set<DocumentID<MongoType>> markAll(Collection<DatabaseDocument<MongoType>> docs, Document.Status status, String stage) {
+		Set<DocumentID<MongoType>> marked = new HashSet<DocumentID<MongoType>>();
+		if (docs.isEmpty()) {
+			return marked;
+		}
+
+		Map<Object, DatabaseDocument<MongoType>> deltas = new HashMap<Object, DatabaseDocument<MongoType>>();
+		for (DatabaseDocument<MongoType> d : docs) {
+			if (d.getID() != null) {
+				deltas.put(d.getID().getID(), d);
+			}
+		}
+		DBObject query = QueryBuilder.start(MongoDocument.MONGO_ID_KEY).in(deltas.keySet()).get();
+
+		switch (status) {
+			case PENDING: {
+				return markAllPending(deltas, query, stage);
+			}
+			case PROCESSED: {
+				marked = markAllDone(deltas, query, stage, MongoDocument.PROCESSED_METADATA_FLAG);
+				updater.addProcessed(marked.size());
+				return marked;
+			}
+			case DISCARDED: {
+				marked = markAllDone(deltas, query, stage, MongoDocument.DISCARDED_METADATA_FLAG);
+				updater.addDiscarded(marked.size());
+				return marked;
+			}
+			case FAILED: {
+				marked = markAllDone(deltas, query, stage, MongoDocument.FAILED_METADATA_FLAG);
+				updater.addFailed(marked.size());
+				return marked;
+			}
+			default: {
+				throw new IllegalArgumentException("Unable to mark documents with status " + status);
+			}
+		}
+	}
+
+	private Set<DocumentID<MongoType>> markAllPending(Map<Object, DatabaseDocument<MongoType>> deltas, DBObject query, String stage) {
+		Set<DocumentID<MongoType>> marked = new HashSet<DocumentID<MongoType>>();
+		List<Object> ids = new ArrayList<Object>();
+		for (DBObject o : documents.find(query, new BasicDBObject(MongoDocument.MONGO_ID_KEY, 1))) {
+			ids.add(o.get(MongoDocument.MONGO_ID_KEY));
+			marked.add(deltas.get(o.get(MongoDocument.MONGO_ID_KEY)).getID());
+		}
+		if (ids.isEmpty()) {
+			return marked;
+		}
+
+		DBObject update = new BasicDBObject();
+		update.put(MongoDocument.METADATA_KEY+"."+MongoDocument.PENDING_METADATA_FLAG+"."+MongoDocument.DATE_METADATA_SUBKEY, new Date());
+		update.put(MongoDocument.METADATA_KEY+"."+MongoDocument.PENDING_METADATA_FLAG+"."+MongoDocument.STAGE_METADATA_SUBKEY, stage);
+		documents.update(QueryBuilder.start(MongoDocument.MONGO_ID_KEY).in(ids).get(), getUpdateObject(update), false, true, concern);
+
+		return marked;
+	}
+
+	/**
+	 * Bulk version of {@link #markDone(DatabaseDocument, String, String)}. All
+	 * matching documents are first claimed in one update, so that no other
+	 * call can finish them at the same time. The claimed documents are read
+	 * in one query, merged with their deltas and stamped, and written to
+	 * {@link #oldDocuments} in batches. Those that were written are then
+	 * removed from {@link #documents} in one operation, and the claim is
+	 * released from the rest.
+	 */
+	private Set<DocumentID<MongoType>> markAllDone(Map<Object, DatabaseDocument<MongoType>> deltas, DBObject query, String stage, String stamp) {
+		Set<DocumentID<MongoType>> marked = new HashSet<DocumentID<MongoType>>();
+		String claimKey = MongoDocument.METADATA_KEY+"."+CLAIM_METADATA_FLAG;
+		ObjectId claim = new ObjectId();
+		query.put(claimKey, new BasicDBObject("$exists", false));
+		documents.update(query, new BasicDBObject("$set", new BasicDBObject(claimKey, claim)), false, true, concern);
+
+		List<MongoDocument> merged = new ArrayList<MongoDocument>();
+		for (DBObject o : documents.find(new BasicDBObject(claimKey, claim))) {
+			MongoDocument md = new MongoDocument();
+			md.putAll(o);
+			md.putAll(deltas.get(o.get(MongoDocument.MONGO_ID_KEY)));
+			stampMetadataField(md, stamp, stage);
+			merged.add(md);
+		}
+		if (merged.isEmpty()) {
+			return marked;
+		}
+
+		Set<Object> archived = archiver.archive(merged, stage);
+		if (archived.size() < merged.size()) {
+			logger.error("Only " + archived.size() + " of " + merged.size() + " documents could be written to " + oldDocuments.getName() + ", the rest are left active");
+			documents.update(QueryBuilder.start(claimKey).is(claim).and(MongoDocument.MONGO_ID_KEY).notIn(archived).get(),
+					new BasicDBObject("$unset", new BasicDBObject(claimKey, 1)), false, true, concern);
+		}
+		if (archived.isEmpty()) {
+			return marked;
+		}
+		documents.remove(QueryBuilder.start(claimKey).is(claim).and(MongoDocument.MONGO_ID_KEY).in(archived).get(), concern);
+		archiver.removeFiles(archived);
+
+		for (MongoDocument md : merged) {
+			if (archived.contains(md.getID().getID())) {
+				marked.add(md.getID());
+			}
+		}
+		return marked;
+	}
+
 	private MongoDocument findAndModify(DBObject query, DBObject modification) {
 		DBObject c = documents.findAndModify(query, modification);
 		
@@ -730,6 +982,19 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 		return list;
 	}
 
+	@Override
+	public List<DocumentID<MongoType>> getDocumentIds(
+			DatabaseQuery<MongoType> dbq, int limit, int skip) {
+		DBCursor cursor = documents.find(((MongoQuery)dbq).toDBObject(), new BasicDBObject(MongoDocument.MONGO_ID_KEY, 1)).skip(skip).limit(limit);
+
+		List<DocumentID<MongoType>> list = new ArrayList<DocumentID<MongoType>>();
+		while(cursor.hasNext()) {
+			list.add(new MongoDocumentID((ObjectId) cursor.next().get(MongoDocument.MONGO_ID_KEY)));
+		}
+		
+		return list;
+	}
+
 	@Override
 	public long getNumberOfDocuments(DatabaseQuery<MongoType> q) {
 		return documents.getCount(((MongoQuery)q).toDBObject());
@@ -0,0 +1,389 @@
+package com.findwise.hydra.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.IndexAdvisor;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.Pipeline;
+import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.Stage;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Derives a compound index from the query of every active stage in the
+ * pipeline, so that the database can find the next document for a stage
+ * without looking at the documents the stage is not interested in.
+ *
+ * The fields of an index are ordered with those the query requires to be
+ * equal to a value first, then those it requires to exist, and last those it
+ * requires not to exist, ending with the fetched-flag of the stage itself.
+ * The indexes are named {@value #INDEX_PREFIX} followed by the stage name,
+ * and are built in the background. Stages whose queries give the same key
+ * share an index, whichever of them it is named after. Indexes with that
+ * prefix whose key no stage needs any longer are dropped, as are the single
+ * field indexes on fetched-flags that {@link MongoDocumentIO} creates for
+ * stages it has not been told about.
+ *
+ * When the documents are split between cores, every index starts with the
+ * owner of the document, since each core only asks for the documents it
+ * owns.
+ *
+ * With partial indexes enabled, an index only holds the documents that match
+ * the equalities and existence requirements of the query. This needs MongoDB
+ * 3.2 or later.
+ *
+ * Once the indexes are in place, the query of every stage is explained, and
+ * those that would still scan the whole collection are logged and reported
+ * through {@link #getCollectionScans()}.
+ */
+public class MongoIndexAdvisor implements IndexAdvisor {
+	public static final String INDEX_PREFIX = "hydra_";
+	public static final String QUERY_PROPERTY = "query";
+
+	/**
+	 * The most fields MongoDB allows in a compound index
+	 */
+	static final int MAX_INDEX_FIELDS = 31;
+	static final int MAX_NAME_LENGTH = 64;
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoIndexAdvisor.class);
+
+	private static final String FETCHED_PREFIX = MongoDocument.METADATA_KEY + "." + DatabaseDocument.FETCHED_METADATA_TAG + ".";
+	private static final String TOUCHED_PREFIX = MongoDocument.METADATA_KEY + "." + DatabaseDocument.TOUCHED_METADATA_TAG + ".";
+	private static final String SHARD_FIELD = MongoDocument.METADATA_KEY + "." + CachingDocumentNIO.SHARD_METADATA_KEY;
+
+	private final MongoDocumentIO documentIO;
+	private final DBCollection documents;
+	private final boolean partial;
+	private final String[] commonTags;
+	private volatile String shardNode;
+
+	private volatile Map<String, String> collectionScans = Collections.emptyMap();
+
+	/**
+	 * @param partial
+	 *            whether to create partial indexes, requires MongoDB 3.2
+	 * @param commonTags
+	 *            tags that are fetched along with every stage, such as that of
+	 *            the document cache
+	 */
+	public MongoIndexAdvisor(MongoDocumentIO documentIO, boolean partial, String... commonTags) {
+		this.documentIO = documentIO;
+		this.documents = documentIO.getDocumentCollection();
+		this.partial = partial;
+		this.commonTags = commonTags;
+	}
+
+	/**
+	 * @param shardNode
+	 *            the name of this core on the shard ring, or
+	 *            <code>null</code> if the documents are not split between
+	 *            cores
+	 */
+	public void setShardNode(String shardNode) {
+		this.shardNode = shardNode;
+	}
+
+	@Override
+	public void update(Pipeline pipeline) {
+		long start = System.currentTimeMillis();
+		Map<String, MongoQuery> queries = getQueries(pipeline);
+
+		Map<String, DBObject> existing = new HashMap<String, DBObject>();
+		Map<String, String> existingByKey = new HashMap<String, String>();
+		for (DBObject index : documents.getIndexInfo()) {
+			DBObject key = (DBObject) index.get("key");
+			existing.put((String) index.get("name"), key);
+			existingByKey.put(describe(key), (String) index.get("name"));
+		}
+
+		// An index is owned by its key rather than by the stage it is named
+		// after, as stages with the same key share one index
+		Map<String, DBObject> keys = new LinkedHashMap<String, DBObject>();
+		Set<String> wanted = new HashSet<String>();
+		for (Map.Entry<String, MongoQuery> e : queries.entrySet()) {
+			DBObject key = getIndexKey(e.getValue(), shardNode != null, e.getKey(), commonTags);
+			keys.put(e.getKey(), key);
+			wanted.add(describe(key));
+		}
+
+		for (Map.Entry<String, DBObject> e : keys.entrySet()) {
+			String stage = e.getKey();
+			DBObject key = e.getValue();
+			if (!existingByKey.containsKey(describe(key))) {
+				String name = getIndexName(stage);
+				DBObject current = existing.get(name);
+				if (current != null && !wanted.contains(describe(current))) {
+					logger.info("The query of stage " + stage + " has changed, dropping index " + name);
+					drop(name);
+					existing.remove(name);
+					existingByKey.remove(describe(current));
+				} else if (current != null) {
+					// The name is taken by an index that another stage needs
+					name = getIndexName(stage + "_" + Integer.toHexString(describe(key).hashCode()));
+				}
+				create(stage, name, key, queries.get(stage));
+				existing.put(name, key);
+				existingByKey.put(describe(key), name);
+			}
+			documentIO.markIndexed(stage);
+		}
+
+		for (Map.Entry<String, DBObject> e : existing.entrySet()) {
+			String name = e.getKey();
+			if (wanted.contains(describe(e.getValue()))) {
+				continue;
+			}
+			if (name.startsWith(INDEX_PREFIX)) {
+				logger.info("No stage needs index " + name + " any longer, dropping it");
+				drop(name);
+			} else if (isUnneededFetchedIndex(e.getValue(), queries.keySet(), pipeline)) {
+				logger.info("Dropping index " + name + ", which no stage needs");
+				drop(name);
+			}
+		}
+
+		collectionScans = findCollectionScans(queries);
+		logger.info("Updated the indexes of " + queries.size() + " stages in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	@Override
+	public Map<String, String> getCollectionScans() {
+		return collectionScans;
+	}
+
+	/**
+	 * @return the query of every active stage in the pipeline, by stage name
+	 */
+	Map<String, MongoQuery> getQueries(Pipeline pipeline) {
+		Map<String, MongoQuery> queries = new TreeMap<String, MongoQuery>();
+		for (Stage stage : pipeline.getStages()) {
+			if (stage.getMode() == Stage.Mode.INACTIVE) {
+				continue;
+			}
+			Object query = (stage.getProperties() != null) ? stage.getProperties().get(QUERY_PROPERTY) : null;
+			try {
+				if (query instanceof String) {
+					queries.put(stage.getName(), new MongoQuery((String) query));
+				} else if (query != null) {
+					queries.put(stage.getName(), new MongoQuery(SerializationUtils.toJson(query)));
+				} else {
+					queries.put(stage.getName(), new MongoQuery());
+				}
+			} catch (JsonException e) {
+				logger.warn("Unable to understand the query of stage " + stage.getName() + ", not indexing it", e);
+			}
+		}
+		return queries;
+	}
+
+	/**
+	 * @return the fields to index for the query of the stage, in order
+	 */
+	static DBObject getIndexKey(MongoQuery mq, String stage, String... commonTags) {
+		return getIndexKey(mq, false, stage, commonTags);
+	}
+
+	/**
+	 * @param sharded
+	 *            whether queries are restricted to the documents of one shard
+	 * @return the fields to index for the query of the stage, in order
+	 */
+	static DBObject getIndexKey(MongoQuery mq, boolean sharded, String stage, String... commonTags) {
+		List<String> fields = new ArrayList<String>();
+		if (sharded) {
+			fields.add(SHARD_FIELD);
+		}
+		if (mq.getAction() != null) {
+			fields.add(MongoDocument.ACTION_KEY);
+		}
+		for (String field : new TreeMap<String, Object>(mq.getContentsEquals()).keySet()) {
+			fields.add(MongoDocument.CONTENTS_KEY + "." + field);
+		}
+		for (String t : mq.getTouchedBy()) {
+			fields.add(TOUCHED_PREFIX + t);
+		}
+		for (String t : mq.getFetchedBy()) {
+			fields.add(FETCHED_PREFIX + t);
+		}
+		for (String field : mq.getContentsExists()) {
+			fields.add(MongoDocument.CONTENTS_KEY + "." + field);
+		}
+		for (String t : mq.getNotTouchedBy()) {
+			fields.add(TOUCHED_PREFIX + t);
+		}
+		for (String t : mq.getNotFetchedBy()) {
+			fields.add(FETCHED_PREFIX + t);
+		}
+		fields.add(FETCHED_PREFIX + stage);
+		for (String t : commonTags) {
+			fields.add(FETCHED_PREFIX + t);
+		}
+
+		BasicDBObject key = new BasicDBObject();
+		for (String field : fields) {
+			if (key.size() == MAX_INDEX_FIELDS) {
+				break;
+			}
+			if (!key.containsField(field)) {
+				key.put(field, 1);
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * @return the part of the query a document has to match to be in the
+	 *         partial index of the stage
+	 */
+	static DBObject getPartialFilter(MongoQuery mq) {
+		BasicDBObject filter = new BasicDBObject();
+		if (mq.getAction() != null) {
+			filter.put(MongoDocument.ACTION_KEY, mq.getAction().toString());
+		}
+		for (Map.Entry<String, Object> e : new TreeMap<String, Object>(mq.getContentsEquals()).entrySet()) {
+			filter.put(MongoDocument.CONTENTS_KEY + "." + e.getKey(), e.getValue());
+		}
+		for (String t : mq.getTouchedBy()) {
+			filter.put(TOUCHED_PREFIX + t, new BasicDBObject("$exists", true));
+		}
+		for (String t : mq.getFetchedBy()) {
+			filter.put(FETCHED_PREFIX + t, new BasicDBObject("$exists", true));
+		}
+		for (String field : mq.getContentsExists()) {
+			filter.put(MongoDocument.CONTENTS_KEY + "." + field, new BasicDBObject("$exists", true));
+		}
+		return filter;
+	}
+
+	static String getIndexName(String stage) {
+		String name = INDEX_PREFIX + stage;
+		if (name.length() <= MAX_NAME_LENGTH) {
+			return name;
+		}
+		String hash = Integer.toHexString(stage.hashCode());
+		return name.substring(0, MAX_NAME_LENGTH - hash.length() - 1) + "_" + hash;
+	}
+
+	/**
+	 * @return the fields and directions of an index, in order, in a form that
+	 *         does not depend on how the directions are typed
+	 */
+	static String describe(DBObject key) {
+		StringBuilder sb = new StringBuilder();
+		for (String field : key.keySet()) {
+			Object direction = key.get(field);
+			sb.append(field).append(':');
+			sb.append((direction instanceof Number) ? String.valueOf(((Number) direction).intValue()) : String.valueOf(direction));
+			sb.append(',');
+		}
+		return sb.toString();
+	}
+
+	private void create(String stage, String name, DBObject key, MongoQuery mq) {
+		BasicDBObject options = new BasicDBObject("name", name).append("background", true);
+		if (partial) {
+			DBObject filter = getPartialFilter(mq);
+			if (filter.keySet().size() > 0) {
+				options.append("partialFilterExpression", filter);
+			}
+		}
+		long start = System.currentTimeMillis();
+		try {
+			documents.ensureIndex(key, options);
+			logger.info("Created index " + name + " " + key + " for stage " + stage + " in " + (System.currentTimeMillis() - start) + " ms");
+		} catch (MongoException e) {
+			logger.error("Unable to create index " + name + " for stage " + stage, e);
+		}
+	}
+
+	private void drop(String name) {
+		try {
+			documents.dropIndex(name);
+		} catch (MongoException e) {
+			logger.error("Unable to drop index " + name, e);
+		}
+	}
+
+	/**
+	 * @return whether the index is a single field index on the fetched-flag of
+	 *         a stage whose query is now covered by an index of its own, or of
+	 *         a stage that neither is in the pipeline nor has been seen
+	 */
+	private boolean isUnneededFetchedIndex(DBObject key, Set<String> indexed, Pipeline pipeline) {
+		if (key.keySet().size() != 1) {
+			return false;
+		}
+		String field = key.keySet().iterator().next();
+		if (!field.startsWith(FETCHED_PREFIX)) {
+			return false;
+		}
+		String tag = field.substring(FETCHED_PREFIX.length());
+		for (String t : commonTags) {
+			if (t.equals(tag)) {
+				return false;
+			}
+		}
+		if (indexed.contains(tag)) {
+			return true;
+		}
+		return !pipeline.hasStage(tag) && !documentIO.hasSeenTag(tag);
+	}
+
+	/**
+	 * Explains the query every stage asks with, as restricted to documents
+	 * that the stage may fetch. Leaves the queries restricted.
+	 */
+	private Map<String, String> findCollectionScans(Map<String, MongoQuery> queries) {
+		Map<String, String> scans = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, MongoQuery> e : queries.entrySet()) {
+			String stage = e.getKey();
+			MongoQuery mq = e.getValue();
+			String[] tags = new String[commonTags.length + 1];
+			tags[0] = stage;
+			System.arraycopy(commonTags, 0, tags, 1, commonTags.length);
+			documentIO.requireFetchable(mq, tags);
+			if (shardNode != null) {
+				mq.requireMetadataFieldEquals(CachingDocumentNIO.SHARD_METADATA_KEY, shardNode);
+			}
+			DBObject query = mq.toDBObject();
+			try {
+				if (isCollectionScan(documents.find(query).explain())) {
+					logger.warn("The query of stage " + stage + " scans the whole document collection: " + query);
+					scans.put(stage, query.toString());
+				}
+			} catch (MongoException ex) {
+				logger.error("Unable to explain the query of stage " + stage, ex);
+			}
+		}
+		return Collections.unmodifiableMap(scans);
+	}
+
+	/**
+	 * Recognizes the plans of both older (BasicCursor) and newer (COLLSCAN)
+	 * versions of MongoDB.
+	 */
+	static boolean isCollectionScan(DBObject plan) {
+		if (plan == null) {
+			return false;
+		}
+		String s = plan.toString();
+		return s.contains("BasicCursor") || s.contains("COLLSCAN");
+	}
+}
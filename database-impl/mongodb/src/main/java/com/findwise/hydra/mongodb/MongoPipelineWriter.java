@@ -29,6 +29,7 @@ public class MongoPipelineWriter implements PipelineWriter {
 	private DBCollection stages;
 	private MongoPipelineReader reader;
 	private WriteConcern concern;
+	private MongoChangeFeed changeFeed;
 	
 	public MongoPipelineWriter(MongoPipelineReader reader, WriteConcern concern) {
 		this.reader = reader;
@@ -44,19 +45,40 @@ public class MongoPipelineWriter implements PipelineWriter {
 	public void write(Pipeline p) throws IOException {
 		Pipeline old = reader.getPipeline();
 		for(Stage s : old.getStages()) {
-			inactivate(s);
+			setInactive(s);
 		}
 		
 		for(StageGroup g : p.getStageGroups()) {
-			write(g);
+			writeGroup(g);
 		}
+		publishChange();
 	}
 	
 	public void inactivate(Stage stage) {
+		setInactive(stage);
+		publishChange();
+	}
+	
+	private void setInactive(Stage stage) {
 		DBObject q = reader.getStageQuery(stage.getName());
 		stages.findAndModify(q, new BasicDBObject("$set", new BasicDBObject(MongoPipelineReader.ACTIVE_KEY, Stage.Mode.INACTIVE.toString())));
 	}
 	
+	/**
+	 * @param changeFeed
+	 *            told about every change to the pipeline, once it has been
+	 *            written in full
+	 */
+	public void setChangeFeed(MongoChangeFeed changeFeed) {
+		this.changeFeed = changeFeed;
+	}
+	
+	private void publishChange() {
+		if(changeFeed != null) {
+			changeFeed.publishPipelineChanged();
+		}
+	}
+	
 	private DBObject getGroupDBObject(StageGroup group) {
 		BasicDBObject obj = new BasicDBObject();
 		
@@ -122,10 +144,15 @@ public class MongoPipelineWriter implements PipelineWriter {
 	}
 	
 	public void write(StageGroup stageGroup) throws IOException {
+		writeGroup(stageGroup);
+		publishChange();
+	}
+	
+	private void writeGroup(StageGroup stageGroup) {
 		writeProperties(stageGroup);
 
 		for (Stage s : stageGroup.getStages()) {
-			write(s, stageGroup.getName());
+			writeStage(s, stageGroup.getName());
 		}
 	}
 	
@@ -138,6 +165,11 @@ public class MongoPipelineWriter implements PipelineWriter {
 	}
 	
 	public void write(Stage stage, String group) throws IOException  {
+		writeStage(stage, group);
+		publishChange();
+	}
+	
+	private void writeStage(Stage stage, String group) {
 		DBObject q = reader.getStageQuery(stage.getName());
 		WriteResult result = stages.update(q, getStageDBObject(stage, group), true, false, concern);
 		if (logger.isDebugEnabled()) {
@@ -170,6 +202,7 @@ public class MongoPipelineWriter implements PipelineWriter {
 		GridFSInputFile inputFile = pipelinefs.createFile(file, fileName);
 		inputFile.put("_id", id);
 		inputFile.save();
+		publishChange();
 		return true;
 	}
 
@@ -180,6 +213,7 @@ public class MongoPipelineWriter implements PipelineWriter {
 			return false;
 		}
 		pipelinefs.remove(obj);
+		publishChange();
 		return true;
 	}
 }
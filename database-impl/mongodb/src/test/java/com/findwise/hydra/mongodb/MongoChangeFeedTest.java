@@ -0,0 +1,100 @@
+package com.findwise.hydra.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.findwise.hydra.DocumentID;
+import com.findwise.hydra.DocumentListener;
+import com.findwise.hydra.PipelineListener;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Contains tests for {@link MongoChangeFeed}.
+ *
+ * <p>
+ * This test is a part of the MongoDB-less test suite which values mocks over running
+ * MongoDB instances.
+ * </p>
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MongoChangeFeedTest {
+
+	@Mock
+	private DB db;
+	@Mock
+	private DBCollection changes;
+	@Mock
+	private DocumentListener<MongoType> documentListener;
+	@Mock
+	private PipelineListener pipelineListener;
+
+	private MongoChangeFeed feed;
+
+	@Before
+	public void setUp() {
+		when(db.getCollection(eq(MongoChangeFeed.CHANGES_COLLECTION))).thenReturn(changes);
+		feed = new MongoChangeFeed(db);
+		feed.addDocumentListener(documentListener);
+		feed.addPipelineListener(pipelineListener);
+	}
+
+	@Test
+	public void testPublishingOnlyInsertsEvents() {
+		ObjectId oid = new ObjectId();
+		feed.publishDocumentChanged(new MongoDocumentID(oid));
+		feed.publishPipelineChanged();
+
+		ArgumentCaptor<DBObject> events = ArgumentCaptor.forClass(DBObject.class);
+		verify(changes, times(2)).insert(events.capture());
+		assertEquals(MongoChangeFeed.DOCUMENT_TYPE, events.getAllValues().get(0).get(MongoChangeFeed.TYPE_KEY));
+		assertEquals(oid, events.getAllValues().get(0).get(MongoChangeFeed.DOCUMENT_KEY));
+		assertEquals(MongoChangeFeed.PIPELINE_TYPE, events.getAllValues().get(1).get(MongoChangeFeed.TYPE_KEY));
+
+		verify(documentListener, never()).documentChanged(any(DocumentID.class));
+		verify(pipelineListener, never()).pipelineChanged();
+		assertFalse(feed.isLive());
+	}
+
+	@Test
+	public void testDispatch() {
+		ObjectId oid = new ObjectId();
+		feed.dispatch(new BasicDBObject(MongoChangeFeed.TYPE_KEY, MongoChangeFeed.DOCUMENT_TYPE).append(MongoChangeFeed.DOCUMENT_KEY, oid));
+		feed.dispatch(new BasicDBObject(MongoChangeFeed.TYPE_KEY, MongoChangeFeed.DOCUMENT_TYPE));
+		feed.dispatch(new BasicDBObject(MongoChangeFeed.TYPE_KEY, MongoChangeFeed.PIPELINE_TYPE));
+		feed.dispatch(new BasicDBObject(MongoChangeFeed.TYPE_KEY, MongoChangeFeed.START_TYPE));
+
+		verify(documentListener).documentChanged(new MongoDocumentID(oid));
+		verify(documentListener).documentChanged(null);
+		verify(pipelineListener).pipelineChanged();
+	}
+
+	@Test
+	public void testPrepareCreatesCappedCollection() {
+		when(db.collectionExists(MongoChangeFeed.CHANGES_COLLECTION)).thenReturn(false);
+		when(changes.isCapped()).thenReturn(true);
+
+		feed.prepare();
+
+		ArgumentCaptor<DBObject> options = ArgumentCaptor.forClass(DBObject.class);
+		verify(db).createCollection(eq(MongoChangeFeed.CHANGES_COLLECTION), options.capture());
+		assertEquals(true, options.getValue().get("capped"));
+		verify(changes).insert(any(DBObject.class));
+	}
+}
@@ -1,21 +1,28 @@
 package com.findwise.hydra.mongodb;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.List;
+
 import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
-import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
-import org.mockito.stubbing.Answer;
 
 import com.findwise.hydra.StatusUpdater;
 import com.mongodb.BasicDBObject;
@@ -23,7 +30,7 @@ import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.MongoInternalException;
-import com.mongodb.WriteResult;
+import com.mongodb.WriteConcern;
 import com.mongodb.gridfs.GridFS;
 
 /**
@@ -68,78 +75,117 @@ public class MongoDocumentIOMongoLessTest {
 
 	@Test
 	public void testMarkProcessedWhenMongoIsBroken() {
-		DBObject mongoObject = new BasicDBObject();
+		DBObject mongoObject = new BasicDBObject(MongoDocument.CONTENTS_KEY, new BasicDBObject("a", "old"));
 		when(documents.findAndRemove(any(DBObject.class))).thenReturn(mongoObject);
 
 		// Add some content since markProcessed assumes content exists.
 		document.putContentField("a", "b");
 
+		when(oldDocuments.insert(anyListOf(DBObject.class))).thenThrow(new MongoInternalException(
+				"I am suck!"));
 		when(oldDocuments.insert(any(DBObject.class))).thenThrow(new MongoInternalException(
 				"I am suck!"));
 
 		boolean processed = documentIO.markProcessed(document, "Test stage");
+		documentIO.flushArchive();
+
+		assertFalse("The document could not be archived, so it should not be marked", processed);
+		verify(oldDocuments).insert(any(DBObject.class));
+		verify(documents).insert(eq(mongoObject), any(WriteConcern.class));
+		assertEquals("The document should be put back as it was", "old", getContents(mongoObject).get("a"));
+		verify(gridFs, never()).remove(any(DBObject.class));
+	}
+
+	@Test
+	public void testMarkProcessedArchivesBeforeRemoving() {
+		document.putContentField("a", "b");
 
-		assertFalse("Processing should not be fine", processed);
-		assertTrue("The document should have logged errors", document.hasErrors());
+		assertTrue(documentIO.markProcessed(document, "Test stage"));
+		documentIO.close();
+
+		InOrder inOrder = inOrder(documents, oldDocuments, gridFs);
+		inOrder.verify(documents).findAndRemove(any(DBObject.class));
+		inOrder.verify(oldDocuments).insert(anyListOf(DBObject.class));
+		inOrder.verify(gridFs).remove(any(DBObject.class));
+		verify(documents, never()).insert(any(DBObject.class), any(WriteConcern.class));
+	}
+
+	@Test
+	public void testMarkProcessedOfMissingDocument() {
+		when(documents.findAndRemove(any(DBObject.class))).thenReturn(null);
+
+		assertFalse(documentIO.markProcessed(document, "Test stage"));
+		documentIO.flushArchive();
+		verify(oldDocuments, never()).insert(anyListOf(DBObject.class));
 	}
 
 	@Test
 	public void testMarkProcessedOfTooLargeDocument() {
 		final String contentField = "body";
 		final String contentValue = "A very looooooooooooooooooong body!";
-		document.putContentField(contentField, contentValue);
-
-		when(oldDocuments.insert(any(DBObject.class))).thenAnswer(new Answer<WriteResult>() {
-			@Override
-			public WriteResult answer(InvocationOnMock invocation) throws Throwable {
-				boolean theFieldIsStillTheSame = document.getContentField(contentField)
-						.equals(contentValue);
-
-				if (theFieldIsStillTheSame) {
-					throw new MongoInternalException("Document is too large!");
-				} else {
-					return null;
-				}
-			}
-		});
+		document.putContentField(contentField, repeat(contentValue, 20));
+		documentIO.setMaxDocumentSize(300);
 
-		boolean processed = documentIO.markProcessed(document, "Test stage");
+		documentIO.markProcessed(document, "Test stage");
+		documentIO.flushArchive();
 
-		assertTrue("Processing should return successfully.", processed);
-		assertTrue("The field 'body' should be removed.",
-				document.getContentField(contentField).equals("<Removed>"));
-		assertTrue("The document should have logged errors", document.hasErrors());
+		DBObject archived = getArchived();
+		assertEquals("The field 'body' should be removed.", MongoArchiver.REMOVED_PLACEHOLDER, getContents(archived).get(contentField));
+		assertTrue("The document should have logged errors", getErrors(archived).containsField("Test stage"));
 	}
 
 	@Test
 	public void testMarkProcessedOfTooLargeDocumentRemovesLargestField() throws Exception {
-		final String shortValue = "aaa";
-		final String longValue = "aaaaaaaa";
+		final String shortValue = repeat("a", 100);
+		final String longValue = repeat("a", 200);
 		document.putContentField("short", shortValue);
 		document.putContentField("long", longValue);
+		documentIO.setMaxDocumentSize(300);
 
-		when(oldDocuments.insert(any(DBObject.class))).thenAnswer(new Answer<WriteResult>() {
-			@Override
-			public WriteResult answer(InvocationOnMock invocation) throws Throwable {
-				boolean shortFieldIsStillTheSame = document.getContentField("short")
-						.equals(shortValue);
-				boolean longFieldIsStillTheSame = document.getContentField("long")
-						.equals(longValue);
-
-				if (shortFieldIsStillTheSame && longFieldIsStillTheSame) {
-					throw new MongoInternalException("Document is too large!");
-				} else {
-					return null;
-				}
-			}
-		});
-
-		boolean processed = documentIO.markProcessed(document, "Test stage");
+		documentIO.markProcessed(document, "Test stage");
+		documentIO.flushArchive();
 
 		// One field should have been removed now, and it should be the longest one.
-		assertEquals(shortValue, document.getContentField("short"));
-		assertEquals("<Removed>", document.getContentField("long"));
-		assertTrue("Processing should return successfully.", processed);
+		DBObject archived = getArchived();
+		assertEquals(shortValue, getContents(archived).get("short"));
+		assertEquals(MongoArchiver.REMOVED_PLACEHOLDER, getContents(archived).get("long"));
+		verify(oldDocuments, times(1)).insert(anyListOf(DBObject.class));
 	}
 
+	@Test
+	public void testSmallDocumentsAreNotTruncated() throws Exception {
+		document.putContentField("body", "text");
+
+		documentIO.markProcessed(document, "Test stage");
+		documentIO.flushArchive();
+
+		DBObject archived = getArchived();
+		assertEquals("text", getContents(archived).get("body"));
+		assertFalse(((DBObject) archived.get(MongoDocument.METADATA_KEY)).containsField(MongoDocument.ERROR_METADATA_KEY));
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private DBObject getArchived() {
+		ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+		verify(oldDocuments).insert(captor.capture());
+		List<DBObject> inserted = captor.getValue();
+		assertEquals(1, inserted.size());
+		return inserted.get(0);
+	}
+
+	private static DBObject getContents(DBObject archived) {
+		return (DBObject) archived.get(MongoDocument.CONTENTS_KEY);
+	}
+
+	private static DBObject getErrors(DBObject archived) {
+		return (DBObject) ((DBObject) archived.get(MongoDocument.METADATA_KEY)).get(MongoDocument.ERROR_METADATA_KEY);
+	}
+
+	private static String repeat(String s, int times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
 }
@@ -0,0 +1,265 @@
+package com.findwise.hydra.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.findwise.hydra.DatabaseFile;
+import com.findwise.hydra.Pipeline;
+import com.findwise.hydra.Stage;
+import com.findwise.hydra.StageGroup;
+import com.findwise.hydra.StatusUpdater;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFS;
+
+/**
+ * Contains tests for {@link MongoIndexAdvisor}.
+ *
+ * <p>
+ * This test is a part of the MongoDB-less test suite which values mocks over running
+ * MongoDB instances.
+ * </p>
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MongoIndexAdvisorTest {
+
+	@Mock
+	private DB db;
+	@Mock
+	private DBCollection documents;
+	@Mock
+	private DBCollection oldDocuments;
+	@Mock
+	private StatusUpdater updater;
+	@Mock
+	private GridFS gridFs;
+	@Mock
+	private DBCursor cursor;
+
+	private MongoDocumentIO documentIO;
+	private List<DBObject> indexes;
+
+	@Before
+	public void setUp() throws Exception {
+		when(db.getCollection(eq(MongoDocumentIO.DOCUMENT_COLLECTION))).thenReturn(documents);
+		when(db.getCollection(eq(MongoDocumentIO.OLD_DOCUMENT_COLLECTION))).thenReturn(oldDocuments);
+
+		documentIO = new MongoDocumentIO(db, null, 0, 0, updater, gridFs);
+
+		indexes = new ArrayList<DBObject>();
+		indexes.add(index("_id_", new BasicDBObject("_id", 1)));
+		when(documents.getIndexInfo()).thenReturn(indexes);
+		when(documents.find(any(DBObject.class))).thenReturn(cursor);
+		when(cursor.explain()).thenReturn(new BasicDBObject("cursor", "BtreeCursor hydra_stage"));
+	}
+
+	@Test
+	public void testIndexKeyOrder() throws Exception {
+		MongoQuery mq = new MongoQuery("{\"exists\":{\"b\":true},\"touched\":{\"first\":true,\"second\":false},\"equals\":{\"a\":\"x\"},\"action\":\"ADD\"}");
+
+		DBObject key = MongoIndexAdvisor.getIndexKey(mq, "stage", "_cache");
+
+		assertEquals("_action:1,contents.a:1,metadata.touched.first:1,contents.b:1,"
+				+ "metadata.touched.second:1,metadata.fetched.stage:1,metadata.fetched._cache:1,",
+				MongoIndexAdvisor.describe(key));
+	}
+
+	@Test
+	public void testShardLeadsIndexKey() throws Exception {
+		MongoQuery mq = new MongoQuery("{\"touched\":{\"first\":true},\"equals\":{\"a\":\"x\"}}");
+
+		DBObject key = MongoIndexAdvisor.getIndexKey(mq, true, "stage");
+
+		assertEquals("metadata.shard:1,contents.a:1,metadata.touched.first:1,metadata.fetched.stage:1,",
+				MongoIndexAdvisor.describe(key));
+	}
+
+	@Test
+	public void testShardedAdvisorIndexesAndExplainsByShard() throws Exception {
+		MongoIndexAdvisor advisor = new MongoIndexAdvisor(documentIO, false);
+		advisor.setShardNode("a:1");
+		advisor.update(pipeline(stage("s1", null)));
+
+		ArgumentCaptor<DBObject> keys = ArgumentCaptor.forClass(DBObject.class);
+		verify(documents).ensureIndex(keys.capture(), any(DBObject.class));
+		assertEquals("metadata.shard:1,metadata.fetched.s1:1,", MongoIndexAdvisor.describe(keys.getValue()));
+
+		ArgumentCaptor<DBObject> explained = ArgumentCaptor.forClass(DBObject.class);
+		verify(documents).find(explained.capture());
+		assertEquals("a:1", explained.getValue().get("metadata.shard"));
+	}
+
+	@Test
+	public void testPartialFilterOnlyHasPositivePredicates() throws Exception {
+		MongoQuery mq = new MongoQuery("{\"exists\":{\"b\":true,\"c\":false},\"touched\":{\"first\":true,\"second\":false},\"equals\":{\"a\":\"x\"}}");
+
+		DBObject filter = MongoIndexAdvisor.getPartialFilter(mq);
+
+		assertEquals("x", filter.get("contents.a"));
+		assertTrue(filter.containsField("contents.b"));
+		assertTrue(filter.containsField("metadata.touched.first"));
+		assertFalse(filter.containsField("contents.c"));
+		assertFalse(filter.containsField("metadata.touched.second"));
+	}
+
+	@Test
+	public void testCreatesIndexPerStage() throws Exception {
+		new MongoIndexAdvisor(documentIO, false).update(pipeline(stage("s1", "{\"touched\":{\"first\":true}}"), stage("s2", null)));
+
+		ArgumentCaptor<DBObject> keys = ArgumentCaptor.forClass(DBObject.class);
+		ArgumentCaptor<DBObject> options = ArgumentCaptor.forClass(DBObject.class);
+		verify(documents, Mockito.times(2)).ensureIndex(keys.capture(), options.capture());
+
+		assertEquals("metadata.touched.first:1,metadata.fetched.s1:1,", MongoIndexAdvisor.describe(keys.getAllValues().get(0)));
+		assertEquals("hydra_s1", options.getAllValues().get(0).get("name"));
+		assertEquals(true, options.getAllValues().get(0).get("background"));
+		assertFalse(options.getAllValues().get(0).containsField("partialFilterExpression"));
+		assertEquals("hydra_s2", options.getAllValues().get(1).get("name"));
+
+		assertTrue(documentIO.hasSeenTag("s1"));
+		assertTrue(documentIO.hasSeenTag("s2"));
+	}
+
+	@Test
+	public void testPartialIndex() throws Exception {
+		new MongoIndexAdvisor(documentIO, true).update(pipeline(stage("s1", "{\"touched\":{\"first\":true}}")));
+
+		ArgumentCaptor<DBObject> options = ArgumentCaptor.forClass(DBObject.class);
+		verify(documents).ensureIndex(any(DBObject.class), options.capture());
+		DBObject filter = (DBObject) options.getValue().get("partialFilterExpression");
+		assertTrue(filter.containsField("metadata.touched.first"));
+	}
+
+	@Test
+	public void testExistingIndexIsKept() throws Exception {
+		indexes.add(index("hydra_s1", new BasicDBObject("metadata.touched.first", 1.0).append("metadata.fetched.s1", 1.0)));
+
+		new MongoIndexAdvisor(documentIO, false).update(pipeline(stage("s1", "{\"touched\":{\"first\":true}}")));
+
+		verify(documents, never()).ensureIndex(any(DBObject.class), any(DBObject.class));
+		verify(documents, never()).dropIndex(anyString());
+	}
+
+	@Test
+	public void testChangedQueryReplacesIndex() throws Exception {
+		indexes.add(index("hydra_s1", new BasicDBObject("metadata.touched.old", 1).append("metadata.fetched.s1", 1)));
+
+		new MongoIndexAdvisor(documentIO, false).update(pipeline(stage("s1", "{\"touched\":{\"first\":true}}")));
+
+		verify(documents).dropIndex("hydra_s1");
+		verify(documents).ensureIndex(any(DBObject.class), any(DBObject.class));
+	}
+
+	@Test
+	public void testIndexOfRemovedStageIsKeptForStageWithSameKey() throws Exception {
+		indexes.add(index("hydra_removed", new BasicDBObject("metadata.touched.first", 1).append("metadata.fetched.s1", 1)));
+		indexes.add(index("hydra_s1", new BasicDBObject("metadata.touched.old", 1).append("metadata.fetched.s1", 1)));
+
+		new MongoIndexAdvisor(documentIO, false).update(pipeline(stage("s1", "{\"touched\":{\"first\":true}}")));
+
+		verify(documents, never()).ensureIndex(any(DBObject.class), any(DBObject.class));
+		verify(documents, never()).dropIndex("hydra_removed");
+		verify(documents).dropIndex("hydra_s1");
+	}
+
+	@Test
+	public void testDropsUnneededIndexes() throws Exception {
+		indexes.add(index("hydra_removed", new BasicDBObject("metadata.fetched.removed", 1)));
+		indexes.add(index("metadata.fetched.s1_1", new BasicDBObject("metadata.fetched.s1", 1)));
+		indexes.add(index("metadata.fetched.gone_1", new BasicDBObject("metadata.fetched.gone", 1)));
+		indexes.add(index("metadata.fetched._cache_1", new BasicDBObject("metadata.fetched._cache", 1)));
+		indexes.add(index("contents.other_1", new BasicDBObject("contents.other", 1)));
+
+		new MongoIndexAdvisor(documentIO, false, "_cache").update(pipeline(stage("s1", null)));
+
+		verify(documents).dropIndex("hydra_removed");
+		verify(documents).dropIndex("metadata.fetched.s1_1");
+		verify(documents).dropIndex("metadata.fetched.gone_1");
+		verify(documents, never()).dropIndex("metadata.fetched._cache_1");
+		verify(documents, never()).dropIndex("contents.other_1");
+	}
+
+	@Test
+	public void testReportsCollectionScans() throws Exception {
+		when(cursor.explain()).thenReturn(new BasicDBObject("cursor", "BasicCursor"));
+
+		MongoIndexAdvisor advisor = new MongoIndexAdvisor(documentIO, false);
+		advisor.update(pipeline(stage("s1", null)));
+
+		assertEquals(1, advisor.getCollectionScans().size());
+		assertTrue(advisor.getCollectionScans().containsKey("s1"));
+
+		DBObject plan = new BasicDBObject("queryPlanner", new BasicDBObject("winningPlan", new BasicDBObject("stage", "COLLSCAN")));
+		assertTrue(MongoIndexAdvisor.isCollectionScan(plan));
+	}
+
+	@Test
+	public void testInactiveStagesAreNotIndexed() throws Exception {
+		Stage s = stage("s1", null);
+		s.setMode(Stage.Mode.INACTIVE);
+
+		MongoIndexAdvisor advisor = new MongoIndexAdvisor(documentIO, false);
+		advisor.update(pipeline(s));
+
+		verify(documents, never()).ensureIndex(any(DBObject.class), any(DBObject.class));
+		assertTrue(advisor.getCollectionScans().isEmpty());
+	}
+
+	@Test
+	public void testLongNamesAreShortened() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append('s');
+		}
+		String name = MongoIndexAdvisor.getIndexName(sb.toString());
+		assertEquals(MongoIndexAdvisor.MAX_NAME_LENGTH, name.length());
+		assertTrue(name.startsWith(MongoIndexAdvisor.INDEX_PREFIX));
+	}
+
+	private static DBObject index(String name, DBObject key) {
+		return new BasicDBObject("name", name).append("key", key);
+	}
+
+	private static Stage stage(String name, String query) {
+		Stage s = new Stage(name, Mockito.mock(DatabaseFile.class));
+		Map<String, Object> properties = new HashMap<String, Object>();
+		if (query != null) {
+			properties.put(MongoIndexAdvisor.QUERY_PROPERTY, query);
+		}
+		s.setProperties(properties);
+		return s;
+	}
+
+	private static Pipeline pipeline(Stage... stages) {
+		Pipeline p = new Pipeline();
+		StageGroup g = new StageGroup("group");
+		for (Stage s : stages) {
+			g.addStage(s);
+		}
+		p.addGroup(g);
+		return p;
+	}
+}
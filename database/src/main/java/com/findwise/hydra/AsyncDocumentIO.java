@@ -0,0 +1,196 @@
+package com.findwise.hydra;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs database operations on a pool of threads of its own, rather than on
+ * the thread asking for them. Every operation returns a {@link Future}, and
+ * calls back when it is done, so that the caller can hand off a request and
+ * go on to the next one.
+ *
+ * The database driver blocks while an operation is in flight, so the number
+ * of threads should match the number of connections the driver keeps to the
+ * database; more threads would only wait for a connection. Operations beyond
+ * that wait in a queue of <code>queueSize</code>, which is what allows a
+ * large number of requests to be outstanding without holding a thread each.
+ * When the queue is full, new operations are refused with a
+ * {@link RejectedExecutionException}.
+ */
+public class AsyncDocumentIO<T extends DatabaseType> {
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+	private static final Logger logger = LoggerFactory.getLogger(AsyncDocumentIO.class);
+
+	/**
+	 * Called on a database thread once an operation has finished.
+	 */
+	public interface Callback<V> {
+		void completed(V result);
+
+		void failed(Exception e);
+	}
+
+	private final CachingDocumentNIO<T> io;
+	private final ThreadPoolExecutor executor;
+
+	public AsyncDocumentIO(CachingDocumentNIO<T> io, int threads) {
+		this(io, threads, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param threads
+	 *            the number of operations to run against the database at a
+	 *            time
+	 * @param queueSize
+	 *            the most operations to hold waiting for a thread
+	 */
+	public AsyncDocumentIO(CachingDocumentNIO<T> io, int threads, int queueSize) {
+		this.io = io;
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new DatabaseThreadFactory());
+	}
+
+	/**
+	 * Runs an arbitrary operation on a database thread.
+	 *
+	 * @param callback
+	 *            notified when the operation is done, may be null
+	 * @throws RejectedExecutionException
+	 *             if too many operations are already waiting
+	 */
+	public <V> Future<V> submit(Callable<V> operation, Callback<? super V> callback) {
+		Operation<V> op = new Operation<V>(operation, callback);
+		executor.execute(op);
+		return op;
+	}
+
+	/**
+	 * @see CachingDocumentNIO#getAndTag(DatabaseQuery, String...)
+	 */
+	public Future<DatabaseDocument<T>> getAndTag(final DatabaseQuery<T> query, final String stage,
+			Callback<? super DatabaseDocument<T>> callback) {
+		return submit(new Callable<DatabaseDocument<T>>() {
+			@Override
+			public DatabaseDocument<T> call() {
+				return io.getAndTag(query, stage);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Applies the changes to the stored document, and marks it with the given
+	 * status.
+	 *
+	 * @return a future holding false if there is no such document, or it
+	 *         could not be marked
+	 */
+	public Future<Boolean> mark(final DatabaseDocument<T> changes, final String stage, final Document.Status status,
+			Callback<? super Boolean> callback) {
+		return submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				DatabaseDocument<T> d = io.getDocumentById(changes.getID());
+				if (d == null) {
+					return false;
+				}
+				d.putAll(changes);
+				switch (status) {
+				case PROCESSED:
+					return io.markProcessed(d, stage);
+				case DISCARDED:
+					return io.markDiscarded(d, stage);
+				case FAILED:
+					return io.markFailed(d, stage);
+				case PENDING:
+					return io.markPending(d, stage);
+				default:
+					throw new IllegalArgumentException("Unable to mark a document as " + status);
+				}
+			}
+		}, callback);
+	}
+
+	/**
+	 * @return the number of operations waiting for a database thread
+	 */
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return the number of operations currently running against the database
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public CachingDocumentNIO<T> getDocumentIO() {
+		return io;
+	}
+
+	/**
+	 * Lets queued operations finish, but refuses new ones.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private static class Operation<V> extends FutureTask<V> {
+		private final Callback<? super V> callback;
+
+		Operation(Callable<V> operation, Callback<? super V> callback) {
+			super(operation);
+			this.callback = callback;
+		}
+
+		@Override
+		protected void done() {
+			if (callback == null || isCancelled()) {
+				return;
+			}
+			V result;
+			try {
+				result = get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				try {
+					callback.failed((cause instanceof Exception) ? (Exception) cause : e);
+				} catch (RuntimeException re) {
+					logger.error("Callback failed after a failed database operation", re);
+				}
+				return;
+			}
+			try {
+				callback.completed(result);
+			} catch (RuntimeException e) {
+				logger.error("Callback failed after a database operation", e);
+			}
+		}
+	}
+
+	private static class DatabaseThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "database-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
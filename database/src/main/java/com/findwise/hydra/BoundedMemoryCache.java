@@ -0,0 +1,280 @@
+package com.findwise.hydra;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link MemoryCache} that holds at most a given number of bytes worth of
+ * documents, as estimated by {@link DocumentWeigher}.
+ *
+ * When the cache grows past its budget, the least recently used documents
+ * are evicted and written back to the database through the supplied
+ * {@link DocumentWriter}, the same way the cache monitor writes back stale
+ * documents. A document that is larger than the whole budget is never
+ * admitted; if it was fetched into this cache it is written straight back.
+ *
+ * Hits, misses, evictions and write-backs are counted, and can be read at
+ * any time.
+ */
+public class BoundedMemoryCache<T extends DatabaseType> extends MemoryCache<T> {
+	private static final Logger logger = LoggerFactory.getLogger(BoundedMemoryCache.class);
+
+	private final long maxWeight;
+	private final DocumentWriter<T> writer;
+
+	// Access ordered, so that iteration starts at the least recently used
+	private final LinkedHashMap<DocumentID<T>, Long> weights = new LinkedHashMap<DocumentID<T>, Long>(16, 0.75f, true);
+	private long weight = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	private final AtomicLong writeBacks = new AtomicLong();
+	private final AtomicLong failedWriteBacks = new AtomicLong();
+
+	/**
+	 * @param maxWeight
+	 *            the number of bytes the cached documents may occupy
+	 * @param writer
+	 *            where evicted documents are written back to
+	 */
+	public BoundedMemoryCache(long maxWeight, DocumentWriter<T> writer) {
+		this.maxWeight = maxWeight;
+		this.writer = writer;
+	}
+
+	@Override
+	public void add(DatabaseDocument<T> doc) {
+		if (doc == null) {
+			return;
+		}
+		long w = DocumentWeigher.estimate(doc);
+		if (w > maxWeight) {
+			rejections.incrementAndGet();
+			remove(doc.getID());
+			if (doc.fetchedBy(CachingDocumentNIO.CACHE_TAG)) {
+				writeBack(doc);
+			}
+			return;
+		}
+		super.add(doc);
+		evict(weigh(doc.getID(), w));
+	}
+
+	@Override
+	public DatabaseDocument<T> remove(DocumentID<T> id) {
+		unweigh(id);
+		return super.remove(id);
+	}
+
+	@Override
+	public Collection<DatabaseDocument<T>> removeAll() {
+		synchronized (weights) {
+			weights.clear();
+			weight = 0;
+		}
+		return super.removeAll();
+	}
+
+	@Override
+	public Collection<DatabaseDocument<T>> removeStale(int stalerThanMs) {
+		Collection<DatabaseDocument<T>> stale = super.removeStale(stalerThanMs);
+		for (DatabaseDocument<T> d : stale) {
+			unweigh(d.getID());
+		}
+		return stale;
+	}
+
+	@Override
+	public DatabaseDocument<T> getDocumentById(DocumentID<T> id) {
+		DatabaseDocument<T> d = super.getDocumentById(id);
+		count(d != null);
+		if (d != null) {
+			touch(id);
+		}
+		return d;
+	}
+
+	@Override
+	public DatabaseDocument<T> getDocument(DatabaseQuery<T> query) {
+		DatabaseDocument<T> d = super.getDocument(query);
+		count(d != null);
+		if (d != null) {
+			touch(d.getID());
+		}
+		return d;
+	}
+
+	/**
+	 * Also serves {@link #getAndTag(DatabaseQuery, String...)}, which
+	 * {@link MemoryCache} implements in terms of this method.
+	 */
+	@Override
+	public Collection<DatabaseDocument<T>> getAndTag(DatabaseQuery<T> query, int n, String... tags) {
+		Collection<DatabaseDocument<T>> list = super.getAndTag(query, n, tags);
+		count(!list.isEmpty());
+		for (DatabaseDocument<T> d : list) {
+			touch(d.getID());
+		}
+		return list;
+	}
+
+	@Override
+	public boolean update(DatabaseDocument<T> document) {
+		if (!super.update(document)) {
+			return false;
+		}
+		DatabaseDocument<T> d = super.getDocumentById(document.getID());
+		if (d != null) {
+			evict(weigh(d.getID(), DocumentWeigher.estimate(d)));
+		}
+		return true;
+	}
+
+	@Override
+	public boolean markTouched(DocumentID<T> id, String tag) {
+		if (super.markTouched(id, tag)) {
+			touch(id);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the cached documents
+	 */
+	public long getWeight() {
+		synchronized (weights) {
+			return weight;
+		}
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of documents that were too large to be cached at all
+	 */
+	public long getRejectionCount() {
+		return rejections.get();
+	}
+
+	public long getWriteBackCount() {
+		return writeBacks.get();
+	}
+
+	public long getFailedWriteBackCount() {
+		return failedWriteBacks.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BoundedMemoryCache [size=" + getSize() + ", weight=" + getWeight() + "/" + maxWeight
+				+ ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+				+ ", rejections=" + rejections + ", writeBacks=" + writeBacks
+				+ ", failedWriteBacks=" + failedWriteBacks + "]";
+	}
+
+	private void count(boolean hit) {
+		if (hit) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+	}
+
+	private void touch(DocumentID<T> id) {
+		synchronized (weights) {
+			weights.get(id);
+		}
+	}
+
+	/**
+	 * Records the weight of a document, and picks the documents that have to
+	 * go to bring the cache back within its budget. The document being
+	 * weighed is never picked.
+	 */
+	private List<DocumentID<T>> weigh(DocumentID<T> id, long w) {
+		List<DocumentID<T>> victims = new ArrayList<DocumentID<T>>();
+		synchronized (weights) {
+			Long old = weights.put(id, w);
+			weight += w - ((old != null) ? old : 0);
+
+			Iterator<Map.Entry<DocumentID<T>, Long>> it = weights.entrySet().iterator();
+			while (weight > maxWeight && it.hasNext()) {
+				Map.Entry<DocumentID<T>, Long> e = it.next();
+				if (e.getKey().equals(id)) {
+					continue;
+				}
+				weight -= e.getValue();
+				victims.add(e.getKey());
+				it.remove();
+			}
+		}
+		return victims;
+	}
+
+	private void unweigh(DocumentID<T> id) {
+		synchronized (weights) {
+			Long old = weights.remove(id);
+			if (old != null) {
+				weight -= old;
+			}
+		}
+	}
+
+	/**
+	 * Removes the documents from the cache and writes them back. Only the
+	 * version that was removed is written, so a concurrent update either
+	 * made it into that version, or finds the document gone and goes to the
+	 * database.
+	 */
+	private void evict(List<DocumentID<T>> victims) {
+		for (DocumentID<T> id : victims) {
+			DatabaseDocument<T> d = super.getDocumentById(id);
+			if (d == null || !detach(id, d)) {
+				continue;
+			}
+			detached(id);
+			evictions.incrementAndGet();
+			writeBack(d);
+		}
+	}
+
+	/**
+	 * The evicted version may still be read by others, so the cache tag is
+	 * removed from a copy.
+	 */
+	private void writeBack(DatabaseDocument<T> doc) {
+		DatabaseDocument<T> d = doc.copy();
+		d.removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+		if (writer.update(d)) {
+			writeBacks.incrementAndGet();
+		} else {
+			failedWriteBacks.incrementAndGet();
+			logger.error("Unable to write back evicted document " + d.getID());
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.findwise.hydra;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.local.LocalQuery;
+
+/**
+ * Reads documents into the cache ahead of the stages asking for them.
+ *
+ * Every stage that queries the core is tracked along with its latest query
+ * and the rate at which it is handed documents. A few times a second, the
+ * prefetcher tops up the documents read ahead for each stage to what the
+ * stage is expected to consume within {@link #getLookahead()} milliseconds,
+ * so that the stage's next requests are answered from the cache.
+ *
+ * How many read-ahead documents are left for a stage is only estimated: the
+ * count goes up with every document prefetched for it and down with every
+ * document it is handed from the cache, and is reset whenever the stage has
+ * to go to the database itself.
+ *
+ * Stop by interrupting.
+ */
+public class CachePrefetcher<T extends DatabaseType> extends Thread {
+	public static final long DEFAULT_INTERVAL = 200;
+	public static final long DEFAULT_LOOKAHEAD = 2000;
+	public static final long IDLE_TIMEOUT = 30000;
+
+	/**
+	 * Weight of the latest measurement in the consumption rate
+	 */
+	private static final double RATE_WEIGHT = 0.3;
+
+	private static final Logger logger = LoggerFactory.getLogger(CachePrefetcher.class);
+
+	private final CachingDocumentNIO<T> io;
+	private final int maxDepth;
+	private final Map<String, Demand> demands = new ConcurrentHashMap<String, Demand>();
+
+	private long interval = DEFAULT_INTERVAL;
+	private long lookahead = DEFAULT_LOOKAHEAD;
+
+	private volatile long prefetched = 0;
+
+	/**
+	 * @param maxDepth
+	 *            the most documents to read ahead for a single stage
+	 */
+	public CachePrefetcher(CachingDocumentNIO<T> io, int maxDepth) {
+		super("cache-prefetch");
+		setDaemon(true);
+		this.io = io;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Records the query a stage is asking with.
+	 */
+	public void register(String stage, LocalQuery query) {
+		Demand d = demands.get(stage);
+		if (d == null) {
+			d = new Demand(System.currentTimeMillis());
+			demands.put(stage, d);
+		}
+		d.query = query;
+		d.lastSeen = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records that documents were handed to stages.
+	 *
+	 * @param fromCache
+	 *            whether they came from the cache, or had to be read from
+	 *            the database
+	 */
+	public void consumed(String[] stages, int count, boolean fromCache) {
+		for (String stage : stages) {
+			Demand d = demands.get(stage);
+			if (d == null) {
+				continue;
+			}
+			d.consumed.addAndGet(count);
+			if (fromCache) {
+				d.decreaseAvailable(count);
+			} else {
+				d.available.set(0);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		logger.info("Starting up cache prefetcher thread, reading at most " + maxDepth + " documents ahead per stage");
+		while (!isInterrupted()) {
+			try {
+				prefetch(System.currentTimeMillis());
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				interrupt();
+			} catch (RuntimeException e) {
+				logger.error("Unable to prefetch documents", e);
+			}
+		}
+	}
+
+	/**
+	 * Updates the consumption rates and reads ahead for every stage that is
+	 * running low.
+	 */
+	void prefetch(long now) {
+		Iterator<Map.Entry<String, Demand>> it = demands.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Demand> e = it.next();
+			Demand d = e.getValue();
+			if (now - d.lastSeen > IDLE_TIMEOUT) {
+				logger.debug("Stage " + e.getKey() + " has stopped asking for documents");
+				it.remove();
+				continue;
+			}
+			d.updateRate(now);
+
+			int depth = getDepth(d);
+			int available = d.available.get();
+			if (depth == 0 || available > depth / 2) {
+				continue;
+			}
+			int n = io.prefetch(d.query, e.getKey(), depth - available);
+			d.available.addAndGet(n);
+			prefetched += n;
+		}
+	}
+
+	int getDepth(String stage) {
+		Demand d = demands.get(stage);
+		return (d != null) ? getDepth(d) : 0;
+	}
+
+	private int getDepth(Demand d) {
+		double expected = d.rate * lookahead / 1000;
+		return (int) Math.min(maxDepth, Math.ceil(expected));
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return the number of milliseconds of work to keep read ahead
+	 */
+	public long getLookahead() {
+		return lookahead;
+	}
+
+	public void setLookahead(long lookahead) {
+		this.lookahead = lookahead;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * @return the number of documents read into the cache ahead of time
+	 */
+	public long getPrefetchedCount() {
+		return prefetched;
+	}
+
+	private static class Demand {
+		private volatile LocalQuery query;
+		private volatile long lastSeen;
+		private final AtomicInteger consumed = new AtomicInteger();
+		private final AtomicInteger available = new AtomicInteger();
+
+		private long lastRateUpdate;
+		/**
+		 * Documents per second
+		 */
+		private double rate = 0;
+
+		Demand(long now) {
+			lastRateUpdate = now;
+		}
+
+		void updateRate(long now) {
+			long elapsed = now - lastRateUpdate;
+			if (elapsed <= 0) {
+				return;
+			}
+			double current = consumed.getAndSet(0) * 1000.0 / elapsed;
+			rate = RATE_WEIGHT * current + (1 - RATE_WEIGHT) * rate;
+			lastRateUpdate = now;
+		}
+
+		void decreaseAvailable(int count) {
+			for (;;) {
+				int current = available.get();
+				if (available.compareAndSet(current, Math.max(0, current - count))) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -78,4 +78,9 @@ public class CachingDatabaseConnector<BackingType extends DatabaseType>
 		return backing.getStatusReader();
 	}
 
+	@Override
+	public ChangeFeed<BackingType> getChangeFeed() {
+		return backing.getChangeFeed();
+	}
+
 }
@@ -3,9 +3,22 @@ package com.findwise.hydra;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.ConcurrentModificationException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.LoggerFactory;
 
@@ -13,12 +26,42 @@ import com.findwise.hydra.DatabaseConnector.ConversionException;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.LocalQuery;
 
+/**
+ * Reads and writes documents through a {@link Cache}, writing changes back to
+ * the database behind the callers' backs.
+ * 
+ * Changes made to a cached document are only recorded in a dirty-set, so that
+ * any number of updates to the same document result in a single write. When
+ * documents leave the cache, either because they have gone stale or because
+ * the whole cache is flushed, only those that are dirty or were fetched into
+ * the cache are written back. The writes are made in batches through
+ * {@link DocumentWriter#update(Collection)}, with the batches running in
+ * parallel.
+ * 
+ * The cache hands out immutable snapshots of the documents it holds. The
+ * getAndTag methods, which every stage polls, return those snapshots as they
+ * are; callers may read and serialize them, but must not modify them. The
+ * other read methods return private copies.
+ * 
+ * Several cores can share a database by splitting the documents between them
+ * with a {@link ConsistentHashRing}, see {@link #setShard(ConsistentHashRing, String)}.
+ * Each core then only caches and hands out the documents it owns.
+ * 
+ * With {@link #startPrefetching(int)}, documents are read into the cache
+ * ahead of the stages asking for them, see {@link CachePrefetcher}.
+ *
+ * With {@link #followChanges(ChangeFeed)}, documents that are changed outside
+ * the core are dropped from the cache as soon as the change is announced.
+ */
 public class CachingDocumentNIO<T extends DatabaseType> implements
 		DocumentReader<T>, DocumentWriter<T> {
 
 	public static final int DEFAULT_CACHE_TIMEOUT = 10000;
+	public static final int DEFAULT_FLUSH_BATCH_SIZE = 500;
+	public static final int DEFAULT_FLUSH_THREADS = 4;
 	public static final String CACHED_TIME_METADATA_KEY = "cached";
 	public static final String CACHE_TAG = "_cache";
+	public static final String SHARD_METADATA_KEY = "shard";
 
 	private Cache<T> cache;
 
@@ -27,9 +70,22 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	private DocumentReader<T> reader;
 
 	private CacheMonitor monitor;
+	private volatile CachePrefetcher<T> prefetcher;
 
 	private int cacheTimeout;
 
+	private volatile ConsistentHashRing ring;
+	private volatile String node;
+	/** The ring the last full claim was made for */
+	private volatile ConsistentHashRing claimedRing;
+
+	private final Set<DocumentID<T>> dirty = Collections.newSetFromMap(new ConcurrentHashMap<DocumentID<T>, Boolean>());
+	private volatile int flushBatchSize = DEFAULT_FLUSH_BATCH_SIZE;
+	private volatile ExecutorService flushExecutor = newFlushExecutor(DEFAULT_FLUSH_THREADS);
+	private int flushThreads = DEFAULT_FLUSH_THREADS;
+
+	private final List<DocumentListener<T>> listeners = new CopyOnWriteArrayList<DocumentListener<T>>();
+
 	private final org.slf4j.Logger logger = LoggerFactory
 			.getLogger(CachingDocumentNIO.class);
 
@@ -58,46 +114,66 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 
 	@Override
 	public DatabaseDocument<T> getAndTag(DatabaseQuery<T> query, String... tags) {
+		restrictToShard(query);
 		DatabaseDocument<T> doc = cache.getAndTag(query, tags);
 
-		if (doc == null) {
+		if (doc != null) {
+			dirty.add(doc.getID());
+			consumed(tags, 1, true);
+		} else {
 			for (String t : tags) {
 				query.requireNotFetchedByStage(t);
 			}
 			doc = writer.getAndTag(query, addCacheTag(tags));
 			if (doc != null) {
-				for (String t : tags) {
-					doc.setFetchedBy(t, new Date());
-				}
+				doc = fetched(doc, tags);
 				cache.add(doc);
 			}
+			consumed(tags, (doc != null) ? 1 : 0, false);
 		}
 
-		return getCopy(doc);
+		return doc;
+	}
+
+	/**
+	 * @return a copy of a document fetched from the backing database, tagged
+	 *         as fetched by the stages, to be cached. The fetched document may
+	 *         be held by the backing database, and is not modified.
+	 */
+	private DatabaseDocument<T> fetched(DatabaseDocument<T> doc, String... tags) {
+		DatabaseDocument<T> tagged = doc.copy();
+		Date now = new Date();
+		for (String t : tags) {
+			tagged.setFetchedBy(t, now);
+		}
+		return tagged;
 	}
 
 	@Override
 	public Collection<DatabaseDocument<T>> getAndTag(DatabaseQuery<T> query,
 			int n, String... tags) {
+		restrictToShard(query);
 		Collection<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
 
 		Collection<DatabaseDocument<T>> c = cache.getAndTag(query, n, tags);
 		if (c != null) {
+			for (DatabaseDocument<T> d : c) {
+				dirty.add(d.getID());
+			}
 			list.addAll(c);
+			consumed(tags, list.size(), true);
 		}
 
 		if (list.size() == 0) {
 			for (String t : tags) {
 				query.requireNotFetchedByStage(t);
 			}
-			list = writer.getAndTag(query, n, addCacheTag(tags));
-
-			for (DatabaseDocument<T> d : list) {
-				for (String t : tags) {
-					d.setFetchedBy(t, new Date());
-				}
+			list = new ArrayList<DatabaseDocument<T>>();
+			for (DatabaseDocument<T> d : writer.getAndTag(query, n, addCacheTag(tags))) {
+				list.add(fetched(d, tags));
 			}
 			cache.add(list);
+			consumed(tags, list.size(), false);
 		}
 
 		return list;
@@ -110,10 +186,12 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			if (d != null) {
 				d.removeFetchedBy(CACHE_TAG);
 				d.setTouchedBy(tag, new Date());
-				return writer.update(d);
+				return fireIf(writer.update(d), id);
 			}
 			return false;
 		}
+		dirty.add(id);
+		fireDocumentChanged(id);
 		return true;
 	}
 
@@ -122,7 +200,7 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		DatabaseDocument<T> cached = cache.getDocumentById(d.getID());
 		if (cached != null) {
 			d.putAll(cached);
-			cache.remove(d.getID());
+			uncache(d.getID());
 		}
 		if (writer.markProcessed(d, stage)) {
 			return true;
@@ -134,7 +212,7 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	public boolean markDiscarded(DatabaseDocument<T> d, String stage) {
 		DatabaseDocument<T> cached = cache.getDocumentById(d.getID());
 		d.putAll(cached);
-		cache.remove(d.getID());
+		uncache(d.getID());
 		if (writer.markDiscarded(d, stage)) {
 			return true;
 		}
@@ -145,7 +223,7 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	public boolean markFailed(DatabaseDocument<T> d, String stage) {
 		DatabaseDocument<T> cached = cache.getDocumentById(d.getID());
 		d.putAll(cached);
-		cache.remove(d.getID());
+		uncache(d.getID());
 		if (writer.markFailed(d, stage)) {
 			return true;
 		}
@@ -156,23 +234,57 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	public boolean markPending(DatabaseDocument<T> d, String stage) {
 		DatabaseDocument<T> cached = cache.getDocumentById(d.getID());
 		d.putAll(cached);
-		cache.remove(d.getID());
+		uncache(d.getID());
 		return writer.markPending(d, stage);
 	}
 
+	/**
+	 * Any cached version of a document is merged into the passed one, the
+	 * same way as by {@link #markProcessed(DatabaseDocument, String)}, so
+	 * that changes the cache has not yet flushed are not lost.
+	 */
+	@Override
+	public Set<DocumentID<T>> markAll(Collection<DatabaseDocument<T>> docs,
+			Document.Status status, String stage) {
+		for (DatabaseDocument<T> d : docs) {
+			DatabaseDocument<T> cached = cache.getDocumentById(d.getID());
+			if (cached != null) {
+				d.putAll(cached);
+				uncache(d.getID());
+			}
+		}
+		return writer.markAll(docs, status, stage);
+	}
+
 	@Override
 	public boolean insert(DatabaseDocument<T> d) {
-		return writer.insert(d);
+		return fireIf(writer.insert(d) && stampInserted(d), d.getID());
 	}
 
 	@Override
 	public boolean insert(DatabaseDocument<T> d, List<DocumentFile<T>> attachments) {
-		return writer.insert(d, attachments);
+		return fireIf(writer.insert(d, attachments) && stampInserted(d), d.getID());
+	}
+
+	/**
+	 * Inserts straight through to the database, which assigns the IDs, so
+	 * nothing is cached.
+	 */
+	@Override
+	public Set<DocumentID<T>> insert(Collection<DatabaseDocument<T>> docs) {
+		Set<DocumentID<T>> inserted = writer.insert(docs);
+		for (DatabaseDocument<T> d : docs) {
+			if (d.getID() != null && inserted.contains(d.getID())) {
+				stampInserted(d);
+				fireDocumentChanged(d.getID());
+			}
+		}
+		return inserted;
 	}
 
 	@Override
 	public boolean update(DatabaseDocument<T> d) {
-		if (!cache.update(d)) {
+		if (!updateCached(d)) {
 			DatabaseDocument<T> doc = reader.getDocumentById(d.getID());
 			if (doc != null) {
 				cache.add(doc);
@@ -181,14 +293,62 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			if (cache.getDocumentById(d.getID()) == null) {
 				d.removeFetchedBy(CACHE_TAG);
 			}
-			return writer.update(d);
+			return fireIf(writer.update(d), d.getID());
 		}
+		fireDocumentChanged(d.getID());
 		return true;
 	}
 
+	/**
+	 * Updates each document through {@link #update(DatabaseDocument)}, so
+	 * that cached documents are only changed in the cache.
+	 */
+	@Override
+	public Set<DocumentID<T>> update(Collection<DatabaseDocument<T>> docs) {
+		Set<DocumentID<T>> updated = new HashSet<DocumentID<T>>();
+		for (DatabaseDocument<T> d : docs) {
+			if (update(d)) {
+				updated.add(d.getID());
+			}
+		}
+		return updated;
+	}
+
+	/**
+	 * If the document is cached, the fields are merged into the cached copy.
+	 * Otherwise they are written straight through, without loading the
+	 * document.
+	 */
+	@Override
+	public boolean updateFields(DatabaseDocument<T> d) {
+		if (!updateCached(d)) {
+			return fireIf(writer.updateFields(d), d.getID());
+		}
+		fireDocumentChanged(d.getID());
+		return true;
+	}
+
+	/**
+	 * Applies the change to the cached copy, if there is one. The document is
+	 * marked dirty first, so that a write-back running at the same time
+	 * cannot take the changed copy out of the cache without writing it.
+	 * 
+	 * @return true if the document was cached
+	 */
+	private boolean updateCached(DatabaseDocument<T> d) {
+		boolean marked = dirty.add(d.getID());
+		if (cache.update(d)) {
+			return true;
+		}
+		if (marked) {
+			dirty.remove(d.getID());
+		}
+		return false;
+	}
+
 	@Override
 	public void delete(DatabaseDocument<T> d) {
-		cache.remove(d.getID());
+		uncache(d.getID());
 		writer.delete(d);
 	}
 
@@ -200,6 +360,7 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	@Override
 	public void deleteAll() {
 		cache.removeAll();
+		dirty.clear();
 		writer.deleteAll();
 	}
 
@@ -242,6 +403,26 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		return getCopy(doc);
 	}
 
+	/**
+	 * Reads an active document from the cache if it is there, otherwise
+	 * from the database, without adding it to the cache.
+	 */
+	public DatabaseDocument<T> peekDocumentById(DocumentID<T> id) {
+		DatabaseDocument<T> doc = cache.getDocumentById(id);
+		if (doc != null) {
+			return getCopy(doc);
+		}
+		return reader.getDocumentById(id, false);
+	}
+
+	/**
+	 * @return true if a document in the cache matches the query, which
+	 *         is answered without going to the database
+	 */
+	public boolean isCached(DatabaseQuery<T> query) {
+		return cache.getDocument(query) != null;
+	}
+
 	@Override
 	public DatabaseDocument<T> getDocumentById(DocumentID<T> id,
 			boolean includeInactive) {
@@ -249,7 +430,7 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		if (doc == null && includeInactive) {
 			return reader.getDocumentById(id, includeInactive);
 		}
-		return cache.getDocumentById(id);
+		return doc;
 	}
 
 	@Override
@@ -295,6 +476,11 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		return docs;
 	}
 
+	@Override
+	public List<DocumentID<T>> getDocumentIds(DatabaseQuery<T> q, int limit, int skip) {
+		return reader.getDocumentIds(q, limit, skip);
+	}
+
 	/**
 	 * Due to the nature of a cache, this method will return a result that is
 	 * possibly incorrect. In the current implementation, the number reported by
@@ -353,15 +539,224 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		return getDatabaseConnector().convert(localQuery);
 	}
 
+	/**
+	 * Splits the documents between the nodes of the ring. From here on, this
+	 * instance only hands out documents owned by <code>node</code>, and marks
+	 * every document it inserts with its owner.
+	 * 
+	 * Documents inserted before sharding was enabled, or that change owner
+	 * when nodes are added or removed, are picked up by
+	 * {@link #claimShard(int)}.
+	 * 
+	 * @param ring
+	 *            the ring shared by all cores, or <code>null</code> to stop
+	 *            sharding
+	 * @param node
+	 *            the name of this core on the ring
+	 */
+	public void setShard(ConsistentHashRing ring, String node) {
+		if (ring != null && !ring.getNodes().contains(node)) {
+			throw new IllegalArgumentException("Node " + node + " is not part of " + ring);
+		}
+		this.node = node;
+		this.ring = ring;
+		claimedRing = null;
+	}
+
+	public ConsistentHashRing getShardRing() {
+		return ring;
+	}
+
+	public String getShardNode() {
+		return node;
+	}
+
+	/**
+	 * Marks documents that are not yet marked with their owner as such.
+	 * 
+	 * The first call after the ring has changed also goes through all
+	 * documents not marked as owned by this node, and claims those that the
+	 * new ring assigns to it. Other calls only read the documents that have
+	 * no owner at all, i.e. those inserted before sharding was enabled or
+	 * whose mark was lost. Documents held in the cache of another core are
+	 * left alone until that core has written them back.
+	 * 
+	 * @return the number of documents marked
+	 */
+	public int claimShard(int batchSize) {
+		ConsistentHashRing ring = this.ring;
+		String node = this.node;
+		if (ring == null) {
+			return 0;
+		}
+		int claimed = 0;
+		if (ring != claimedRing) {
+			claimed += claimShard(ring, node, batchSize, false);
+			claimedRing = ring;
+		}
+		claimed += claimShard(ring, node, batchSize, true);
+		if (claimed > 0) {
+			logger.info("Marked the owner of " + claimed + " documents for shard " + node);
+		}
+		return claimed;
+	}
+
+	/**
+	 * @param unowned
+	 *            if <code>true</code>, marks every document without an owner
+	 *            with its owner, otherwise marks the documents the ring
+	 *            assigns to this node, but that are marked as owned by
+	 *            another
+	 */
+	private int claimShard(ConsistentHashRing ring, String node, int batchSize, boolean unowned) {
+		int claimed = 0;
+		int skip = 0;
+		while (true) {
+			DatabaseQuery<T> q = backing.convert(new LocalQuery());
+			if (unowned) {
+				q.requireMetadataFieldNotExists(SHARD_METADATA_KEY);
+			} else {
+				q.requireMetadataFieldNotEquals(SHARD_METADATA_KEY, node);
+			}
+			q.requireNotFetchedByStage(CACHE_TAG);
+			List<DocumentID<T>> ids = reader.getDocumentIds(q, batchSize, skip);
+			if (ids.isEmpty()) {
+				break;
+			}
+			for (DocumentID<T> id : ids) {
+				String owner = ring.getNode(id);
+				if ((unowned || node.equals(owner)) && stamp(id, owner)) {
+					// Marked documents no longer match the query
+					claimed++;
+				} else {
+					skip++;
+				}
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * Starts reading documents into the cache ahead of the stages.
+	 * 
+	 * @param maxDepth
+	 *            the most documents to read ahead for a single stage
+	 */
+	public synchronized void startPrefetching(int maxDepth) {
+		if (prefetcher != null) {
+			return;
+		}
+		if (cache instanceof NoopCache) {
+			// Prefetched documents would never be written back
+			logger.warn("Not prefetching, since caching is disabled");
+			return;
+		}
+		prefetcher = new CachePrefetcher<T>(this, maxDepth);
+		prefetcher.start();
+	}
+
+	public synchronized void stopPrefetching() {
+		if (prefetcher != null) {
+			prefetcher.interrupt();
+			prefetcher = null;
+		}
+	}
+
+	public CachePrefetcher<T> getPrefetcher() {
+		return prefetcher;
+	}
+
+	/**
+	 * Lets the prefetcher know what the stage is asking for. Should be called
+	 * before the stage's query is passed to getAndTag.
+	 */
+	public void registerQuery(String stage, LocalQuery query) {
+		CachePrefetcher<T> p = prefetcher;
+		if (p != null) {
+			p.register(stage, query);
+		}
+	}
+
+	private void consumed(String[] tags, int count, boolean fromCache) {
+		CachePrefetcher<T> p = prefetcher;
+		if (p != null) {
+			p.consumed(tags, count, fromCache);
+		}
+	}
+
+	/**
+	 * Reads up to n documents that the stage has not yet seen into the cache,
+	 * tagged only by the cache, so that they are handed to the stage from the
+	 * cache when it asks for them. Documents already in the cache are not
+	 * read again.
+	 * 
+	 * @return the number of documents read
+	 */
+	int prefetch(LocalQuery query, String stage, int n) {
+		DatabaseQuery<T> q = convert(query);
+		restrictToShard(q);
+		q.requireNotFetchedByStage(stage);
+		q.requireNotFetchedByStage(CACHE_TAG);
+		Collection<DatabaseDocument<T>> docs = writer.getAndTag(q, n, CACHE_TAG);
+		if (docs == null || docs.isEmpty()) {
+			return 0;
+		}
+		cache.add(docs);
+		return docs.size();
+	}
+
+	private void restrictToShard(DatabaseQuery<T> query) {
+		if (ring != null) {
+			query.requireMetadataFieldEquals(SHARD_METADATA_KEY, node);
+		}
+	}
+
+	/**
+	 * Marks a newly inserted document with its owner. The ID is assigned by
+	 * the database, so this has to be a write of its own.
+	 */
+	private boolean stamp(DatabaseDocument<T> d) {
+		ConsistentHashRing ring = this.ring;
+		if (ring == null) {
+			return true;
+		}
+		String owner = ring.getNode(d.getID());
+		d.putMetadataField(SHARD_METADATA_KEY, owner);
+		return stamp(d.getID(), owner);
+	}
+
+	/**
+	 * The document is in the database whether or not the mark could be
+	 * written, so the insert still succeeds. Documents without a mark are
+	 * picked up by {@link #claimShard(int)}.
+	 * 
+	 * @return <code>true</code>
+	 */
+	private boolean stampInserted(DatabaseDocument<T> d) {
+		if (!stamp(d)) {
+			logger.warn("Unable to mark document " + d.getID() + " with its owner, leaving it to the next shard claim");
+		}
+		return true;
+	}
+
+	private boolean stamp(DocumentID<T> id, String owner) {
+		DatabaseDocument<T> delta;
+		try {
+			delta = backing.convert(new LocalDocument());
+		} catch (ConversionException e) {
+			logger.error("Unable to create an empty document", e);
+			return false;
+		}
+		delta.setID(id);
+		delta.putMetadataField(SHARD_METADATA_KEY, owner);
+		return writer.updateFields(delta);
+	}
+
 	/**
 	 * Flushes the cache back to the database
 	 */
 	public void flush() {
-		Collection<DatabaseDocument<T>> docs = cache.removeAll();
-		for (DatabaseDocument<T> d : docs) {
-			d.removeFetchedBy(CACHE_TAG);
-			writer.update(d);
-		}
+		writeBack(cache.removeAll());
 	}
 
 	/**
@@ -374,12 +769,179 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			logger.debug("Flushing " + docs.size() + " out of "
 					+ (docs.size() + cache.getSize()) + " documents from cache");
 		}
+		writeBack(docs);
+		pruneDirty();
+	}
+
+	/**
+	 * Writes back the documents that have changed since they were cached, or
+	 * that were fetched into the cache and still carry the cache tag in the
+	 * database. The rest are identical to what is already stored, and are
+	 * simply dropped.
+	 * 
+	 * @return the number of documents that could not be written
+	 */
+	private int writeBack(Collection<DatabaseDocument<T>> docs) {
+		List<DatabaseDocument<T>> pending = new ArrayList<DatabaseDocument<T>>();
 		for (DatabaseDocument<T> d : docs) {
-			d.removeFetchedBy(CACHE_TAG);
-			writer.update(d);
+			boolean changed = dirty.remove(d.getID());
+			if (changed || d.fetchedBy(CACHE_TAG)) {
+				// The snapshot may still be held by a reader
+				DatabaseDocument<T> copy = d.copy();
+				copy.removeFetchedBy(CACHE_TAG);
+				pending.add(copy);
+			}
+		}
+		if (pending.isEmpty()) {
+			return 0;
+		}
+
+		long start = System.currentTimeMillis();
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		int failed = 0;
+		for (int i = 0; i < pending.size(); i += flushBatchSize) {
+			List<DatabaseDocument<T>> batch = pending.subList(i, Math.min(i + flushBatchSize, pending.size()));
+			if (i + flushBatchSize >= pending.size()) {
+				// Write the last batch on this thread, rather than leave it idle
+				failed += writeBatch(batch);
+				break;
+			}
+			try {
+				futures.add(flushExecutor.submit(new BatchWriter(batch)));
+			} catch (RejectedExecutionException e) {
+				failed += writeBatch(batch);
+			}
+		}
+		for (Future<Integer> f : futures) {
+			try {
+				failed += f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.warn("Interrupted while waiting for the cache to be written back");
+				break;
+			} catch (ExecutionException e) {
+				logger.error("Unable to write back a batch of cached documents", e.getCause());
+			}
+		}
+
+		if (failed > 0) {
+			logger.error("Unable to write back " + failed + " out of " + pending.size() + " cached documents");
+		}
+		logger.debug("Wrote back " + (pending.size() - failed) + " documents in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return failed;
+	}
+
+	private int writeBatch(List<DatabaseDocument<T>> batch) {
+		try {
+			Set<DocumentID<T>> updated = writer.update(batch);
+			return batch.size() - ((updated != null) ? updated.size() : 0);
+		} catch (RuntimeException e) {
+			logger.error("Unable to write back a batch of cached documents", e);
+			return batch.size();
+		}
+	}
+
+	/**
+	 * Documents that leave the cache without being flushed, such as those
+	 * evicted by a bounded cache, may leave their IDs behind in the
+	 * dirty-set.
+	 */
+	private void pruneDirty() {
+		if (dirty.size() <= cache.getSize()) {
+			return;
+		}
+		Iterator<DocumentID<T>> it = dirty.iterator();
+		while (it.hasNext()) {
+			if (cache.getDocumentById(it.next()) == null) {
+				it.remove();
+			}
 		}
 	}
 
+	private void uncache(DocumentID<T> id) {
+		cache.remove(id);
+		dirty.remove(id);
+	}
+
+	/**
+	 * Drops the cached copy of a document that has been changed outside the
+	 * core, along with any changes to it that have not yet been written back,
+	 * so that they do not overwrite the outside change. The document is
+	 * released from the cache in the database, so that stages can fetch it
+	 * again.
+	 * 
+	 * @param id
+	 *            the changed document, or null if an unknown number of
+	 *            documents may have changed, in which case the cache is left
+	 *            as it is
+	 */
+	public void invalidate(DocumentID<T> id) {
+		if (id != null && cache.remove(id) != null) {
+			dirty.remove(id);
+			DatabaseDocument<T> d = reader.getDocumentById(id);
+			if (d != null && d.removeFetchedBy(CACHE_TAG)) {
+				writer.update(d);
+			}
+			logger.debug("Dropped document " + id + " from the cache, it was changed elsewhere");
+		}
+		fireDocumentChanged(id);
+	}
+
+	/**
+	 * Invalidates cached documents as changes to them are announced through
+	 * the feed.
+	 */
+	public void followChanges(ChangeFeed<T> feed) {
+		feed.addDocumentListener(new DocumentListener<T>() {
+			@Override
+			public void documentChanged(DocumentID<T> id) {
+				invalidate(id);
+			}
+		});
+	}
+
+	/**
+	 * @return the number of cached documents with changes that have not yet
+	 *         been written back
+	 */
+	public int getDirtyCount() {
+		return dirty.size();
+	}
+
+	public void setFlushBatchSize(int flushBatchSize) {
+		if (flushBatchSize < 1) {
+			throw new IllegalArgumentException("Flush batch size must be positive, was " + flushBatchSize);
+		}
+		this.flushBatchSize = flushBatchSize;
+	}
+
+	public int getFlushBatchSize() {
+		return flushBatchSize;
+	}
+
+	/**
+	 * Sets the number of threads that write back batches alongside the
+	 * flushing thread.
+	 */
+	public synchronized void setFlushThreads(int flushThreads) {
+		if (flushThreads < 1) {
+			throw new IllegalArgumentException("Number of flush threads must be positive, was " + flushThreads);
+		}
+		ExecutorService old = flushExecutor;
+		flushExecutor = newFlushExecutor(flushThreads);
+		this.flushThreads = flushThreads;
+		old.shutdown();
+	}
+
+	public synchronized int getFlushThreads() {
+		return flushThreads;
+	}
+
+	private static ExecutorService newFlushExecutor(int threads) {
+		return Executors.newFixedThreadPool(threads, new FlushThreadFactory());
+	}
+
 	public void setCacheTimeout(int cacheTimeout) {
 		this.cacheTimeout = cacheTimeout;
 	}
@@ -392,6 +954,31 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		return monitor;
 	}
 
+	public void addDocumentListener(DocumentListener<T> listener) {
+		listeners.add(listener);
+	}
+
+	public void removeDocumentListener(DocumentListener<T> listener) {
+		listeners.remove(listener);
+	}
+
+	private void fireDocumentChanged(DocumentID<T> id) {
+		for (DocumentListener<T> listener : listeners) {
+			try {
+				listener.documentChanged(id);
+			} catch (RuntimeException e) {
+				logger.error("DocumentListener " + listener + " threw an exception", e);
+			}
+		}
+	}
+
+	private boolean fireIf(boolean changed, DocumentID<T> id) {
+		if (changed) {
+			fireDocumentChanged(id);
+		}
+		return changed;
+	}
+
 	public DatabaseConnector<T> getDatabaseConnector() {
 		return backing;
 	}
@@ -400,6 +987,30 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		this.backing = backing;
 	}
 
+	private class BatchWriter implements Callable<Integer> {
+		private final List<DatabaseDocument<T>> batch;
+
+		BatchWriter(List<DatabaseDocument<T>> batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public Integer call() {
+			return writeBatch(batch);
+		}
+	}
+
+	private static class FlushThreadFactory implements ThreadFactory {
+		private static final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "cache-flush-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
 	/**
 	 * Monitor thread, responsible for upholding the Cache TTL.
 	 * 
@@ -450,18 +1061,14 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		return s;
 	}
 
+	/**
+	 * Cached documents are never modified in place, so copying one cannot
+	 * run into a concurrent change.
+	 */
 	public DatabaseDocument<T> getCopy(DatabaseDocument<T> doc) {
 		if (doc == null) {
 			return null;
 		}
-		for (int i = 0; i < 10; i++) {
-			try {
-				return doc.copy();
-			} catch (ConcurrentModificationException e) {
-
-			}
-		}
-		logger.error("Unable to copy a document with id " + doc);
-		return null;
+		return doc.copy();
 	}
 }
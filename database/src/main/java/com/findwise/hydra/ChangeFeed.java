@@ -0,0 +1,97 @@
+package com.findwise.hydra;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tells listeners about changes made to the pipeline and to the documents,
+ * so that they do not have to poll the database for them.
+ * 
+ * This implementation is an in-process bus: publishing a change notifies the
+ * listeners right away, on the publishing thread. Databases that are shared
+ * between processes extend it to deliver changes published by any of them.
+ * 
+ * Only changes made outside the core, such as by an administrator, need to
+ * be published as document changes. The core keeps track of its own.
+ */
+public class ChangeFeed<T extends DatabaseType> {
+	private static final Logger logger = LoggerFactory.getLogger(ChangeFeed.class);
+
+	private final List<DocumentListener<T>> documentListeners = new CopyOnWriteArrayList<DocumentListener<T>>();
+	private final List<PipelineListener> pipelineListeners = new CopyOnWriteArrayList<PipelineListener>();
+
+	public void addDocumentListener(DocumentListener<T> listener) {
+		documentListeners.add(listener);
+	}
+
+	public void removeDocumentListener(DocumentListener<T> listener) {
+		documentListeners.remove(listener);
+	}
+
+	public void addPipelineListener(PipelineListener listener) {
+		pipelineListeners.add(listener);
+	}
+
+	public void removePipelineListener(PipelineListener listener) {
+		pipelineListeners.remove(listener);
+	}
+
+	/**
+	 * Announces that the pipeline has been changed.
+	 */
+	public void publishPipelineChanged() {
+		firePipelineChanged();
+	}
+
+	/**
+	 * Announces that a document has been changed outside the core.
+	 * 
+	 * @param id
+	 *            the changed document, or null if an unknown number of
+	 *            documents may have changed
+	 */
+	public void publishDocumentChanged(DocumentID<T> id) {
+		fireDocumentChanged(id);
+	}
+
+	/**
+	 * Starts delivering changes published by others. Does nothing for an
+	 * in-process feed.
+	 */
+	public void start() {
+	}
+
+	public void stop() {
+	}
+
+	/**
+	 * @return whether changes are currently being delivered, so that the
+	 *         listeners need not poll for them
+	 */
+	public boolean isLive() {
+		return true;
+	}
+
+	protected void firePipelineChanged() {
+		for (PipelineListener listener : pipelineListeners) {
+			try {
+				listener.pipelineChanged();
+			} catch (RuntimeException e) {
+				logger.error("PipelineListener " + listener + " threw an exception", e);
+			}
+		}
+	}
+
+	protected void fireDocumentChanged(DocumentID<T> id) {
+		for (DocumentListener<T> listener : documentListeners) {
+			try {
+				listener.documentChanged(id);
+			} catch (RuntimeException e) {
+				logger.error("DocumentListener " + listener + " threw an exception", e);
+			}
+		}
+	}
+}
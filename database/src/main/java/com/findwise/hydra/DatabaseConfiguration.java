@@ -7,6 +7,7 @@ public interface DatabaseConfiguration {
 	String DATABASE_NAMESPACE = "database.pipeline";
 	String OLD_MAX_COUNT = "old.max_count";
 	String OLD_MAX_SIZE_MB = "old.storage_size_mb";
+	String BULK_WRITE_CONCERN = "database.bulk_write_concern";
 
 	String getNamespace();
 
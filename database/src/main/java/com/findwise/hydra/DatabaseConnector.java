@@ -39,6 +39,12 @@ public interface DatabaseConnector<T extends DatabaseType> {
 	
 	StatusReader<T> getStatusReader();
 	
+	/**
+	 * @return the feed through which changes to the pipeline and to the
+	 *         documents are announced
+	 */
+	ChangeFeed<T> getChangeFeed();
+	
 	public class ConversionException extends Exception {
 		/**
 		 * Auto generated
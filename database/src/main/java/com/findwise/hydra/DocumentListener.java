@@ -0,0 +1,19 @@
+package com.findwise.hydra;
+
+/**
+ * Receives notifications from {@link CachingDocumentNIO} whenever a document
+ * may have become available to a stage query: when it is inserted, updated or
+ * released (marked as touched) by a stage.
+ * 
+ * Listeners are called on the thread that made the change, and should return
+ * quickly.
+ */
+public interface DocumentListener<T extends DatabaseType> {
+
+	/**
+	 * @param id
+	 *            the id of the changed document, or null if an unknown number
+	 *            of documents may have changed
+	 */
+	void documentChanged(DocumentID<T> id);
+}
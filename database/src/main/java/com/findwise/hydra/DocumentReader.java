@@ -30,6 +30,13 @@ public interface DocumentReader<T extends DatabaseType> {
 	
 	List<DatabaseDocument<T>> getDocuments(DatabaseQuery<T> q, int limit);
 	List<DatabaseDocument<T>> getDocuments(DatabaseQuery<T> q, int limit, int skip);
+	
+	/**
+	 * Same as {@link #getDocuments(DatabaseQuery, int, int)}, but only reads
+	 * the IDs of the matching documents.
+	 */
+	List<DocumentID<T>> getDocumentIds(DatabaseQuery<T> q, int limit, int skip);
+	
 	long getNumberOfDocuments(DatabaseQuery<T> q);
 
 	DocumentFile<T> getDocumentFile(DatabaseDocument<T> d, String fileName);
@@ -0,0 +1,52 @@
+package com.findwise.hydra;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Estimates how many bytes of heap a document occupies. The estimate is
+ * rough, but cheap to compute and proportional to the real size, which is
+ * what a size-bounded cache needs.
+ */
+public final class DocumentWeigher {
+	/**
+	 * The approximate cost of the document object itself, its ID and the
+	 * maps holding its fields.
+	 */
+	static final long DOCUMENT_OVERHEAD = 256;
+	private static final long OBJECT_OVERHEAD = 16;
+	private static final long ENTRY_OVERHEAD = 48;
+
+	private DocumentWeigher() {}
+
+	public static long estimate(Document<?> d) {
+		return DOCUMENT_OVERHEAD + estimate(d.getContentMap()) + estimate(d.getMetadataMap());
+	}
+
+	static long estimate(Object o) {
+		if (o == null) {
+			return 0;
+		}
+		if (o instanceof String) {
+			return 40 + 2L * ((String) o).length();
+		}
+		if (o instanceof byte[]) {
+			return OBJECT_OVERHEAD + ((byte[]) o).length;
+		}
+		if (o instanceof Map) {
+			long size = OBJECT_OVERHEAD;
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+				size += ENTRY_OVERHEAD + estimate(e.getKey()) + estimate(e.getValue());
+			}
+			return size;
+		}
+		if (o instanceof Collection) {
+			long size = OBJECT_OVERHEAD;
+			for (Object v : (Collection<?>) o) {
+				size += 8 + estimate(v);
+			}
+			return size;
+		}
+		return OBJECT_OVERHEAD + 8;
+	}
+}
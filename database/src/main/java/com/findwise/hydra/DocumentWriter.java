@@ -3,6 +3,7 @@ package com.findwise.hydra;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 import com.findwise.hydra.DocumentFile;
 
@@ -123,6 +124,25 @@ public interface DocumentWriter<T extends DatabaseType> {
 	 */
 	boolean markPending(DatabaseDocument<T> d, String stage);
 
+	/**
+	 * Marks a number of documents with the same status in as few round-trips
+	 * to the database as possible. The passed documents may be partial, in
+	 * which case their fields are merged on top of the stored documents, the
+	 * same way an update would have been.
+	 * 
+	 * The outcome for each document is the same as calling markProcessed(..),
+	 * markDiscarded(..), markFailed(..) or markPending(..) for it.
+	 * 
+	 * @param docs
+	 *            the documents (or document deltas) to mark
+	 * @param status
+	 *            one of PROCESSED, DISCARDED, FAILED or PENDING
+	 * @param stage
+	 *            the stage marking the documents
+	 * @return the IDs of the documents that were successfully marked
+	 */
+	Set<DocumentID<T>> markAll(Collection<DatabaseDocument<T>> docs, Document.Status status, String stage);
+
 	/**
 	 * Inserts a new document into the database. Will fail if the document
 	 * already has a non-null ID. The document's new ID will be applied to the
@@ -155,6 +175,17 @@ public interface DocumentWriter<T extends DatabaseType> {
 	 * @return false if the document already has an id, true otherwise.
 	 */
 	boolean insert(DatabaseDocument<T> d, List<DocumentFile<T>> attachments);
+
+	/**
+	 * Inserts a number of new documents, the same way
+	 * {@link #insert(DatabaseDocument)} would have done for each of them, in
+	 * as few round-trips to the database as the implementation allows. Each
+	 * inserted document is given its new ID.
+	 * 
+	 * @return the IDs of the documents that were successfully inserted
+	 */
+	Set<DocumentID<T>> insert(Collection<DatabaseDocument<T>> docs);
+
 	/**
 	 * Updates the document in the database. If any field in document is 
 	 * <pre>null</pre>, this field will be ignored and removed. 
@@ -166,6 +197,27 @@ public interface DocumentWriter<T extends DatabaseType> {
 	 */
 	boolean update(DatabaseDocument<T> d);
 
+	/**
+	 * Updates a number of documents, the same way
+	 * {@link #update(DatabaseDocument)} would have done for each of them, in
+	 * as few round-trips to the database as the implementation allows.
+	 * 
+	 * @return the IDs of the documents that were successfully updated
+	 */
+	Set<DocumentID<T>> update(Collection<DatabaseDocument<T>> docs);
+
+	/**
+	 * Applies the touched fields of the document to the stored document with
+	 * the same ID, without reading or rewriting the rest of it. Touched
+	 * content fields that are <pre>null</pre> are removed.
+	 * 
+	 * Unlike {@link #update(DatabaseDocument)}, this never inserts a new
+	 * document.
+	 * 
+	 * @return false if there is no document with this ID, or if the update fails
+	 */
+	boolean updateFields(DatabaseDocument<T> d);
+
 	void delete(DatabaseDocument<T> d);
 	
 	/**
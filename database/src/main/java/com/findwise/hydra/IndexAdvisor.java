@@ -0,0 +1,28 @@
+package com.findwise.hydra;
+
+import java.util.Map;
+
+/**
+ * Keeps the indexes of the document store in line with the queries of the
+ * stages in the pipeline.
+ *
+ * Called with the pipeline at startup and whenever it changes, an advisor
+ * creates the indexes the stage queries need, drops those it created earlier
+ * that no stage needs any longer, and finds out which stage queries the
+ * database would still answer by scanning every document.
+ */
+public interface IndexAdvisor {
+
+	/**
+	 * Brings the indexes in line with the queries of the stages in the
+	 * pipeline.
+	 */
+	void update(Pipeline pipeline);
+
+	/**
+	 * @return the stages whose queries fall back to a collection scan, along
+	 *         with the query, as of the latest call to
+	 *         {@link #update(Pipeline)}
+	 */
+	Map<String, String> getCollectionScans();
+}
@@ -3,20 +3,50 @@ package com.findwise.hydra;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * A cache that keeps documents on the heap.
+ *
+ * To avoid scanning every cached document each time a stage asks for one,
+ * the cache keeps a ready queue for every stage (tag) that has fetched
+ * documents through {@link #getAndTag(DatabaseQuery, String...)}. A stage's
+ * queue holds the documents it has not yet fetched, in the order they were
+ * cached. Documents that were checked against the stage's query and did not
+ * match are parked, and are only checked again once they change (through
+ * {@link #add(DatabaseDocument)}, {@link #update(DatabaseDocument)} or
+ * {@link #markTouched(DocumentID, String)}) or the stage starts using a
+ * different query. Fetching a document is therefore independent of the
+ * number of documents in the cache.
+ *
+ * Each queue has its own lock, so stages do not contend with each other when
+ * fetching.
+ *
+ * A document is never modified once it has been put in the cache. Changes are
+ * made to a copy of the cached version, which then atomically replaces it;
+ * should another thread have replaced it in between, the change is made again
+ * on the newer version. Every document handed out by the cache is therefore an
+ * immutable snapshot, which can be read, copied or serialized without locking.
+ * Callers must in turn not modify documents they get from, or have put in,
+ * the cache.
+ */
 public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 
 	private ConcurrentHashMap<DocumentID<T>, DatabaseDocument<T>> map;
 	private ConcurrentHashMap<DocumentID<T>, Long> lastTouched;
+	private ConcurrentHashMap<String, ReadyQueue> queues;
 
 	public MemoryCache() {
 		map = new ConcurrentHashMap<DocumentID<T>, DatabaseDocument<T>>();
 		lastTouched = new ConcurrentHashMap<DocumentID<T>, Long>();
+		queues = new ConcurrentHashMap<String, ReadyQueue>();
 	}
 
 	@Override
@@ -29,6 +59,7 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 		if(doc != null) {
 			lastTouched.put(doc.getID(), System.currentTimeMillis());
 			map.put(doc.getID(), doc);
+			reindex(doc.getID(), doc);
 		}
 	}
 
@@ -42,7 +73,32 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 	@Override
 	public DatabaseDocument<T> remove(DocumentID<T> id) {
 		lastTouched.remove(id);
-		return map.remove(id);
+		DatabaseDocument<T> doc = map.remove(id);
+		if (doc != null) {
+			// Look the id up again, in case the document was added back in between
+			reindex(id, map.get(id));
+		}
+		return doc;
+	}
+
+	/**
+	 * Removes the document if it is still the version cached under its id,
+	 * without updating the ready queues. Meant to be called while holding a
+	 * lock that the queues must not be updated under; call
+	 * {@link #detached(DocumentID)} once the lock is released.
+	 *
+	 * @return true if the document was removed
+	 */
+	protected boolean detach(DocumentID<T> id, DatabaseDocument<T> doc) {
+		if (map.remove(id, doc)) {
+			lastTouched.remove(id);
+			return true;
+		}
+		return false;
+	}
+
+	protected void detached(DocumentID<T> id) {
+		reindex(id, map.get(id));
 	}
 
 	@Override
@@ -55,6 +111,9 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 
 		map.clear();
 		lastTouched.clear();
+		for (ReadyQueue q : queues.values()) {
+			q.clear();
+		}
 
 		return list;
 	}
@@ -98,68 +157,118 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 
 	@Override
 	public DatabaseDocument<T> getAndTag(DatabaseQuery<T> query, String ... tags) {
+		Collection<DatabaseDocument<T>> list = getAndTag(query, 1, tags);
+		return list.isEmpty() ? null : list.iterator().next();
+	}
+
+	@Override
+	public Collection<DatabaseDocument<T>> getAndTag(DatabaseQuery<T> query,
+			int n, String ... tags) {
 		for(String tag : tags) {
 			query.requireNotFetchedByStage(tag);
 		}
-		DatabaseDocument<T> doc;
-		synchronized (this) {
-			doc = getDocument(query);
+		if (tags.length == 0) {
+			return getAndTagUnindexed(query, n);
+		}
 
-			if (doc != null) {
-				freshen(doc.getID());
-				for(String tag : tags) {
-					doc.setFetchedBy(tag, new Date());
+		ReadyQueue queue = getQueue(tags[0]);
+		ArrayList<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
+		synchronized (queue) {
+			queue.useQuery(query.toJson());
+
+			Iterator<DocumentID<T>> it = queue.ready.iterator();
+			while (it.hasNext() && list.size() < n) {
+				DocumentID<T> id = it.next();
+				it.remove();
+				DatabaseDocument<T> d = tag(id, query, tags);
+				if (d != null) {
+					freshen(id);
+					list.add(d);
+				} else if (map.containsKey(id)) {
+					queue.parked.add(id);
+				}
+			}
+		}
+		for (int i = 1; i < tags.length; i++) {
+			ReadyQueue other = queues.get(tags[i]);
+			if (other != null) {
+				for (DatabaseDocument<T> d : list) {
+					other.remove(d.getID());
 				}
 			}
 		}
 
-		return doc;
+		return list;
 	}
 
-	@Override
-	public Collection<DatabaseDocument<T>> getAndTag(DatabaseQuery<T> query,
-			int n, String ... tags) {
-		for(String tag : tags) {
-			query.requireNotFetchedByStage(tag);
+	/**
+	 * Publishes a version of the document fetched by the given tags, if the
+	 * document matches the query.
+	 *
+	 * @return the published version, or null if the document does not match
+	 *         or is no longer cached
+	 */
+	private DatabaseDocument<T> tag(DocumentID<T> id, DatabaseQuery<T> query, String... tags) {
+		for (;;) {
+			DatabaseDocument<T> current = map.get(id);
+			if (current == null || !current.matches(query)) {
+				return null;
+			}
+			DatabaseDocument<T> next = current.copy();
+			Date now = new Date();
+			for (String tag : tags) {
+				next.setFetchedBy(tag, now);
+			}
+			if (map.replace(id, current, next)) {
+				return next;
+			}
 		}
+	}
+
+	private Collection<DatabaseDocument<T>> getAndTagUnindexed(DatabaseQuery<T> query, int n) {
 		ArrayList<DatabaseDocument<T>> list;
 		synchronized (this) {
 			list = getDocument(query, n);
-
 			for (DatabaseDocument<T> d : list) {
 				freshen(d.getID());
-				for(String tag : tags) {
-					d.setFetchedBy(tag, new Date());
-				}
 			}
 		}
-
 		return list;
 	}
 
 	@Override
 	public boolean update(DatabaseDocument<T> document) {
-		DatabaseDocument<T> inCache = getDocumentById(document.getID());
-		if (inCache != null) {
-			inCache.putAll(document);
-			freshen(inCache.getID());
-			return true;
+		DocumentID<T> id = document.getID();
+		for (;;) {
+			DatabaseDocument<T> current = map.get(id);
+			if (current == null) {
+				return false;
+			}
+			DatabaseDocument<T> next = current.copy();
+			next.putAll(document);
+			if (map.replace(id, current, next)) {
+				freshen(id);
+				reindex(id, next);
+				return true;
+			}
 		}
-		return false;
 	}
 
 	@Override
 	public boolean markTouched(DocumentID<T> id, String tag) {
-		DatabaseDocument<T> inCache;
-		synchronized (this) {
-			inCache = getDocumentById(id);
-			if (inCache != null) {
-				freshen(inCache.getID());
-				inCache.setTouchedBy(tag, new Date());
+		for (;;) {
+			DatabaseDocument<T> current = map.get(id);
+			if (current == null) {
+				return false;
+			}
+			DatabaseDocument<T> next = current.copy();
+			next.setTouchedBy(tag, new Date());
+			if (map.replace(id, current, next)) {
+				freshen(id);
+				reindex(id, next);
 				return true;
 			}
 		}
-		return false;
 	}
 
 	@Override
@@ -178,10 +287,15 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 			while(it.hasNext()) {
 				Entry<DocumentID<T>, Long> entry = it.next();
 				if (time - entry.getValue() > stalerThanMs) {
-					DatabaseDocument<T> d = getDocumentById(entry.getKey());
+					DocumentID<T> id = entry.getKey();
+					DatabaseDocument<T> d = map.get(id);
+					// Skipped if it was removed, or replaced, in between
+					if (d == null || !map.remove(id, d)) {
+						continue;
+					}
 					list.add(d);
-					map.remove(d.getID());
 					it.remove();
+					reindex(id, map.get(id));
 				}
 			}
 		}
@@ -198,4 +312,91 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 		return false;
 	}
 
+	/**
+	 * @return the number of documents the given stage has not yet fetched
+	 *         or been found not to match, or -1 if the stage has no queue
+	 */
+	public int getReadyCount(String tag) {
+		ReadyQueue q = queues.get(tag);
+		if (q == null) {
+			return -1;
+		}
+		synchronized (q) {
+			return q.ready.size();
+		}
+	}
+
+	private ReadyQueue getQueue(String tag) {
+		ReadyQueue q = queues.get(tag);
+		if (q == null) {
+			ReadyQueue created = new ReadyQueue(tag);
+			q = queues.putIfAbsent(tag, created);
+			if (q == null) {
+				q = created;
+				// Documents added from here on are indexed by add(), but any
+				// already in the cache have to be picked up once
+				for (DatabaseDocument<T> d : map.values()) {
+					q.reindex(d.getID(), d);
+				}
+			}
+		}
+		return q;
+	}
+
+	/**
+	 * Brings every stage's queue up to date with a change to a document.
+	 *
+	 * @param doc the changed document, or null if it is no longer cached
+	 */
+	private void reindex(DocumentID<T> id, DatabaseDocument<T> doc) {
+		for (ReadyQueue q : queues.values()) {
+			q.reindex(id, doc);
+		}
+	}
+
+	private class ReadyQueue {
+		private final String tag;
+		private final LinkedHashSet<DocumentID<T>> ready = new LinkedHashSet<DocumentID<T>>();
+		private final Set<DocumentID<T>> parked = new HashSet<DocumentID<T>>();
+		private String queryKey;
+
+		ReadyQueue(String tag) {
+			this.tag = tag;
+		}
+
+		/**
+		 * Documents were parked because they did not match the previous query,
+		 * so if the query has changed they all have to be checked again.
+		 */
+		void useQuery(String key) {
+			if (key == null ? queryKey != null : !key.equals(queryKey)) {
+				ready.addAll(parked);
+				parked.clear();
+				queryKey = key;
+			}
+		}
+
+		synchronized void reindex(DocumentID<T> id, DatabaseDocument<T> doc) {
+			parked.remove(id);
+			if (doc == null) {
+				ready.remove(id);
+				return;
+			}
+			if (doc.fetchedBy(tag)) {
+				ready.remove(id);
+			} else {
+				ready.add(id);
+			}
+		}
+
+		synchronized void remove(DocumentID<T> id) {
+			ready.remove(id);
+			parked.remove(id);
+		}
+
+		synchronized void clear() {
+			ready.clear();
+			parked.clear();
+		}
+	}
 }
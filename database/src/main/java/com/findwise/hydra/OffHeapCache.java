@@ -0,0 +1,593 @@
+package com.findwise.hydra;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.local.LocalDocument;
+
+/**
+ * A cache that keeps its documents outside of the Java heap, so that the
+ * number of cached documents does not affect garbage collection.
+ *
+ * Documents are stored serialized, in the same Json format that is sent to
+ * stages, in fixed size blocks of direct buffers. The buffers are allocated
+ * as they are needed, up to the given capacity. Only a small index entry per
+ * document is kept on the heap: where its blocks are, when it was last
+ * touched and which stages have fetched it. The latter lets
+ * {@link #getAndTag(DatabaseQuery, int, String...)} skip most documents
+ * without deserializing them.
+ *
+ * Every read deserializes a new document, and every change serializes the
+ * document anew. Documents handed out are thus never shared, and may be
+ * modified by the caller.
+ *
+ * When a document does not fit in the remaining space it is not cached. If it
+ * was fetched into this cache, or the change that made it grow would otherwise
+ * be lost, it is written straight back to the database, the same way
+ * {@link BoundedMemoryCache} writes back evicted documents.
+ *
+ * All operations on the index and the buffers are made while holding the lock
+ * of the cache.
+ */
+public class OffHeapCache<T extends DatabaseType> implements Cache<T> {
+	private static final Logger logger = LoggerFactory.getLogger(OffHeapCache.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final int DEFAULT_BLOCK_SIZE = 2048;
+	/**
+	 * The size of each direct buffer that blocks are cut from
+	 */
+	static final int SLAB_SIZE = 64 * 1024 * 1024;
+
+	private final DatabaseConnector<T> connector;
+	private final DocumentWriter<T> writer;
+	private final BlockStore store;
+
+	// Insertion ordered, so that documents are fetched in the order they were cached
+	private final LinkedHashMap<DocumentID<T>, Entry> entries = new LinkedHashMap<DocumentID<T>, Entry>();
+
+	private final AtomicLong rejections = new AtomicLong();
+	private final AtomicLong writeBacks = new AtomicLong();
+	private final AtomicLong failedWriteBacks = new AtomicLong();
+
+	/**
+	 * @param connector
+	 *            used to turn serialized documents back into database
+	 *            documents, and to write back documents that do not fit
+	 * @param capacity
+	 *            the number of bytes of direct memory the cache may use
+	 */
+	public OffHeapCache(DatabaseConnector<T> connector, long capacity) {
+		this(connector, capacity, DEFAULT_BLOCK_SIZE);
+	}
+
+	public OffHeapCache(DatabaseConnector<T> connector, long capacity, int blockSize) {
+		if (blockSize < 1 || blockSize > SLAB_SIZE) {
+			throw new IllegalArgumentException("Block size must be between 1 and " + SLAB_SIZE + ", was " + blockSize);
+		}
+		this.connector = connector;
+		this.writer = connector.getDocumentWriter();
+		this.store = new BlockStore(capacity, blockSize);
+	}
+
+	@Override
+	public void prepare() {
+
+	}
+
+	@Override
+	public void add(DatabaseDocument<T> doc) {
+		if (doc == null) {
+			return;
+		}
+		byte[] bytes = encode(doc);
+		boolean stored;
+		synchronized (this) {
+			stored = put(doc.getID(), doc, bytes);
+		}
+		if (!stored) {
+			reject(doc, false);
+		}
+	}
+
+	@Override
+	public void add(Collection<DatabaseDocument<T>> docs) {
+		for (DatabaseDocument<T> doc : docs) {
+			add(doc);
+		}
+	}
+
+	@Override
+	public DatabaseDocument<T> remove(DocumentID<T> id) {
+		byte[] bytes;
+		synchronized (this) {
+			Entry e = entries.remove(id);
+			if (e == null) {
+				return null;
+			}
+			bytes = release(e);
+		}
+		return decode(bytes);
+	}
+
+	@Override
+	public Collection<DatabaseDocument<T>> removeAll() {
+		List<byte[]> removed = new ArrayList<byte[]>();
+		synchronized (this) {
+			for (Entry e : entries.values()) {
+				removed.add(release(e));
+			}
+			entries.clear();
+		}
+		return decodeAll(removed);
+	}
+
+	@Override
+	public Collection<DatabaseDocument<T>> removeStale(int stalerThanMs) {
+		List<byte[]> removed = new ArrayList<byte[]>();
+		synchronized (this) {
+			long time = System.currentTimeMillis();
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry e = it.next();
+				if (time - e.lastTouched > stalerThanMs) {
+					removed.add(release(e));
+					it.remove();
+				}
+			}
+		}
+		return decodeAll(removed);
+	}
+
+	@Override
+	public synchronized boolean freshen(DocumentID<T> id) {
+		Entry e = entries.get(id);
+		if (e == null) {
+			return false;
+		}
+		e.lastTouched = System.currentTimeMillis();
+		return true;
+	}
+
+	@Override
+	public DatabaseDocument<T> getDocumentById(DocumentID<T> id) {
+		byte[] bytes;
+		synchronized (this) {
+			Entry e = entries.get(id);
+			if (e == null) {
+				return null;
+			}
+			bytes = store.read(e.blocks, e.length);
+		}
+		return decode(bytes);
+	}
+
+	@Override
+	public DatabaseDocument<T> getDocument() {
+		byte[] bytes;
+		synchronized (this) {
+			if (entries.isEmpty()) {
+				return null;
+			}
+			Entry e = entries.values().iterator().next();
+			bytes = store.read(e.blocks, e.length);
+		}
+		return decode(bytes);
+	}
+
+	@Override
+	public DatabaseDocument<T> getDocument(DatabaseQuery<T> query) {
+		Collection<DatabaseDocument<T>> list = getDocument(query, 1);
+		return list.isEmpty() ? null : list.iterator().next();
+	}
+
+	@Override
+	public synchronized Collection<DatabaseDocument<T>> getDocument(DatabaseQuery<T> query, int limit) {
+		List<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
+		for (Entry e : entries.values()) {
+			if (list.size() >= limit) {
+				break;
+			}
+			DatabaseDocument<T> d = decode(store.read(e.blocks, e.length));
+			if (d != null && d.matches(query)) {
+				list.add(d);
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public DatabaseDocument<T> getAndTag(DatabaseQuery<T> query, String... tags) {
+		Collection<DatabaseDocument<T>> list = getAndTag(query, 1, tags);
+		return list.isEmpty() ? null : list.iterator().next();
+	}
+
+	/**
+	 * Documents already fetched by one of the tags are skipped using the
+	 * index alone. Documents found not to match are remembered as such for
+	 * the first tag and its query, and are skipped until they change or the
+	 * query does.
+	 *
+	 * The candidates are read under the lock a few at a time, but decoded,
+	 * matched and encoded again outside it. A candidate is only tagged if it
+	 * is still the version that was read once the lock is taken again.
+	 */
+	@Override
+	public Collection<DatabaseDocument<T>> getAndTag(DatabaseQuery<T> query, int n, String... tags) {
+		for (String tag : tags) {
+			query.requireNotFetchedByStage(tag);
+		}
+		String parkTag = (tags.length > 0) ? tags[0] : "";
+		String queryKey = query.toJson();
+
+		List<DocumentID<T>> ids = new ArrayList<DocumentID<T>>();
+		synchronized (this) {
+			for (Map.Entry<DocumentID<T>, Entry> e : entries.entrySet()) {
+				if (!e.getValue().isFetchedByAny(tags) && !e.getValue().isParked(parkTag, queryKey)) {
+					ids.add(e.getKey());
+				}
+			}
+		}
+
+		List<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
+		List<DatabaseDocument<T>> overflow = new ArrayList<DatabaseDocument<T>>();
+		Iterator<DocumentID<T>> it = ids.iterator();
+		while (list.size() < n && it.hasNext()) {
+			List<Candidate> candidates = new ArrayList<Candidate>();
+			synchronized (this) {
+				while (candidates.size() < n - list.size() && it.hasNext()) {
+					DocumentID<T> id = it.next();
+					Entry e = entries.get(id);
+					if (e != null && !e.isFetchedByAny(tags) && !e.isParked(parkTag, queryKey)) {
+						candidates.add(new Candidate(id, e, store.read(e.blocks, e.length)));
+					}
+				}
+			}
+
+			Date now = new Date();
+			for (Candidate c : candidates) {
+				c.doc = decode(c.bytes);
+				if (c.doc != null && c.doc.matches(query)) {
+					for (String tag : tags) {
+						c.doc.setFetchedBy(tag, now);
+					}
+					c.bytes = encode(c.doc);
+				} else {
+					c.bytes = null;
+				}
+			}
+
+			synchronized (this) {
+				for (Candidate c : candidates) {
+					if (c.doc == null || entries.get(c.id) != c.entry) {
+						continue;
+					}
+					if (c.bytes == null) {
+						c.entry.park(parkTag, queryKey);
+						continue;
+					}
+					if (!put(c.id, c.doc, c.bytes)) {
+						overflow.add(c.doc);
+					}
+					list.add(c.doc);
+				}
+			}
+		}
+		for (DatabaseDocument<T> d : overflow) {
+			reject(d, true);
+		}
+		return list;
+	}
+
+	@Override
+	public boolean markTouched(DocumentID<T> id, String tag) {
+		DatabaseDocument<T> overflow;
+		synchronized (this) {
+			Entry e = entries.get(id);
+			if (e == null) {
+				return false;
+			}
+			DatabaseDocument<T> d = decode(store.read(e.blocks, e.length));
+			if (d == null) {
+				return false;
+			}
+			d.setTouchedBy(tag, new Date());
+			if (put(id, d, encode(d))) {
+				return true;
+			}
+			overflow = d;
+		}
+		return reject(overflow, true);
+	}
+
+	@Override
+	public boolean update(DatabaseDocument<T> document) {
+		DatabaseDocument<T> overflow;
+		synchronized (this) {
+			Entry e = entries.get(document.getID());
+			if (e == null) {
+				return false;
+			}
+			DatabaseDocument<T> d = decode(store.read(e.blocks, e.length));
+			if (d == null) {
+				return false;
+			}
+			d.putAll(document);
+			if (put(d.getID(), d, encode(d))) {
+				return true;
+			}
+			overflow = d;
+		}
+		return reject(overflow, true);
+	}
+
+	@Override
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of bytes of direct memory the cache may use
+	 */
+	public long getCapacity() {
+		return store.getCapacity();
+	}
+
+	/**
+	 * @return the number of bytes of direct memory taken up by cached
+	 *         documents, counted in whole blocks
+	 */
+	public synchronized long getUsedBytes() {
+		return store.getUsedBytes();
+	}
+
+	/**
+	 * @return the number of documents that did not fit in the cache
+	 */
+	public long getRejectionCount() {
+		return rejections.get();
+	}
+
+	public long getWriteBackCount() {
+		return writeBacks.get();
+	}
+
+	public long getFailedWriteBackCount() {
+		return failedWriteBacks.get();
+	}
+
+	@Override
+	public String toString() {
+		return "OffHeapCache [size=" + getSize() + ", used=" + getUsedBytes() + "/" + getCapacity()
+				+ ", rejections=" + rejections + ", writeBacks=" + writeBacks
+				+ ", failedWriteBacks=" + failedWriteBacks + "]";
+	}
+
+	/**
+	 * Stores the serialized document, replacing any earlier version. Must be
+	 * called while holding the lock of the cache.
+	 *
+	 * @return false if there was not enough room, in which case the document
+	 *         is no longer cached at all
+	 */
+	private boolean put(DocumentID<T> id, DatabaseDocument<T> doc, byte[] bytes) {
+		Entry old = entries.remove(id);
+		if (old != null) {
+			store.release(old.blocks);
+		}
+		int[] blocks = store.write(bytes);
+		if (blocks == null) {
+			return false;
+		}
+		entries.put(id, new Entry(blocks, bytes.length, doc.getFetchedBy()));
+		return true;
+	}
+
+	private byte[] release(Entry e) {
+		byte[] bytes = store.read(e.blocks, e.length);
+		store.release(e.blocks);
+		return bytes;
+	}
+
+	/**
+	 * Counts a document that did not fit, and writes it back if it was
+	 * fetched into this cache or has been changed in it.
+	 *
+	 * @return false if the document had to be written back, but could not be
+	 */
+	private boolean reject(DatabaseDocument<T> doc, boolean changed) {
+		rejections.incrementAndGet();
+		if (!changed && !doc.fetchedBy(CachingDocumentNIO.CACHE_TAG)) {
+			return true;
+		}
+		DatabaseDocument<T> d = doc.copy();
+		d.removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+		if (writer.update(d)) {
+			writeBacks.incrementAndGet();
+			return true;
+		}
+		failedWriteBacks.incrementAndGet();
+		logger.error("Unable to write back document " + d.getID() + ", which did not fit in the cache");
+		return false;
+	}
+
+	private byte[] encode(Document<?> d) {
+		return d.toJson().getBytes(UTF8);
+	}
+
+	private DatabaseDocument<T> decode(byte[] bytes) {
+		try {
+			return connector.convert(new LocalDocument(new String(bytes, UTF8)));
+		} catch (JsonException e) {
+			logger.error("Unable to read a cached document", e);
+		} catch (ConversionException e) {
+			logger.error("Unable to convert a cached document", e);
+		}
+		return null;
+	}
+
+	private List<DatabaseDocument<T>> decodeAll(List<byte[]> serialized) {
+		List<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>(serialized.size());
+		for (byte[] bytes : serialized) {
+			DatabaseDocument<T> d = decode(bytes);
+			if (d != null) {
+				list.add(d);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * A document read by {@link OffHeapCache#getAndTag(DatabaseQuery, int, String...)},
+	 * along with the entry it was read from
+	 */
+	private final class Candidate {
+		private final DocumentID<T> id;
+		private final Entry entry;
+		private byte[] bytes;
+		private DatabaseDocument<T> doc;
+
+		Candidate(DocumentID<T> id, Entry entry, byte[] bytes) {
+			this.id = id;
+			this.entry = entry;
+			this.bytes = bytes;
+		}
+	}
+
+	private static final class Entry {
+		private final int[] blocks;
+		private final int length;
+		private final Set<String> fetchedBy;
+		private long lastTouched = System.currentTimeMillis();
+		private Map<String, String> parked;
+
+		Entry(int[] blocks, int length, Set<String> fetchedBy) {
+			this.blocks = blocks;
+			this.length = length;
+			this.fetchedBy = (fetchedBy == null || fetchedBy.isEmpty()) ? null : new HashSet<String>(fetchedBy);
+		}
+
+		boolean isFetchedByAny(String... tags) {
+			if (fetchedBy == null) {
+				return false;
+			}
+			for (String tag : tags) {
+				if (fetchedBy.contains(tag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean isParked(String tag, String queryKey) {
+			return queryKey != null && parked != null && queryKey.equals(parked.get(tag));
+		}
+
+		void park(String tag, String queryKey) {
+			if (queryKey == null) {
+				return;
+			}
+			if (parked == null) {
+				parked = new HashMap<String, String>(2);
+			}
+			parked.put(tag, queryKey);
+		}
+	}
+
+	/**
+	 * Fixed size blocks cut from direct buffers, which are allocated the
+	 * first time one of their blocks is used. Not thread safe.
+	 */
+	private static final class BlockStore {
+		private final int blockSize;
+		private final int blocksPerSlab;
+		private final int totalBlocks;
+		private final ByteBuffer[] slabs;
+		private final int[] free;
+		private int freeCount = 0;
+		private int nextUnused = 0;
+
+		BlockStore(long capacity, int blockSize) {
+			this.blockSize = blockSize;
+			this.totalBlocks = (int) Math.min(capacity / blockSize, Integer.MAX_VALUE);
+			this.blocksPerSlab = SLAB_SIZE / blockSize;
+			this.slabs = new ByteBuffer[(totalBlocks + blocksPerSlab - 1) / blocksPerSlab];
+			this.free = new int[totalBlocks];
+		}
+
+		long getCapacity() {
+			return (long) totalBlocks * blockSize;
+		}
+
+		long getUsedBytes() {
+			return (long) (nextUnused - freeCount) * blockSize;
+		}
+
+		/**
+		 * @return the blocks now holding the bytes, or null if there are not
+		 *         enough free blocks
+		 */
+		int[] write(byte[] bytes) {
+			int needed = Math.max(1, (bytes.length + blockSize - 1) / blockSize);
+			if (needed > freeCount + totalBlocks - nextUnused) {
+				return null;
+			}
+			int[] blocks = new int[needed];
+			for (int i = 0; i < needed; i++) {
+				blocks[i] = allocate();
+				int offset = i * blockSize;
+				position(blocks[i]).put(bytes, offset, Math.min(blockSize, bytes.length - offset));
+			}
+			return blocks;
+		}
+
+		byte[] read(int[] blocks, int length) {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < blocks.length; i++) {
+				int offset = i * blockSize;
+				position(blocks[i]).get(bytes, offset, Math.min(blockSize, length - offset));
+			}
+			return bytes;
+		}
+
+		void release(int[] blocks) {
+			for (int block : blocks) {
+				free[freeCount++] = block;
+			}
+		}
+
+		private int allocate() {
+			if (freeCount > 0) {
+				return free[--freeCount];
+			}
+			return nextUnused++;
+		}
+
+		private ByteBuffer position(int block) {
+			int slab = block / blocksPerSlab;
+			if (slabs[slab] == null) {
+				int blocks = Math.min(blocksPerSlab, totalBlocks - slab * blocksPerSlab);
+				slabs[slab] = ByteBuffer.allocateDirect(blocks * blockSize);
+			}
+			ByteBuffer buffer = slabs[slab];
+			buffer.clear();
+			buffer.position((block % blocksPerSlab) * blockSize);
+			return buffer;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package com.findwise.hydra;
+
+/**
+ * Receives notifications from a {@link ChangeFeed} whenever the pipeline may
+ * have been changed: stages or groups written, inactivated, or their files
+ * replaced.
+ * 
+ * Listeners are called on the thread delivering the change, and should
+ * return quickly.
+ */
+public interface PipelineListener {
+
+	void pipelineChanged();
+}
@@ -22,6 +22,7 @@ public class StageGroup {
 	public static final String CMDLINE_ARGS_KEY = "cmdline_args";
 	public static final String CLASSPATH_KEY = "classpath";
 	public static final String JAVA_LOCATION_KEY = "java_location";
+	public static final String IN_PROCESS_KEY = "in_process";
 	
 	private final Map<String, Stage> stages;
 	
@@ -34,6 +35,7 @@ public class StageGroup {
 	private Date propertiesModifiedDate;
 	private String name;
 	private String javaLocation;
+	private Boolean inProcess;
 	
 	private static final Logger logger = LoggerFactory.getLogger(StageGroup.class);
 	
@@ -107,6 +109,18 @@ public class StageGroup {
 		return javaLocation;
 	}
 	
+	/**
+	 * @return whether the stages should run inside the core rather than in a
+	 *         JVM of their own, or null to leave it to the core
+	 */
+	public Boolean getInProcess() {
+		return inProcess;
+	}
+	
+	public void setInProcess(Boolean inProcess) {
+		this.inProcess = inProcess;
+	}
+	
 	public Map<String, Object> toPropertiesMap() {
 		HashMap<String, Object> map = new HashMap<String, Object>();
 		map.put(JVM_PARAMETERS_KEY, getJvmParameters());
@@ -115,6 +129,7 @@ public class StageGroup {
 		map.put(CMDLINE_ARGS_KEY, getCmdlineArgs());
 		map.put(CLASSPATH_KEY, getClasspath());
 		map.put(JAVA_LOCATION_KEY, getJavaLocation());
+		map.put(IN_PROCESS_KEY, getInProcess());
 		return map;
 	}
 
@@ -133,6 +148,7 @@ public class StageGroup {
 		setCmdlineArgs((String)propertiesMap.get(CMDLINE_ARGS_KEY));
 		setClasspath((String)propertiesMap.get(CLASSPATH_KEY));
 		setJavaLocation((String)propertiesMap.get(JAVA_LOCATION_KEY));
+		setInProcess((Boolean)propertiesMap.get(IN_PROCESS_KEY));
 	}
 	
 	/**
@@ -0,0 +1,143 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AsyncDocumentIOTest {
+	public static interface TestType extends DatabaseType {
+	}
+
+	@Mock
+	CachingDocumentNIO<TestType> io;
+	@Mock
+	DatabaseQuery<TestType> query;
+	@Mock
+	DatabaseDocument<TestType> doc;
+	@Mock
+	DocumentID<TestType> id;
+
+	private AsyncDocumentIO<TestType> async;
+
+	@Before
+	public void setUp() {
+		async = new AsyncDocumentIO<TestType>(io, 1, 1);
+	}
+
+	@After
+	public void tearDown() {
+		async.shutdown();
+	}
+
+	@Test
+	public void testGetAndTagCallsBack() throws Exception {
+		when(io.getAndTag(query, "stage")).thenReturn(doc);
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		final CountDownLatch done = new CountDownLatch(1);
+
+		async.getAndTag(query, "stage", new AsyncDocumentIO.Callback<DatabaseDocument<TestType>>() {
+			@Override
+			public void completed(DatabaseDocument<TestType> d) {
+				result.set(d);
+				done.countDown();
+			}
+
+			@Override
+			public void failed(Exception e) {
+				done.countDown();
+			}
+		});
+
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		assertEquals(doc, result.get());
+	}
+
+	@Test
+	public void testMarkMissingDocument() throws Exception {
+		when(doc.getID()).thenReturn(id);
+
+		assertFalse(async.mark(doc, "stage", Document.Status.PROCESSED, null).get());
+		verify(io, never()).markProcessed(any(DatabaseDocument.class), any(String.class));
+	}
+
+	@Test
+	public void testMarkAppliesChanges() throws Exception {
+		@SuppressWarnings("unchecked")
+		DatabaseDocument<TestType> stored = mock(DatabaseDocument.class);
+		when(doc.getID()).thenReturn(id);
+		when(io.getDocumentById(id)).thenReturn(stored);
+		when(io.markFailed(stored, "stage")).thenReturn(true);
+
+		assertTrue(async.mark(doc, "stage", Document.Status.FAILED, null).get());
+		verify(stored).putAll(doc);
+	}
+
+	@Test
+	public void testFailureCallsBack() throws Exception {
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		final CountDownLatch done = new CountDownLatch(1);
+
+		async.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				throw new IllegalStateException("boom");
+			}
+		}, new AsyncDocumentIO.Callback<Object>() {
+			@Override
+			public void completed(Object o) {
+				done.countDown();
+			}
+
+			@Override
+			public void failed(Exception e) {
+				error.set(e);
+				done.countDown();
+			}
+		});
+
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		assertTrue(error.get() instanceof IllegalStateException);
+	}
+
+	@Test
+	public void testRejectsWhenQueueIsFull() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		Callable<Object> blocking = new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				release.await();
+				return null;
+			}
+		};
+		async.submit(blocking, null);
+		async.submit(blocking, null);
+		try {
+			async.submit(blocking, null);
+			fail("Expected the third operation to be refused");
+		} catch (RejectedExecutionException e) {
+			// One running, one queued
+		} finally {
+			release.countDown();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BoundedMemoryCacheTest {
+
+	public static interface TestType extends DatabaseType {
+	}
+
+	@Mock
+	DatabaseDocument<TestType> doc1, doc2, doc3;
+
+	@Mock
+	DocumentID<TestType> id1, id2, id3;
+
+	@Mock
+	DocumentWriter<TestType> writer;
+
+	private long docWeight;
+	private BoundedMemoryCache<TestType> cache;
+
+	@Before
+	public void setUp() {
+		when(doc1.getID()).thenReturn(id1);
+		when(doc2.getID()).thenReturn(id2);
+		when(doc3.getID()).thenReturn(id3);
+		when(doc1.copy()).thenReturn(doc1);
+		when(doc2.copy()).thenReturn(doc2);
+		when(doc3.copy()).thenReturn(doc3);
+		when(writer.update(doc1)).thenReturn(true);
+		when(writer.update(doc2)).thenReturn(true);
+		when(writer.update(doc3)).thenReturn(true);
+
+		docWeight = DocumentWeigher.estimate(doc1);
+		cache = new BoundedMemoryCache<TestType>(2 * docWeight, writer);
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		cache.add(doc1);
+		cache.add(doc2);
+		assertEquals(2 * docWeight, cache.getWeight());
+
+		// doc1 is now more recently used than doc2
+		assertNotNull(cache.getDocumentById(id1));
+
+		cache.add(doc3);
+		assertEquals(2, cache.getSize());
+		assertEquals(2 * docWeight, cache.getWeight());
+		assertNull(cache.getDocumentById(id2));
+		assertNotNull(cache.getDocumentById(id1));
+		assertNotNull(cache.getDocumentById(id3));
+
+		verify(doc2).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+		verify(writer).update(doc2);
+		verify(writer, never()).update(doc1);
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(1, cache.getWriteBackCount());
+	}
+
+	@Test
+	public void testCountsHitsAndMisses() {
+		cache.add(doc1);
+
+		cache.getDocumentById(id1);
+		cache.getDocumentById(id1);
+		cache.getDocumentById(id2);
+
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void testFailedWriteBackIsCounted() {
+		when(writer.update(doc1)).thenReturn(false);
+		cache.add(doc1);
+		cache.add(doc2);
+		cache.add(doc3);
+
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(0, cache.getWriteBackCount());
+		assertEquals(1, cache.getFailedWriteBackCount());
+	}
+
+	@Test
+	public void testOversizedDocumentIsNotAdmitted() {
+		Map<String, Object> content = new HashMap<String, Object>();
+		content.put("text", new String(new char[(int) docWeight]));
+		when(doc1.getContentMap()).thenReturn(content);
+		when(doc1.fetchedBy(CachingDocumentNIO.CACHE_TAG)).thenReturn(true);
+
+		cache.add(doc1);
+
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getWeight());
+		assertEquals(1, cache.getRejectionCount());
+		verify(writer).update(doc1);
+	}
+
+	@Test
+	public void testRemoveReleasesWeight() {
+		cache.add(doc1);
+		cache.add(doc2);
+
+		cache.remove(id1);
+		assertEquals(docWeight, cache.getWeight());
+
+		cache.removeAll();
+		assertEquals(0, cache.getWeight());
+		assertEquals(0, cache.getEvictionCount());
+	}
+}
@@ -0,0 +1,87 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.findwise.hydra.local.LocalQuery;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CachePrefetcherTest {
+	public static interface TestType extends DatabaseType {
+	}
+
+	@Mock
+	CachingDocumentNIO<TestType> io;
+
+	private CachePrefetcher<TestType> prefetcher;
+	private LocalQuery query;
+	private long now;
+
+	@Before
+	public void setUp() {
+		prefetcher = new CachePrefetcher<TestType>(io, 100);
+		prefetcher.setLookahead(1000);
+		query = new LocalQuery();
+		now = System.currentTimeMillis();
+		when(io.prefetch(any(LocalQuery.class), anyString(), anyInt())).thenReturn(0);
+	}
+
+	@Test
+	public void testNothingIsPrefetchedWithoutConsumption() {
+		prefetcher.register("stage", query);
+		prefetcher.prefetch(now + 1000);
+
+		verify(io, never()).prefetch(any(LocalQuery.class), anyString(), anyInt());
+	}
+
+	@Test
+	public void testDepthFollowsConsumption() {
+		prefetcher.register("stage", query);
+		prefetcher.consumed(new String[] { "stage" }, 10, true);
+		prefetcher.prefetch(now + 1000);
+		int slow = prefetcher.getDepth("stage");
+
+		prefetcher.consumed(new String[] { "stage" }, 200, true);
+		prefetcher.prefetch(now + 2000);
+		int fast = prefetcher.getDepth("stage");
+
+		assertTrue(slow > 0);
+		assertTrue(fast > slow);
+		assertTrue(fast <= 100);
+		verify(io).prefetch(query, "stage", slow);
+	}
+
+	@Test
+	public void testPrefetchedDocumentsAreCountedAsAvailable() {
+		when(io.prefetch(eq(query), eq("stage"), anyInt())).thenReturn(50);
+		prefetcher.register("stage", query);
+		prefetcher.consumed(new String[] { "stage" }, 100, true);
+		prefetcher.prefetch(now + 1000);
+		prefetcher.prefetch(now + 1001);
+
+		assertEquals(50, prefetcher.getPrefetchedCount());
+	}
+
+	@Test
+	public void testIdleStagesAreDropped() {
+		prefetcher.register("stage", query);
+		prefetcher.consumed(new String[] { "stage" }, 100, true);
+		prefetcher.prefetch(now + CachePrefetcher.IDLE_TIMEOUT + 1000);
+
+		assertEquals(0, prefetcher.getDepth("stage"));
+		verify(io, never()).prefetch(any(LocalQuery.class), anyString(), anyInt());
+	}
+}
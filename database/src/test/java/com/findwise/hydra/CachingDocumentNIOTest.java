@@ -30,7 +30,9 @@ import org.junit.runner.RunWith;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.LocalQuery;
@@ -112,6 +114,19 @@ public class CachingDocumentNIOTest {
 		verify(doc1).setFetchedBy(eq("tag"), any(Date.class));
 	}
 
+	@Test
+	public void testGetAndTagCacheMissTagsCopy() {
+		when(cache.getAndTag(eq(q1), (String[]) Mockito.anyVararg())).thenReturn(null);
+		when(writer.getAndTag(eq(q1), (String[]) Mockito.anyVararg())).thenReturn(doc2);
+		when(doc2.copy()).thenReturn(doc1);
+
+		assertEquals(doc1, io.getAndTag(q1, "tag"));
+
+		verify(cache).add(doc1);
+		verify(doc1).setFetchedBy(eq("tag"), any(Date.class));
+		verify(doc2, never()).setFetchedBy(anyString(), any(Date.class));
+	}
+
 	@Test
 	public void testGetAndTagDatabaseQueryWithLimitCacheMiss() {
 		Collection<DatabaseDocument<TestType>> c = new ArrayList<DatabaseDocument<TestType>>();
@@ -188,6 +203,20 @@ public class CachingDocumentNIOTest {
 		verify(doc1, times(1)).putAll(doc1);
 	}
 
+	@Test
+	public void testMarkAllMergesLikeSingleMarks() {
+		when(doc2.getID()).thenReturn(id1);
+		when(cache.getDocumentById(id1)).thenReturn(doc1);
+		Collection<DatabaseDocument<TestType>> docs = Arrays.<DatabaseDocument<TestType>>asList(doc2);
+
+		io.markAll(docs, Document.Status.PROCESSED, "tag");
+
+		verify(doc2).putAll(doc1);
+		verify(doc1, never()).putAll(any(DatabaseDocument.class));
+		verify(cache).remove(id1);
+		verify(writer).markAll(docs, Document.Status.PROCESSED, "tag");
+	}
+
 	@Test
 	public void testMarkDiscarded() {
 		when(cache.getDocumentById(id1)).thenReturn(doc1);
@@ -256,6 +285,33 @@ public class CachingDocumentNIOTest {
 		verify(writer, never()).update(doc1);
 	}
 
+	@Test
+	public void testUpdateMarksDirtyBeforeCaching() {
+		when(cache.update(doc1)).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				assertEquals(1, io.getDirtyCount());
+				return true;
+			}
+		});
+
+		io.update(doc1);
+		io.updateFields(doc1);
+
+		assertEquals(1, io.getDirtyCount());
+	}
+
+	@Test
+	public void testUpdateOfUncachedDocumentIsNotDirty() {
+		when(cache.update(doc1)).thenReturn(false);
+		when(writer.updateFields(doc1)).thenReturn(true);
+
+		io.updateFields(doc1);
+
+		assertEquals(0, io.getDirtyCount());
+		verify(writer).updateFields(doc1);
+	}
+
 	@Test
 	public void testDelete() {
 		io.delete(doc1);
@@ -552,21 +608,29 @@ public class CachingDocumentNIOTest {
 
 	@Test
 	public void testCacheFlush() throws Exception {
+		when(cache.update(doc2)).thenReturn(true);
+		when(doc2.getID()).thenReturn(mock(DocumentID.class));
+		when(doc1.fetchedBy(CachingDocumentNIO.CACHE_TAG)).thenReturn(true);
 		List list = Arrays.asList(new DatabaseDocument[] { doc1, doc2 });
 		when(cache.removeAll()).thenReturn(list);
 		
+		io.update(doc2);
+		assertEquals(1, io.getDirtyCount());
 		io.flush();
 		
 		InOrder inOrder = inOrder(cache, writer, doc1);
 		inOrder.verify(cache).removeAll();
 		inOrder.verify(doc1).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
-		inOrder.verify(writer).update(doc1);
+		inOrder.verify(writer).update(list);
 		verify(doc2).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
-		verify(writer).update(doc2);
+		verify(writer, never()).update(any(DatabaseDocument.class));
+		assertEquals(0, io.getDirtyCount());
 	}
 	
 	@Test
 	public void testCacheFlushTimeout() throws Exception {
+		when(doc1.fetchedBy(CachingDocumentNIO.CACHE_TAG)).thenReturn(true);
+		when(doc2.fetchedBy(CachingDocumentNIO.CACHE_TAG)).thenReturn(true);
 		List list = Arrays.asList(new DatabaseDocument[] { doc1, doc2 });
 		when(cache.removeStale(anyInt())).thenReturn(list);
 		
@@ -575,10 +639,175 @@ public class CachingDocumentNIOTest {
 		InOrder inOrder = inOrder(cache, writer, doc1);
 		inOrder.verify(cache).removeStale(1000);
 		inOrder.verify(doc1).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
-		inOrder.verify(writer).update(doc1);
+		inOrder.verify(writer).update(list);
 		verify(doc2).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+	}
+	
+	@Test
+	public void testCacheFlushSkipsUnchangedDocuments() throws Exception {
+		when(doc1.fetchedBy(CachingDocumentNIO.CACHE_TAG)).thenReturn(true);
+		List list = Arrays.asList(new DatabaseDocument[] { doc1, doc2 });
+		when(cache.removeAll()).thenReturn(list);
+		
+		io.flush();
+		
+		verify(writer).update(Arrays.asList(new DatabaseDocument[] { doc1 }));
+		verify(doc2, never()).removeFetchedBy(anyString());
+	}
+	
+	@Test
+	public void testCacheUpdatesAreCoalesced() throws Exception {
+		when(cache.update(doc1)).thenReturn(true);
+		when(doc1.fetchedBy(CachingDocumentNIO.CACHE_TAG)).thenReturn(false);
+		when(cache.removeAll()).thenReturn(Arrays.asList(new DatabaseDocument[] { doc1 }));
+		
+		io.update(doc1);
+		io.update(doc1);
+		io.update(doc1);
+		io.flush();
+		
+		verify(writer, times(1)).update(anyCollection());
+		verify(writer, never()).update(any(DatabaseDocument.class));
+	}
+	
+	@Test
+	public void testInvalidateDropsCachedDocument() throws Exception {
+		when(cache.update(doc1)).thenReturn(true);
+		when(cache.remove(id1)).thenReturn(doc1);
+		when(reader.getDocumentById(id1)).thenReturn(doc2);
+		when(doc2.removeFetchedBy(CachingDocumentNIO.CACHE_TAG)).thenReturn(true);
+		DocumentListener<TestType> listener = mock(DocumentListener.class);
+		io.addDocumentListener(listener);
+
+		io.update(doc1);
+		assertEquals(1, io.getDirtyCount());
+		io.invalidate(id1);
+
+		assertEquals(0, io.getDirtyCount());
 		verify(writer).update(doc2);
+		verify(writer, never()).update(doc1);
+		verify(listener, times(2)).documentChanged(id1);
+	}
+
+	@Test
+	public void testInvalidateUncachedDocumentOnlyNotifies() throws Exception {
+		DocumentListener<TestType> listener = mock(DocumentListener.class);
+		io.addDocumentListener(listener);
+
+		io.invalidate(id1);
+		io.invalidate(null);
+
+		verify(reader, never()).getDocumentById(any(DocumentID.class));
+		verify(writer, never()).update(any(DatabaseDocument.class));
+		verify(listener).documentChanged(id1);
+		verify(listener).documentChanged(null);
+	}
+
+	@Test
+	public void testFollowChanges() throws Exception {
+		ChangeFeed<TestType> feed = new ChangeFeed<TestType>();
+		when(cache.remove(id1)).thenReturn(doc1);
+		io.followChanges(feed);
+
+		feed.publishDocumentChanged(id1);
+
+		verify(cache).remove(id1);
+		verify(reader).getDocumentById(id1);
+	}
+
+	@Test
+	public void testCacheFlushIsBatched() throws Exception {
+		List<DatabaseDocument> list = new ArrayList<DatabaseDocument>();
+		for (int i = 0; i < 10; i++) {
+			DatabaseDocument d = mock(DatabaseDocument.class);
+			when(d.fetchedBy(CachingDocumentNIO.CACHE_TAG)).thenReturn(true);
+			when(d.copy()).thenReturn(d);
+			list.add(d);
+		}
+		when(cache.removeAll()).thenReturn((List) list);
+		
+		io.setFlushBatchSize(3);
+		io.setFlushThreads(2);
+		io.flush();
+		
+		verify(writer, times(4)).update(anyCollection());
+		for (DatabaseDocument d : list) {
+			verify(d).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+		}
+	}
+	
+	@Test
+	public void testShardRestrictsGetAndTag() {
+		io.setShard(new ConsistentHashRing(Arrays.asList("a:1", "b:1")), "b:1");
+
+		io.getAndTag(q1, "tag");
+		io.getAndTag(q2, 5, "tag");
+
+		verify(q1).requireMetadataFieldEquals(CachingDocumentNIO.SHARD_METADATA_KEY, "b:1");
+		verify(q2).requireMetadataFieldEquals(CachingDocumentNIO.SHARD_METADATA_KEY, "b:1");
+	}
+	
+	@Test
+	public void testInsertMarksOwner() throws Exception {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a:1", "b:1"));
+		io.setShard(ring, "a:1");
+		when(id1.toJSON()).thenReturn("\"id1\"");
+		when(writer.insert(doc1)).thenReturn(true);
+		when(connector.convert(any(LocalDocument.class))).thenReturn(doc2);
+		when(writer.updateFields(doc2)).thenReturn(true);
+
+		assertTrue(io.insert(doc1));
+
+		String owner = ring.getNode(id1);
+		verify(doc1).putMetadataField(CachingDocumentNIO.SHARD_METADATA_KEY, owner);
+		verify(doc2).setID(id1);
+		verify(doc2).putMetadataField(CachingDocumentNIO.SHARD_METADATA_KEY, owner);
+		verify(writer).updateFields(doc2);
+	}
+	
+	@Test
+	public void testInsertSucceedsWhenMarkFails() throws Exception {
+		io.setShard(new ConsistentHashRing(Arrays.asList("a:1", "b:1")), "a:1");
+		when(id1.toJSON()).thenReturn("\"id1\"");
+		when(writer.insert(doc1)).thenReturn(true);
+		when(connector.convert(any(LocalDocument.class))).thenReturn(doc2);
+		when(writer.updateFields(doc2)).thenReturn(false);
+
+		assertTrue(io.insert(doc1));
+	}
+	
+	@Test
+	public void testClaimShardOnlyReadsUnownedOnceClaimed() throws Exception {
+		io.setShard(new ConsistentHashRing(Arrays.asList("a:1", "b:1")), "a:1");
+		when(connector.convert(any(LocalQuery.class))).thenReturn(q1);
+		when(reader.getDocumentIds(q1, 10, 0)).thenReturn(new ArrayList<DocumentID<TestType>>());
+
+		io.claimShard(10);
+		verify(q1, times(1)).requireMetadataFieldNotEquals(CachingDocumentNIO.SHARD_METADATA_KEY, "a:1");
+		verify(q1, times(1)).requireMetadataFieldNotExists(CachingDocumentNIO.SHARD_METADATA_KEY);
+
+		io.claimShard(10);
+		verify(q1, times(1)).requireMetadataFieldNotEquals(CachingDocumentNIO.SHARD_METADATA_KEY, "a:1");
+		verify(q1, times(2)).requireMetadataFieldNotExists(CachingDocumentNIO.SHARD_METADATA_KEY);
 	}
 	
+	@Test
+	public void testClaimShardMarksUnownedWithTheirOwner() throws Exception {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a:1", "b:1"));
+		io.setShard(ring, "a:1");
+		when(id1.toJSON()).thenReturn("\"id1\"");
+		when(connector.convert(any(LocalQuery.class))).thenReturn(q1);
+		when(connector.convert(any(LocalDocument.class))).thenReturn(doc2);
+		when(writer.updateFields(doc2)).thenReturn(true);
+		when(reader.getDocumentIds(q1, 10, 0)).thenReturn(new ArrayList<DocumentID<TestType>>());
+		io.claimShard(10);
+
+		when(reader.getDocumentIds(q1, 10, 0)).thenReturn(Arrays.<DocumentID<TestType>>asList(id1),
+				new ArrayList<DocumentID<TestType>>());
+
+		assertEquals(1, io.claimShard(10));
+		verify(doc2).setID(id1);
+		verify(doc2).putMetadataField(CachingDocumentNIO.SHARD_METADATA_KEY, ring.getNode(id1));
+	}
 	
 }
@@ -0,0 +1,65 @@
+package com.findwise.hydra;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ChangeFeedTest {
+	public static interface TestType extends DatabaseType {
+	}
+
+	@Mock
+	DocumentListener<TestType> documentListener, otherDocumentListener;
+	@Mock
+	PipelineListener pipelineListener;
+	@Mock
+	DocumentID<TestType> id;
+
+	private ChangeFeed<TestType> feed;
+
+	@Before
+	public void setUp() {
+		feed = new ChangeFeed<TestType>();
+		feed.addDocumentListener(documentListener);
+		feed.addDocumentListener(otherDocumentListener);
+		feed.addPipelineListener(pipelineListener);
+	}
+
+	@Test
+	public void testChangesAreDeliveredInProcess() {
+		feed.publishDocumentChanged(id);
+		feed.publishPipelineChanged();
+
+		verify(documentListener).documentChanged(id);
+		verify(otherDocumentListener).documentChanged(id);
+		verify(pipelineListener).pipelineChanged();
+	}
+
+	@Test
+	public void testFailingListenerDoesNotStopOthers() {
+		doThrow(new IllegalStateException()).when(documentListener).documentChanged(id);
+
+		feed.publishDocumentChanged(id);
+
+		verify(otherDocumentListener).documentChanged(id);
+	}
+
+	@Test
+	public void testRemovedListenersAreNotNotified() {
+		feed.removeDocumentListener(documentListener);
+		feed.removePipelineListener(pipelineListener);
+
+		feed.publishDocumentChanged(id);
+		feed.publishPipelineChanged();
+
+		verify(documentListener, never()).documentChanged(id);
+		verify(pipelineListener, never()).pipelineChanged();
+	}
+}
@@ -21,6 +21,7 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -287,4 +288,81 @@ public class MemoryCacheTest {
 		assertTrue(c.contains(doc1));
 		assertEquals(0, cache.getSize());
 	}
+
+	@Test
+	public void testGetAndTagParksNonMatchingUntilChanged() {
+		cache.add(list);
+
+		assertEquals(doc2, cache.getAndTag(q2, "stage"));
+		assertEquals(0, cache.getReadyCount("stage"));
+
+		when(doc1.matches(q2)).thenReturn(true);
+		assertNull(cache.getAndTag(q2, "stage"));
+
+		cache.markTouched(id1, "otherstage");
+		assertEquals(1, cache.getReadyCount("stage"));
+		assertEquals(doc1, cache.getAndTag(q2, "stage"));
+	}
+
+	@Test
+	public void testReadyQueueRecheckedOnNewQuery() {
+		cache.add(list);
+
+		assertEquals(doc2, cache.getAndTag(q2, "stage"));
+		when(q1.toJson()).thenReturn("{q1}");
+		assertEquals(doc1, cache.getAndTag(q1, "stage"));
+	}
+
+	@Test
+	public void testReadyQueueIndexesLaterAdditions() {
+		cache.add(doc1);
+		assertNull(cache.getAndTag(q2, "stage"));
+
+		cache.add(doc2);
+		assertEquals(1, cache.getReadyCount("stage"));
+		assertEquals(doc2, cache.getAndTag(q2, "stage"));
+	}
+
+	@Test
+	public void testReadyQueueForgetsRemovedAndFetchedDocuments() {
+		cache.add(list);
+		assertNull(cache.getAndTag(mock(DatabaseQuery.class), "stage"));
+		assertEquals(0, cache.getReadyCount("stage"));
+
+		when(doc1.fetchedBy("stage")).thenReturn(true);
+		cache.update(doc1);
+		cache.remove(id2);
+		assertEquals(0, cache.getReadyCount("stage"));
+		assertEquals(-1, cache.getReadyCount("unknown"));
+	}
+
+	@Test
+	public void testUpdatePublishesNewVersion() {
+		DatabaseDocument<TestType> version = mock(DatabaseDocument.class);
+		when(version.getID()).thenReturn(id1);
+		when(doc1.copy()).thenReturn(version);
+		DatabaseDocument<TestType> delta = mock(DatabaseDocument.class);
+		when(delta.getID()).thenReturn(id1);
+
+		cache.add(doc1);
+		assertTrue(cache.update(delta));
+
+		assertEquals(version, cache.getDocumentById(id1));
+		verify(version).putAll(delta);
+		verify(doc1, never()).putAll(any(Document.class));
+	}
+
+	@Test
+	public void testGetAndTagDoesNotModifySnapshot() {
+		DatabaseDocument<TestType> version = mock(DatabaseDocument.class);
+		when(version.getID()).thenReturn(id1);
+		when(doc1.copy()).thenReturn(version);
+
+		cache.add(doc1);
+		assertEquals(version, cache.getAndTag(q1, "stage"));
+
+		verify(version).setFetchedBy(eq("stage"), any(Date.class));
+		verify(doc1, never()).setFetchedBy(any(String.class), any(Date.class));
+		assertEquals(version, cache.getDocumentById(id1));
+	}
 }